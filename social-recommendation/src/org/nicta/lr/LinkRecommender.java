@@ -1,16 +1,18 @@
 package org.nicta.lr;
 
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.Iterator;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
 
 import org.nicta.lr.recommender.HybridRecommender;
 import org.nicta.lr.recommender.FeatureRecommender;
@@ -24,6 +26,7 @@ import org.nicta.lr.recommender.BaselineRecommender;
 import org.nicta.lr.util.Constants;
 import org.nicta.lr.util.Configuration;
 import org.nicta.lr.util.LinkUtil;
+import org.nicta.lr.util.LinkWindowIndex;
 import org.nicta.lr.util.UserUtil;
 import org.nicta.lr.util.SQLUtil;
 
@@ -176,8 +179,9 @@ public class LinkRecommender
 			linksNeeded.addAll(friendLinks);
 		}
 		
-		Map<Long, Double[]> users = UserUtil.getUserFeatures(usersNeeded);
-		Map<Long, Double[]> links = LinkUtil.getLinkFeatures(linksNeeded);
+		List<Map<Long, Double[]>> features = getFeatures(usersNeeded, linksNeeded);
+		Map<Long, Double[]> users = features.get(0);
+		Map<Long, Double[]> links = features.get(1);
 		
 		//Clean up links that are not in the linkrLinkInfo table. Clean up users after
 		for (long userId : trainData.keySet()) {
@@ -192,6 +196,7 @@ public class LinkRecommender
 		}	
 		
 		SQLUtil.closeSqlConnection();
+		SQLUtil.closePool();
 		
 		Recommender recommender = getRecommender(type, linkLikes, users, links, friendships);
 		recommender.train(trainData);
@@ -203,6 +208,7 @@ public class LinkRecommender
 		recommender.saveModel();
 		
 		SQLUtil.closeSqlConnection();
+		SQLUtil.closePool();
 	}
 	
 	public void test(Map<Long, Set<Long>> trainData, Map<Long, Set<Long>> linkLikes, Map<Long, Map<Long, Double>> friendships, Set<Long> usersNeeded, Set<Long> linksNeeded)
@@ -236,10 +242,12 @@ public class LinkRecommender
 			linksNeeded.addAll(testData.get(userId));
 		}
 		
-		Map<Long, Double[]> users = UserUtil.getUserFeatures(usersNeeded);
-		Map<Long, Double[]> links = LinkUtil.getLinkFeatures(linksNeeded);
+		List<Map<Long, Double[]>> features = getFeatures(usersNeeded, linksNeeded);
+		Map<Long, Double[]> users = features.get(0);
+		Map<Long, Double[]> links = features.get(1);
 		
 		SQLUtil.closeSqlConnection();
+		SQLUtil.closePool();
 		
 		//Clean up links that are not in the linkrLinkInfo table. Clean up users after
 		HashSet<Long> removeUsers = new HashSet<Long>();
@@ -471,6 +479,36 @@ public class LinkRecommender
 		return test;
 	}
 	
+	/**
+	 * Loads the user and link features at the same time, each on its own connection.
+	 * 
+	 * @param usersNeeded
+	 * @param linksNeeded
+	 * @return users at 0, links at 1
+	 * @throws SQLException
+	 */
+	public List<Map<Long, Double[]>> getFeatures(final Set<Long> usersNeeded, final Set<Long> linksNeeded)
+		throws SQLException
+	{
+		List<Callable<Map<Long, Double[]>>> tasks = new ArrayList<Callable<Map<Long, Double[]>>>();
+		tasks.add(new Callable<Map<Long, Double[]>>() {
+			public Map<Long, Double[]> call()
+				throws SQLException
+			{
+				return UserUtil.getUserFeatures(usersNeeded);
+			}
+		});
+		tasks.add(new Callable<Map<Long, Double[]>>() {
+			public Map<Long, Double[]> call()
+				throws SQLException
+			{
+				return LinkUtil.getLinkFeatures(linksNeeded);
+			}
+		});
+		
+		return SQLUtil.runConcurrently(tasks, 2);
+	}
+	
 	public Map<Long, Set<Long>>[] getTrainingData(Map<Long, Map<Long, Double>> friendships)
 		throws SQLException
 	{
@@ -521,13 +559,14 @@ public class LinkRecommender
 		throws SQLException
 	{
 		Set<Long> userIds = UserUtil.getUserIds();
-		Set<Long> linkIds = LinkUtil.getLinkIds();
 		
-		System.out.println("Link ids: " + linkIds.size());
+		LinkWindowIndex index = LinkWindowIndex.get();
+		index.update(Configuration.TRAINING_WINDOW_RANGE);
 		
-		Map<Long, Long[]> linkPosters = LinkUtil.getLinkPosters(linkIds);
+		Map<Long, Long[]> linkPosters = index.getLinkPosters(Configuration.TRAINING_WINDOW_RANGE);
+		System.out.println("Link ids: " + linkPosters.size());
 		
-		Map<Long, Set<Long>> linkLikes = LinkUtil.getLinkLikes(linkPosters);
+		Map<Long, Set<Long>> linkLikes = index.getLinkLikes(Configuration.TRAINING_WINDOW_RANGE);
 		Map<Long, Set<Long>> trainSamples = getTrainingSample(linkLikes, userIds, friendships, linkPosters);
 		
 		Map<Long, Set<Long>>[] data = new Map[2];
@@ -886,6 +925,9 @@ public class LinkRecommender
 			userIds.put(result.getLong("uid"), result.getInt("max_links"));
 		}
 		
+		LinkWindowIndex index = LinkWindowIndex.get();
+		index.update(Configuration.RECOMMENDING_WINDOW_RANGE);
+		
 		System.out.println("Recommending for: " + userIds.size());
 		int count = 0;
 		for (Long id : userIds.keySet()) {
@@ -904,13 +946,6 @@ public class LinkRecommender
 			HashSet<Long> dontIncludeIds = new HashSet<Long>();
 			HashSet<String> dontIncludeHashes = new HashSet<String>();
 			
-			// Don't recommend links that were already liked
-			result = statement.executeQuery("SELECT link_id FROM linkrLinkLikes WHERE id=" + id);
-			while (result.next()) {
-				dontIncludeIds.add(result.getLong("link_id"));
-			}
-			
-	
 			// Don't recommend links that are already pending recommendedation
 			result = statement.executeQuery("SELECT link_id FROM lrRecommendations WHERE user_id=" + id + " AND type='" + type + "'");
 			while(result.next()) {
@@ -931,41 +966,8 @@ public class LinkRecommender
 				dontIncludeHashes.add(result.getString("link_hash"));
 			}
 			
-			// Get the most recent links.
-			StringBuilder query = new StringBuilder("SELECT link_id FROM linkrLinks WHERE uid IN (0");
-			//query.append(id);
-			for (Long friendId : friends) {
-				query.append(",");
-				query.append(friendId);
-			}
-			
-			query.append(") AND from_id IN (0");
-			//query.append(id);
-			for (Long friendId : friends) {
-				query.append(",");
-				query.append(friendId);
-			}
-			
-			query.append(") AND link_id NOT IN(0");
-			for (long linkIds : dontIncludeIds) {
-				query.append(",");
-				query.append(linkIds);
-			}
-			
-			query.append(") AND link_hash NOT IN(''");
-			for (String hash : dontIncludeHashes) {
-				query.append(",'");
-				query.append(hash);
-				query.append("'");
-			}
-			
-			query.append(") AND DATE(created_time) >= DATE(ADDDATE(CURRENT_DATE(), -" + Configuration.RECOMMENDING_WINDOW_RANGE + "))");
-			
-			result = statement.executeQuery(query.toString());
-			
-			while (result.next()) {
-				links.add(result.getLong("link_id"));
-			}
+			// Get the most recent links, leaving out the ones already liked.
+			links.addAll(index.getFriendLinks(Configuration.RECOMMENDING_WINDOW_RANGE, id, friends, dontIncludeIds, dontIncludeHashes));
 		}
 		
 		return userLinks;
@@ -989,6 +991,9 @@ public class LinkRecommender
 			userIds.put(result.getLong("uid"), result.getInt("max_links"));
 		}
 		
+		LinkWindowIndex index = LinkWindowIndex.get();
+		index.update(Configuration.RECOMMENDING_WINDOW_RANGE);
+		
 		for (Long id : userIds.keySet()) {
 			System.out.println("Id: " + id);
 			HashSet<Long> links = new HashSet<Long>();
@@ -1005,12 +1010,6 @@ public class LinkRecommender
 			HashSet<Long> dontIncludeIds = new HashSet<Long>();
 			HashSet<String> dontIncludeHashes = new HashSet<String>();
 			
-			// Don't recommend links that were already liked
-			result = statement.executeQuery("SELECT link_id FROM linkrLinkLikes WHERE id=" + id);
-			while (result.next()) {
-				dontIncludeIds.add(result.getLong("link_id"));
-			}
-			
 			// Don't recommend links that are already pending recommendedation
 			result = statement.executeQuery("SELECT link_id FROM lrRecommendations WHERE user_id=" + id + " AND type='" + type + "'");
 			while(result.next()) {
@@ -1029,40 +1028,8 @@ public class LinkRecommender
 				dontIncludeHashes.add(result.getString("link_hash"));
 			}
 			
-			// Get the most recent links.
-			StringBuilder query = new StringBuilder("SELECT link_id FROM linkrLinks WHERE uid NOT IN (");
-			query.append(id);
-			for (Long friendId : friends) {
-				query.append(",");
-				query.append(friendId);
-			}
-			
-			query.append(") AND from_id NOT IN (");
-			query.append(id);
-			for (Long friendId : friends) {
-				query.append(",");
-				query.append(friendId);
-			}
-			
-			query.append(") AND link_id NOT IN(0");
-			for (long linkIds : dontIncludeIds) {
-				query.append(",");
-				query.append(linkIds);
-			}
-			
-			query.append(") AND link_hash NOT IN(''");
-			for (String hash : dontIncludeHashes) {
-				query.append(",'");
-				query.append(hash);
-				query.append("'");
-			}
-			
-			query.append(") AND DATE(created_time) >= DATE(ADDDATE(CURRENT_DATE(), -" + Configuration.RECOMMENDING_WINDOW_RANGE + "))");
-			result = statement.executeQuery(query.toString());
-			
-			while (result.next()) {
-				links.add(result.getLong("link_id"));
-			}
+			// Get the most recent links, leaving out the ones already liked.
+			links.addAll(index.getNonFriendLinks(Configuration.RECOMMENDING_WINDOW_RANGE, id, friends, dontIncludeIds, dontIncludeHashes));
 		}
 		
 		return userLinks;
@@ -1131,7 +1098,7 @@ public class LinkRecommender
 	public void saveLinkRecommendations(Map<Long, Map<Long, Double>> friendRecommendations, Map<Long, Map<Long, Double>> nonFriendRecommendations, String type)
 		throws SQLException
 	{
-		Statement statement = SQLUtil.getStatement();
+		SQLUtil.BatchWriter insert = SQLUtil.getBatchWriter("INSERT INTO lrRecommendations VALUES(?,?,?,?,0)");
 		
 		for (long userId : friendRecommendations.keySet()) {
 			Map<Long, Double> friendLinks = friendRecommendations.get(userId);
@@ -1166,18 +1133,11 @@ public class LinkRecommender
 				if (from == null) continue;
 				
 				System.out.println("RECOMMENDING LINK: " + from);
-				PreparedStatement ps = SQLUtil.prepareStatement("INSERT INTO lrRecommendations VALUES(?,?,?,?,0)");
-				ps.setLong(1, userId);
-				ps.setLong(2, linkId);
-				ps.setDouble(3, val);
-				ps.setString(4, type);
-				
-				ps.executeUpdate();
-				ps.close();
+				insert.add(userId, linkId, val, type);
 			}
 		}
 		
-		statement.close();	
+		insert.close();
 	}
 	
 	/**
@@ -118,4 +118,9 @@ public class LogisticHybridObjective extends Objective
 		
 		return derivative;
 	}
+	
+	public double getDerivativeOverPrediction(double prediction, double label)
+	{
+		return (label - prediction) * prediction * (1 - prediction) * -1;
+	}
 }
@@ -115,6 +115,16 @@ public class LogisticObjective extends Objective
 		return derivative;
 	}
 	
+	public double getLoss(double prediction, double label)
+	{
+		return Math.pow(label - logistic(prediction), 2);
+	}
+	
+	public double getDerivativeOverPrediction(double prediction, double label)
+	{
+		return (label - logistic(prediction)) * logisticDerivative(prediction) * -1;
+	}
+	
 	public double logistic(double d)
 	{
 		return (double)1 / (1 + Math.exp(-d));
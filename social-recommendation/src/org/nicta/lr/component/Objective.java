@@ -136,4 +136,21 @@ public class Objective
 		
 		return derivative;
 	}
+	
+	/**
+	 * Loss of a single prediction against its 0/1 like label, before the overall halving.
+	 */
+	public double getLoss(double prediction, double label)
+	{
+		return Math.pow(label - prediction, 2);
+	}
+	
+	/**
+	 * Derivative of the objective with respect to a single prediction. The attribute, id and weight derivatives
+	 * are this value multiplied by the derivative of the prediction.
+	 */
+	public double getDerivativeOverPrediction(double prediction, double label)
+	{
+		return (label - prediction) * -1;
+	}
 }
@@ -241,5 +241,63 @@ public class SocialCopreferenceRegularizer
 		return connection;
 	}
 	
+	/**
+	 * Map equivalent of predictConnection from trait vectors computed once for all users and links: s_i.(s_j o t_y)
+	 */
+	public double predictConnection(Double[] traits1, Double[] traits2, Double[] linkTraits, int K)
+	{
+		double connection = 0;
+		
+		for (int x = 0; x < K; x++) {
+			connection += traits1[x] * traits2[x] * linkTraits[x];
+		}
+		
+		return connection;
+	}
+	
+	/*
+	 * Dense equivalents of the methods above. Copreferences are packed as parallel arrays of (link, user1, user2) indices
+	 * with their actual and predicted values, and traits are the flat user/link trait arrays of the training model.
+	 */
 	
+	/**
+	 * One pass over the copreferences [start, end): stores each prediction s_i.(s_j o t_y), a K long elementwise
+	 * product, in predicted and adds the derivative of (c - prediction)^2 / 2 over s_i, s_j and t_y into the trait
+	 * derivative buffers.
+	 * 
+	 * Since s_i = Ux_i + id_i these are also the derivatives over the id columns, and the ones over the feature
+	 * matrices follow as dR/dU[x][y] = sum_i dR/ds_i[x] * x_i[y].
+	 * 
+	 * @return half the squared error of the copreferences in the range
+	 */
+	public double getDerivativeValuesOverTraits(double[] userTraits, double[] linkTraits, int[] links, int[] users1, int[] users2,
+												double[] actual, double[] predicted, int K, int start, int end,
+												double[] userDerivatives, double[] linkDerivatives)
+	{
+		double error = 0;
+		
+		for (int t = start; t < end; t++) {
+			int i = users1[t] * K;
+			int j = users2[t] * K;
+			int y = links[t] * K;
+			
+			double prediction = 0;
+			for (int x = 0; x < K; x++) {
+				prediction += userTraits[i + x] * userTraits[j + x] * linkTraits[y + x];
+			}
+			predicted[t] = prediction;
+			
+			double residual = prediction - actual[t];
+			error += residual * residual;
+			if (residual == 0) continue;
+			
+			for (int x = 0; x < K; x++) {
+				userDerivatives[i + x] += residual * userTraits[j + x] * linkTraits[y + x];
+				userDerivatives[j + x] += residual * userTraits[i + x] * linkTraits[y + x];
+				linkDerivatives[y + x] += residual * userTraits[i + x] * userTraits[j + x];
+			}
+		}
+		
+		return error / 2;
+	}
 }
@@ -1,7 +1,10 @@
 package org.nicta.lr.component;
 
+import java.util.Arrays;
 import java.util.Map;
 
+import org.nicta.lr.util.SocialGraph;
+
 public class SocialRegularizer
 {
 	public double getValue(Map<Long, Map<Long, Double>> connections, Map<Long, Map<Long, Double>> friendships)
@@ -103,6 +106,25 @@ public class SocialRegularizer
 		return 0;
 	}
 	
+	/**
+	 * Fills the dense friendship values of the social edges (users1[e], users2[e]) from a SocialGraph, the values
+	 * getFriendConnection would give each pair on the friendships map. userIds maps the model's user indices to uids.
+	 */
+	public static void getFriendConnections(SocialGraph friendships, long[] userIds, int[] users1, int[] users2, double[] friendConnections)
+	{
+		int[] rows = new int[userIds.length];
+		for (int i = 0; i < userIds.length; i++) {
+			rows[i] = friendships.getIndex(userIds[i]);
+		}
+		
+		for (int e = 0; e < users1.length; e++) {
+			int i = rows[users1[e]];
+			int j = rows[users2[e]];
+			
+			friendConnections[e] = i >= 0 && j >= 0 ? friendships.getWeight(i, j) : 0;
+		}
+	}
+	
 	public double predictConnection(Double[][] userMatrix, 
 			Map<Long, Double[]> idColumns,
 			Map<Long, Double[]> userFeatures,
@@ -151,4 +173,104 @@ public class SocialRegularizer
 		
 		return connection;
 	}
+	
+	/**
+	 * Dense equivalent of getValue. Connections and friendships are parallel arrays over the social edges of the model,
+	 * which are either every pair of training users or only the friendship (and sampled) pairs.
+	 */
+	public double getValue(double[] connections, double[] friendships)
+	{
+		double error = 0;
+		
+		for (int pair = 0; pair < connections.length; pair++) {
+			error += Math.pow(friendships[pair] - connections[pair], 2);
+		}
+		
+		return error / 2;
+	}
+	
+	/**
+	 * Derivative of the dense value over every user trait vector, from the edges in [start, end), added into traitDerivatives 
+	 * (user major, K per user). The derivative of s_i.s_j over s_i is s_j, so each edge adds its residual times the other
+	 * user's traits to both ends.
+	 * Since s_i = Ux_i + id_i this is also the derivative over the id columns, and getDerivativeValuesOverAttributes turns it
+	 * into the derivative over the whole user feature matrix.
+	 */
+	public void getDerivativeValuesOverTraits(double[] userTraits, int[] users1, int[] users2, double[] connections, double[] friendships,
+												int K, int start, int end, double[] traitDerivatives)
+	{
+		for (int e = start; e < end; e++) {
+			int i = users1[e] * K;
+			int j = users2[e] * K;
+			
+			double residual = (friendships[e] - connections[e]) * -1;
+			
+			for (int x = 0; x < K; x++) {
+				traitDerivatives[i + x] += residual * userTraits[j + x];
+				traitDerivatives[j + x] += residual * userTraits[i + x];
+			}
+		}
+	}
+	
+	/**
+	 * Derivative of a single edge's term over the trait vectors of its two users, for stochastic training: the part
+	 * getDerivativeValuesOverTraits adds for that edge, with the connection s_i.s_j taken from the given traits.
+	 */
+	public void getEdgeDerivatives(double[] traits1, double[] traits2, double friendship, int K, double[] derivatives1, double[] derivatives2)
+	{
+		double connection = 0;
+		for (int x = 0; x < K; x++) {
+			connection += traits1[x] * traits2[x];
+		}
+		
+		double residual = (friendship - connection) * -1;
+		
+		for (int x = 0; x < K; x++) {
+			derivatives1[x] = residual * traits2[x];
+			derivatives2[x] = residual * traits1[x];
+		}
+	}
+	
+	/**
+	 * Derivative over every cell of the user feature matrix in one pass, from the derivatives over the user traits:
+	 * dR/dU[x][y] = sum_i dR/ds_i[x] * x_i[y]. This is O(U * K * features) instead of O(pairs) per cell.
+	 */
+	public void getDerivativeValuesOverAttributes(double[] traitDerivatives, double[] userFeatures, int userCount, int K, int featureCount,
+													double[] attributeDerivatives)
+	{
+		Arrays.fill(attributeDerivatives, 0);
+		
+		for (int i = 0; i < userCount; i++) {
+			int traitOffset = i * K;
+			int featureOffset = i * featureCount;
+			
+			for (int x = 0; x < K; x++) {
+				double derivative = traitDerivatives[traitOffset + x];
+				if (derivative == 0) continue;
+				
+				for (int y = 0; y < featureCount; y++) {
+					attributeDerivatives[x * featureCount + y] += derivative * userFeatures[featureOffset + y];
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Dense equivalent of predictConnection: s_i.s_j
+	 */
+	public double predictConnection(double[] userTraits, int K, int i, int j)
+	{
+		double connection = 0;
+		
+		for (int x = 0; x < K; x++) {
+			connection += userTraits[i * K + x] * userTraits[j * K + x];
+		}
+		
+		return connection;
+	}
+	
+	public static int pairCount(int userCount)
+	{
+		return (int)((long)userCount * (userCount - 1) / 2);
+	}
 }
@@ -166,4 +166,74 @@ public class SocialSpectralRegularizer extends SocialRegularizer
 		
 		return connection;
 	}
+	
+	public double getValue(double[] connections, double[] friendships)
+	{
+		double error = 0;
+		
+		for (int pair = 0; pair < connections.length; pair++) {
+			error += friendships[pair] * connections[pair];
+		}
+		
+		return error / 2;
+	}
+	
+	/**
+	 * Derivative of the dense value over every user trait vector, from the edges in [start, end). As in the expanded version, each edge contributes
+	 * c * p * 2(s_i - s_j) to user i and the negation to user j.
+	 */
+	public void getDerivativeValuesOverTraits(double[] userTraits, int[] users1, int[] users2, double[] connections, double[] friendships,
+												int K, int start, int end, double[] traitDerivatives)
+	{
+		for (int e = start; e < end; e++) {
+			double c = friendships[e];
+			if (c == 0) continue;
+			
+			int i = users1[e] * K;
+			int j = users2[e] * K;
+			
+			double weight = c * connections[e] * 2;
+			
+			for (int x = 0; x < K; x++) {
+				double d = weight * (userTraits[i + x] - userTraits[j + x]);
+				traitDerivatives[i + x] += d;
+				traitDerivatives[j + x] -= d;
+			}
+		}
+	}
+	
+	/**
+	 * Single edge version of getDerivativeValuesOverTraits, with the connection (s_i - s_j).(s_i - s_j) taken from the given traits.
+	 */
+	public void getEdgeDerivatives(double[] traits1, double[] traits2, double friendship, int K, double[] derivatives1, double[] derivatives2)
+	{
+		double connection = 0;
+		for (int x = 0; x < K; x++) {
+			double d = traits1[x] - traits2[x];
+			connection += d * d;
+		}
+		
+		double weight = friendship * connection * 2;
+		
+		for (int x = 0; x < K; x++) {
+			double d = weight * (traits1[x] - traits2[x]);
+			derivatives1[x] = d;
+			derivatives2[x] = -d;
+		}
+	}
+	
+	/**
+	 * Dense equivalent of predictConnection: (s_i - s_j).(s_i - s_j)
+	 */
+	public double predictConnection(double[] userTraits, int K, int i, int j)
+	{
+		double connection = 0;
+		
+		for (int x = 0; x < K; x++) {
+			double d = userTraits[i * K + x] - userTraits[j * K + x];
+			connection += d * d;
+		}
+		
+		return connection;
+	}
 }
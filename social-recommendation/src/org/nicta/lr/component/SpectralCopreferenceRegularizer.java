@@ -295,4 +295,60 @@ public class SpectralCopreferenceRegularizer extends SocialCopreferenceRegulariz
 		
 		return connection;
 	}
+	
+	/**
+	 * Map equivalent of predictConnection from trait vectors computed once for all users and links: sum over k of
+	 * (s_i[k] - s_j[k])^2 * t_y[k]
+	 */
+	public double predictConnection(Double[] traits1, Double[] traits2, Double[] linkTraits, int K)
+	{
+		double connection = 0;
+		
+		for (int x = 0; x < K; x++) {
+			double d = traits1[x] - traits2[x];
+			connection += d * d * linkTraits[x];
+		}
+		
+		return connection;
+	}
+	
+	/**
+	 * Spectral version of the one pass over the copreferences: the prediction is (s_i - s_j).((s_i - s_j) o t_y), so
+	 * with d = s_i - s_j the derivatives are 2 * residual * (d o t_y) over s_i, its negative over s_j and
+	 * residual * (d o d) over t_y.
+	 */
+	public double getDerivativeValuesOverTraits(double[] userTraits, double[] linkTraits, int[] links, int[] users1, int[] users2,
+												double[] actual, double[] predicted, int K, int start, int end,
+												double[] userDerivatives, double[] linkDerivatives)
+	{
+		double error = 0;
+		
+		for (int t = start; t < end; t++) {
+			int i = users1[t] * K;
+			int j = users2[t] * K;
+			int y = links[t] * K;
+			
+			double prediction = 0;
+			for (int x = 0; x < K; x++) {
+				double d = userTraits[i + x] - userTraits[j + x];
+				prediction += d * d * linkTraits[y + x];
+			}
+			predicted[t] = prediction;
+			
+			double residual = prediction - actual[t];
+			error += residual * residual;
+			if (residual == 0) continue;
+			
+			for (int x = 0; x < K; x++) {
+				double d = userTraits[i + x] - userTraits[j + x];
+				double derivative = 2 * residual * d * linkTraits[y + x];
+				
+				userDerivatives[i + x] += derivative;
+				userDerivatives[j + x] -= derivative;
+				linkDerivatives[y + x] += residual * d * d;
+			}
+		}
+		
+		return error / 2;
+	}
 }
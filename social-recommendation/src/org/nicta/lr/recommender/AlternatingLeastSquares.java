@@ -0,0 +1,244 @@
+package org.nicta.lr.recommender;
+
+import java.util.Arrays;
+
+import org.nicta.lr.component.SocialRegularizer;
+import org.nicta.lr.thread.GradientExecutor;
+import org.nicta.lr.thread.GradientTask;
+
+/**
+ * Closed form id column updates for the squared loss with L2 regularization, for alternating least squares training.
+ *
+ * With the attribute matrices and the other side's traits fixed, the objective is quadratic in a single id column:
+ * for user u with s_u = Ux_u + w, it is sum_l (r - s_u.t_l)^2 / 2 + lambda |w|^2 / 2, plus beta sum_j (c - s_u.s_j)^2 / 2
+ * over u's social edges. Its minimum solves the K x K normal equations
+ * (sum_l t_l t_l' + beta sum_j s_j s_j' + lambda I) w = sum_l (r - Ux_u.t_l) t_l + beta sum_j (c - Ux_u.s_j) s_j
+ * and the same holds for a link's column with the user traits in place of the link traits. Each column is solved by
+ * a Cholesky decomposition on its own, so users (and then links) are split across the executor with no shared writes.
+ * The social terms use the traits of the other users from before the sweep.
+ *
+ * Columns frozen with DenseModel.restrictTraining are left as they are.
+ */
+public class AlternatingLeastSquares
+{
+	private DenseModel model;
+	private SocialRegularizer socialRegularizer;
+	private double beta;
+	private double lambda;
+
+	private int K;
+
+	/**
+	 * @param model
+	 * @param socialRegularizer null to leave out the social edges. Only the s_i.s_j regularizer is quadratic.
+	 * @param beta weight of the social term
+	 * @param lambda weight of the L2 term
+	 */
+	public AlternatingLeastSquares(DenseModel model, SocialRegularizer socialRegularizer, double beta, double lambda)
+	{
+		this.model = model;
+		this.beta = beta;
+		this.lambda = lambda;
+
+		K = model.getK();
+
+		if (socialRegularizer != null && model.getConnections() != null) {
+			this.socialRegularizer = socialRegularizer;
+		}
+	}
+
+	/**
+	 * Solves every trainable user id column given the current link traits. Updates the model's traits first.
+	 *
+	 * @param executor
+	 */
+	public void solveUsers(GradientExecutor executor)
+	{
+		model.updateTraits();
+
+		executor.execute(model.getUserCount(), new GradientTask() {
+			public void run(int start, int end) {
+				double[] matrix = new double[K * K];
+				double[] vector = new double[K];
+				double[] attributeTraits = new double[K];
+
+				for (int u = start; u < end; u++) {
+					solveUser(u, matrix, vector, attributeTraits);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Solves every trainable link id column given the current user traits. Updates the model's traits first.
+	 *
+	 * @param executor
+	 */
+	public void solveLinks(GradientExecutor executor)
+	{
+		model.updateTraits();
+
+		executor.execute(model.getLinkCount(), new GradientTask() {
+			public void run(int start, int end) {
+				double[] matrix = new double[K * K];
+				double[] vector = new double[K];
+				double[] attributeTraits = new double[K];
+
+				for (int l = start; l < end; l++) {
+					solveLink(l, matrix, vector, attributeTraits);
+				}
+			}
+		});
+	}
+
+	private void solveUser(int u, double[] matrix, double[] vector, double[] attributeTraits)
+	{
+		double[] variables = model.getVariables();
+		boolean[] frozen = model.getFrozen();
+		if (frozen != null && frozen[model.userIdIndex(u, 0)]) return;
+
+		double[] userTraits = model.getUserTraits();
+		double[] linkTraits = model.getLinkTraits();
+		int[] sampleStart = model.getSampleStart();
+		int[] sampleLinks = model.getSampleLinks();
+		double[] labels = model.getLabels();
+
+		//Ux_u is the trait without the id column
+		for (int x = 0; x < K; x++) {
+			attributeTraits[x] = userTraits[u * K + x] - variables[model.userIdIndex(u, x)];
+		}
+
+		clear(matrix, vector);
+
+		for (int s = sampleStart[u]; s < sampleStart[u + 1]; s++) {
+			addTerm(linkTraits, sampleLinks[s] * K, labels[s], 1, attributeTraits, matrix, vector);
+		}
+
+		if (socialRegularizer != null) {
+			int[] userEdgeStart = model.getUserEdgeStart();
+			int[] userEdges = model.getUserEdges();
+			int[] users1 = model.getEdgeUsers1();
+			int[] users2 = model.getEdgeUsers2();
+			double[] friendConnections = model.getFriendConnections();
+
+			for (int x = userEdgeStart[u]; x < userEdgeStart[u + 1]; x++) {
+				int e = userEdges[x];
+				int other = users1[e] == u ? users2[e] : users1[e];
+
+				addTerm(userTraits, other * K, friendConnections[e], beta, attributeTraits, matrix, vector);
+			}
+		}
+
+		solve(matrix, vector);
+
+		for (int x = 0; x < K; x++) {
+			variables[model.userIdIndex(u, x)] = vector[x];
+		}
+	}
+
+	private void solveLink(int l, double[] matrix, double[] vector, double[] attributeTraits)
+	{
+		double[] variables = model.getVariables();
+		boolean[] frozen = model.getFrozen();
+		if (frozen != null && frozen[model.linkIdIndex(l, 0)]) return;
+
+		double[] userTraits = model.getUserTraits();
+		double[] linkTraits = model.getLinkTraits();
+		int[] linkSampleStart = model.getLinkSampleStart();
+		int[] linkSamples = model.getLinkSamples();
+		int[] sampleUsers = model.getSampleUsers();
+		double[] labels = model.getLabels();
+
+		for (int x = 0; x < K; x++) {
+			attributeTraits[x] = linkTraits[l * K + x] - variables[model.linkIdIndex(l, x)];
+		}
+
+		clear(matrix, vector);
+
+		for (int x = linkSampleStart[l]; x < linkSampleStart[l + 1]; x++) {
+			int s = linkSamples[x];
+			addTerm(userTraits, sampleUsers[s] * K, labels[s], 1, attributeTraits, matrix, vector);
+		}
+
+		solve(matrix, vector);
+
+		for (int x = 0; x < K; x++) {
+			variables[model.linkIdIndex(l, x)] = vector[x];
+		}
+	}
+
+	/**
+	 * Starts the normal equations from the lambda I of the L2 term.
+	 */
+	private void clear(double[] matrix, double[] vector)
+	{
+		Arrays.fill(matrix, 0);
+		Arrays.fill(vector, 0);
+
+		for (int x = 0; x < K; x++) {
+			matrix[x * K + x] = lambda;
+		}
+	}
+
+	/**
+	 * Adds weight * (t t' w = (target - a.t) t) for the trait t at traits[offset], a being the column's attribute part.
+	 */
+	private void addTerm(double[] traits, int offset, double target, double weight, double[] attributeTraits, double[] matrix, double[] vector)
+	{
+		double residual = target;
+		for (int x = 0; x < K; x++) {
+			residual -= attributeTraits[x] * traits[offset + x];
+		}
+		residual *= weight;
+
+		for (int x = 0; x < K; x++) {
+			double t = traits[offset + x];
+			vector[x] += residual * t;
+
+			double weighted = weight * t;
+			for (int y = 0; y <= x; y++) {
+				matrix[x * K + y] += weighted * traits[offset + y];
+			}
+		}
+	}
+
+	/**
+	 * Solves matrix * w = vector in place by Cholesky decomposition, leaving w in vector. Only the lower triangle of
+	 * the matrix is read. lambda > 0 keeps it positive definite.
+	 */
+	private void solve(double[] matrix, double[] vector)
+	{
+		for (int x = 0; x < K; x++) {
+			for (int y = 0; y <= x; y++) {
+				double sum = matrix[x * K + y];
+				for (int z = 0; z < y; z++) {
+					sum -= matrix[x * K + z] * matrix[y * K + z];
+				}
+
+				if (x == y) {
+					matrix[x * K + x] = Math.sqrt(Math.max(sum, 1e-12));
+				}
+				else {
+					matrix[x * K + y] = sum / matrix[y * K + y];
+				}
+			}
+		}
+
+		//L z = b, then L' w = z
+		for (int x = 0; x < K; x++) {
+			double sum = vector[x];
+			for (int z = 0; z < x; z++) {
+				sum -= matrix[x * K + z] * vector[z];
+			}
+			vector[x] = sum / matrix[x * K + x];
+		}
+
+		for (int x = K - 1; x >= 0; x--) {
+			double sum = vector[x];
+			for (int z = x + 1; z < K; z++) {
+				sum -= matrix[z * K + x] * vector[z];
+			}
+			vector[x] = sum / matrix[x * K + x];
+		}
+	}
+}
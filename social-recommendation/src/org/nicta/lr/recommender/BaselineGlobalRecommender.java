@@ -116,36 +116,15 @@ public class BaselineGlobalRecommender extends Recommender
 	
 	public Map<Long, Double> recommendForUser(Long userId, Set<Long> possibleLinks, int numberOfLinks)
 	{
-		Map<Long, Double> recommendations = new HashMap<Long, Double>();
+		TopNSelector selector = new TopNSelector(numberOfLinks);
 		
 		for (long linkId : possibleLinks) {
 			Double[] feature = linkFeatures.get(linkId);
 			double score = feature[0] + feature[1];
 			
-			//If the recommended links are more than the max number, recommend only the highest scoring links.
-			if (recommendations.size() < numberOfLinks) {
-				recommendations.put(linkId, score);
-			}
-			else {
-				//Get the lowest scoring recommended link and replace it with the current link
-				//if this one has a better score.
-				long lowestKey = 0;
-				double lowestValue = Double.MAX_VALUE;
-					
-				for (long id : recommendations.keySet()) {
-					if (recommendations.get(id) < lowestValue) {
-						lowestKey = id;
-						lowestValue = recommendations.get(id);
-					}
-				}
-					
-				if (score > lowestValue) {
-					recommendations.remove(lowestKey);
-					recommendations.put(linkId, score);
-				}
-			}
+			selector.offer(linkId, score);
 		}
 		
-		return recommendations;
+		return selector.toMap();
 	}
 }
@@ -9,16 +9,62 @@ import java.util.Map;
 import java.util.Set;
 
 import org.nicta.lr.util.Constants;
+import org.nicta.lr.util.SocialGraph;
 import org.nicta.lr.util.UserUtil;
 
 public class BaselineRecommender extends Recommender
 {
 	String type;
 	
+	SocialGraph friendGraph;
+	
 	public BaselineRecommender(Map<Long, Set<Long>> linkLikes, Map<Long, Double[]> userFeatures, Map<Long, Double[]> linkFeatures, Map<Long, Map<Long, Double>> friends, String type)
 	{	
 		super(linkLikes, userFeatures, linkFeatures, friends);
 		this.type = type;
+		
+		if (friends != null) {
+			friendGraph = SocialGraph.fromFriendships(friends);
+		}
+	}
+	
+	/**
+	 * Friend weights of the user normalized to sum to 1, in line with the user's row of the friend graph. null if the user has no friends.
+	 */
+	private double[] getFriendWeights(int row)
+	{
+		if (row < 0 || friendGraph.getDegree(row) == 0) return null;
+		
+		double total = friendGraph.getWeightTotal(row);
+		int start = friendGraph.getOffset(row);
+		double[] weights = new double[friendGraph.getDegree(row)];
+		
+		for (int x = 0; x < weights.length; x++) {
+			weights[x] = friendGraph.getWeightAt(start + x) / total;
+		}
+		
+		return weights;
+	}
+	
+	/**
+	 * Sum of the normalized weights of the user's friends that liked the link.
+	 */
+	private double getScore(int row, double[] weights, long linkId)
+	{
+		Set<Long> likes = linkLikes.get(linkId);
+		if (weights == null || likes == null) return 0;
+		
+		int[] neighbours = friendGraph.getNeighbours();
+		int start = friendGraph.getOffset(row);
+		double score = 0;
+		
+		for (int x = 0; x < weights.length; x++) {
+			if (likes.contains(friendGraph.getId(neighbours[start + x]))) {
+				score += weights[x];
+			}
+		}
+		
+		return score;
 	}
 	
 	public Map<Long, Double[]> getPrecisionRecall(Map<Long, Set<Long>> testData, int boundary)
@@ -34,31 +80,14 @@ public class BaselineRecommender extends Recommender
 		for (long userId : testData.keySet()) {
 			user++;
 			System.out.println("User: " + user);
-			Set<Long> testLinks = testData.get(userId);
-			Map<Long, Double> friends = friendships.get(userId);
+			int row = friendGraph.getIndex(userId);
+			double[] weights = getFriendWeights(row);
 			
 			ArrayList<Double> scores = new ArrayList<Double>();
 			ArrayList<Long> ids = new ArrayList<Long>();
 			
-			double total = 0;
-			for (long friendId : friends.keySet()) {
-				total += friends.get(friendId);
-			}
-			
-			for (long friendId : friends.keySet()) {
-				double val = friends.get(friendId);
-				val /= total;
-				friends.put(friendId, val);
-			}
-			
 			for (long testId : combinedTest) {
-				double prediction = 0;
-				
-				for (long friendId : friends.keySet()) {
-					if (linkLikes.containsKey(testId) && linkLikes.get(testId).contains(friendId)) {
-						prediction += friends.get(friendId);
-					}
-				}
+				double prediction = getScore(row, weights, testId);
 				
 				scores.add(prediction);
 				ids.add(testId);
@@ -95,27 +124,11 @@ public class BaselineRecommender extends Recommender
 			predictions.put(userId, userPredictions);
 			
 			Set<Long> testLinks = testData.get(userId);
-			Map<Long, Double> friends = friendships.get(userId);
-			
-			double total = 0;
-			for (long friendId : friends.keySet()) {
-				total += friends.get(friendId);
-			}
-			
-			for (long friendId : friends.keySet()) {
-				double val = friends.get(friendId);
-				val /= total;
-				friends.put(friendId, val);
-			}
+			int row = friendGraph.getIndex(userId);
+			double[] weights = getFriendWeights(row);
 			
 			for (long testId : testLinks) {
-				double prediction = 0;
-				
-				for (long friendId : friends.keySet()) {
-					if (linkLikes.containsKey(testId) && linkLikes.get(testId).contains(friendId)) {
-						prediction += friends.get(friendId);
-					}
-				}
+				double prediction = getScore(row, weights, testId);
 				
 				userPredictions.put(testId, prediction);
 			}
@@ -129,6 +142,7 @@ public class BaselineRecommender extends Recommender
 		try {
 			if (Constants.FIW.equals(type)) {
 				friendships = UserUtil.getFriendInteractionMeasure(trainSamples.keySet());
+				friendGraph = SocialGraph.fromFriendships(friendships);
 			}
 		}
 		catch (Exception ex) {
@@ -144,54 +158,17 @@ public class BaselineRecommender extends Recommender
 	
 	public Map<Long, Double> recommendForUser(Long userId, Set<Long> possibleLinks, int numberOfLinks)
 	{
-		Map<Long, Double> recommendations = new HashMap<Long, Double>();
-		Map<Long, Double> friends = friendships.get(userId);
-		
-		double total = 0;
-		for (long friendId : friends.keySet()) {
-			total += friends.get(friendId);
-		}
-		
-		for (long friendId : friends.keySet()) {
-			double val = friends.get(friendId);
-			val /= total;
-			friends.put(friendId, val);
-		}
+		TopNSelector selector = new TopNSelector(numberOfLinks);
+		int row = friendGraph.getIndex(userId);
+		double[] weights = getFriendWeights(row);
 		
 		for (long linkId : possibleLinks) {	
-			double score = 0;
-				
-			for (long friendId : friends.keySet()) {
-				if (linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(friendId)) {
-					score += friends.get(friendId);
-				}
-			}
+			double score = getScore(row, weights, linkId);
 			
-			//If the recommended links are more than the max number, recommend only the highest scoring links.
-			if (recommendations.size() < numberOfLinks) {
-				recommendations.put(linkId, score);
-			}
-			else {
-				//Get the lowest scoring recommended link and replace it with the current link
-				//if this one has a better score.
-				long lowestKey = 0;
-				double lowestValue = Double.MAX_VALUE;
-					
-				for (long id : recommendations.keySet()) {
-					if (recommendations.get(id) < lowestValue) {
-						lowestKey = id;
-						lowestValue = recommendations.get(id);
-					}
-				}
-					
-				if (score > lowestValue) {
-					recommendations.remove(lowestKey);
-					recommendations.put(linkId, score);
-				}
-			}
+			selector.offer(linkId, score);
 		}
 		
-		return recommendations;
+		return selector.toMap();
 	}
 	
 	public Map<Long, Map<Long, Double>> recommend(Map<Long, Set<Long>> linksToRecommend)
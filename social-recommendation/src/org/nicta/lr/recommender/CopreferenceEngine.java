@@ -0,0 +1,181 @@
+package org.nicta.lr.recommender;
+
+import java.util.Arrays;
+
+import org.nicta.lr.component.SocialCopreferenceRegularizer;
+import org.nicta.lr.thread.GradientAccumulator;
+import org.nicta.lr.thread.GradientExecutor;
+import org.nicta.lr.thread.GradientTask;
+import org.nicta.lr.util.CopreferenceIndex;
+
+/**
+ * The copreference term of a DenseModel, evaluated in one pass over packed (link, user1, user2) triples.
+ *
+ * The model's user and link traits are computed once per iteration, so a triple's prediction is a K long elementwise
+ * product of three trait rows rather than a projection of the features through both matrices. The same pass adds each
+ * triple's derivatives over its three trait rows, split across the executor's workers by triple with per worker
+ * buffers since triples share users and links. Those are also the derivatives over the id columns, and the ones over
+ * the feature matrices are aggregated from them afterwards, as for the objective.
+ */
+public class CopreferenceEngine
+{
+	private DenseModel model;
+	private int K;
+
+	private int[] links;
+	private int[] users1;
+	private int[] users2;
+	private double[] actual;
+	private double[] predicted;
+
+	private double[] userTraitDerivatives;
+	private double[] linkTraitDerivatives;
+	private double[] userAttributeDerivatives;
+	private double[] linkAttributeDerivatives;
+
+	private GradientAccumulator userTraitAccumulator;
+	private GradientAccumulator linkTraitAccumulator;
+	private GradientAccumulator lossAccumulator;
+
+	private double value;
+
+	/**
+	 * Packs the copreferences of the index whose link and users are all in the model, by dense model indices.
+	 *
+	 * @param model
+	 * @param index
+	 */
+	public CopreferenceEngine(DenseModel model, CopreferenceIndex index)
+	{
+		this.model = model;
+		K = model.getK();
+
+		long[] modelLinkIds = model.getLinkIds();
+		int linkCount = modelLinkIds.length;
+
+		int count = 0;
+		for (int l = 0; l < linkCount; l++) {
+			int link = index.getLinkIndex(modelLinkIds[l]);
+			if (link == -1) continue;
+
+			for (int c = index.getLinkStart(link); c < index.getLinkStart(link + 1); c++) {
+				if (model.getUserIndex(index.getUser1(c)) != -1 && model.getUserIndex(index.getUser2(c)) != -1) count++;
+			}
+		}
+
+		links = new int[count];
+		users1 = new int[count];
+		users2 = new int[count];
+		actual = new double[count];
+		predicted = new double[count];
+
+		int t = 0;
+		for (int l = 0; l < linkCount; l++) {
+			int link = index.getLinkIndex(modelLinkIds[l]);
+			if (link == -1) continue;
+
+			for (int c = index.getLinkStart(link); c < index.getLinkStart(link + 1); c++) {
+				int u1 = model.getUserIndex(index.getUser1(c));
+				int u2 = model.getUserIndex(index.getUser2(c));
+				if (u1 == -1 || u2 == -1) continue;
+
+				links[t] = l;
+				users1[t] = u1;
+				users2[t] = u2;
+				actual[t] = index.getValue(c);
+				t++;
+			}
+		}
+
+		userTraitDerivatives = new double[model.getUserCount() * K];
+		linkTraitDerivatives = new double[linkCount * K];
+		userAttributeDerivatives = new double[K * model.getUserFeatureCount()];
+		linkAttributeDerivatives = new double[K * model.getLinkFeatureCount()];
+
+		userTraitAccumulator = new GradientAccumulator(userTraitDerivatives.length);
+		linkTraitAccumulator = new GradientAccumulator(linkTraitDerivatives.length);
+		lossAccumulator = new GradientAccumulator(1);
+	}
+
+	/**
+	 * Predicts every copreference from the model's current traits and computes the term's value and derivatives.
+	 *
+	 * @param regularizer
+	 * @param executor
+	 * @return half the squared error of the copreferences
+	 */
+	public double evaluate(final SocialCopreferenceRegularizer regularizer, GradientExecutor executor)
+	{
+		final double[] userTraits = model.getUserTraits();
+		final double[] linkTraits = model.getLinkTraits();
+
+		executor.execute(actual.length, new GradientTask() {
+			public void run(int start, int end) {
+				double error = regularizer.getDerivativeValuesOverTraits(userTraits, linkTraits, links, users1, users2, actual, predicted,
+																			K, start, end, userTraitAccumulator.getBuffer(), linkTraitAccumulator.getBuffer());
+
+				lossAccumulator.getBuffer()[0] += error;
+			}
+		});
+
+		userTraitAccumulator.reduce(userTraitDerivatives);
+		linkTraitAccumulator.reduce(linkTraitDerivatives);
+
+		double[] error = new double[1];
+		lossAccumulator.reduce(error);
+
+		aggregateAttributeDerivatives(userTraitDerivatives, model.getUserFeatures(), model.getUserFeatureCount(), userAttributeDerivatives);
+		aggregateAttributeDerivatives(linkTraitDerivatives, model.getLinkFeatures(), model.getLinkFeatureCount(), linkAttributeDerivatives);
+
+		value = error[0];
+		return value;
+	}
+
+	/**
+	 * dR/dM[x][y] = sum_i dR/dtrait_i[x] * feature_i[y]
+	 */
+	private void aggregateAttributeDerivatives(double[] traitDerivatives, double[] features, int featureCount, double[] attributeDerivatives)
+	{
+		Arrays.fill(attributeDerivatives, 0);
+		int count = traitDerivatives.length / K;
+
+		for (int i = 0; i < count; i++) {
+			for (int x = 0; x < K; x++) {
+				double derivative = traitDerivatives[i * K + x];
+				if (derivative == 0) continue;
+
+				for (int y = 0; y < featureCount; y++) {
+					attributeDerivatives[x * featureCount + y] += derivative * features[i * featureCount + y];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Value of the copreference term as of the last evaluate.
+	 */
+	public double getValue()
+	{
+		return value;
+	}
+
+	public double getUserAttributeDerivative(int x, int y)
+	{
+		return userAttributeDerivatives[x * model.getUserFeatureCount() + y];
+	}
+
+	public double getUserIdDerivative(int u, int k)
+	{
+		return userTraitDerivatives[u * K + k];
+	}
+
+	public double getLinkAttributeDerivative(int x, int y)
+	{
+		return linkAttributeDerivatives[x * model.getLinkFeatureCount() + y];
+	}
+
+	public double getLinkIdDerivative(int l, int k)
+	{
+		return linkTraitDerivatives[l * K + k];
+	}
+}
@@ -5,25 +5,27 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import org.nicta.lr.component.Objective;
 import org.nicta.lr.component.SocialRegularizer;
 import org.nicta.lr.component.SocialSpectralRegularizer;
 import org.nicta.lr.component.SpectralCopreferenceRegularizer;
 import org.nicta.lr.component.SocialCopreferenceRegularizer;
-import org.nicta.lr.thread.CopreferenceLinkIdThread;
-import org.nicta.lr.thread.CopreferenceLinkMFThread;
-import org.nicta.lr.thread.CopreferenceUserIdThread;
-import org.nicta.lr.thread.CopreferenceUserMFThread;
+import org.nicta.lr.thread.GradientExecutor;
 import org.nicta.lr.util.Configuration;
 import org.nicta.lr.util.Constants;
+import org.nicta.lr.util.CopreferenceIndex;
 import org.nicta.lr.util.UserUtil;
-import org.nicta.social.LBFGS;
 
 public class CopreferenceRecommender extends SocialRecommender
 {
+	CopreferenceIndex copreferenceIndex;
 	Map<Long, Map<Long, Map<Long, Double>>> copreferences;
 	
 	SocialCopreferenceRegularizer socialCopreferenceRegularizer;
 	
+	//Copreferences packed by dense link/user index during training
+	CopreferenceEngine copreferenceEngine;
+	
 	public CopreferenceRecommender(Map<Long, Set<Long>> linkLikes, Map<Long, Double[]> userFeatures, Map<Long, Double[]> linkFeatures, Map<Long, Map<Long, Double>> friends, String type)
 	{
 		super(linkLikes, userFeatures, linkFeatures, friends, type);
@@ -48,8 +50,12 @@ public class CopreferenceRecommender extends SocialRecommender
 	{
 		Map<Long, Map<Long, Map<Long, Double>>> predictions = new HashMap<Long, Map<Long, Map<Long, Double>>>();
 		
+		Map<Long, Double[]> userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
+		Map<Long, Double[]> linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
+		
 		for (long linkId : copreferences.keySet()) {
 			Map<Long, Map<Long, Double>> linkCopreferences = copreferences.get(linkId);
+			Double[] linkTrait = linkTraits.get(linkId);
 			HashMap<Long, Map<Long, Double>> linkPredictions = new HashMap<Long, Map<Long, Double>>();
 			predictions.put(linkId, linkPredictions);
 			
@@ -57,9 +63,10 @@ public class CopreferenceRecommender extends SocialRecommender
 				Map<Long, Double> userCopreferences = linkCopreferences.get(user1);
 				HashMap<Long, Double> userPredictions = new HashMap<Long, Double>();
 				linkPredictions.put(user1, userPredictions);
+				Double[] userTrait = userTraits.get(user1);
 				
 				for (long user2 : userCopreferences.keySet()) {
-					double coValue = socialCopreferenceRegularizer.predictConnection(userFeatureMatrix, userIdColumns, userFeatures, linkFeatureMatrix, linkIdColumns, linkFeatures, user1, user2, linkId, K);
+					double coValue = socialCopreferenceRegularizer.predictConnection(userTrait, userTraits.get(user2), linkTrait, K);
 					userPredictions.put(user2, coValue);
 				}
 			}
@@ -68,42 +75,26 @@ public class CopreferenceRecommender extends SocialRecommender
 		return predictions;
 	}
 	
+	/**
+	 * Builds the copreferences of the training samples, see CopreferenceIndex.
+	 */
 	public void buildCopreferences(Map<Long, Set<Long>> linkLikes, Map<Long, Set<Long>> userLinkSamples)
 	{	
-		copreferences = new HashMap<Long, Map<Long, Map<Long, Double>>>();
-		
-		int count = 0;
-		Object[] users = userLinkSamples.keySet().toArray();
-		for (long linkId : linkLikes.keySet()) {
-			HashMap<Long, Map<Long, Double>> linkCopreferences = new HashMap<Long, Map<Long, Double>>();
-			copreferences.put(linkId, linkCopreferences);
-			
-			for (int a = 0; a < users.length - 1; a++) {
-				Long user1 = (Long)users[a];
-				Set<Long> user1Links = userLinkSamples.get(user1);
-				if (!user1Links.contains(linkId)) continue;
-				
-				boolean user1Liked = linkLikes.get(linkId).contains(user1);
-				
-				Map<Long, Double> userCopreferences = new HashMap<Long, Double>();
-				linkCopreferences.put(user1, userCopreferences);
-				
-				for (int b = a+1; b < users.length; b++) {
-					Long user2 = (Long)users[b];
-					Set<Long> user2Links = userLinkSamples.get(user2);
-					if (!user2Links.contains(linkId)) continue;
-					
-					boolean user2Liked = linkLikes.get(linkId).contains(user2);
-					
-					userCopreferences.put(user2, user1Liked == user2Liked ? 1d : 0d);
-					
-					count++;
-				}
-			}
+		copreferenceIndex = new CopreferenceIndex(linkLikes, userLinkSamples, Configuration.COPREFERENCE_MAX_PAIRS_PER_LINK, random);
+		copreferences = null;
+	}
+	
+	/**
+	 * The copreferences as link -> user1 -> user2 -> value for the Map based error and derivative methods, built from the
+	 * index on first use.
+	 */
+	public Map<Long, Map<Long, Map<Long, Double>>> getCopreferences()
+	{
+		if (copreferences == null) {
+			copreferences = copreferenceIndex.toMap();
 		}
 		
-		System.out.println("link copreference count: " + copreferences.size());
-		System.out.println("total copreferences count: " + count);
+		return copreferences;
 	}
 	
 	public double getCopreferenceError(Double[][] userFeatureMatrix, Double[][] linkFeatureMatrix, 
@@ -113,7 +104,7 @@ public class CopreferenceRecommender extends SocialRecommender
 		double error = 0;
 	
 		if (socialCopreferenceRegularizer != null) {
-			error += socialCopreferenceRegularizer.getValue(predictedCopreferences, copreferences);
+			error += socialCopreferenceRegularizer.getValue(predictedCopreferences, getCopreferences());
 			
 			if (socialRegularizer != null) {
 				error += socialRegularizer.getValue(connections, friendConnections);
@@ -142,7 +133,7 @@ public class CopreferenceRecommender extends SocialRecommender
 		double errorDerivative = userFeatureMatrix[x][y] * lambda;
 		
 		if (socialCopreferenceRegularizer != null) {
-			double socDerivative = socialCopreferenceRegularizer.getDerivativeValueOverUserAttribute(userFeatureMatrix, userFeatures, userIdColumns, linkTraits, predictedCopreferences, copreferences, x, y);
+			double socDerivative = socialCopreferenceRegularizer.getDerivativeValueOverUserAttribute(userFeatureMatrix, userFeatures, userIdColumns, linkTraits, predictedCopreferences, getCopreferences(), x, y);
 			
 			if (socialRegularizer != null) {
 				socDerivative += socialRegularizer.getDerivativeValueOverAttribute(userFeatureMatrix, userFeatures, userIdColumns, connections, friendConnections, x, y);
@@ -165,10 +156,10 @@ public class CopreferenceRecommender extends SocialRecommender
 		double errorDerivative = idColumn[k] * lambda;
 
 		if (socialCopreferenceRegularizer != null) {
-			double socDerivative = socialCopreferenceRegularizer.getDerivativeValueOverUserId(userFeatureMatrix, userFeatures, userIdColumns, linkTraits, predictedCopreferences, copreferences, userId, k);
+			double socDerivative = socialCopreferenceRegularizer.getDerivativeValueOverUserId(userFeatureMatrix, userFeatures, userIdColumns, linkTraits, predictedCopreferences, getCopreferences(), userId, k);
 			
 			if (socialRegularizer != null) {
-				socDerivative = socialRegularizer.getDerivativeValueOverId(userFeatureMatrix, userFeatures, userIdColumns, connections, friendConnections, userId, k);
+				socDerivative += socialRegularizer.getDerivativeValueOverId(userFeatureMatrix, userFeatures, userIdColumns, connections, friendConnections, userId, k);
 			}
 			errorDerivative += beta * socDerivative;
 		}
@@ -184,7 +175,7 @@ public class CopreferenceRecommender extends SocialRecommender
 		double errorDerivative = linkFeatureMatrix[x][y] * lambda;
 		
 		if (socialCopreferenceRegularizer != null) {
-			double socDerivative = socialCopreferenceRegularizer.getDerivativeValueOverLinkAttribute(userTraits, linkFeatures, predictedCopreferences, copreferences, x, y);
+			double socDerivative = socialCopreferenceRegularizer.getDerivativeValueOverLinkAttribute(userTraits, linkFeatures, predictedCopreferences, getCopreferences(), x, y);
 			errorDerivative += beta * socDerivative;
 		}
 		
@@ -204,8 +195,8 @@ public class CopreferenceRecommender extends SocialRecommender
 			//	return 0;
 			//}
 			
-			if (copreferences.containsKey(linkId)) {
-				double socDerivative = socialCopreferenceRegularizer.getDerivativeValueOverLinkId(userTraits, copreferences, predictedCopreferences, linkId, x);
+			if (getCopreferences().containsKey(linkId)) {
+				double socDerivative = socialCopreferenceRegularizer.getDerivativeValueOverLinkId(userTraits, getCopreferences(), predictedCopreferences, linkId, x);
 				errorDerivative += beta * socDerivative;
 			}
 		}
@@ -214,201 +205,125 @@ public class CopreferenceRecommender extends SocialRecommender
 		
 		return errorDerivative;
 	}
-	public void minimizeByThreadedLBFGS(Map<Long, Set<Long>> userLinkSamples)
+	public double getError(DenseModel model)
 	{
-		System.out.println("Training copreference");
-		
-		checkDerivative(userLinkSamples);
-		
-		boolean go = true;	
-		int iterations = 0;
-		
-		int userVars = K * (Configuration.USER_FEATURE_COUNT + userLinkSamples.size());
-		int linkVars = K * (Configuration.LINK_FEATURE_COUNT + linkFeatures.size());
-		
-		Object[] userKeys = userLinkSamples.keySet().toArray();
-		Object[] linkKeys = linkFeatures.keySet().toArray();
-		
-		int[] iprint = {0,0};
-		int[] iflag = {0};
-		double[] diag = new double[userVars + linkVars];
-		
-		for (int x = 0; x < diag.length; x++) {
-			diag[x] = 0;
-		}
-		
-		double oldError = Double.MAX_VALUE;
-		
-		while (go) {
-			iterations++;
-			
-			Map<Long, Double[]> userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
-			
-			Map<Long, Double[]> linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
-
-			System.out.println("Get connections");
-			Map<Long, Map<Long, Double>> connections = getConnections(userFeatureMatrix, userIdColumns, userFeatures, userLinkSamples);
-			System.out.println("Getting Copreferences");
-			Map<Long, Map<Long, Map<Long, Double>>> predictedCopreferences = predictCopreferences(copreferences);
-			System.out.println("Getting Predictions");
-			Map<Long, Map<Long, Double>> predictions = getPredictions(userTraits, linkTraits, userLinkSamples);
+		double error = 0;
+	
+		if (socialCopreferenceRegularizer != null) {
+			error += copreferenceEngine.getValue();
 			
-			Double[][] userDerivative = new Double[K][Configuration.USER_FEATURE_COUNT];
-			HashMap<Long, Double[]> userIdDerivative = new HashMap<Long, Double[]>();
-			for (long userId : userLinkSamples.keySet()) {
-				userIdDerivative.put(userId, new Double[K]);
+			if (socialRegularizer != null) {
+				error += socialRegularizer.getValue(model.getConnections(), model.getFriendConnections());
 			}
 			
-			Double[][] linkDerivative = new Double[K][Configuration.LINK_FEATURE_COUNT];
-			HashMap<Long, Double[]> linkIdDerivative = new HashMap<Long, Double[]>();
-			for (long linkId : linkIdColumns.keySet()) {
-				linkIdDerivative.put(linkId, new Double[K]);
-			}
+			error *= beta;
+		}
 			
-			System.out.println("Iterations: " + iterations);
+		error += model.getObjectiveValue();
+
+		//Get User and Link norms for regularisation
+		double userNorm = model.getUserNorm() * lambda;
+		double linkNorm = model.getLinkNorm() * lambda;
+
+		error += userNorm + linkNorm;
+
+		return error;
+	}
+	
+	public double getErrorDerivativeOverUserAttribute(DenseModel model, int x, int y)
+	{
+		double errorDerivative = model.getVariables()[model.userMatrixIndex(x, y)] * lambda;
 		
-			//Get user derivatives
-			
-			CopreferenceUserMFThread[] userThreads = new CopreferenceUserMFThread[K];
-			CopreferenceLinkMFThread[] linkThreads = new CopreferenceLinkMFThread[K];
-			CopreferenceUserIdThread[] userIdThreads = new CopreferenceUserIdThread[K];
-			CopreferenceLinkIdThread[] linkIdThreads = new CopreferenceLinkIdThread[K];
+		if (socialCopreferenceRegularizer != null) {
+			double socDerivative = copreferenceEngine.getUserAttributeDerivative(x, y);
 			
-			System.out.println("Starting threads");
-			long start = System.currentTimeMillis();
-			for (int k = 0; k < K; k++) {
-				userThreads[k] = new CopreferenceUserMFThread(k, linkTraits, predictedCopreferences, predictions, connections, userDerivative, userIdDerivative, userLinkSamples, this);
-				userThreads[k].start();
-				userIdThreads[k] = new CopreferenceUserIdThread(k, linkTraits, predictedCopreferences, predictions, connections, userDerivative, userIdDerivative, userLinkSamples, this);
-				userIdThreads[k].start();
+			if (socialRegularizer != null) {
+				socDerivative += model.getSocialAttributeDerivatives()[x * Configuration.USER_FEATURE_COUNT + y];
 			}
 			
-			//Get link derivatives
-			for (int q = 0; q < K; q++) {
-				linkThreads[q] = new CopreferenceLinkMFThread(q, userTraits, predictions, predictedCopreferences, linkDerivative, linkIdDerivative, linkIdColumns.keySet(), this);
-				linkThreads[q].start();
-				linkIdThreads[q] = new CopreferenceLinkIdThread(q, userTraits, predictions, predictedCopreferences, linkDerivative, linkIdDerivative, linkIdColumns.keySet(), this);
-				linkIdThreads[q].start();
-			}
+			errorDerivative += beta * socDerivative;
+		}
 		
-			for (int k = 0; k < K; k++) {
-				try {
-					userThreads[k].join();
-					linkThreads[k].join();
-					userIdThreads[k].join();
-					linkIdThreads[k].join();
-				}
-				catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-			System.out.println("Threads done: " + (System.currentTimeMillis() - start) / 1000);
-			
-			
-			double[] variables = new double[userVars + linkVars];
-			System.out.println("Variables: " + variables.length);
-			
-			int index = 0;
-			
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.USER_FEATURE_COUNT; y++) {
-					variables[index++] = userFeatureMatrix[x][y];
-				}
-			}
-			for (Object id : userKeys) {
-				Long userId = (Long)id;
-				Double[] column = userIdColumns.get(userId);
-				for (double d : column) {
-					variables[index++] = d;
-				}
-			}
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.LINK_FEATURE_COUNT; y++) {
-					variables[index++] = linkFeatureMatrix[x][y];
-				}
-			}
-			for (Object id : linkKeys) {
-				Long linkId = (Long)id;
-				Double[] column = linkIdColumns.get(linkId);
-				for (double d : column) {
-					variables[index++] = d;
-				}
-			}
-			
+		errorDerivative += model.getObjectiveDerivativeOverUserAttribute(x, y);
+
+		return errorDerivative;
+	}
+	
+	public double getErrorDerivativeOverUserId(DenseModel model, int k, int user)
+	{
+		double errorDerivative = model.getVariables()[model.userIdIndex(user, k)] * lambda;
+
+		if (socialCopreferenceRegularizer != null) {
+			double socDerivative = copreferenceEngine.getUserIdDerivative(user, k);
 			
-			System.out.println("derivatives");
-			double[] derivatives = new double[userVars + linkVars];
-			index = 0;
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.USER_FEATURE_COUNT; y++) {
-					derivatives[index++] = userDerivative[x][y];
-				}
-			}
-			for (Object id : userKeys) {
-				Long userId = (Long)id;
-				Double[] column = userIdDerivative.get(userId);
-				for (double d : column) {
-					derivatives[index++] = d;
-				}
-			}
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.LINK_FEATURE_COUNT; y++) {
-					derivatives[index++] = linkDerivative[x][y];
-				}
-			}
-			for (Object id : linkKeys) {
-				Long linkId = (Long)id;
-				Double[] column = linkIdDerivative.get(linkId);
-				for (double d : column) {
-					derivatives[index++] = d;
-				}
+			if (socialRegularizer != null) {
+				socDerivative += model.getSocialTraitDerivatives()[user * K + k];
 			}
-			
-			double error = getCopreferenceError(userFeatureMatrix, linkFeatureMatrix, userIdColumns, linkIdColumns, predictions, predictedCopreferences, connections);
-			
-			System.out.println("New Error: " + error);
-			System.out.println("");
+			errorDerivative += beta * socDerivative;
+		}
 		
-			try {
-				LBFGS.lbfgs(variables.length, 5, variables, error, derivatives,
-						false, diag, iprint, convergence,
-						1e-15, iflag);
-			}
-			catch (LBFGS.ExceptionWithIflag f) {
-				f.printStackTrace();
-			}
-			
-			System.out.println("Setting again");
-			index = 0;
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.USER_FEATURE_COUNT; y++) {
-					userFeatureMatrix[x][y] = variables[index++];
-				}
-			}
-			for (Object id : userKeys) {
-				Long userId = (Long)id;
-				Double[] column = userIdColumns.get(userId);
-				for (int d = 0; d < column.length; d++) {
-					column[d] = variables[index++];
-				}
-			}
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.LINK_FEATURE_COUNT; y++) {
-					linkFeatureMatrix[x][y] = variables[index++];
-				}
-			}
-			for (Object id : linkKeys) {
-				Long linkId = (Long)id;
-				Double[] column = linkIdColumns.get(linkId);
-				for (int d = 0; d < column.length; d++) {
-					column[d] = variables[index++];
-				}
-			}
-			
-			if (iflag[0] == 0 || Math.abs(oldError - error) < convergence) go = false;
+		errorDerivative += model.getObjectiveDerivativeOverUserId(user, k);
 		
-			oldError = error;
+		return errorDerivative;
+	}
+	
+	public double getErrorDerivativeOverLinkAttribute(DenseModel model, int x, int y)
+	{
+		double errorDerivative = model.getVariables()[model.linkMatrixIndex(x, y)] * lambda;
+		
+		if (socialCopreferenceRegularizer != null) {
+			errorDerivative += beta * copreferenceEngine.getLinkAttributeDerivative(x, y);
 		}
+		
+		errorDerivative += model.getObjectiveDerivativeOverLinkAttribute(x, y);
+
+		return errorDerivative;
+	}
+	
+	public double getErrorDerivativeOverLinkId(DenseModel model, int x, int link)
+	{
+		double errorDerivative = model.getVariables()[model.linkIdIndex(link, x)] * lambda;
+		
+		if (socialCopreferenceRegularizer != null) {
+			errorDerivative += beta * copreferenceEngine.getLinkIdDerivative(link, x);
+		}
+		
+		errorDerivative += model.getObjectiveDerivativeOverLinkId(link, x);
+		
+		return errorDerivative;
+	}
+	
+	/**
+	 * Packs the copreferences by dense link/user index, see CopreferenceEngine.
+	 */
+	public DenseModel getDenseModel(Map<Long, Set<Long>> userLinkSamples)
+	{
+		DenseModel model = super.getDenseModel(userLinkSamples);
+		copreferenceEngine = new CopreferenceEngine(model, copreferenceIndex);
+		
+		return model;
+	}
+	
+	/**
+	 * Also predicts the copreferences and their derivatives in a single pass, from the traits updated by super.
+	 */
+	public void updatePredictions(DenseModel model)
+	{
+		super.updatePredictions(model);
+		
+		if (socialCopreferenceRegularizer == null) return;
+		
+		System.out.println("Getting Copreferences");
+		copreferenceEngine.evaluate(socialCopreferenceRegularizer, GradientExecutor.getInstance());
+	}
+	
+	public void minimizeByThreadedLBFGS(Map<Long, Set<Long>> userLinkSamples)
+	{
+		System.out.println("Training copreference");
+		
+		//checkDerivative(userLinkSamples);
+		
+		super.minimizeByThreadedLBFGS(userLinkSamples);
 	}
 	
 	public void checkDerivative(Map<Long, Set<Long>> userLinkSamples)
@@ -422,7 +337,7 @@ public class CopreferenceRecommender extends SocialRecommender
 			for (int l = 0; l < Configuration.USER_FEATURE_COUNT; l++) {
 				Map<Long, Double[]> userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
 				Map<Long, Double[]> linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
-				Map<Long, Map<Long, Map<Long, Double>>> pCopreferences = predictCopreferences(copreferences);
+				Map<Long, Map<Long, Map<Long, Double>>> pCopreferences = predictCopreferences(getCopreferences());
 				Map<Long, Map<Long, Double>> predictions = getPredictions(userTraits, linkTraits, userLinkSamples);
 				Map<Long, Map<Long, Double>> connections = getConnections(userFeatureMatrix, userIdColumns, userFeatures, userLinkSamples);
 				
@@ -434,7 +349,7 @@ public class CopreferenceRecommender extends SocialRecommender
 				
 				userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
 				linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
-				pCopreferences= predictCopreferences(copreferences);
+				pCopreferences= predictCopreferences(getCopreferences());
 				predictions = getPredictions(userTraits, linkTraits, userLinkSamples);
 				connections = getConnections(userFeatureMatrix, userIdColumns, userFeatures, userLinkSamples);
 				
@@ -452,7 +367,7 @@ public class CopreferenceRecommender extends SocialRecommender
 			for (long userId : userLinkSamples.keySet()) {
 				Map<Long, Double[]> userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
 				Map<Long, Double[]> linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
-				Map<Long, Map<Long, Map<Long, Double>>> pCopreferences = predictCopreferences(copreferences);
+				Map<Long, Map<Long, Map<Long, Double>>> pCopreferences = predictCopreferences(getCopreferences());
 				Map<Long, Map<Long, Double>> predictions = getPredictions(userTraits, linkTraits, userLinkSamples);
 				Map<Long, Map<Long, Double>> connections = getConnections(userFeatureMatrix, userIdColumns, userFeatures, userLinkSamples);
 				
@@ -465,7 +380,7 @@ public class CopreferenceRecommender extends SocialRecommender
 				
 				userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
 				linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
-				pCopreferences = predictCopreferences(copreferences);
+				pCopreferences = predictCopreferences(getCopreferences());
 				predictions = getPredictions(userTraits, linkTraits, userLinkSamples);
 				connections = getConnections(userFeatureMatrix, userIdColumns, userFeatures, userLinkSamples);
 				
@@ -486,7 +401,7 @@ public class CopreferenceRecommender extends SocialRecommender
 			for (int l = 0; l < Configuration.LINK_FEATURE_COUNT; l++) {
 				Map<Long, Double[]> userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
 				Map<Long, Double[]> linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
-				Map<Long, Map<Long, Map<Long, Double>>> pCopreferences = predictCopreferences(copreferences);
+				Map<Long, Map<Long, Map<Long, Double>>> pCopreferences = predictCopreferences(getCopreferences());
 				Map<Long, Map<Long, Double>> predictions = getPredictions(userTraits, linkTraits, userLinkSamples);
 				Map<Long, Map<Long, Double>> connections = getConnections(userFeatureMatrix, userIdColumns, userFeatures, userLinkSamples);
 				
@@ -498,7 +413,7 @@ public class CopreferenceRecommender extends SocialRecommender
 				
 				userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
 				linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
-				pCopreferences = predictCopreferences(copreferences);
+				pCopreferences = predictCopreferences(getCopreferences());
 				predictions = getPredictions(userTraits, linkTraits, userLinkSamples);
 				
 				double newError = getCopreferenceError(userFeatureMatrix, linkFeatureMatrix, userIdColumns, linkIdColumns, predictions, pCopreferences, connections);
@@ -516,7 +431,7 @@ public class CopreferenceRecommender extends SocialRecommender
 			for (long linkId : linkIdColumns.keySet()) {
 				Map<Long, Double[]> userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
 				Map<Long, Double[]> linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
-				Map<Long, Map<Long, Map<Long, Double>>> pCopreferences = predictCopreferences(copreferences);
+				Map<Long, Map<Long, Map<Long, Double>>> pCopreferences = predictCopreferences(getCopreferences());
 				Map<Long, Map<Long, Double>> predictions = getPredictions(userTraits, linkTraits, userLinkSamples);
 				Map<Long, Map<Long, Double>> connections = getConnections(userFeatureMatrix, userIdColumns, userFeatures, userLinkSamples);
 				
@@ -528,7 +443,7 @@ public class CopreferenceRecommender extends SocialRecommender
 				
 				userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
 				linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
-				pCopreferences = predictCopreferences(copreferences);
+				pCopreferences = predictCopreferences(getCopreferences());
 				predictions = getPredictions(userTraits, linkTraits, userLinkSamples);
 				
 				double newError = getCopreferenceError(userFeatureMatrix, linkFeatureMatrix, userIdColumns, linkIdColumns, predictions, pCopreferences, connections);
@@ -574,4 +489,12 @@ public class CopreferenceRecommender extends SocialRecommender
 			ex.printStackTrace();
 		}
 	}
+	
+	/**
+	 * The copreference term couples pairs of links, so training stays on LBFGS.
+	 */
+	public Objective getSampleObjective()
+	{
+		return null;
+	}
 }
@@ -0,0 +1,881 @@
+package org.nicta.lr.recommender;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongIntHashMap;
+
+import org.nicta.lr.component.Objective;
+import org.nicta.lr.component.SocialRegularizer;
+import org.nicta.lr.thread.GradientAccumulator;
+import org.nicta.lr.thread.GradientExecutor;
+import org.nicta.lr.thread.GradientTask;
+import org.nicta.lr.util.SocialGraph;
+
+/**
+ * Index-dense view of the matrix factorisation parameters used during training.
+ *
+ * User and link ids are remapped once to contiguous int indices, and every trained parameter lives in a single
+ * flat double[] in the same order the LBFGS variables have always been packed:
+ * user feature matrix (row major), user id columns, link feature matrix (row major), link id columns, then any
+ * extra variables (e.g. the hybrid weights). LBFGS works on that array directly so nothing has to be
+ * copied into and out of the Double[][] and Map<Long, Double[]> structures between iterations.
+ *
+ * Training samples are kept as a CSR structure (per user, the indices of the links sampled for that user)
+ * with a transposed per link view, and their 0/1 like labels are precomputed into a parallel array.
+ *
+ * User pairs the social regularizer is evaluated on are kept as an edge list (two parallel arrays of user indices)
+ * with a per user adjacency view. The edges are either every pair of training users or, for the sparse mode, only
+ * the observed friendships plus optional sampled negative pairs.
+ */
+public class DenseModel
+{
+	int K;
+	int userFeatureCount;
+	int linkFeatureCount;
+
+	long[] userIds;
+	long[] linkIds;
+	TLongIntHashMap userIndex;
+	TLongIntHashMap linkIndex;
+
+	double[] userFeatures;
+	double[] linkFeatures;
+
+	int[] sampleStart;
+	int[] sampleLinks;
+	int[] sampleUsers;
+	int[] linkSampleStart;
+	int[] linkSamples;
+	double[] labels;
+
+	int userIdOffset;
+	int linkMatrixOffset;
+	int linkIdOffset;
+	int extraOffset;
+
+	double[] variables;
+	double[] derivatives;
+
+	double[] userTraits;
+	double[] linkTraits;
+	double[] predictions;
+	double[] errorDerivatives;
+
+	double objectiveValue;
+	double[] userTraitDerivatives;
+	double[] linkTraitDerivatives;
+	double[] userAttributeDerivatives;
+	double[] linkAttributeDerivatives;
+	GradientAccumulator linkTraitAccumulator;
+	GradientAccumulator lossAccumulator;
+
+	int[] edgeUsers1;
+	int[] edgeUsers2;
+	int[] userEdgeStart;
+	int[] userEdges;
+	double[] connections;
+	double[] friendConnections;
+	double[] socialTraitDerivatives;
+	double[] socialAttributeDerivatives;
+	GradientAccumulator socialTraitAccumulator;
+
+	double untrainedUserNorm;
+	double untrainedLinkNorm;
+
+	boolean[] frozen;
+
+	/**
+	 * @param K latent dimension
+	 * @param userFeatureCount
+	 * @param linkFeatureCount
+	 * @param userLinkSamples training samples, users without features are expected to have been removed already
+	 * @param userFeatures
+	 * @param linkFeatures
+	 * @param linkLikes
+	 * @param extraCount number of variables appended after the link id columns
+	 */
+	public DenseModel(int K, int userFeatureCount, int linkFeatureCount, Map<Long, Set<Long>> userLinkSamples,
+						Map<Long, Double[]> userFeatures, Map<Long, Double[]> linkFeatures, Map<Long, Set<Long>> linkLikes, int extraCount)
+	{
+		this.K = K;
+		this.userFeatureCount = userFeatureCount;
+		this.linkFeatureCount = linkFeatureCount;
+
+		int userCount = userLinkSamples.size();
+		int linkCount = linkFeatures.size();
+
+		userIds = new long[userCount];
+		userIndex = new TLongIntHashMap(userCount);
+		this.userFeatures = new double[userCount * userFeatureCount];
+
+		int index = 0;
+		for (long userId : userLinkSamples.keySet()) {
+			userIds[index] = userId;
+			userIndex.put(userId, index);
+
+			Double[] feature = userFeatures.get(userId);
+			for (int y = 0; y < userFeatureCount; y++) {
+				this.userFeatures[index * userFeatureCount + y] = feature[y];
+			}
+			index++;
+		}
+
+		linkIds = new long[linkCount];
+		linkIndex = new TLongIntHashMap(linkCount);
+		this.linkFeatures = new double[linkCount * linkFeatureCount];
+
+		index = 0;
+		for (long linkId : linkFeatures.keySet()) {
+			linkIds[index] = linkId;
+			linkIndex.put(linkId, index);
+
+			Double[] feature = linkFeatures.get(linkId);
+			for (int y = 0; y < linkFeatureCount; y++) {
+				this.linkFeatures[index * linkFeatureCount + y] = feature[y];
+			}
+			index++;
+		}
+
+		buildSamples(userLinkSamples, linkLikes);
+
+		userIdOffset = K * userFeatureCount;
+		linkMatrixOffset = userIdOffset + K * userCount;
+		linkIdOffset = linkMatrixOffset + K * linkFeatureCount;
+		extraOffset = linkIdOffset + K * linkCount;
+
+		variables = new double[extraOffset + extraCount];
+		derivatives = new double[variables.length];
+
+		userTraits = new double[userCount * K];
+		linkTraits = new double[linkCount * K];
+		predictions = new double[sampleLinks.length];
+		errorDerivatives = new double[sampleLinks.length];
+		userTraitDerivatives = new double[userCount * K];
+		linkTraitDerivatives = new double[linkCount * K];
+		userAttributeDerivatives = new double[K * userFeatureCount];
+		linkAttributeDerivatives = new double[K * linkFeatureCount];
+		linkTraitAccumulator = new GradientAccumulator(linkTraitDerivatives.length);
+		lossAccumulator = new GradientAccumulator(1);
+	}
+
+	/**
+	 * Packs the samples into CSR form. Links that have no features (and so no trait vector) are dropped.
+	 */
+	private void buildSamples(Map<Long, Set<Long>> userLinkSamples, Map<Long, Set<Long>> linkLikes)
+	{
+		int userCount = userIds.length;
+		int linkCount = linkIds.length;
+
+		int sampleCount = 0;
+		for (int u = 0; u < userCount; u++) {
+			for (long linkId : userLinkSamples.get(userIds[u])) {
+				if (linkIndex.containsKey(linkId)) sampleCount++;
+			}
+		}
+
+		sampleStart = new int[userCount + 1];
+		sampleLinks = new int[sampleCount];
+		sampleUsers = new int[sampleCount];
+		labels = new double[sampleCount];
+		int[] linkSampleCount = new int[linkCount];
+
+		int s = 0;
+		for (int u = 0; u < userCount; u++) {
+			sampleStart[u] = s;
+			long userId = userIds[u];
+
+			for (long linkId : userLinkSamples.get(userId)) {
+				if (!linkIndex.containsKey(linkId)) continue;
+
+				int l = linkIndex.get(linkId);
+				sampleLinks[s] = l;
+				sampleUsers[s] = u;
+
+				Set<Long> likes = linkLikes.get(linkId);
+				labels[s] = (likes != null && likes.contains(userId)) ? 1 : 0;
+
+				linkSampleCount[l]++;
+				s++;
+			}
+		}
+		sampleStart[userCount] = s;
+
+		linkSampleStart = new int[linkCount + 1];
+		for (int l = 0; l < linkCount; l++) {
+			linkSampleStart[l + 1] = linkSampleStart[l] + linkSampleCount[l];
+		}
+
+		linkSamples = new int[sampleCount];
+		int[] fill = new int[linkCount];
+		for (s = 0; s < sampleCount; s++) {
+			int l = sampleLinks[s];
+			linkSamples[linkSampleStart[l] + fill[l]++] = s;
+		}
+	}
+
+	/**
+	 * Copies the current parameters into the variable array. Id columns that are not being trained still count towards
+	 * the L2 norm, so their contribution is kept as a constant.
+	 */
+	public void readParameters(Double[][] userFeatureMatrix, Map<Long, Double[]> userIdColumns,
+								Double[][] linkFeatureMatrix, Map<Long, Double[]> linkIdColumns)
+	{
+		for (int x = 0; x < K; x++) {
+			for (int y = 0; y < userFeatureCount; y++) {
+				variables[userMatrixIndex(x, y)] = userFeatureMatrix[x][y];
+			}
+			for (int y = 0; y < linkFeatureCount; y++) {
+				variables[linkMatrixIndex(x, y)] = linkFeatureMatrix[x][y];
+			}
+		}
+
+		untrainedUserNorm = 0;
+		for (long userId : userIdColumns.keySet()) {
+			Double[] column = userIdColumns.get(userId);
+
+			if (userIndex.containsKey(userId)) {
+				int u = userIndex.get(userId);
+				for (int k = 0; k < K; k++) {
+					variables[userIdIndex(u, k)] = column[k];
+				}
+			}
+			else {
+				for (int k = 0; k < K; k++) {
+					untrainedUserNorm += column[k] * column[k];
+				}
+			}
+		}
+		untrainedUserNorm /= 2;
+
+		untrainedLinkNorm = 0;
+		for (long linkId : linkIdColumns.keySet()) {
+			Double[] column = linkIdColumns.get(linkId);
+
+			if (linkIndex.containsKey(linkId)) {
+				int l = linkIndex.get(linkId);
+				for (int k = 0; k < K; k++) {
+					variables[linkIdIndex(l, k)] = column[k];
+				}
+			}
+			else {
+				for (int k = 0; k < K; k++) {
+					untrainedLinkNorm += column[k] * column[k];
+				}
+			}
+		}
+		untrainedLinkNorm /= 2;
+	}
+
+	/**
+	 * Limits training to part of the variables, for incremental training. Frozen variables still take part in the
+	 * objective, but maskDerivatives() zeroes their derivatives so LBFGS never moves them.
+	 * 
+	 * @param attributes train the user and link feature matrices and the extra variables
+	 * @param userColumns users whose id columns are trained, null for all
+	 * @param linkColumns links whose id columns are trained, null for all
+	 */
+	public void restrictTraining(boolean attributes, Set<Long> userColumns, Set<Long> linkColumns)
+	{
+		frozen = new boolean[variables.length];
+
+		if (!attributes) {
+			Arrays.fill(frozen, 0, userIdOffset, true);
+			Arrays.fill(frozen, linkMatrixOffset, linkIdOffset, true);
+			Arrays.fill(frozen, extraOffset, variables.length, true);
+		}
+		if (userColumns != null) {
+			for (int u = 0; u < userIds.length; u++) {
+				if (!userColumns.contains(userIds[u])) {
+					Arrays.fill(frozen, userIdIndex(u, 0), userIdIndex(u, 0) + K, true);
+				}
+			}
+		}
+		if (linkColumns != null) {
+			for (int l = 0; l < linkIds.length; l++) {
+				if (!linkColumns.contains(linkIds[l])) {
+					Arrays.fill(frozen, linkIdIndex(l, 0), linkIdIndex(l, 0) + K, true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Zeroes the derivatives of the variables frozen by restrictTraining.
+	 */
+	public void maskDerivatives()
+	{
+		if (frozen == null) return;
+
+		for (int x = 0; x < frozen.length; x++) {
+			if (frozen[x]) derivatives[x] = 0;
+		}
+	}
+
+	/**
+	 * Copies the trained variables back into the matrices and id columns used for recommending and saving.
+	 */
+	public void writeParameters(Double[][] userFeatureMatrix, Map<Long, Double[]> userIdColumns,
+									Double[][] linkFeatureMatrix, Map<Long, Double[]> linkIdColumns)
+	{
+		for (int x = 0; x < K; x++) {
+			for (int y = 0; y < userFeatureCount; y++) {
+				userFeatureMatrix[x][y] = variables[userMatrixIndex(x, y)];
+			}
+			for (int y = 0; y < linkFeatureCount; y++) {
+				linkFeatureMatrix[x][y] = variables[linkMatrixIndex(x, y)];
+			}
+		}
+
+		for (int u = 0; u < userIds.length; u++) {
+			Double[] column = userIdColumns.get(userIds[u]);
+			for (int k = 0; k < K; k++) {
+				column[k] = variables[userIdIndex(u, k)];
+			}
+		}
+
+		for (int l = 0; l < linkIds.length; l++) {
+			Double[] column = linkIdColumns.get(linkIds[l]);
+			for (int k = 0; k < K; k++) {
+				column[k] = variables[linkIdIndex(l, k)];
+			}
+		}
+	}
+
+	/**
+	 * Calculates s=Ux+u and t=Vy+v for every training user and link from the current variables.
+	 */
+	public void updateTraits()
+	{
+		for (int u = 0; u < userIds.length; u++) {
+			for (int x = 0; x < K; x++) {
+				double value = variables[userIdIndex(u, x)];
+
+				for (int y = 0; y < userFeatureCount; y++) {
+					value += variables[userMatrixIndex(x, y)] * userFeatures[u * userFeatureCount + y];
+				}
+
+				userTraits[u * K + x] = value;
+			}
+		}
+
+		for (int l = 0; l < linkIds.length; l++) {
+			for (int x = 0; x < K; x++) {
+				double value = variables[linkIdIndex(l, x)];
+
+				for (int y = 0; y < linkFeatureCount; y++) {
+					value += variables[linkMatrixIndex(x, y)] * linkFeatures[l * linkFeatureCount + y];
+				}
+
+				linkTraits[l * K + x] = value;
+			}
+		}
+	}
+
+	/**
+	 * Sets every sample prediction to the dot product of its user and link trait vectors.
+	 */
+	public void updatePredictions()
+	{
+		for (int u = 0; u < userIds.length; u++) {
+			int userOffset = u * K;
+
+			for (int s = sampleStart[u]; s < sampleStart[u + 1]; s++) {
+				int linkOffset = sampleLinks[s] * K;
+
+				double prediction = 0;
+				for (int x = 0; x < K; x++) {
+					prediction += userTraits[userOffset + x] * linkTraits[linkOffset + x];
+				}
+
+				predictions[s] = prediction;
+			}
+		}
+	}
+
+	/**
+	 * Uses every pair of training users as a social edge, with the friendship measure of the pair (0 if not friends).
+	 * The edges are in upper triangular order, see SocialRegularizer.pairCount.
+	 */
+	public void setFriendConnections(Map<Long, Map<Long, Double>> friendships)
+	{
+		int userCount = userIds.length;
+		int pairCount = SocialRegularizer.pairCount(userCount);
+		
+		edgeUsers1 = new int[pairCount];
+		edgeUsers2 = new int[pairCount];
+		friendConnections = new double[pairCount];
+		
+		int pair = 0;
+		for (int i = 0; i < userCount - 1; i++) {
+			Map<Long, Double> friends = friendships.get(userIds[i]);
+			
+			for (int j = i + 1; j < userCount; j++) {
+				edgeUsers1[pair] = i;
+				edgeUsers2[pair] = j;
+				
+				if (friends != null) {
+					Double value = friends.get(userIds[j]);
+					if (value != null) {
+						friendConnections[pair] = value;
+					}
+				}
+				
+				pair++;
+			}
+		}
+		
+		indexEdges();
+	}
+	
+	/**
+	 * Sparse alternative to setFriendConnections: only pairs of training users that are linked in the friendship graph (in
+	 * either direction) become edges, so the social regularizer costs O(edges) instead of O(U^2). The value of an edge is the
+	 * one setFriendConnections would give the pair, rounded to the graph's float weight.
+	 * 
+	 * @param friendships
+	 * @param negativeSamples number of random non-friend pairs (with friendship 0) to draw per training user, each distinct pair is added once
+	 * @param random
+	 */
+	public void setFriendEdges(SocialGraph friendships, int negativeSamples, Random random)
+	{
+		int userCount = userIds.length;
+		TIntArrayList users1 = new TIntArrayList();
+		TIntArrayList users2 = new TIntArrayList();
+		
+		//Graph row of each training user, -1 if the user has no friendships
+		int[] rows = new int[userCount];
+		for (int i = 0; i < userCount; i++) {
+			rows[i] = friendships.getIndex(userIds[i]);
+		}
+		
+		int[] neighbours = friendships.getNeighbours();
+		
+		for (int i = 0; i < userCount; i++) {
+			int row = rows[i];
+			if (row == -1) continue;
+			
+			for (int pos = friendships.getOffset(row); pos < friendships.getOffset(row + 1); pos++) {
+				long friendId = friendships.getId(neighbours[pos]);
+				if (!userIndex.containsKey(friendId)) continue;
+				int j = userIndex.get(friendId);
+				
+				//Each pair is added once, from the lower index, unless only the higher index lists the friendship
+				if (i < j || (i > j && !friendships.contains(rows[j], row))) {
+					users1.add(Math.min(i, j));
+					users2.add(Math.max(i, j));
+				}
+			}
+		}
+		
+		int friendEdges = users1.size();
+		
+		if (negativeSamples > 0 && userCount > 1) {
+			//A pair drawn from both of its users, or more than once, is only added once
+			HashSet<Long> sampled = new HashSet<Long>();
+			
+			for (int i = 0; i < userCount; i++) {
+				for (int n = 0; n < negativeSamples; n++) {
+					int j = random.nextInt(userCount - 1);
+					if (j >= i) j++;
+					
+					if (isFriend(friendships, rows[i], rows[j]) || isFriend(friendships, rows[j], rows[i])) continue;
+					if (!sampled.add((long)Math.min(i, j) * userCount + Math.max(i, j))) continue;
+					
+					users1.add(Math.min(i, j));
+					users2.add(Math.max(i, j));
+				}
+			}
+		}
+		
+		edgeUsers1 = users1.toNativeArray();
+		edgeUsers2 = users2.toNativeArray();
+		friendConnections = new double[edgeUsers1.length];
+		
+		SocialRegularizer.getFriendConnections(friendships, userIds, edgeUsers1, edgeUsers2, friendConnections);
+		
+		System.out.println("Social edges: " + friendEdges + " friends, " + (edgeUsers1.length - friendEdges) + " sampled");
+		
+		indexEdges();
+	}
+	
+	private boolean isFriend(SocialGraph friendships, int row1, int row2)
+	{
+		return row1 != -1 && row2 != -1 && friendships.contains(row1, row2);
+	}
+	
+	/**
+	 * Builds the per user adjacency over the edge list and allocates the predicted connections and social derivatives.
+	 */
+	private void indexEdges()
+	{
+		int userCount = userIds.length;
+		connections = new double[edgeUsers1.length];
+		socialTraitDerivatives = new double[userCount * K];
+		socialAttributeDerivatives = new double[K * userFeatureCount];
+		socialTraitAccumulator = new GradientAccumulator(socialTraitDerivatives.length);
+		
+		userEdgeStart = new int[userCount + 1];
+		for (int e = 0; e < edgeUsers1.length; e++) {
+			userEdgeStart[edgeUsers1[e] + 1]++;
+			userEdgeStart[edgeUsers2[e] + 1]++;
+		}
+		for (int u = 0; u < userCount; u++) {
+			userEdgeStart[u + 1] += userEdgeStart[u];
+		}
+		
+		userEdges = new int[userEdgeStart[userCount]];
+		int[] fill = new int[userCount];
+		
+		for (int e = 0; e < edgeUsers1.length; e++) {
+			int u1 = edgeUsers1[e];
+			int u2 = edgeUsers2[e];
+			userEdges[userEdgeStart[u1] + fill[u1]++] = e;
+			userEdges[userEdgeStart[u2] + fill[u2]++] = e;
+		}
+	}
+
+	/**
+	 * Evaluates the objective over the current predictions in a single pass over the (user, link, label) samples.
+	 * Each sample's loss and derivative over its prediction are taken together, and its derivative is accumulated into
+	 * the gradients over the user and link trait vectors (dL/ds_u = sum e t_l, dL/dt_l = sum e s_u). The attribute
+	 * gradients then follow from the trait gradients as outer product sums, e.g. dL/dU[x][y] = sum_u dL/ds_u[x] x_u[y],
+	 * and the id gradients are the trait gradients themselves.
+	 * 
+	 * The pass is split by users across the executor. Each user's trait gradient belongs to a single chunk, while the link
+	 * trait gradients and the loss go through per worker accumulators since any chunk may touch any link.
+	 * 
+	 * @param objective
+	 * @param executor
+	 * @return objective value
+	 */
+	public double evaluateObjective(final Objective objective, GradientExecutor executor)
+	{
+		executor.execute(userIds.length, new GradientTask() {
+			public void run(int start, int end) {
+				double[] linkBuffer = linkTraitAccumulator.getBuffer();
+				double error = 0;
+				
+				for (int u = start; u < end; u++) {
+					int userOffset = u * K;
+					Arrays.fill(userTraitDerivatives, userOffset, userOffset + K, 0);
+		
+					for (int s = sampleStart[u]; s < sampleStart[u + 1]; s++) {
+						double prediction = predictions[s];
+						error += objective.getLoss(prediction, labels[s]);
+						
+						double e = objective.getDerivativeOverPrediction(prediction, labels[s]);
+						errorDerivatives[s] = e;
+						if (e == 0) continue;
+		
+						int linkOffset = sampleLinks[s] * K;
+						for (int x = 0; x < K; x++) {
+							userTraitDerivatives[userOffset + x] += e * linkTraits[linkOffset + x];
+							linkBuffer[linkOffset + x] += e * userTraits[userOffset + x];
+						}
+					}
+				}
+				
+				lossAccumulator.getBuffer()[0] += error;
+			}
+		});
+		
+		linkTraitAccumulator.reduce(linkTraitDerivatives);
+		
+		double[] error = new double[1];
+		lossAccumulator.reduce(error);
+
+		aggregateAttributeDerivatives(userTraitDerivatives, userFeatures, userFeatureCount, userAttributeDerivatives);
+		aggregateAttributeDerivatives(linkTraitDerivatives, linkFeatures, linkFeatureCount, linkAttributeDerivatives);
+
+		objectiveValue = error[0] / 2;
+		return objectiveValue;
+	}
+
+	private void aggregateAttributeDerivatives(double[] traitDerivatives, double[] features, int featureCount, double[] attributeDerivatives)
+	{
+		Arrays.fill(attributeDerivatives, 0);
+		int count = traitDerivatives.length / K;
+
+		for (int i = 0; i < count; i++) {
+			for (int x = 0; x < K; x++) {
+				double derivative = traitDerivatives[i * K + x];
+				if (derivative == 0) continue;
+
+				for (int y = 0; y < featureCount; y++) {
+					attributeDerivatives[x * featureCount + y] += derivative * features[i * featureCount + y];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Objective derivative over the user feature matrix cell (x, y), as of the last evaluateObjective.
+	 */
+	public double getObjectiveDerivativeOverUserAttribute(int x, int y)
+	{
+		return userAttributeDerivatives[x * userFeatureCount + y];
+	}
+
+	public double getObjectiveDerivativeOverUserId(int u, int k)
+	{
+		return userTraitDerivatives[u * K + k];
+	}
+
+	public double getObjectiveDerivativeOverLinkAttribute(int x, int y)
+	{
+		return linkAttributeDerivatives[x * linkFeatureCount + y];
+	}
+
+	public double getObjectiveDerivativeOverLinkId(int l, int k)
+	{
+		return linkTraitDerivatives[l * K + k];
+	}
+
+	/**
+	 * L2 value of a block of variables, halved as in L2Regularizer.
+	 */
+	public double getNorm(int offset, int length)
+	{
+		double value = 0;
+
+		for (int x = offset; x < offset + length; x++) {
+			value += variables[x] * variables[x];
+		}
+
+		return value / 2;
+	}
+
+	public double getUserNorm()
+	{
+		return getNorm(0, linkMatrixOffset) + untrainedUserNorm;
+	}
+
+	public double getLinkNorm()
+	{
+		return getNorm(linkMatrixOffset, extraOffset - linkMatrixOffset) + untrainedLinkNorm;
+	}
+
+	public int userMatrixIndex(int x, int y)
+	{
+		return x * userFeatureCount + y;
+	}
+
+	public int userIdIndex(int u, int k)
+	{
+		return userIdOffset + u * K + k;
+	}
+
+	public int linkMatrixIndex(int x, int y)
+	{
+		return linkMatrixOffset + x * linkFeatureCount + y;
+	}
+
+	public int linkIdIndex(int l, int k)
+	{
+		return linkIdOffset + l * K + k;
+	}
+
+	public int extraIndex(int w)
+	{
+		return extraOffset + w;
+	}
+
+	public int getK()
+	{
+		return K;
+	}
+
+	public int getUserCount()
+	{
+		return userIds.length;
+	}
+
+	public int getLinkCount()
+	{
+		return linkIds.length;
+	}
+
+	public int getSampleCount()
+	{
+		return sampleLinks.length;
+	}
+
+	public int getUserFeatureCount()
+	{
+		return userFeatureCount;
+	}
+
+	public int getLinkFeatureCount()
+	{
+		return linkFeatureCount;
+	}
+
+	public int getExtraCount()
+	{
+		return variables.length - extraOffset;
+	}
+
+	public long[] getUserIds()
+	{
+		return userIds;
+	}
+
+	public long[] getLinkIds()
+	{
+		return linkIds;
+	}
+
+	/**
+	 * @return the dense index of the user, or -1 if it is not being trained
+	 */
+	public int getUserIndex(long userId)
+	{
+		return userIndex.containsKey(userId) ? userIndex.get(userId) : -1;
+	}
+
+	/**
+	 * @return the dense index of the link, or -1 if it is not being trained
+	 */
+	public int getLinkIndex(long linkId)
+	{
+		return linkIndex.containsKey(linkId) ? linkIndex.get(linkId) : -1;
+	}
+
+	public double[] getUserFeatures()
+	{
+		return userFeatures;
+	}
+
+	public double[] getLinkFeatures()
+	{
+		return linkFeatures;
+	}
+
+	public int[] getSampleStart()
+	{
+		return sampleStart;
+	}
+
+	public int[] getSampleLinks()
+	{
+		return sampleLinks;
+	}
+
+	public int[] getSampleUsers()
+	{
+		return sampleUsers;
+	}
+
+	public int[] getLinkSampleStart()
+	{
+		return linkSampleStart;
+	}
+
+	public int[] getLinkSamples()
+	{
+		return linkSamples;
+	}
+
+	public double[] getLabels()
+	{
+		return labels;
+	}
+
+	public double[] getVariables()
+	{
+		return variables;
+	}
+
+	public double[] getDerivatives()
+	{
+		return derivatives;
+	}
+
+	public double[] getUserTraits()
+	{
+		return userTraits;
+	}
+
+	public double[] getLinkTraits()
+	{
+		return linkTraits;
+	}
+
+	public double[] getPredictions()
+	{
+		return predictions;
+	}
+
+	public double[] getErrorDerivatives()
+	{
+		return errorDerivatives;
+	}
+
+	public double getObjectiveValue()
+	{
+		return objectiveValue;
+	}
+
+	public int[] getEdgeUsers1()
+	{
+		return edgeUsers1;
+	}
+
+	public int[] getEdgeUsers2()
+	{
+		return edgeUsers2;
+	}
+
+	public int[] getUserEdgeStart()
+	{
+		return userEdgeStart;
+	}
+
+	public int[] getUserEdges()
+	{
+		return userEdges;
+	}
+
+	public double[] getConnections()
+	{
+		return connections;
+	}
+
+	public double[] getFriendConnections()
+	{
+		return friendConnections;
+	}
+
+	public double[] getSocialTraitDerivatives()
+	{
+		return socialTraitDerivatives;
+	}
+
+	public double[] getSocialAttributeDerivatives()
+	{
+		return socialAttributeDerivatives;
+	}
+
+	public GradientAccumulator getSocialTraitAccumulator()
+	{
+		return socialTraitAccumulator;
+	}
+
+	public boolean[] getFrozen()
+	{
+		return frozen;
+	}
+
+	/**
+	 * Replaces the frozen variables, e.g. to restore the ones restrictTraining replaced. null to train everything.
+	 */
+	public void setFrozen(boolean[] frozen)
+	{
+		this.frozen = frozen;
+	}
+}
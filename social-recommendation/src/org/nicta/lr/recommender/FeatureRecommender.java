@@ -3,6 +3,7 @@ package org.nicta.lr.recommender;
 import java.util.Set;
 import java.util.Map;
 
+import org.nicta.lr.thread.GradientExecutor;
 import org.nicta.lr.util.Constants;
 import org.nicta.lr.util.Configuration;
 import org.nicta.lr.component.Objective;
@@ -96,6 +97,65 @@ public class FeatureRecommender extends MFRecommender
 		return errorDerivative;
 	}
 	
+	public double getError(DenseModel model)
+	{
+		double error = 0;
+		
+		//Get the square error
+		error += model.getObjectiveValue();
+		
+		//Get User and Movie norms for regularisation
+		double userNorm = model.getUserNorm() * lambda;
+		double linkNorm = model.getLinkNorm() * lambda;
+		
+		error += userNorm + linkNorm;
+		
+		return error;
+	}
+	
+	public double getErrorDerivativeOverUserAttribute(DenseModel model, int x, int y)
+	{
+		double errorDerivative = model.getVariables()[model.userMatrixIndex(x, y)] * lambda;
+		errorDerivative += model.getObjectiveDerivativeOverUserAttribute(x, y);
+		
+		return errorDerivative;
+	}
+	
+	public double getErrorDerivativeOverUserId(DenseModel model, int k, int user)
+	{
+		double errorDerivative = model.getVariables()[model.userIdIndex(user, k)] * lambda;
+		errorDerivative += model.getObjectiveDerivativeOverUserId(user, k);
+		
+		return errorDerivative;
+	}
+	
+	public double getErrorDerivativeOverLinkAttribute(DenseModel model, int x, int y)
+	{
+		double errorDerivative = model.getVariables()[model.linkMatrixIndex(x, y)] * lambda;
+		errorDerivative += model.getObjectiveDerivativeOverLinkAttribute(x, y);
+		
+		return errorDerivative;
+	}
+	
+	public double getErrorDerivativeOverLinkId(DenseModel model, int x, int link)
+	{
+		double errorDerivative = model.getVariables()[model.linkIdIndex(link, x)] * lambda;
+		errorDerivative += model.getObjectiveDerivativeOverLinkId(link, x);
+		
+		return errorDerivative;
+	}
+	
+	public void updatePredictions(DenseModel model)
+	{
+		super.updatePredictions(model);
+		model.evaluateObjective(objective, GradientExecutor.getInstance());
+	}
+	
+	public double predictConnection(DenseModel model, int i, int j)
+	{
+		return 0;
+	}
+	
 	public double predictConnection(Double[][] userMatrix, 
 			Map<Long, Double[]> idColumns,
 			Map<Long, Double[]> userFeatures,
@@ -103,4 +163,9 @@ public class FeatureRecommender extends MFRecommender
 	{
 		return 0;
 	}
+	
+	public Objective getSampleObjective()
+	{
+		return objective;
+	}
 }
@@ -1,19 +1,26 @@
 package org.nicta.lr.recommender;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
-import org.nicta.lr.thread.CBFThread;
-import org.nicta.lr.thread.LinkIdThread;
-import org.nicta.lr.thread.LinkMFThread;
-import org.nicta.lr.thread.UserIdThread;
-import org.nicta.lr.thread.UserMFThread;
+import gnu.trove.TDoubleArrayList;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongIntHashMap;
+
+import org.nicta.lr.component.Objective;
+import org.nicta.lr.thread.GradientAccumulator;
+import org.nicta.lr.thread.GradientExecutor;
+import org.nicta.lr.thread.GradientTask;
+import org.nicta.lr.thread.WeightTask;
 import org.nicta.lr.util.Configuration;
+import org.nicta.lr.util.IntBitmap;
+import org.nicta.lr.util.LikeIndex;
+import org.nicta.lr.util.SocialGraph;
 import org.nicta.lr.util.UserUtil;
-import org.nicta.social.LBFGS;
 
 public class HybridRecommender extends SocialRecommender
 {	
@@ -22,6 +29,22 @@ public class HybridRecommender extends SocialRecommender
 	
 	Double[] weights;
 	
+	//Columns of the one-hot user and link features by id, and of the friend-liked features by like index user
+	TLongIntHashMap userPositions;
+	TLongIntHashMap linkPositions;
+	int[] likerPositions;
+	SocialGraph friendGraph;
+	
+	//Hybrid features of the training samples as a CSR matrix, rows in the model's sample order
+	int[] featureStart;
+	int[] featureIndices;
+	double[] featureValues;
+	double[] weightPredictions;
+	
+	//Objective derivatives over the weights, scattered from the samples into per worker buffers
+	GradientAccumulator weightAccumulator;
+	double[] weightDerivatives;
+	
 	//Map<Long, Map<Long, Double>> friendships;
 	
 	public HybridRecommender(Map<Long, Set<Long>> linkLikes, Map<Long, Double[]> userFeatures, Map<Long, Double[]> linkFeatures, Map<Long, Map<Long, Double>> friends, String type)
@@ -57,285 +80,292 @@ public class HybridRecommender extends SocialRecommender
 		return derivative;
 	}
 	
-	public void minimizeByThreadedLBFGS(Map<Long, Set<Long>> userLinkSamples)
+	public double getError(DenseModel model)
 	{
-		//checkDerivative(userLinkSamples);
-		
-		boolean go = true;	
-		int iterations = 0;
+		double weightNorm = model.getNorm(model.extraIndex(0), weights.length);
+		weightNorm *= lambda;
+		weightNorm /= 2;
 		
-		int userVars = K * (Configuration.USER_FEATURE_COUNT + userLinkSamples.size());
-		int linkVars = K * (Configuration.LINK_FEATURE_COUNT + linkFeatures.size());
+		return super.getError(model) + weightNorm;
+	}
+	
+	/**
+	 * Needs the weight's objective derivative reduced by reduceWeightDerivatives first.
+	 */
+	public double getErrorDerivativeOverWeights(DenseModel model, int w)
+	{
+		double derivative = model.getVariables()[model.extraIndex(w)] * lambda;
+		derivative += weightDerivatives[w];
 		
-		Object[] userKeys = userLinkSamples.keySet().toArray();
-		Object[] linkKeys = linkFeatures.keySet().toArray();
+		return derivative;
+	}
+	
+	/**
+	 * Adds the objective derivative of the samples [start, end) over the weights into the buffer: each sample's error
+	 * derivative times the value of each of its features. A single walk over the feature rows, O(nnz) in all.
+	 */
+	public void scatterWeightDerivatives(DenseModel model, int start, int end, double[] buffer)
+	{
+		double[] errorDerivatives = model.getErrorDerivatives();
 		
-		int[] iprint = {0,0};
-		int[] iflag = {0};
-		double[] diag = new double[userVars + linkVars + weights.length];
+		for (int s = start; s < end; s++) {
+			double e = errorDerivatives[s];
+			if (e == 0) continue;
+			
+			for (int x = featureStart[s]; x < featureStart[s + 1]; x++) {
+				buffer[featureIndices[x]] += e * featureValues[x];
+			}
+		}
+	}
+	
+	/**
+	 * Sums the scattered objective derivatives of the weights [start, end) into weightDerivatives.
+	 */
+	public void reduceWeightDerivatives(int start, int end)
+	{
+		weightAccumulator.reduce(weightDerivatives, start, end);
+	}
+	
+	public int getExtraVariableCount()
+	{
+		return weights.length;
+	}
+	
+	/**
+	 * Adds the weights after the matrix factorisation variables, and builds the hybrid features of the model's samples
+	 * as a CSR matrix.
+	 */
+	public DenseModel getDenseModel(Map<Long, Set<Long>> userLinkSamples)
+	{
+		DenseModel model = super.getDenseModel(userLinkSamples);
 		
-		for (int x = 0; x < diag.length; x++) {
-			diag[x] = 0;
+		double[] variables = model.getVariables();
+		for (int w = 0; w < weights.length; w++) {
+			variables[model.extraIndex(w)] = weights[w];
 		}
 		
-		double oldError = Double.MAX_VALUE;
+		System.out.println("Getting feature rows");
+		long[] modelUserIds = model.getUserIds();
+		long[] modelLinkIds = model.getLinkIds();
+		int[] sampleStart = model.getSampleStart();
+		int[] sampleLinks = model.getSampleLinks();
 		
-		System.out.println("Getting feature maps");
-		Map<Long, Map<Long, Map<Integer, Double>>> featureMaps = getFeatureMaps(userLinkSamples);
+		featureStart = new int[model.getSampleCount() + 1];
+		TIntArrayList indices = new TIntArrayList();
+		TDoubleArrayList values = new TDoubleArrayList();
 		
-		while (go) {
-			iterations++;
+		for (int u = 0; u < modelUserIds.length; u++) {
+			IntBitmap friends = getFriendLikers(friendGraph, modelUserIds[u]);
 			
-			Map<Long, Double[]> userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
-			Map<Long, Double[]> linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
-
-			System.out.println("Getting W Predictions");
-			Map<Long, Map<Long, Double>> weightPredictions = getPredictions(weights, featureMaps, userLinkSamples);
-			System.out.println("Getting MF Predictions");
-			Map<Long, Map<Long, Double>> mfPredictions = getPredictions(userTraits, linkTraits, userLinkSamples);
-			System.out.println("Combining...");
-			Map<Long, Map<Long, Double>> predictions = combinePredictions(weightPredictions, mfPredictions);
-			System.out.println("Getting Connections");
-			Map<Long, Map<Long, Double>> connections = getConnections(userFeatureMatrix, userIdColumns, userFeatures, userLinkSamples);
-			
-			Double[][] userDerivative = new Double[K][Configuration.USER_FEATURE_COUNT];
-			HashMap<Long, Double[]> userIdDerivative = new HashMap<Long, Double[]>();
-			for (long userId : userLinkSamples.keySet()) {
-				userIdDerivative.put(userId, new Double[K]);
+			for (int s = sampleStart[u]; s < sampleStart[u + 1]; s++) {
+				featureStart[s] = indices.size();
+				addFeatureRow(modelUserIds[u], modelLinkIds[sampleLinks[s]], friends, indices, values);
 			}
-			
-			Double[][] linkDerivative = new Double[K][Configuration.LINK_FEATURE_COUNT];
-			HashMap<Long, Double[]> linkIdDerivative = new HashMap<Long, Double[]>();
-			for (long linkId : linkIdColumns.keySet()) {
-				linkIdDerivative.put(linkId, new Double[K]);
-			}
-			
-			Double[] weightDerivative = new Double[weights.length];
-			
-			System.out.println("Iterations: " + iterations);
+		}
+		featureStart[model.getSampleCount()] = indices.size();
 		
-			//Get user derivatives
-			
-			UserMFThread[] userThreads = new UserMFThread[K];
-			LinkMFThread[] linkThreads = new LinkMFThread[K];
-			UserIdThread[] userIdThreads = new UserIdThread[K];
-			LinkIdThread[] linkIdThreads = new LinkIdThread[K];
-			CBFThread[] cbfThreads = new CBFThread[K * 10];
-			
-			System.out.println("Starting threads");
-			long start = System.currentTimeMillis();
-			for (int k = 0; k < K; k++) {
-				userThreads[k] = new UserMFThread(k, linkTraits, connections, predictions, userDerivative, userIdDerivative, userLinkSamples, this);
-				userThreads[k].start();
-				userIdThreads[k] = new UserIdThread(k, linkTraits, connections, predictions, userDerivative, userIdDerivative, userLinkSamples, this);
-				userIdThreads[k].start();
-			}
-			
-			//Get link derivatives
-			for (int q = 0; q < K; q++) {
-				linkThreads[q] = new LinkMFThread(q, userTraits, predictions, linkDerivative, linkIdDerivative, linkIdColumns.keySet(), this);
-				linkThreads[q].start();
-				linkIdThreads[q] = new LinkIdThread(q, userTraits, predictions, linkDerivative, linkIdDerivative, linkIdColumns.keySet(), this);
-				linkIdThreads[q].start();
-			}
+		featureIndices = indices.toNativeArray();
+		featureValues = values.toNativeArray();
 		
-			//Get weight derivatives
-			for (int t = 0; t < cbfThreads.length; t++) {
-				int s = (weights.length / cbfThreads.length) * t;
-				int e = (weights.length / cbfThreads.length) * (t+1);
-				if (t == cbfThreads.length - 1) e = weights.length;
-				
-				cbfThreads[t] = new CBFThread(weightDerivative, s, e, featureMaps, predictions, this);
-				cbfThreads[t].start();
+		weightPredictions = new double[model.getSampleCount()];
+		weightDerivatives = new double[weights.length];
+		weightAccumulator = new GradientAccumulator(weights.length);
+		
+		return model;
+	}
+	
+	public void readDenseModel(DenseModel model)
+	{
+		super.readDenseModel(model);
+		
+		double[] variables = model.getVariables();
+		for (int w = 0; w < weights.length; w++) {
+			weights[w] = variables[model.extraIndex(w)];
+		}
+	}
+	
+	public void updatePredictions(DenseModel model)
+	{
+		model.updatePredictions();
+		
+		double[] variables = model.getVariables();
+		double[] predictions = model.getPredictions();
+		int weightOffset = model.extraIndex(0);
+		
+		for (int s = 0; s < predictions.length; s++) {
+			double prediction = 0;
+			for (int x = featureStart[s]; x < featureStart[s + 1]; x++) {
+				prediction += variables[weightOffset + featureIndices[x]] * featureValues[x];
 			}
 			
-			for (int k = 0; k < K; k++) {
-				try {
-					userThreads[k].join();
-					linkThreads[k].join();
-					userIdThreads[k].join();
-					linkIdThreads[k].join();
-				}
-				catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+			weightPredictions[s] = prediction;
+			predictions[s] = combinePrediction(prediction, predictions[s]);
+		}
+		
+		model.evaluateObjective(objective, GradientExecutor.getInstance());
+	}
+	
+	public double combinePrediction(double weightPrediction, double mfPrediction)
+	{
+		return weightPrediction + mfPrediction;
+	}
+	
+	public void updateDerivatives(final DenseModel model, GradientExecutor executor)
+	{
+		super.updateDerivatives(model, executor);
+		
+		//Scatter the weight derivatives by sample, then reduce them by weight range
+		executor.execute(model.getSampleCount(), new GradientTask() {
+			public void run(int start, int end) {
+				scatterWeightDerivatives(model, start, end, weightAccumulator.getBuffer());
 			}
-			for (int x = 0; x < cbfThreads.length; x++) {
-				try {	
-					cbfThreads[x].join();
-				}
-				catch (InterruptedException e) {
-					e.printStackTrace();
+		});
+		
+		executor.execute(weights.length, new WeightTask(model, this));
+	}
+	
+	/**
+	 * Indexes the columns of the one-hot features by id, so building a feature row doesn't scan userIds and linkIds.
+	 */
+	void setFeatureColumns()
+	{
+		userPositions = new TLongIntHashMap();
+		for (int x = 0; x < userIds.length; x++) {
+			userPositions.put((Long)userIds[x], x);
+		}
+		
+		linkPositions = new TLongIntHashMap();
+		for (int x = 0; x < linkIds.length; x++) {
+			linkPositions.put((Long)linkIds[x], x);
+		}
+		
+		likerPositions = null;
+		friendGraph = SocialGraph.fromFriendships(friendships);
+	}
+	
+	/**
+	 * Appends the hybrid features of a sample to a row in increasing column order: the combined user and link features,
+	 * the user's one-hot column, a column for every friend that liked the link and the link's one-hot column.
+	 * The friends that liked the link are the intersection of the link's likers with the friends, instead of a scan over every user.
+	 * 
+	 * @param userId
+	 * @param linkId
+	 * @param friends the user's friends, from getFriendLikers
+	 * @param indices
+	 * @param values
+	 */
+	public void addFeatureRow(long userId, long linkId, IntBitmap friends, TIntArrayList indices, TDoubleArrayList values)
+	{
+		double[] combined = combineFeatures(userFeatures.get(userId), linkFeatures.get(linkId));
+		
+		for (int x = 0; x < combined.length; x++) {
+			indices.add(x);
+			values.add(combined[x]);
+		}
+		
+		int self = userPositions.containsKey(userId) ? userPositions.get(userId) : -1;
+		if (self >= 0) {
+			indices.add(combined.length + self);
+			values.add(1);
+		}
+		
+		LikeIndex likeIndex = getLikeIndex();
+		int link = likeIndex.getLinkIndex(linkId);
+		
+		if (link >= 0 && !friends.isEmpty()) {
+			if (likerPositions == null) {
+				likerPositions = new int[likeIndex.getUserCount()];
+				for (int u = 0; u < likerPositions.length; u++) {
+					long uid = likeIndex.getUserId(u);
+					likerPositions[u] = userPositions.containsKey(uid) ? userPositions.get(uid) : -1;
 				}
 			}
-			System.out.println("Threads done: " + (System.currentTimeMillis() - start) / 1000);
 			
+			int[] likers = likeIndex.getLikers(link).and(friends).toArray();
+			int count = 0;
 			
-			double[] variables = new double[userVars + linkVars + weights.length];
-			System.out.println("Variables: " + variables.length);
-			
-			int index = 0;
-			
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.USER_FEATURE_COUNT; y++) {
-					variables[index++] = userFeatureMatrix[x][y];
-				}
-			}
-			for (Object id : userKeys) {
-				Long userId = (Long)id;
-				Double[] column = userIdColumns.get(userId);
-				for (double d : column) {
-					variables[index++] = d;
-				}
-			}
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.LINK_FEATURE_COUNT; y++) {
-					variables[index++] = linkFeatureMatrix[x][y];
-				}
-			}
-			for (Object id : linkKeys) {
-				Long linkId = (Long)id;
-				Double[] column = linkIdColumns.get(linkId);
-				for (double d : column) {
-					variables[index++] = d;
-				}
-			}
-			for (int x = 0; x < weights.length; x++) {
-				variables[index++] = weights[x];
-			}
-			
-			System.out.println("derivatives");
-			double[] derivatives = new double[userVars + linkVars + weights.length];
-			index = 0;
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.USER_FEATURE_COUNT; y++) {
-					derivatives[index++] = userDerivative[x][y];
-				}
-			}
-			for (Object id : userKeys) {
-				Long userId = (Long)id;
-				Double[] column = userIdDerivative.get(userId);
-				for (double d : column) {
-					derivatives[index++] = d;
-				}
-			}
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.LINK_FEATURE_COUNT; y++) {
-					derivatives[index++] = linkDerivative[x][y];
-				}
-			}
-			for (Object id : linkKeys) {
-				Long linkId = (Long)id;
-				Double[] column = linkIdDerivative.get(linkId);
-				for (double d : column) {
-					derivatives[index++] = d;
+			for (int x = 0; x < likers.length; x++) {
+				int position = likerPositions[likers[x]];
+				if (position >= 0 && position != self) {
+					likers[count++] = position;
 				}
 			}
-
-			for (int x = 0; x < weights.length; x++) {
-				//System.out.println("Foo " + x + " " + weights.length + ": " + weightDerivative);
-				//System.out.println("Ba: " + weightDerivative[x]);
-				
-				derivatives[index++] = weightDerivative[x];
-			}
-			
-			double error = getError(userFeatureMatrix, linkFeatureMatrix, userIdColumns, linkIdColumns, weights, predictions, connections);
-			
-			System.out.println("New Error: " + error);
-			System.out.println("");
-		
-			try {
-				LBFGS.lbfgs(variables.length, 5, variables, error, derivatives,
-						false, diag, iprint, convergence,
-						1e-15, iflag);
-			}
-			catch (LBFGS.ExceptionWithIflag f) {
-				f.printStackTrace();
-			}
+			Arrays.sort(likers, 0, count);
 			
-			System.out.println("Setting again");
-			index = 0;
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.USER_FEATURE_COUNT; y++) {
-					userFeatureMatrix[x][y] = variables[index++];
-				}
-			}
-			for (Object id : userKeys) {
-				Long userId = (Long)id;
-				Double[] column = userIdColumns.get(userId);
-				for (int d = 0; d < column.length; d++) {
-					column[d] = variables[index++];
-				}
-			}
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.LINK_FEATURE_COUNT; y++) {
-					linkFeatureMatrix[x][y] = variables[index++];
-				}
-			}
-			for (Object id : linkKeys) {
-				Long linkId = (Long)id;
-				Double[] column = linkIdColumns.get(linkId);
-				for (int d = 0; d < column.length; d++) {
-					column[d] = variables[index++];
-				}
-			}
-			for (int x = 0; x < weights.length; x++) {
-				weights[x] = variables[index++];
+			for (int x = 0; x < count; x++) {
+				indices.add(combined.length + userIds.length + likers[x]);
+				values.add(1);
 			}
-			
-			if (iflag[0] == 0 || Math.abs(oldError - error) < convergence) go = false;
+		}
 		
-			oldError = error;
+		if (linkPositions.containsKey(linkId)) {
+			indices.add(combined.length + userIds.length + userIds.length + linkPositions.get(linkId));
+			values.add(1);
 		}
 	}
 	
+	/**
+	 * The feature rows of the samples as maps of column to value, for the Map based objective methods.
+	 */
 	public Map<Long, Map<Long, Map<Integer, Double>>> getFeatureMaps(Map<Long, Set<Long>> trainSamples)
 	{
 		Map<Long, Map<Long, Map<Integer, Double>>> featureMaps = new HashMap<Long, Map<Long, Map<Integer, Double>>>();
+		TIntArrayList indices = new TIntArrayList();
+		TDoubleArrayList values = new TDoubleArrayList();
 		
 		for (long userId : trainSamples.keySet()) {
-			Set<Long> samples = trainSamples.get(userId);
-			Set<Long> userFriends;
-			if (friendships.containsKey(userId)) {
-				userFriends = friendships.get(userId).keySet();
-			}
-			else {
-				userFriends = new HashSet<Long>();
-			}
+			IntBitmap friends = getFriendLikers(friendGraph, userId);
 			
 			HashMap<Long, Map<Integer, Double>> userFeatureMaps = new HashMap<Long, Map<Integer, Double>>();
 			featureMaps.put(userId, userFeatureMaps);
 			
-			for (long linkId : samples) {
-				double[] combined = combineFeatures(userFeatures.get(userId), linkFeatures.get(linkId));
+			for (long linkId : trainSamples.get(userId)) {
+				indices.clear();
+				values.clear();
+				addFeatureRow(userId, linkId, friends, indices, values);
 				
 				Map<Integer, Double> featureMap = new HashMap<Integer, Double>();
-				
-				for (int x = 0; x < combined.length; x++) {
-					featureMap.put(x, combined[x]);
+				for (int x = 0; x < indices.size(); x++) {
+					featureMap.put(indices.get(x), values.get(x));
 				}
 				
-				for (int x = 0; x < userIds.length; x++) {
-					if (userIds[x].equals(userId)) {
-						featureMap.put(combined.length + x, 1d);
-					}
-					else if (userFriends.contains(userIds[x]) && linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(userIds[x])) {
-						featureMap.put(combined.length + userIds.length + x, 1d);
-					}
-				}
+				userFeatureMaps.put(linkId, featureMap);
+			}
+		}
+		
+		return featureMaps;
+	}
+	
+	/**
+	 * Weight predictions straight from the feature rows, without building feature maps.
+	 */
+	public Map<Long, Map<Long, Double>> getWeightPredictions(Double[] weightVector, Map<Long, Set<Long>> samples)
+	{
+		Map<Long, Map<Long, Double>> predictions = new HashMap<Long, Map<Long, Double>>();
+		TIntArrayList indices = new TIntArrayList();
+		TDoubleArrayList values = new TDoubleArrayList();
+		
+		for (long userId : samples.keySet()) {
+			IntBitmap friends = getFriendLikers(friendGraph, userId);
+			
+			Map<Long, Double> userPreds = new HashMap<Long, Double>();
+			predictions.put(userId, userPreds);
+			
+			for (long linkId : samples.get(userId)) {
+				indices.clear();
+				values.clear();
+				addFeatureRow(userId, linkId, friends, indices, values);
 				
-				for (int x = 0; x < linkIds.length; x++) {
-					if (linkIds[x].equals(linkId)) {
-						featureMap.put(combined.length + userIds.length + userIds.length + x, 1d);
-						break;
-					}
+				double prediction = 0;
+				for (int x = 0; x < indices.size(); x++) {
+					prediction += weightVector[indices.get(x)] * values.get(x);
 				}
 				
-				userFeatureMaps.put(linkId, featureMap);
+				userPreds.put(linkId, prediction);
 			}
 		}
 		
-		return featureMaps;
+		return predictions;
 	}
 	
 	public Map<Long, Map<Long, Double>> getPredictions(Double[] weightVector, Map<Long, Map<Long, Map<Integer, Double>>> featureMaps, Map<Long, Set<Long>> trainSamples)
@@ -382,16 +412,10 @@ public class HybridRecommender extends SocialRecommender
 	
 	public Map<Long, Map<Long, Double>> getPredictions(Map<Long, Set<Long>> testData)
 	{
-		
-		Map<Long, Double[]> userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
-		Map<Long, Double[]> linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
-		
-		System.out.println("Getting feature maps");
-		Map<Long, Map<Long, Map<Integer, Double>>> featureMaps = getFeatureMaps(testData);
 		System.out.println("Getting W Predictions");
-		Map<Long, Map<Long, Double>> weightPredictions = getPredictions(weights, featureMaps, testData);
+		Map<Long, Map<Long, Double>> weightPredictions = getWeightPredictions(weights, testData);
 		System.out.println("Getting MF Predictions");
-		Map<Long, Map<Long, Double>> mfPredictions = getPredictions(userTraits, linkTraits, testData);
+		Map<Long, Map<Long, Double>> mfPredictions = super.getPredictions(testData);
 		System.out.println("Combining...");
 		Map<Long, Map<Long, Double>> predictions = combinePredictions(weightPredictions, mfPredictions);
 	
@@ -602,6 +626,7 @@ public class HybridRecommender extends SocialRecommender
 			friendConnections = UserUtil.getFriendInteractionMeasure(trainSamples.keySet());
 			linkIds = allTestLinks.toArray();
 			userIds = trainSamples.keySet().toArray();
+			setFeatureColumns();
 			weights = new Double[linkIds.length + userIds.length + userIds.length + Configuration.USER_FEATURE_COUNT + Configuration.LINK_FEATURE_COUNT];
 			Random random = new Random();
 			for (int x = 0; x < weights.length; x++) {
@@ -617,4 +642,12 @@ public class HybridRecommender extends SocialRecommender
 			ex.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Predictions include the weighted hybrid features, so training stays on LBFGS.
+	 */
+	public Objective getSampleObjective()
+	{
+		return null;
+	}
 }
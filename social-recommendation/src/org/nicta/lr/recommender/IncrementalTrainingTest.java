@@ -0,0 +1,106 @@
+package org.nicta.lr.recommender;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.nicta.lr.util.Configuration;
+import org.nicta.lr.util.Constants;
+
+/**
+ * Checks that an incremental run after one user's likes changed keeps the column of a popular link that user sampled
+ * close to where full training put it, and leaves the columns of the unchanged users alone.
+ *
+ * Needs no database: java org.nicta.lr.recommender.IncrementalTrainingTest
+ */
+public class IncrementalTrainingTest
+{
+	public static void main(String[] args)
+		throws Exception
+	{
+		Configuration.SNAPSHOT_FOLDER = null;
+		Configuration.DEPLOYMENT_TYPE = Constants.TEST;
+		Configuration.INITIALIZE = true;
+		Configuration.INCREMENTAL_ATTRIBUTE_STEPS = 0;
+
+		Random random = new Random(7);
+		int userCount = 60;
+		int linkCount = 40;
+		long popular = 1000;
+
+		Map<Long, Double[]> userFeatures = new HashMap<Long, Double[]>();
+		for (long u = 0; u < userCount; u++) {
+			userFeatures.put(u, new Double[]{random.nextDouble(), random.nextDouble(), random.nextDouble()});
+		}
+
+		Map<Long, Double[]> linkFeatures = new HashMap<Long, Double[]>();
+		for (long l = popular; l < popular + linkCount; l++) {
+			linkFeatures.put(l, new Double[]{random.nextDouble(), random.nextDouble(), random.nextDouble()});
+		}
+
+		//Every user samples the popular link, and most of them like it
+		Map<Long, Set<Long>> linkLikes = new HashMap<Long, Set<Long>>();
+		Map<Long, Set<Long>> samples = new HashMap<Long, Set<Long>>();
+		for (long u = 0; u < userCount; u++) {
+			HashSet<Long> userSamples = new HashSet<Long>();
+			userSamples.add(popular);
+			if (u % 4 != 0) like(linkLikes, popular, u);
+
+			for (int s = 0; s < 8; s++) {
+				long linkId = popular + 1 + random.nextInt(linkCount - 1);
+				userSamples.add(linkId);
+				if (random.nextBoolean()) like(linkLikes, linkId, u);
+			}
+			samples.put(u, userSamples);
+		}
+
+		Configuration.INCREMENTAL_TRAINING = false;
+		FeatureRecommender recommender = new FeatureRecommender(linkLikes, userFeatures, linkFeatures);
+		recommender.train(samples);
+
+		Double[] trained = recommender.linkIdColumns.get(popular).clone();
+		Double[] unchangedUser = recommender.userIdColumns.get(1L).clone();
+
+		//As if the model was loaded from a snapshot, then user 0 (who didn't like the popular link) likes it
+		recommender.trainedFingerprints = recommender.getLikeFingerprints();
+		like(linkLikes, popular, 0);
+
+		Configuration.INCREMENTAL_TRAINING = true;
+		recommender.train(samples);
+
+		double change = 0;
+		double norm = 0;
+		for (int k = 0; k < trained.length; k++) {
+			double difference = recommender.linkIdColumns.get(popular)[k] - trained[k];
+			change += difference * difference;
+			norm += trained[k] * trained[k];
+		}
+		change = Math.sqrt(change / norm);
+		System.out.println("Relative change of the popular link's column: " + change);
+
+		check(change < 0.1, "the popular link's column moved by " + change);
+		for (int k = 0; k < unchangedUser.length; k++) {
+			check(unchangedUser[k].equals(recommender.userIdColumns.get(1L)[k]), "an unchanged user's column moved");
+		}
+
+		System.out.println("OK");
+	}
+
+	private static void like(Map<Long, Set<Long>> linkLikes, long linkId, long userId)
+	{
+		if (!linkLikes.containsKey(linkId)) {
+			linkLikes.put(linkId, new HashSet<Long>());
+		}
+		linkLikes.get(linkId).add(userId);
+	}
+
+	private static void check(boolean condition, String message)
+	{
+		if (!condition) {
+			System.out.println("FAIL: " + message);
+			System.exit(1);
+		}
+	}
+}
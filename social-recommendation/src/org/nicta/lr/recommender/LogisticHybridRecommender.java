@@ -35,6 +35,11 @@ public class LogisticHybridRecommender extends HybridRecommender
 		return predictions;
 	}
 	
+	public double combinePrediction(double weightPrediction, double mfPrediction)
+	{
+		return logistic(weightPrediction) + logistic(mfPrediction);
+	}
+	
 	public double logistic(double d)
 	{
 		return (double)1 / (1 + Math.exp(-d));
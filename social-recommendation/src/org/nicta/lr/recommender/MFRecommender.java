@@ -1,23 +1,26 @@
 package org.nicta.lr.recommender;
 
-import java.sql.PreparedStatement;
+import java.io.File;
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.Map;
 
-import org.nicta.lr.thread.LinkIdThread;
-import org.nicta.lr.thread.LinkMFThread;
-import org.nicta.lr.thread.UserIdThread;
-import org.nicta.lr.thread.UserMFThread;
+import org.nicta.lr.component.Objective;
+import org.nicta.lr.component.SocialRegularizer;
+import org.nicta.lr.thread.GradientExecutor;
+import org.nicta.lr.thread.LinkAttributeTask;
+import org.nicta.lr.thread.LinkIdTask;
+import org.nicta.lr.thread.UserAttributeTask;
+import org.nicta.lr.thread.UserIdTask;
 import org.nicta.lr.util.Configuration;
 import org.nicta.lr.util.SQLUtil;
+import org.nicta.lr.util.SocialGraph;
 import org.nicta.social.LBFGS;
 import org.nicta.social.LBFGS2;
 
@@ -38,6 +41,15 @@ public abstract class MFRecommender extends Recommender
 	Map<Long, Map<Long, Double>> friendConnections;
 	Random random = new Random();
 	
+	TraitCache userTraitCache;
+	TraitCache linkTraitCache;
+	
+	//Set when the model was loaded from a snapshot, for incremental training: the like fingerprints it was trained on,
+	//and the users and links that only got their columns when it was loaded
+	Map<Long, Long> trainedFingerprints;
+	Set<Long> newUsers = new HashSet<Long>();
+	Set<Long> newLinks = new HashSet<Long>();
+	
 	public MFRecommender(Map<Long, Set<Long>> linkLikes, Map<Long, Double[]> userFeatures, Map<Long, Double[]> linkFeatures, Map<Long, Map<Long, Double>> friendships)
 	{
 		super(linkLikes, userFeatures, linkFeatures, friendships);
@@ -50,11 +62,14 @@ public abstract class MFRecommender extends Recommender
 		linkFeatureMatrix = getPrior(Configuration.LINK_FEATURE_COUNT);
 		userIdColumns = getMatrixIdColumns(userFeatures.keySet());
 		linkIdColumns = getMatrixIdColumns(linkFeatures.keySet());
+		invalidateTraits();
 	}
 	
 	public void loadData()
 		throws SQLException
 	{
+		if (loadSnapshot()) return;
+		
 		userFeatureMatrix = loadFeatureMatrix("lrUserMatrix", Configuration.USER_FEATURE_COUNT, type);
 		linkFeatureMatrix = loadFeatureMatrix("lrLinkMatrix", Configuration.LINK_FEATURE_COUNT, type);
 		userIdColumns = loadIdColumns("lrUserMatrix", type);
@@ -62,6 +77,84 @@ public abstract class MFRecommender extends Recommender
 		
 		updateMatrixColumns(userFeatures.keySet(), userIdColumns);
 		updateMatrixColumns(linkFeatures.keySet(), linkIdColumns);
+		invalidateTraits();
+	}
+	
+	/**
+	 * Snapshot file for this recommender type, or null if snapshots are disabled.
+	 * 
+	 * @return
+	 */
+	public File getSnapshotFile()
+	{
+		if (Configuration.SNAPSHOT_FOLDER == null) return null;
+		
+		return new File(Configuration.SNAPSHOT_FOLDER, "lrModel-" + type + ".bin");
+	}
+	
+	/**
+	 * Loads the matrices and id columns from the binary snapshot of the last trained model, if there is one.
+	 * 
+	 * @return true if the model was loaded
+	 */
+	public boolean loadSnapshot()
+	{
+		File file = getSnapshotFile();
+		if (file == null || !file.exists()) return false;
+		
+		try {
+			ModelSnapshot snapshot = ModelSnapshot.open(file);
+			
+			if (snapshot.getK() != K) {
+				System.out.println("Snapshot has K=" + snapshot.getK() + ", expected " + K + ". Loading from the database instead.");
+				return false;
+			}
+			if (snapshot.getUserFeatureCount() != Configuration.USER_FEATURE_COUNT || snapshot.getLinkFeatureCount() != Configuration.LINK_FEATURE_COUNT) {
+				System.out.println("Snapshot has " + snapshot.getUserFeatureCount() + " user and " + snapshot.getLinkFeatureCount() + " link features, expected " 
+									+ Configuration.USER_FEATURE_COUNT + " and " + Configuration.LINK_FEATURE_COUNT + ". Loading from the database instead.");
+				return false;
+			}
+			
+			System.out.println("Loading snapshot " + file);
+			userFeatureMatrix = snapshot.getUserFeatureMatrix();
+			linkFeatureMatrix = snapshot.getLinkFeatureMatrix();
+			userIdColumns = snapshot.getUserIdColumns();
+			linkIdColumns = snapshot.getLinkIdColumns();
+			trainedFingerprints = snapshot.getLikeFingerprints();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		
+		newUsers = getMissingIds(userFeatures.keySet(), userIdColumns);
+		newLinks = getMissingIds(linkFeatures.keySet(), linkIdColumns);
+		int linkCount = linkIdColumns.size();
+		
+		updateMatrixColumns(userFeatures.keySet(), userIdColumns);
+		updateMatrixColumns(linkFeatures.keySet(), linkIdColumns);
+		invalidateTraits();
+		
+		System.out.println("New users: " + newUsers.size() + ", new links: " + newLinks.size() 
+							+ ", expired links: " + (linkCount + newLinks.size() - linkIdColumns.size()));
+		
+		return true;
+	}
+	
+	/**
+	 * Writes the current model to the binary snapshot, if snapshots are enabled.
+	 */
+	public void saveSnapshot()
+	{
+		File file = getSnapshotFile();
+		if (file == null) return;
+		
+		try {
+			ModelSnapshot.write(file, K, userFeatureMatrix, linkFeatureMatrix, userIdColumns, linkIdColumns, getLikeFingerprints(), false);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 	
 	/**
@@ -86,149 +179,194 @@ public abstract class MFRecommender extends Recommender
 	
 	public void minimizeByThreadedLBFGS(Map<Long, Set<Long>> userLinkSamples)
 	{
-		boolean go = true;	
-		int iterations = 0;
+		if (Configuration.INCREMENTAL_TRAINING && canTrainIncrementally()) {
+			minimizeIncrementally(userLinkSamples);
+			return;
+		}
 		
-		int userVars = K * (Configuration.USER_FEATURE_COUNT + userLinkSamples.size());
-		int linkVars = K * (Configuration.LINK_FEATURE_COUNT + linkFeatures.size());
+		//The optimiser works directly on the model's variable array, the matrices and id columns are only updated once training is done
+		DenseModel model = getDenseModel(userLinkSamples);
+		optimize(model, Integer.MAX_VALUE);
 		
-		Object[] userKeys = userLinkSamples.keySet().toArray();
-		Object[] linkKeys = linkFeatures.keySet().toArray();
+		System.out.println("Setting again");
+		readDenseModel(model);
+	}
+	
+	/**
+	 * Trains the model's variables with the configured optimiser: stochastic epochs when Configuration.STOCHASTIC_TRAINING
+	 * is set and the recommender has a per sample objective, alternating least squares when Configuration.ALS_TRAINING is
+	 * set and the objective allows it, LBFGS otherwise. maxIterations counts epochs or ALS sweeps for the former two.
+	 * 
+	 * @param model
+	 * @param maxIterations
+	 */
+	public void optimize(DenseModel model, int maxIterations)
+	{
+		if (Configuration.STOCHASTIC_TRAINING && getSampleObjective() != null) {
+			minimizeStochastically(model, Math.min(maxIterations, Configuration.SGD_MAX_EPOCHS));
+		}
+		else if (Configuration.ALS_TRAINING && canSolveByLeastSquares()) {
+			minimizeByAlternatingLeastSquares(model, Math.min(maxIterations, Configuration.ALS_MAX_ITERATIONS));
+		}
+		else {
+			minimize(model, maxIterations);
+		}
+	}
+	
+	/**
+	 * The id columns have closed form solutions for the squared loss Objective, with no social term or the s_i.s_j one.
+	 * 
+	 * @return
+	 */
+	public boolean canSolveByLeastSquares()
+	{
+		Objective objective = getSampleObjective();
+		SocialRegularizer regularizer = getSocialRegularizer();
 		
-		int[] iprint = {0,0};
-		int[] iflag = {0};
-		double[] diag = new double[userVars + linkVars];
+		return objective != null && objective.getClass() == Objective.class 
+				&& (regularizer == null || regularizer.getClass() == SocialRegularizer.class);
+	}
+	
+	/**
+	 * Alternates between solving every user id column, every link id column and a few LBFGS steps on the attribute
+	 * matrices with the id columns frozen, until the error changes by less than the convergence threshold or
+	 * maxIterations sweeps are done.
+	 * 
+	 * @param model
+	 * @param maxIterations
+	 */
+	public void minimizeByAlternatingLeastSquares(DenseModel model, int maxIterations)
+	{
+		AlternatingLeastSquares als = new AlternatingLeastSquares(model, getSocialRegularizer(), getSocialWeight(), lambda);
+		GradientExecutor executor = GradientExecutor.getInstance();
 		
-		for (int x = 0; x < diag.length; x++) {
-			diag[x] = 0;
-		}
+		boolean[] frozen = model.getFrozen();
+		boolean trainAttributes = frozen == null || !frozen[model.userMatrixIndex(0, 0)];
 		
 		double oldError = Double.MAX_VALUE;
 		
-		while (go) {
-			iterations++;
-			
-			Map<Long, Double[]> userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
+		for (int iteration = 1; iteration <= maxIterations; iteration++) {
+			long start = System.currentTimeMillis();
 			
-			Map<Long, Double[]> linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
-
-			System.out.println("Getting Connections");
-			Map<Long, Map<Long, Double>> connections = getConnections(userFeatureMatrix, userIdColumns, userFeatures, userLinkSamples);
-			System.out.println("Getting Predictions");
-			Map<Long, Map<Long, Double>> predictions = getPredictions(userTraits, linkTraits, userLinkSamples);
+			als.solveUsers(executor);
+			als.solveLinks(executor);
 			
-			Double[][] userDerivative = new Double[K][Configuration.USER_FEATURE_COUNT];
-			HashMap<Long, Double[]> userIdDerivative = new HashMap<Long, Double[]>();
-			for (long userId : userLinkSamples.keySet()) {
-				userIdDerivative.put(userId, new Double[K]);
+			if (trainAttributes && Configuration.ALS_ATTRIBUTE_STEPS > 0) {
+				model.restrictTraining(true, new HashSet<Long>(), new HashSet<Long>());
+				minimize(model, Configuration.ALS_ATTRIBUTE_STEPS);
+				model.setFrozen(frozen);
 			}
 			
-			Double[][] linkDerivative = new Double[K][Configuration.LINK_FEATURE_COUNT];
-			HashMap<Long, Double[]> linkIdDerivative = new HashMap<Long, Double[]>();
-			for (long linkId : linkIdColumns.keySet()) {
-				linkIdDerivative.put(linkId, new Double[K]);
-			}
-			
-			System.out.println("Iterations: " + iterations);
-		
-			//Get user derivatives
+			model.updateTraits();
+			updateConnections(model);
+			updatePredictions(model);
 			
-			UserMFThread[] userThreads = new UserMFThread[K];
-			LinkMFThread[] linkThreads = new LinkMFThread[K];
-			UserIdThread[] userIdThreads = new UserIdThread[K];
-			LinkIdThread[] linkIdThreads = new LinkIdThread[K];
+			double error = getError(model);
+			System.out.println("ALS iteration: " + iteration + " Error: " + error + " (" + (System.currentTimeMillis() - start) / 1000 + "s)");
 			
-			System.out.println("Starting threads");
+			if (Math.abs(oldError - error) < convergence) break;
+			oldError = error;
+		}
+	}
+	
+	/**
+	 * Runs StochasticOptimizer epochs on the model's variables until the error, evaluated with getError after every
+	 * epoch, changes by less than the convergence threshold or maxEpochs is reached.
+	 * 
+	 * @param model
+	 * @param maxEpochs
+	 */
+	public void minimizeStochastically(DenseModel model, int maxEpochs)
+	{
+		StochasticOptimizer optimizer = new StochasticOptimizer(model, getSampleObjective(), getSocialRegularizer(), getSocialWeight(), 
+																	lambda, Configuration.SGD_LEARNING_RATE);
+		System.out.println("Variables: " + model.getVariables().length);
+		
+		double oldError = Double.MAX_VALUE;
+		
+		for (int epoch = 1; epoch <= maxEpochs; epoch++) {
 			long start = System.currentTimeMillis();
-			for (int k = 0; k < K; k++) {
-				userThreads[k] = new UserMFThread(k, linkTraits, connections, predictions, userDerivative, userIdDerivative, userLinkSamples, this);
-				userThreads[k].start();
-				userIdThreads[k] = new UserIdThread(k, linkTraits, connections, predictions, userDerivative, userIdDerivative, userLinkSamples, this);
-				userIdThreads[k].start();
-			}
-			
-			//Get link derivatives
-			for (int q = 0; q < K; q++) {
-				linkThreads[q] = new LinkMFThread(q, userTraits, predictions, linkDerivative, linkIdDerivative, linkIdColumns.keySet(), this);
-				linkThreads[q].start();
-				linkIdThreads[q] = new LinkIdThread(q, userTraits, predictions, linkDerivative, linkIdDerivative, linkIdColumns.keySet(), this);
-				linkIdThreads[q].start();
-			}
-		
-			for (int k = 0; k < K; k++) {
-				try {
-					userThreads[k].join();
-					linkThreads[k].join();
-					userIdThreads[k].join();
-					linkIdThreads[k].join();
-				}
-				catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-			System.out.println("Threads done: " + (System.currentTimeMillis() - start) / 1000);
+			optimizer.runEpoch(GradientExecutor.getInstance(), random);
 			
+			model.updateTraits();
+			updateConnections(model);
+			updatePredictions(model);
 			
-			double[] variables = new double[userVars + linkVars];
-			System.out.println("Variables: " + variables.length);
+			double error = getError(model);
+			System.out.println("Epoch: " + epoch + " Error: " + error + " (" + (System.currentTimeMillis() - start) / 1000 + "s)");
 			
-			int index = 0;
+			if (Math.abs(oldError - error) < convergence) break;
+			oldError = error;
+		}
+	}
+	
+	/**
+	 * Loss over a single prediction, for stochastic training. Null when the objective doesn't decompose over the
+	 * (user, link) samples of a plain s_u.t_l prediction, which keeps the recommender on LBFGS.
+	 * 
+	 * @return
+	 */
+	public Objective getSampleObjective()
+	{
+		return null;
+	}
+	
+	/**
+	 * Social regularizer evaluated on the model's edges, or null.
+	 * 
+	 * @return
+	 */
+	public SocialRegularizer getSocialRegularizer()
+	{
+		return null;
+	}
+	
+	public double getSocialWeight()
+	{
+		return 0;
+	}
+	
+	/**
+	 * Runs LBFGS on the model's variables until it converges or maxIterations is reached. Variables frozen with
+	 * DenseModel.restrictTraining keep their values.
+	 * 
+	 * @param model
+	 * @param maxIterations
+	 */
+	public void minimize(DenseModel model, int maxIterations)
+	{
+		boolean go = true;	
+		int iterations = 0;
+		
+		double[] variables = model.getVariables();
+		double[] derivatives = model.getDerivatives();
+		System.out.println("Variables: " + variables.length);
+		
+		int[] iprint = {0,0};
+		int[] iflag = {0};
+		double[] diag = new double[variables.length];
+		
+		double oldError = Double.MAX_VALUE;
+		
+		while (go) {
+			iterations++;
 			
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.USER_FEATURE_COUNT; y++) {
-					variables[index++] = userFeatureMatrix[x][y];
-				}
-			}
-			for (Object id : userKeys) {
-				Long userId = (Long)id;
-				Double[] column = userIdColumns.get(userId);
-				for (double d : column) {
-					variables[index++] = d;
-				}
-			}
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.LINK_FEATURE_COUNT; y++) {
-					variables[index++] = linkFeatureMatrix[x][y];
-				}
-			}
-			for (Object id : linkKeys) {
-				Long linkId = (Long)id;
-				Double[] column = linkIdColumns.get(linkId);
-				for (double d : column) {
-					variables[index++] = d;
-				}
-			}
+			model.updateTraits();
 			
+			System.out.println("Getting Connections");
+			updateConnections(model);
+			System.out.println("Getting Predictions");
+			updatePredictions(model);
 			
-			System.out.println("derivatives");
-			double[] derivatives = new double[userVars + linkVars];
-			index = 0;
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.USER_FEATURE_COUNT; y++) {
-					derivatives[index++] = userDerivative[x][y];
-				}
-			}
-			for (Object id : userKeys) {
-				Long userId = (Long)id;
-				Double[] column = userIdDerivative.get(userId);
-				for (double d : column) {
-					derivatives[index++] = d;
-				}
-			}
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.LINK_FEATURE_COUNT; y++) {
-					derivatives[index++] = linkDerivative[x][y];
-				}
-			}
-			for (Object id : linkKeys) {
-				Long linkId = (Long)id;
-				Double[] column = linkIdDerivative.get(linkId);
-				for (double d : column) {
-					derivatives[index++] = d;
-				}
-			}
+			System.out.println("Iterations: " + iterations);
+		
+			System.out.println("Getting derivatives");
+			long start = System.currentTimeMillis();
+			updateDerivatives(model, GradientExecutor.getInstance());
+			model.maskDerivatives();
+			System.out.println("Derivatives done: " + (System.currentTimeMillis() - start) / 1000);
 			
-			double error = getError(userFeatureMatrix, linkFeatureMatrix, userIdColumns, linkIdColumns, predictions, connections);
+			double error = getError(model);
 			
 			System.out.println("New Error: " + error);
 			System.out.println("");
@@ -242,37 +380,270 @@ public abstract class MFRecommender extends Recommender
 				f.printStackTrace();
 			}
 			
-			System.out.println("Setting again");
-			index = 0;
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.USER_FEATURE_COUNT; y++) {
-					userFeatureMatrix[x][y] = variables[index++];
-				}
+			if (iflag[0] == 0 || Math.abs(oldError - error) < convergence || iterations >= maxIterations) go = false;
+		
+			oldError = error;
+		}
+	}
+	
+	/**
+	 * Incremental training needs a model loaded from a snapshot that has like fingerprints. The hybrid weights are
+	 * not in the snapshot, so recommenders with extra variables always train from scratch.
+	 * 
+	 * @return
+	 */
+	public boolean canTrainIncrementally()
+	{
+		return trainedFingerprints != null && getExtraVariableCount() == 0;
+	}
+	
+	/**
+	 * Warm start retraining of a model loaded from a snapshot. Only users that are new, whose likes changed since the
+	 * snapshot or that have samples on new links are retrained, together with the columns of the links they sampled;
+	 * everything else stays as loaded. Those links are solved against the samples of every user that sampled them, with
+	 * the columns of the unchanged users frozen, so a popular link keeps the evidence of its other users. The attribute
+	 * matrices are then moved by a few LBFGS steps over all samples with every id column frozen. Links that fell out of
+	 * the window were already dropped when the model was loaded.
+	 * 
+	 * @param userLinkSamples
+	 */
+	public void minimizeIncrementally(Map<Long, Set<Long>> userLinkSamples)
+	{
+		Map<Long, Long> fingerprints = getLikeFingerprints();
+		
+		HashMap<Long, Set<Long>> changedSamples = new HashMap<Long, Set<Long>>();
+		HashSet<Long> changedLinks = new HashSet<Long>(newLinks);
+		
+		for (long userId : userLinkSamples.keySet()) {
+			Set<Long> samples = userLinkSamples.get(userId);
+			
+			boolean changed = newUsers.contains(userId) || getFingerprint(fingerprints, userId) != getFingerprint(trainedFingerprints, userId);
+			for (long linkId : samples) {
+				if (changed) break;
+				if (newLinks.contains(linkId)) changed = true;
 			}
-			for (Object id : userKeys) {
-				Long userId = (Long)id;
-				Double[] column = userIdColumns.get(userId);
-				for (int d = 0; d < column.length; d++) {
-					column[d] = variables[index++];
-				}
+			
+			if (changed) {
+				changedSamples.put(userId, samples);
+				changedLinks.addAll(samples);
 			}
-			for (int x = 0; x < K; x++) {
-				for (int y = 0; y < Configuration.LINK_FEATURE_COUNT; y++) {
-					linkFeatureMatrix[x][y] = variables[index++];
+		}
+		
+		System.out.println("Incremental training: " + changedSamples.size() + " of " + userLinkSamples.size() + " users, " 
+							+ changedLinks.size() + " links");
+		
+		if (changedSamples.size() > 0) {
+			HashMap<Long, Set<Long>> linkedSamples = new HashMap<Long, Set<Long>>();
+			for (long userId : userLinkSamples.keySet()) {
+				Set<Long> samples = userLinkSamples.get(userId);
+				if (changedSamples.containsKey(userId)) {
+					linkedSamples.put(userId, samples);
+					continue;
 				}
-			}
-			for (Object id : linkKeys) {
-				Long linkId = (Long)id;
-				Double[] column = linkIdColumns.get(linkId);
-				for (int d = 0; d < column.length; d++) {
-					column[d] = variables[index++];
+				
+				for (long linkId : samples) {
+					if (changedLinks.contains(linkId)) {
+						linkedSamples.put(userId, samples);
+						break;
+					}
 				}
 			}
 			
-			if (iflag[0] == 0 || Math.abs(oldError - error) < convergence) go = false;
+			DenseModel model = getDenseModel(linkedSamples);
+			model.restrictTraining(false, changedSamples.keySet(), changedLinks);
+			optimize(model, Integer.MAX_VALUE);
+			readDenseModel(model);
+		}
 		
-			oldError = error;
+		if (Configuration.INCREMENTAL_ATTRIBUTE_STEPS > 0) {
+			System.out.println("Attribute matrix steps");
+			DenseModel model = getDenseModel(userLinkSamples);
+			model.restrictTraining(true, new HashSet<Long>(), new HashSet<Long>());
+			optimize(model, Configuration.INCREMENTAL_ATTRIBUTE_STEPS);
+			readDenseModel(model);
+		}
+		
+		//The next incremental run is relative to this one
+		trainedFingerprints = fingerprints;
+		newUsers.clear();
+		newLinks.clear();
+	}
+	
+	/**
+	 * Per user fingerprint of the links in the training window the user liked: a sum of mixed link ids, so it
+	 * doesn't depend on order and changes whenever a like is added or a liked link expires.
+	 * 
+	 * @return
+	 */
+	public Map<Long, Long> getLikeFingerprints()
+	{
+		HashMap<Long, Long> fingerprints = new HashMap<Long, Long>();
+		
+		for (long linkId : linkLikes.keySet()) {
+			if (!linkFeatures.containsKey(linkId)) continue;
+			
+			long mixed = mix(linkId);
+			for (long userId : linkLikes.get(linkId)) {
+				Long fingerprint = fingerprints.get(userId);
+				fingerprints.put(userId, fingerprint == null ? mixed : fingerprint + mixed);
+			}
+		}
+		
+		return fingerprints;
+	}
+	
+	private static long getFingerprint(Map<Long, Long> fingerprints, long userId)
+	{
+		Long fingerprint = fingerprints.get(userId);
+		return fingerprint != null ? fingerprint : 0;
+	}
+	
+	/**
+	 * 64 bit finalizer of MurmurHash3, so sums of different id sets rarely collide.
+	 */
+	private static long mix(long id)
+	{
+		id ^= id >>> 33;
+		id *= 0xff51afd7ed558ccdL;
+		id ^= id >>> 33;
+		id *= 0xc4ceb9fe1a85ec53L;
+		id ^= id >>> 33;
+		
+		return id;
+	}
+	
+	/**
+	 * Ids that have no column yet.
+	 */
+	private static Set<Long> getMissingIds(Set<Long> ids, Map<Long, Double[]> idColumns)
+	{
+		HashSet<Long> missing = new HashSet<Long>();
+		for (long id : ids) {
+			if (!idColumns.containsKey(id)) missing.add(id);
+		}
+		
+		return missing;
+	}
+	
+	/**
+	 * Builds the dense training model for the samples and copies the current parameters into it.
+	 * 
+	 * @param userLinkSamples
+	 * @return
+	 */
+	public DenseModel getDenseModel(Map<Long, Set<Long>> userLinkSamples)
+	{
+		DenseModel model = new DenseModel(K, Configuration.USER_FEATURE_COUNT, Configuration.LINK_FEATURE_COUNT, userLinkSamples, 
+											userFeatures, linkFeatures, linkLikes, getExtraVariableCount());
+		model.readParameters(userFeatureMatrix, userIdColumns, linkFeatureMatrix, linkIdColumns);
+		
+		if (friendConnections != null) {
+			if (Configuration.SPARSE_SOCIAL) {
+				model.setFriendEdges(SocialGraph.fromFriendships(friendConnections), Configuration.SOCIAL_NEGATIVE_SAMPLES, random);
+			}
+			else {
+				model.setFriendConnections(friendConnections);
+			}
 		}
+		
+		return model;
+	}
+	
+	/**
+	 * Number of variables trained on top of the matrices and id columns.
+	 * 
+	 * @return
+	 */
+	public int getExtraVariableCount()
+	{
+		return 0;
+	}
+	
+	/**
+	 * Copies the trained variables back into the matrices and id columns.
+	 * 
+	 * @param model
+	 */
+	public void readDenseModel(DenseModel model)
+	{
+		model.writeParameters(userFeatureMatrix, userIdColumns, linkFeatureMatrix, linkIdColumns);
+		invalidateTraits();
+	}
+	
+	/**
+	 * Marks the cached trait vectors stale. Must be called whenever the matrices or id columns are replaced or trained.
+	 */
+	public void invalidateTraits()
+	{
+		if (userTraitCache != null) userTraitCache.invalidate();
+		if (linkTraitCache != null) linkTraitCache.invalidate();
+	}
+	
+	/**
+	 * Trait vectors of every user with features, recomputed only if the parameters changed since the last call.
+	 * 
+	 * @return
+	 */
+	public TraitCache getUserTraitCache()
+	{
+		if (userTraitCache == null) {
+			userTraitCache = new TraitCache(K);
+		}
+		userTraitCache.refresh(userFeatureMatrix, userIdColumns, userFeatures);
+		
+		return userTraitCache;
+	}
+	
+	/**
+	 * Trait vectors of every link with features, recomputed only if the parameters changed since the last call.
+	 * 
+	 * @return
+	 */
+	public TraitCache getLinkTraitCache()
+	{
+		if (linkTraitCache == null) {
+			linkTraitCache = new TraitCache(K);
+		}
+		linkTraitCache.refresh(linkFeatureMatrix, linkIdColumns, linkFeatures);
+		
+		return linkTraitCache;
+	}
+	
+	/**
+	 * Predicted connections over the social edges of the model, only needed when there are friendships to regularize against.
+	 * 
+	 * @param model
+	 */
+	public void updateConnections(DenseModel model)
+	{
+		double[] connections = model.getConnections();
+		if (connections == null) return;
+		
+		int[] users1 = model.getEdgeUsers1();
+		int[] users2 = model.getEdgeUsers2();
+		
+		for (int e = 0; e < connections.length; e++) {
+			connections[e] = predictConnection(model, users1[e], users2[e]);
+		}
+	}
+	
+	public void updatePredictions(DenseModel model)
+	{
+		model.updatePredictions();
+	}
+	
+	/**
+	 * Fills the model's derivative array, split across the executor's workers by matrix cells, users and links.
+	 * 
+	 * @param model
+	 * @param executor
+	 */
+	public void updateDerivatives(DenseModel model, GradientExecutor executor)
+	{
+		executor.execute(K * Configuration.USER_FEATURE_COUNT, new UserAttributeTask(model, this));
+		executor.execute(model.getUserCount(), new UserIdTask(model, this));
+		executor.execute(K * Configuration.LINK_FEATURE_COUNT, new LinkAttributeTask(model, this));
+		executor.execute(model.getLinkCount(), new LinkIdTask(model, this));
 	}
 	
 	/**
@@ -378,22 +749,25 @@ public abstract class MFRecommender extends Recommender
 	{
 		HashMap<Long, Map<Long, Double>> predictions = new HashMap<Long, Map<Long, Double>>();
 		
-		Map<Long, Double[]> userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
-		Map<Long, Double[]> linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
+		TraitCache userTraits = getUserTraitCache();
+		TraitCache linkTraits = getLinkTraitCache();
 		
 		for (long userId : testData.keySet()) {
 			HashMap<Long, Double> userPredictions = new HashMap<Long, Double>();
 			predictions.put(userId, userPredictions);
 			
 			Set<Long> links = testData.get(userId);
+			int user = userTraits.getIndex(userId);
 			
 			for (long j : links) {
+				int link = linkTraits.getIndex(j);
+				
 				double prediction;
-				if (!linkTraits.containsKey(j)) {
+				if (user == -1 || link == -1) {
 					prediction = 0;
 				}
 				else {
-					prediction = dot(userTraits.get(userId), linkTraits.get(j));
+					prediction = userTraits.dot(user, linkTraits, link);
 				}
 				
 				userPredictions.put(j, prediction);
@@ -417,6 +791,20 @@ public abstract class MFRecommender extends Recommender
 	
 	public abstract double getErrorDerivativeOverLinkId(Map<Long, Double[]> userTraits, Map<Long, Map<Long, Double>> predictions, int x, long linkId);
 	
+	/*
+	 * Dense equivalents of the above, working on the model's variables, traits and predictions. Users and links are the model's dense indices.
+	 */
+	
+	public abstract double getError(DenseModel model);
+	
+	public abstract double getErrorDerivativeOverUserAttribute(DenseModel model, int x, int y);
+	
+	public abstract double getErrorDerivativeOverUserId(DenseModel model, int k, int user);
+	
+	public abstract double getErrorDerivativeOverLinkAttribute(DenseModel model, int x, int y);
+	
+	public abstract double getErrorDerivativeOverLinkId(DenseModel model, int x, int link);
+	
 	public void checkDerivative(Map<Long, Set<Long>> userLinkSamples)
 	{	
 		System.out.println("Checking... link id");
@@ -633,6 +1021,8 @@ public abstract class MFRecommender extends Recommender
 			Map<Long, Double[]> userFeatures,
 			long i, long j);
 	
+	public abstract double predictConnection(DenseModel model, int i, int j);
+	
 	
 	/**
 	 * Save the trained matrices into the database.
@@ -647,12 +1037,36 @@ public abstract class MFRecommender extends Recommender
 	 */
 	public void saveModel()
 		throws SQLException
+	{
+		//The deletes and both tables' rows are one transaction, so a failed save leaves the previous model in place
+		try {
+			writeModel();
+			SQLUtil.commit();
+		}
+		catch (SQLException e) {
+			SQLUtil.rollback();
+			throw e;
+		}
+		
+		saveSnapshot();
+	}
+	
+	/**
+	 * Replaces the stored matrices of this type, without committing.
+	 * 
+	 * @throws SQLException
+	 */
+	private void writeModel()
+		throws SQLException
 	{
 		Statement statement = SQLUtil.getStatement();
 		statement.executeUpdate("DELETE FROM lrUserMatrix WHERE type='" + type + "'");
 		statement.executeUpdate("DELETE FROM lrLinkMatrix WHERE type='" + type + "'");
 		statement.executeUpdate("DELETE FROM lrWordColumns WHERE type='" + type + "'");
 		
+		SQLUtil.BatchWriter userInsert = SQLUtil.getBatchWriter("INSERT INTO lrUserMatrix VALUES(?,?,?)");
+		SQLUtil.BatchWriter linkInsert = SQLUtil.getBatchWriter("INSERT INTO lrLinkMatrix VALUES(?,?,?)");
+		
 		for (int x = 0; x < K; x++) {
 			StringBuilder userBuf = new StringBuilder();
 			for (int y = 0; y < Configuration.USER_FEATURE_COUNT; y++) {
@@ -666,19 +1080,8 @@ public abstract class MFRecommender extends Recommender
 				linkBuf.append(",");
 			}
 			
-			PreparedStatement userInsert = SQLUtil.prepareStatement("INSERT INTO lrUserMatrix VALUES(?,?,?)");
-			userInsert.setLong(1, x);
-			userInsert.setString(2, userBuf.toString());
-			userInsert.setString(3, type);
-			userInsert.executeUpdate();
-			userInsert.close();
-			
-			PreparedStatement linkInsert = SQLUtil.prepareStatement("INSERT INTO lrLinkMatrix VALUES(?,?,?)");
-			linkInsert.setLong(1, x);
-			linkInsert.setString(2, linkBuf.toString());
-			linkInsert.setString(3, type);
-			linkInsert.executeUpdate();
-			linkInsert.close();
+			userInsert.add((long)x, userBuf.toString(), type);
+			linkInsert.add((long)x, linkBuf.toString(), type);
 		}
 		
 		//Save the id column values as a CSV string
@@ -691,12 +1094,7 @@ public abstract class MFRecommender extends Recommender
 				buf.append(",");
 			}
 			
-			PreparedStatement userInsert = SQLUtil.prepareStatement("INSERT INTO lrUserMatrix VALUES(?,?,?)");
-			userInsert.setLong(1, userId);
-			userInsert.setString(2, buf.toString());
-			userInsert.setString(3, type);
-			userInsert.executeUpdate();
-			userInsert.close();
+			userInsert.add(userId, buf.toString(), type);
 		}
 		
 		for (long linkId : linkIdColumns.keySet()) {
@@ -708,13 +1106,11 @@ public abstract class MFRecommender extends Recommender
 				buf.append(",");
 			}
 			
-			PreparedStatement linkInsert = SQLUtil.prepareStatement("INSERT INTO lrLinkMatrix VALUES(?,?,?)");
-			linkInsert.setLong(1, linkId);
-			linkInsert.setString(2, buf.toString());
-			linkInsert.setString(3, type);
-			linkInsert.executeUpdate();
-			linkInsert.close();
+			linkInsert.add(linkId, buf.toString(), type);
 		}
+		
+		userInsert.close();
+		linkInsert.close();
 	}
 	
 	
@@ -749,44 +1145,37 @@ public abstract class MFRecommender extends Recommender
 		}
 		Map<Long, Double[]> newColumns = getMatrixIdColumns(columnsToAdd);
 		idColumns.putAll(newColumns);
+		
+		//Only the rows of the changed columns need new trait vectors
+		TraitCache cache = null;
+		if (idColumns == userIdColumns) cache = userTraitCache;
+		else if (idColumns == linkIdColumns) cache = linkTraitCache;
+		
+		if (cache != null) {
+			cache.invalidate(columnsToRemove);
+			cache.invalidate(newColumns.keySet());
+		}
 	}
 
 	public Map<Long, Double> recommendForUser(Long userId, Set<Long> possibleLinks, int numberOfLinks)
 	{
-		Map<Long, Double> recommendations = new HashMap<Long, Double>();
-		Map<Long, Double[]> userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
-		Map<Long, Double[]> linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
+		TopNSelector selector = new TopNSelector(numberOfLinks);
+		TraitCache userTraits = getUserTraitCache();
+		TraitCache linkTraits = getLinkTraitCache();
+		
+		int user = userTraits.getIndex(userId);
+		if (user == -1) return selector.toMap();
 		
 		for (long linkId : possibleLinks) {
-			if (!linkTraits.containsKey(linkId)) continue;
+			int link = linkTraits.getIndex(linkId);
+			if (link == -1) continue;
 			
-			double prediction = dot(userTraits.get(userId), linkTraits.get(linkId));
+			double prediction = userTraits.dot(user, linkTraits, link);
 		
-			//If the recommended links are more than the max number, recommend only the highest scoring links.
-			if (recommendations.size() < numberOfLinks) {
-				recommendations.put(linkId, prediction);
-			}
-			else {
-				//Get the lowest scoring recommended link and replace it with the current link
-				//if this one has a better score.
-				long lowestKey = 0;
-				double lowestValue = Double.MAX_VALUE;
-					
-				for (long id : recommendations.keySet()) {
-					if (recommendations.get(id) < lowestValue) {
-						lowestKey = id;
-						lowestValue = recommendations.get(id);
-					}
-				}
-					
-				if (prediction > lowestValue) {
-					recommendations.remove(lowestKey);
-					recommendations.put(linkId, prediction);
-				}
-			}
+			selector.offer(linkId, prediction);
 		}
 		
-		return recommendations;
+		return selector.toMap();
 	}
 	
 	public Map<Long, Map<Long, Double>> recommend(Map<Long, Set<Long>> linksToRecommend)
@@ -800,51 +1189,9 @@ public abstract class MFRecommender extends Recommender
 			}
 		}
 		
-		Map<Long, Map<Long, Double>> recommendations = new HashMap<Long, Map<Long, Double>>();
-		
-		Map<Long, Double[]> userTraits = getUserTraitVectors(userFeatureMatrix, userIdColumns, userFeatures);
-		Map<Long, Double[]> linkTraits = getLinkTraitVectors(linkFeatureMatrix, linkIdColumns, linkFeatures);
-		
-		for (long userId :linksToRecommend.keySet()) {
-			Set<Long> userLinks = linksToRecommend.get(userId);
-			
-			HashMap<Long, Double> linkValues = new HashMap<Long, Double>();
-			recommendations.put(userId, linkValues);
-			
-			int maxLinks = userMax.get(userId);
-			
-			for (long linkId : userLinks) {
-				if (!linkTraits.containsKey(linkId)) continue;
-				
-				double prediction = dot(userTraits.get(userId), linkTraits.get(linkId));
-				
-				//We recommend only a set number of links per day/run. 
-				//If the recommended links are more than the max number, recommend only the highest scoring links.
-				if (linkValues.size() < maxLinks) {
-					linkValues.put(linkId, prediction);
-				}
-				else {
-					//Get the lowest scoring recommended link and replace it with the current link
-					//if this one has a better score.
-					long lowestKey = 0;
-					double lowestValue = Double.MAX_VALUE;
-						
-					for (long id : linkValues.keySet()) {
-						if (linkValues.get(id) < lowestValue) {
-							lowestKey = id;
-							lowestValue = linkValues.get(id);
-						}
-					}
-						
-					if (prediction > lowestValue) {
-						linkValues.remove(lowestKey);
-						linkValues.put(linkId, prediction);
-					}
-				}
-			}
-		}
+		ScoringEngine engine = new ScoringEngine(getUserTraitCache(), getLinkTraitCache(), GradientExecutor.getInstance());
 		
-		return recommendations;
+		return engine.recommend(linksToRecommend, userMax);
 	}
 	
 	/**
@@ -0,0 +1,400 @@
+package org.nicta.lr.recommender;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary snapshot of a trained MF model, read through a memory map so loading does not parse anything.
+ * 
+ * Layout (big endian):
+ *   header: magic, version, precision (0 = double, 1 = float), K, user feature count, link feature count, user count, link count, fingerprint count
+ *   user feature matrix, K x user feature count, row major
+ *   link feature matrix, K x link feature count, row major
+ *   user ids, sorted (long)
+ *   user id columns, K values per user in id order
+ *   link ids, sorted (long)
+ *   link id columns, K values per link in id order
+ *   like fingerprints (version 2): user ids sorted (long), then one fingerprint (long) per user
+ * 
+ * Ids are sorted so a single column can be found by binary search without building the maps. Version 2 adds the
+ * fingerprint count to the header and the fingerprints at the end; version 1 files are still read, without fingerprints.
+ */
+public class ModelSnapshot
+{
+	public static final int MAGIC = 0x4C524D53; //"LRMS"
+	public static final int VERSION = 2;
+	
+	static final int HEADER_SIZE = 9 * 4;
+	static final int HEADER_SIZE_V1 = 8 * 4;
+	static final int DOUBLE = 0;
+	static final int FLOAT = 1;
+	
+	MappedByteBuffer buffer;
+	int version;
+	int precision;
+	int valueSize;
+	int K;
+	int userFeatureCount;
+	int linkFeatureCount;
+	int userCount;
+	int linkCount;
+	int fingerprintCount;
+	
+	int userMatrixOffset;
+	int linkMatrixOffset;
+	int userIdsOffset;
+	int userColumnsOffset;
+	int linkIdsOffset;
+	int linkColumnsOffset;
+	int fingerprintIdsOffset;
+	int fingerprintsOffset;
+	
+	private ModelSnapshot(MappedByteBuffer buffer)
+		throws IOException
+	{
+		this.buffer = buffer;
+		
+		if (buffer.capacity() < 8 || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a model snapshot");
+		}
+		version = buffer.getInt(4);
+		if (version != 1 && version != VERSION) {
+			throw new IOException("Unsupported model snapshot version " + version);
+		}
+		
+		int headerSize = version == 1 ? HEADER_SIZE_V1 : HEADER_SIZE;
+		if (buffer.capacity() < headerSize) {
+			throw new IOException("Model snapshot header is truncated");
+		}
+		
+		precision = buffer.getInt(8);
+		K = buffer.getInt(12);
+		userFeatureCount = buffer.getInt(16);
+		linkFeatureCount = buffer.getInt(20);
+		userCount = buffer.getInt(24);
+		linkCount = buffer.getInt(28);
+		fingerprintCount = version == 1 ? 0 : buffer.getInt(32);
+		
+		if (precision != DOUBLE && precision != FLOAT) {
+			throw new IOException("Unknown model snapshot precision " + precision);
+		}
+		if (K < 0 || userFeatureCount < 0 || linkFeatureCount < 0 || userCount < 0 || linkCount < 0 || fingerprintCount < 0) {
+			throw new IOException("Model snapshot header has a negative count");
+		}
+		
+		valueSize = precision == FLOAT ? 4 : 8;
+		
+		//In longs, so a corrupt header can't overflow past the check
+		long end = headerSize
+					+ (long)K * (userFeatureCount + linkFeatureCount) * valueSize
+					+ (long)userCount * (8 + K * valueSize)
+					+ (long)linkCount * (8 + K * valueSize)
+					+ (long)fingerprintCount * 16;
+		if (end > buffer.capacity()) {
+			throw new IOException("Model snapshot is truncated: " + buffer.capacity() + " bytes, expected " + end);
+		}
+		
+		userMatrixOffset = headerSize;
+		linkMatrixOffset = userMatrixOffset + K * userFeatureCount * valueSize;
+		userIdsOffset = linkMatrixOffset + K * linkFeatureCount * valueSize;
+		userColumnsOffset = userIdsOffset + userCount * 8;
+		linkIdsOffset = userColumnsOffset + userCount * K * valueSize;
+		linkColumnsOffset = linkIdsOffset + linkCount * 8;
+		fingerprintIdsOffset = linkColumnsOffset + linkCount * K * valueSize;
+		fingerprintsOffset = fingerprintIdsOffset + fingerprintCount * 8;
+	}
+	
+	/**
+	 * Maps an existing snapshot file read only.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static ModelSnapshot open(File file)
+		throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		
+		try {
+			FileChannel channel = raf.getChannel();
+			return new ModelSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Writes a snapshot of the model. It is written to a temporary file next to the target and renamed over it, so
+	 * readers never map a half written file.
+	 * 
+	 * @param file
+	 * @param K
+	 * @param userMatrix
+	 * @param linkMatrix
+	 * @param userIdColumns
+	 * @param linkIdColumns
+	 * @param likeFingerprints per user fingerprint of the liked links the model was trained on, may be null
+	 * @param floats store values as floats instead of doubles
+	 * @throws IOException
+	 */
+	public static void write(File file, int K, Double[][] userMatrix, Double[][] linkMatrix, 
+								Map<Long, Double[]> userIdColumns, Map<Long, Double[]> linkIdColumns, 
+								Map<Long, Long> likeFingerprints, boolean floats)
+		throws IOException
+	{
+		int userFeatureCount = userMatrix[0].length;
+		int linkFeatureCount = linkMatrix[0].length;
+		int valueSize = floats ? 4 : 8;
+		
+		long[] userIds = sortedIds(userIdColumns);
+		long[] linkIds = sortedIds(linkIdColumns);
+		long[] fingerprintIds = likeFingerprints != null ? sortedIds(likeFingerprints) : new long[0];
+		
+		long size = HEADER_SIZE 
+					+ (long)K * (userFeatureCount + linkFeatureCount) * valueSize
+					+ (long)userIds.length * (8 + K * valueSize)
+					+ (long)linkIds.length * (8 + K * valueSize)
+					+ (long)fingerprintIds.length * 16;
+		
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Model too large for a single snapshot: " + size + " bytes");
+		}
+		
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		
+		try {
+			raf.setLength(size);
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(floats ? FLOAT : DOUBLE);
+			buffer.putInt(K);
+			buffer.putInt(userFeatureCount);
+			buffer.putInt(linkFeatureCount);
+			buffer.putInt(userIds.length);
+			buffer.putInt(linkIds.length);
+			buffer.putInt(fingerprintIds.length);
+			
+			for (int x = 0; x < K; x++) {
+				for (int y = 0; y < userFeatureCount; y++) {
+					putValue(buffer, userMatrix[x][y], floats);
+				}
+			}
+			for (int x = 0; x < K; x++) {
+				for (int y = 0; y < linkFeatureCount; y++) {
+					putValue(buffer, linkMatrix[x][y], floats);
+				}
+			}
+			
+			putColumns(buffer, userIds, userIdColumns, K, floats);
+			putColumns(buffer, linkIds, linkIdColumns, K, floats);
+			
+			for (long userId : fingerprintIds) {
+				buffer.putLong(userId);
+			}
+			for (long userId : fingerprintIds) {
+				buffer.putLong(likeFingerprints.get(userId));
+			}
+			
+			buffer.force();
+		}
+		finally {
+			raf.close();
+		}
+		
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Could not replace " + file);
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Could not rename " + temp + " to " + file);
+		}
+	}
+	
+	private static long[] sortedIds(Map<Long, ?> idColumns)
+	{
+		long[] ids = new long[idColumns.size()];
+		
+		int x = 0;
+		for (long id : idColumns.keySet()) {
+			ids[x++] = id;
+		}
+		Arrays.sort(ids);
+		
+		return ids;
+	}
+	
+	private static void putColumns(ByteBuffer buffer, long[] ids, Map<Long, Double[]> idColumns, int K, boolean floats)
+	{
+		for (long id : ids) {
+			buffer.putLong(id);
+		}
+		
+		for (long id : ids) {
+			Double[] column = idColumns.get(id);
+			
+			for (int x = 0; x < K; x++) {
+				putValue(buffer, column[x], floats);
+			}
+		}
+	}
+	
+	private static void putValue(ByteBuffer buffer, double value, boolean floats)
+	{
+		if (floats) {
+			buffer.putFloat((float)value);
+		}
+		else {
+			buffer.putDouble(value);
+		}
+	}
+	
+	private double getValue(int offset, int index)
+	{
+		if (precision == FLOAT) {
+			return buffer.getFloat(offset + index * 4);
+		}
+		
+		return buffer.getDouble(offset + index * 8);
+	}
+	
+	public Double[][] getUserFeatureMatrix()
+	{
+		return getMatrix(userMatrixOffset, userFeatureCount);
+	}
+	
+	public Double[][] getLinkFeatureMatrix()
+	{
+		return getMatrix(linkMatrixOffset, linkFeatureCount);
+	}
+	
+	private Double[][] getMatrix(int offset, int featureCount)
+	{
+		Double[][] matrix = new Double[K][featureCount];
+		
+		for (int x = 0; x < K; x++) {
+			for (int y = 0; y < featureCount; y++) {
+				matrix[x][y] = getValue(offset, x * featureCount + y);
+			}
+		}
+		
+		return matrix;
+	}
+	
+	public Map<Long, Double[]> getUserIdColumns()
+	{
+		return getIdColumns(userIdsOffset, userColumnsOffset, userCount);
+	}
+	
+	public Map<Long, Double[]> getLinkIdColumns()
+	{
+		return getIdColumns(linkIdsOffset, linkColumnsOffset, linkCount);
+	}
+	
+	private Map<Long, Double[]> getIdColumns(int idsOffset, int columnsOffset, int count)
+	{
+		HashMap<Long, Double[]> idColumns = new HashMap<Long, Double[]>(count * 2);
+		
+		for (int i = 0; i < count; i++) {
+			Double[] column = new Double[K];
+			
+			for (int x = 0; x < K; x++) {
+				column[x] = getValue(columnsOffset, i * K + x);
+			}
+			
+			idColumns.put(buffer.getLong(idsOffset + i * 8), column);
+		}
+		
+		return idColumns;
+	}
+	
+	/**
+	 * Id column of a single user straight from the map, or null if the user is not in the snapshot.
+	 */
+	public double[] getUserIdColumn(long userId)
+	{
+		return getIdColumn(userIdsOffset, userColumnsOffset, userCount, userId);
+	}
+	
+	public double[] getLinkIdColumn(long linkId)
+	{
+		return getIdColumn(linkIdsOffset, linkColumnsOffset, linkCount, linkId);
+	}
+	
+	private double[] getIdColumn(int idsOffset, int columnsOffset, int count, long id)
+	{
+		int low = 0;
+		int high = count - 1;
+		
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midId = buffer.getLong(idsOffset + mid * 8);
+			
+			if (midId < id) {
+				low = mid + 1;
+			}
+			else if (midId > id) {
+				high = mid - 1;
+			}
+			else {
+				double[] column = new double[K];
+				for (int x = 0; x < K; x++) {
+					column[x] = getValue(columnsOffset, mid * K + x);
+				}
+				return column;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Like fingerprints saved with the model, or null if the snapshot predates them.
+	 */
+	public Map<Long, Long> getLikeFingerprints()
+	{
+		if (version == 1) return null;
+		
+		HashMap<Long, Long> fingerprints = new HashMap<Long, Long>(fingerprintCount * 2);
+		for (int i = 0; i < fingerprintCount; i++) {
+			fingerprints.put(buffer.getLong(fingerprintIdsOffset + i * 8), buffer.getLong(fingerprintsOffset + i * 8));
+		}
+		
+		return fingerprints;
+	}
+	
+	public int getK()
+	{
+		return K;
+	}
+	
+	public int getUserFeatureCount()
+	{
+		return userFeatureCount;
+	}
+	
+	public int getLinkFeatureCount()
+	{
+		return linkFeatureCount;
+	}
+	
+	public int getUserCount()
+	{
+		return userCount;
+	}
+	
+	public int getLinkCount()
+	{
+		return linkCount;
+	}
+}
@@ -103,7 +103,10 @@ public class NNRecommender extends Recommender
 	public Map<Long, Double> recommendForUser(Long userId, Set<Long> possibleLinks, int numberOfLinks)
 	{
 		Double[] userFeature = userFeatures.get(userId);	
-		Map<Long, Double> recommendations = new HashMap<Long, Double>();
+		TopNSelector selector = new TopNSelector(numberOfLinks);
+		
+		//Holds the k=10 nearest neighbors, as the highest negated distances
+		TopNSelector kClosest = new TopNSelector(K);
 		
 		for (long recommendId : possibleLinks) {
 			Set<Long> likedUsers = linkLikes.get(recommendId);
@@ -113,11 +116,7 @@ public class NNRecommender extends Recommender
 				continue;
 			}
 			
-			//Holds the k=10 nearest neighbors
-			HashMap<Long, Double> kClosestDistance = new HashMap<Long, Double>();
-			
-			double biggestKDistance = 0;			
-			long biggestId = 0;
+			kClosest.reset(K);
 			
 			for (long user : likedUsers) {
 				if (user == userId || !userFeatures.containsKey(user)) continue;
@@ -125,69 +124,24 @@ public class NNRecommender extends Recommender
 				Double[] likedFeature = userFeatures.get(user);
 				
 				double distance = getDistance(userFeature, likedFeature);
-				
-				if (kClosestDistance.size() < K) {
-					kClosestDistance.put(user, distance);
-					
-					if (distance > biggestKDistance) {
-						biggestKDistance = distance;
-						biggestId = user;
-					}
-				}
-				else if (distance < biggestKDistance) {
-					kClosestDistance.remove(biggestId);
-					kClosestDistance.put(user, distance);
-					
-					biggestKDistance = 0;
-					
-					//reset the biggest distance again
-					for (long id : kClosestDistance.keySet()) {
-						double d = kClosestDistance.get(id);
-						
-						if (d > biggestKDistance) {
-							biggestKDistance = distance;
-							biggestId = id;
-						}
-					}
-				}
+				kClosest.offer(user, -distance);
 			}
 			
-			
 			double prediction = 0;
-			for (long neighborId : kClosestDistance.keySet()) {				
-				prediction += 1 / kClosestDistance.get(neighborId);
+			for (int x = 0; x < kClosest.size(); x++) {				
+				prediction += 1 / -kClosest.getScore(x);
 			}
 			
-			System.out.println("Prediction: " + prediction + " Liked: " + likedUsers.size() + " Closest: " + kClosestDistance.size());
+			System.out.println("Prediction: " + prediction + " Liked: " + likedUsers.size() + " Closest: " + kClosest.size());
 			//Recommend only if prediction score is greater or equal than the boundary
 			//if (prediction > BOUNDARY) {
 				//We recommend only a set number of links per day/run. 
 				//If the recommended links are more than the max number, recommend only the highest scoring links.
-				if (recommendations.size() < numberOfLinks) {
-					recommendations.put(recommendId, prediction);
-				}
-				else {
-					//Get the lowest scoring recommended link and replace it with the current link
-					//if this one has a better score.
-					long lowestKey = 0;
-					double lowestValue = Double.MAX_VALUE;
-					
-					for (long id : recommendations.keySet()) {
-						if (recommendations.get(id) < lowestValue) {
-							lowestKey = id;
-							lowestValue = recommendations.get(id);
-						}
-					}
-	
-					if (prediction > lowestValue) {
-						recommendations.remove(lowestKey);
-						recommendations.put(recommendId, prediction);
-					}
-				}
+				selector.offer(recommendId, prediction);
 			//}
 		}
 		
-		return  recommendations;
+		return selector.toMap();
 	}
 	
 	public Map<Long, Map<Long, Double>> recommend(Map<Long, Set<Long>> linksToRecommend)
@@ -206,94 +160,7 @@ public class NNRecommender extends Recommender
 		for (long userId :linksToRecommend.keySet()) {
 			System.out.println("For user: " + userId);
 			Set<Long> userLinks = linksToRecommend.get(userId);
-			Double[] userFeature = userFeatures.get(userId);
-			
-			HashMap<Long, Double> linkValues = new HashMap<Long, Double>();
-			recommendations.put(userId, linkValues);
-			
-			int maxLinks = userMax.get(userId);
-			
-			for (long recommendId : userLinks) {
-				Set<Long> likedUsers = linkLikes.get(recommendId);
-				
-				if (likedUsers == null) {
-					System.out.println("Nobody liked");
-					continue;
-				}
-				
-				//Holds the k=10 nearest neighbors
-				HashMap<Long, Double> kClosestDistance = new HashMap<Long, Double>();
-				
-				double biggestKDistance = 0;			
-				long biggestId = 0;
-				
-				for (long user : likedUsers) {
-					if (user == userId || !userFeatures.containsKey(user)) continue;
-					
-					Double[] likedFeature = userFeatures.get(user);
-					
-					double distance = getDistance(userFeature, likedFeature);
-					
-					if (kClosestDistance.size() < K) {
-						kClosestDistance.put(user, distance);
-						
-						if (distance > biggestKDistance) {
-							biggestKDistance = distance;
-							biggestId = user;
-						}
-					}
-					else if (distance < biggestKDistance) {
-						kClosestDistance.remove(biggestId);
-						kClosestDistance.put(user, distance);
-						
-						biggestKDistance = 0;
-						
-						//reset the biggest distance again
-						for (long id : kClosestDistance.keySet()) {
-							double d = kClosestDistance.get(id);
-							
-							if (d > biggestKDistance) {
-								biggestKDistance = distance;
-								biggestId = id;
-							}
-						}
-					}
-				}
-				
-				
-				double prediction = 0;
-				for (long neighborId : kClosestDistance.keySet()) {				
-					prediction += 1 / kClosestDistance.get(neighborId);
-				}
-				
-				System.out.println("Prediction: " + prediction + " Liked: " + likedUsers.size() + " Closest: " + kClosestDistance.size());
-				//Recommend only if prediction score is greater or equal than the boundary
-				//if (prediction > BOUNDARY) {
-					//We recommend only a set number of links per day/run. 
-					//If the recommended links are more than the max number, recommend only the highest scoring links.
-					if (linkValues.size() < maxLinks) {
-						linkValues.put(recommendId, prediction);
-					}
-					else {
-						//Get the lowest scoring recommended link and replace it with the current link
-						//if this one has a better score.
-						long lowestKey = 0;
-						double lowestValue = Double.MAX_VALUE;
-						
-						for (long id : linkValues.keySet()) {
-							if (linkValues.get(id) < lowestValue) {
-								lowestKey = id;
-								lowestValue = linkValues.get(id);
-							}
-						}
-		
-						if (prediction > lowestValue) {
-							linkValues.remove(lowestKey);
-							linkValues.put(recommendId, prediction);
-						}
-					}
-				//}
-			}
+			recommendations.put(userId, recommendForUser(userId, userLinks, userMax.get(userId)));
 		}
 	
 		return recommendations;
@@ -11,8 +11,11 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
+import org.nicta.lr.util.IntBitmap;
+import org.nicta.lr.util.LikeIndex;
 import org.nicta.lr.util.LinkUtil;
 import org.nicta.lr.util.SQLUtil;
+import org.nicta.lr.util.SocialGraph;
 
 public abstract class Recommender 
 {
@@ -24,6 +27,8 @@ public abstract class Recommender
 	
 	Map<Long, Integer> userMax;
 	
+	LikeIndex likeIndex;
+	
 	public Recommender(Map<Long, Set<Long>> linkLikes, Map<Long, Double[]> userFeatures, Map<Long, Double[]> linkFeatures, Map<Long, Map<Long, Double>> friends)
 	{
 		this.linkLikes = linkLikes;
@@ -34,6 +39,46 @@ public abstract class Recommender
 	
 	public abstract void train(Map<Long, Set<Long>> trainingSamples);
 	
+	/**
+	 * Bitmap index of linkLikes, built on first use. Call invalidateLikeIndex if linkLikes changes afterwards.
+	 */
+	public LikeIndex getLikeIndex()
+	{
+		if (likeIndex == null) {
+			likeIndex = new LikeIndex(linkLikes);
+		}
+		
+		return likeIndex;
+	}
+	
+	public void invalidateLikeIndex()
+	{
+		likeIndex = null;
+	}
+	
+	/**
+	 * Friends of the user as like index users, i.e. only the friends that have liked something. Intersect it with
+	 * LikeIndex.getLikers for the friends that liked a link.
+	 */
+	IntBitmap getFriendLikers(SocialGraph friendGraph, long userId)
+	{
+		int row = friendGraph.getIndex(userId);
+		if (row < 0) return IntBitmap.EMPTY;
+		
+		int start = friendGraph.getOffset(row);
+		long[] friends = new long[friendGraph.getDegree(row)];
+		for (int x = 0; x < friends.length; x++) {
+			friends[x] = friendGraph.getId(friendGraph.getNeighbours()[start + x]);
+		}
+		
+		return getLikeIndex().getUsers(friends, friends.length);
+	}
+	
+	public boolean isLiked(long linkId, long userId)
+	{
+		return getLikeIndex().isLiked(linkId, userId);
+	}
+	
 	public Map<Long, Double> getAveragePrecisions(Map<Long, Map<Long, Double>> predictions)
 	{
 		HashMap<Long, Double> averagePrecisions = new HashMap<Long, Double>();
@@ -158,7 +203,7 @@ public abstract class Recommender
 				
 				
 				if (prediction >= threshold) {
-					if (linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(userId)) {
+					if (isLiked(linkId, userId)) {
 						truePos++;
 					}
 					else {
@@ -166,7 +211,7 @@ public abstract class Recommender
 					}
 				}
 				else {
-					if (linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(userId)) {
+					if (isLiked(linkId, userId)) {
 						falseNeg++;
 					}
 					else {
@@ -198,7 +243,7 @@ public abstract class Recommender
 		for (int x = 0; x < sortedScores.size(); x++) {
 			long linkId = sortedIds.get(x);
 		
-			if (linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(userId)) {
+			if (isLiked(linkId, userId)) {
 				pos++;
 				precisions.add((double)pos / (double)(x+1));
 				System.out.println("Pos: " + pos + " / " + (x+1));
@@ -224,7 +269,7 @@ public abstract class Recommender
 		for (int x = 0; x < ids.length; x++) {
 			long linkId = ids[x];
 		
-			if (linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(userId)) {
+			if (isLiked(linkId, userId)) {
 				truePos++;
 			}
 		}
@@ -239,14 +284,14 @@ public abstract class Recommender
 		for (int x = 0; x < ids.length; x++) {
 			long linkId = ids[x];
 		
-			if (linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(userId) && testLinks.contains(linkId)) {
+			if (isLiked(linkId, userId) && testLinks.contains(linkId)) {
 				truePos++;
 			}
 		}
 	
 		int totalPos = 0;
 		for (long linkId : testLinks) {
-			if (linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(userId)) {
+			if (isLiked(linkId, userId)) {
 				totalPos++;
 			}
 		}
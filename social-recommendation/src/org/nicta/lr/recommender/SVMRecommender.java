@@ -1,19 +1,25 @@
 package org.nicta.lr.recommender;
 
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.ArrayList;
 import java.util.Map;
 
+import gnu.trove.TLongIntHashMap;
+
 import libsvm.svm;
 import libsvm.svm_model;
 import libsvm.svm_node;
 import libsvm.svm_problem;
 import libsvm.svm_parameter;
 
+import org.nicta.lr.util.IntBitmap;
+import org.nicta.lr.util.LikeIndex;
+import org.nicta.lr.util.SocialGraph;
+
 public class SVMRecommender extends Recommender
 {
 	Object[] userIds;
@@ -21,6 +27,10 @@ public class SVMRecommender extends Recommender
 	
 	svm_model model;
 	
+	SocialGraph friendGraph;
+	TLongIntHashMap userPositions;
+	int[] likerPositions;
+	
 	double C = Math.pow(2, 1);
 	
 	public SVMRecommender(Map<Long, Set<Long>> linkLikes, Map<Long, Double[]> userFeatures, Map<Long, Double[]> linkFeatures, Map<Long, Map<Long, Double>> friendships)
@@ -29,6 +39,69 @@ public class SVMRecommender extends Recommender
 		
 		linkIds = linkFeatures.keySet().toArray();
 		userIds = userFeatures.keySet().toArray();
+		
+		setFriendGraph(SocialGraph.fromFriendships(friendships));
+	}
+	
+	/**
+	 * Uses the graph for the friend-liked features, with the position of every user in userIds kept by id.
+	 */
+	private void setFriendGraph(SocialGraph graph)
+	{
+		friendGraph = graph;
+		userPositions = new TLongIntHashMap();
+		
+		for (int x = 0; x < userIds.length; x++) {
+			userPositions.put((Long)userIds[x], x);
+		}
+	}
+	
+	/**
+	 * Adds the user id node and a node for every friend that liked the link, in increasing index order.
+	 * The friends that liked the link are the intersection of the link's likers with the friends, instead of a scan over every user.
+	 */
+	private void addUserNodes(List<svm_node> nodes, int featureCount, long userId, long linkId, IntBitmap friends)
+	{
+		int self = userPositions.containsKey(userId) ? userPositions.get(userId) : -1;
+		
+		if (self >= 0) {
+			svm_node node = new svm_node();
+			node.index = featureCount + self + 1;
+			node.value = 1;
+			
+			nodes.add(node);
+		}
+		
+		LikeIndex likeIndex = getLikeIndex();
+		int link = likeIndex.getLinkIndex(linkId);
+		if (link < 0 || friends.isEmpty()) return;
+		
+		if (likerPositions == null) {
+			likerPositions = new int[likeIndex.getUserCount()];
+			for (int u = 0; u < likerPositions.length; u++) {
+				long uid = likeIndex.getUserId(u);
+				likerPositions[u] = userPositions.containsKey(uid) ? userPositions.get(uid) : -1;
+			}
+		}
+		
+		int[] likers = likeIndex.getLikers(link).and(friends).toArray();
+		int count = 0;
+		
+		for (int x = 0; x < likers.length; x++) {
+			int position = likerPositions[likers[x]];
+			if (position >= 0 && position != self) {
+				likers[count++] = position;
+			}
+		}
+		Arrays.sort(likers, 0, count);
+		
+		for (int x = 0; x < count; x++) {
+			svm_node node = new svm_node();
+			node.index = featureCount + userIds.length + likers[x] + 1;
+			node.value = 1;
+			
+			nodes.add(node);
+		}
 	}
 	
 	public void train(Map<Long, Set<Long>> trainSamples) 
@@ -44,13 +117,7 @@ public class SVMRecommender extends Recommender
 			HashMap<Long, Double> userPredictions = new HashMap<Long, Double>();
 			predictions.put(userId, userPredictions);
 			
-			Set<Long> userFriends;
-			if (friendships.containsKey(userId)) {
-				userFriends = friendships.get(userId).keySet();
-			}
-			else {
-				userFriends = new HashSet<Long>();
-			}
+			IntBitmap friends = getFriendLikers(friendGraph, userId);
 			
 			Set<Long> userTest = testData.get(userId);
 			
@@ -66,22 +133,7 @@ public class SVMRecommender extends Recommender
 					nodeList.add(node);
 				}
 				
-				for (int x = 0; x < userIds.length; x++) {
-					if (userIds[x].equals(userId)) {
-						svm_node node = new svm_node();
-						node.index = features.length + x + 1;
-						node.value = 1;
-						
-						nodeList.add(node);
-					}
-					else if (userFriends.contains(userIds[x]) && linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(userIds[x])) {
-						svm_node node = new svm_node();
-						node.index = features.length + userIds.length + x + 1;
-						node.value = 1;
-						
-						nodeList.add(node);
-					}
-				}
+				addUserNodes(nodeList, features.length, userId, linkId, friends);
 				
 				for (int x = 0; x < linkIds.length; x++) {
 					if (linkIds[x].equals(linkId)) {
@@ -136,13 +188,7 @@ public class SVMRecommender extends Recommender
 		for (long userId : trainingSamples.keySet()) {
 			System.out.println("User: " + ++count);
 			Set<Long> samples = trainingSamples.get(userId);
-			Set<Long> userFriends;
-			if (friendships.containsKey(userId)) {
-				userFriends = friendships.get(userId).keySet();
-			}
-			else {
-				userFriends = new HashSet<Long>();
-			}
+			IntBitmap friends = getFriendLikers(friendGraph, userId);
 			
 			for (long linkId : samples) {
 				double[] combined = combineFeatures(userFeatures.get(userId), linkFeatures.get(linkId));
@@ -157,22 +203,7 @@ public class SVMRecommender extends Recommender
 					nodes.add(node);
 				}
 				
-				for (int x = 0; x < userIds.length; x++) {
-					if (userIds[x].equals(userId)) {
-						svm_node node = new svm_node();
-						node.index = combined.length + x + 1;
-						node.value = 1;
-						
-						nodes.add(node);
-					}
-					else if (userFriends.contains(userIds[x]) && linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(userIds[x])) {
-						svm_node node = new svm_node();
-						node.index = combined.length + userIds.length + x + 1;
-						node.value = 1;
-						
-						nodes.add(node);
-					}
-				}
+				addUserNodes(nodes, combined.length, userId, linkId, friends);
 				
 				for (int x = 0; x < linkIds.length; x++) {
 					if (linkIds[x].equals(linkId)) {
@@ -191,7 +222,7 @@ public class SVMRecommender extends Recommender
 					prob.x[index][x] = nodes.get(x);
 				}
 				
-				if (linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(userId)) {
+				if (isLiked(linkId, userId)) {
 					prob.y[index] = 1;
 				}
 				else {
@@ -210,15 +241,9 @@ public class SVMRecommender extends Recommender
 	
 	public Map<Long, Double> recommendForUser(Long userId, Set<Long> possibleLinks, int numberOfLinks)
 	{
-		Map<Long, Double> recommendations = new HashMap<Long, Double>();
+		TopNSelector selector = new TopNSelector(numberOfLinks);
 		
-		Set<Long> userFriends;
-		if (friendships.containsKey(userId)) {
-			userFriends = friendships.get(userId).keySet();
-		}
-		else {
-			userFriends = new HashSet<Long>();
-		}
+		IntBitmap friends = getFriendLikers(friendGraph, userId);
 	
 		for (long linkId : possibleLinks) {
 			if (!linkFeatures.containsKey(linkId)) {
@@ -236,22 +261,7 @@ public class SVMRecommender extends Recommender
 				nodeList.add(node);
 			}
 			
-			for (int x = 0; x < userIds.length; x++) {
-				if (userIds[x].equals(userId)) {
-					svm_node node = new svm_node();
-					node.index = features.length + x + 1;
-					node.value = 1;
-					
-					nodeList.add(node);
-				}
-				else if (userFriends.contains(userIds[x]) && linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(userIds[x])) {
-					svm_node node = new svm_node();
-					node.index = features.length + userIds.length + x + 1;
-					node.value = 1;
-					
-					nodeList.add(node);
-				}
-			}
+			addUserNodes(nodeList, features.length, userId, linkId, friends);
 			
 			for (int x = 0; x < linkIds.length; x++) {
 				if (linkIds[x].equals(linkId)) {
@@ -276,32 +286,10 @@ public class SVMRecommender extends Recommender
 			
 			System.out.println("Prediction: " + prediction + " ID: " + userId);
 	
-			//We recommend only a set number of links per day/run. 
-			//If the recommended links are more than the max number, recommend only the highest scoring links.
-			if (recommendations.size() < numberOfLinks) {
-				recommendations.put(linkId, prediction);
-			}
-			else {
-				//Get the lowest scoring recommended link and replace it with the current link
-				//if this one has a better score.
-				long lowestKey = 0;
-				double lowestValue = Double.MAX_VALUE;
-	
-				for (long id : recommendations.keySet()) {
-					if (recommendations.get(id) < lowestValue) {
-						lowestKey = id;
-						lowestValue = recommendations.get(id);
-					}
-				}
-	
-				if (prediction > lowestValue) {
-					recommendations.remove(lowestKey);
-					recommendations.put(linkId, prediction);
-				}
-			}
+			selector.offer(linkId, prediction);
 		}
 		
-		return recommendations;
+		return selector.toMap();
 	}
 	
 	public Map<Long, Map<Long, Double>> recommend(Map<Long, Set<Long>> linksToRecommend)
@@ -317,102 +305,9 @@ public class SVMRecommender extends Recommender
 		
 		Map<Long, Map<Long, Double>> recommendations = new HashMap<Long, Map<Long, Double>>();
 		
-		
 		for (long userId :linksToRecommend.keySet()) {
 			Set<Long> userLinks = linksToRecommend.get(userId);
-			Set<Long> userFriends;
-			if (friendships.containsKey(userId)) {
-				userFriends = friendships.get(userId).keySet();
-			}
-			else {
-				userFriends = new HashSet<Long>();
-			}
-			
-			HashMap<Long, Double> linkValues = new HashMap<Long, Double>();
-			recommendations.put(userId, linkValues);
-		
-			int maxLinks = userMax.get(userId);
-		
-			for (long linkId : userLinks) {
-				if (!linkFeatures.containsKey(linkId)) {
-					continue;
-				}
-				
-				double[] features = combineFeatures(userFeatures.get(userId), linkFeatures.get(linkId));
-				ArrayList<svm_node> nodeList = new ArrayList<svm_node>();
-				
-				for (int x = 0; x < features.length; x++) {
-					svm_node node = new svm_node();
-					node.index = x + 1;
-					node.value = features[x];
-					
-					nodeList.add(node);
-				}
-				
-				for (int x = 0; x < userIds.length; x++) {
-					if (userIds[x].equals(userId)) {
-						svm_node node = new svm_node();
-						node.index = features.length + x + 1;
-						node.value = 1;
-						
-						nodeList.add(node);
-					}
-					else if (userFriends.contains(userIds[x]) && linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(userIds[x])) {
-						svm_node node = new svm_node();
-						node.index = features.length + userIds.length + x + 1;
-						node.value = 1;
-						
-						nodeList.add(node);
-					}
-				}
-				
-				for (int x = 0; x < linkIds.length; x++) {
-					if (linkIds[x].equals(linkId)) {
-						svm_node node = new svm_node();
-						node.index = features.length + userIds.length + userIds.length + x + 1;
-						node.value = 1;
-						
-						nodeList.add(node);
-						break;
-					}
-				}
-				
-				svm_node nodes[] = new svm_node[nodeList.size()];
-				
-				for (int x = 0; x < nodes.length; x++) {
-					nodes[x] = nodeList.get(x);
-				}
-				
-				double[] dbl = new double[1]; 
-				svm.svm_predict_values(model, nodes, dbl);
-				double prediction = dbl[0];
-				
-				System.out.println("Prediction: " + prediction + " ID: " + userId);
-		
-				//We recommend only a set number of links per day/run. 
-				//If the recommended links are more than the max number, recommend only the highest scoring links.
-				if (linkValues.size() < maxLinks) {
-					linkValues.put(linkId, prediction);
-				}
-				else {
-					//Get the lowest scoring recommended link and replace it with the current link
-					//if this one has a better score.
-					long lowestKey = 0;
-					double lowestValue = Double.MAX_VALUE;
-		
-					for (long id : linkValues.keySet()) {
-						if (linkValues.get(id) < lowestValue) {
-							lowestKey = id;
-							lowestValue = linkValues.get(id);
-						}
-					}
-		
-					if (prediction > lowestValue) {
-						linkValues.remove(lowestKey);
-						linkValues.put(linkId, prediction);
-					}
-				}
-			}
+			recommendations.put(userId, recommendForUser(userId, userLinks, userMax.get(userId)));
 		}
 		
 		return recommendations;
@@ -0,0 +1,138 @@
+package org.nicta.lr.recommender;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.nicta.lr.util.Configuration;
+import org.nicta.lr.util.Constants;
+import org.nicta.lr.util.SQLUtil;
+
+/**
+ * Checks against an embedded database that saveModel replaces the stored matrices in a single transaction, and that a
+ * failed BatchWriter batch leaves the rest of the connection's transaction to the caller.
+ *
+ * The database is picked through Configuration.DB_DRIVER and DB_STRING, an in-memory H2 database by default, so the
+ * driver's jar has to be on the classpath: java org.nicta.lr.recommender.SaveModelTest [driver] [url]
+ */
+public class SaveModelTest
+{
+	public static void main(String[] args)
+		throws Exception
+	{
+		Configuration.DB_DRIVER = args.length > 0 ? args[0] : "org.h2.Driver";
+		Configuration.DB_STRING = args.length > 1 ? args[1] : "jdbc:h2:mem:lrSaveModel;DB_CLOSE_DELAY=-1";
+		Configuration.SNAPSHOT_FOLDER = null;
+		Configuration.DEPLOYMENT_TYPE = Constants.TEST;
+		Configuration.INITIALIZE = true;
+
+		//Small batches, so the writers flush several times during a save
+		Configuration.SQL_BATCH_SIZE = 3;
+
+		Statement statement = SQLUtil.getStatement();
+		statement.executeUpdate("CREATE TABLE lrUserMatrix (id BIGINT, value VARCHAR(4000), type VARCHAR(32))");
+		statement.executeUpdate("CREATE TABLE lrLinkMatrix (id BIGINT, value VARCHAR(4000), type VARCHAR(32))");
+		statement.executeUpdate("CREATE TABLE lrWordColumns (id BIGINT, value VARCHAR(4000), type VARCHAR(32))");
+		SQLUtil.commit();
+
+		System.out.println("Saving a model");
+		FeatureRecommender saved = getRecommender(10, 20, 0);
+		saved.saveModel();
+
+		int userRows = count("lrUserMatrix");
+		int linkRows = count("lrLinkMatrix");
+		check(userRows == saved.K + 10, "user rows: " + userRows);
+		check(linkRows == saved.K + 20, "link rows: " + linkRows);
+		String userValue = getValue("lrUserMatrix", 5);
+
+		System.out.println("Saving a model whose link rows fail");
+		statement.executeUpdate("ALTER TABLE lrLinkMatrix ADD CONSTRAINT lrLinkCheck CHECK (id <> 1019)");
+		SQLUtil.commit();
+
+		FeatureRecommender failed = getRecommender(15, 20, 1000);
+		try {
+			failed.saveModel();
+			check(false, "saveModel did not fail");
+		}
+		catch (SQLException e) {
+			System.out.println("Failed as expected: " + e.getMessage());
+		}
+
+		check(count("lrUserMatrix") == userRows, "user rows after the failed save: " + count("lrUserMatrix"));
+		check(count("lrLinkMatrix") == linkRows, "link rows after the failed save: " + count("lrLinkMatrix"));
+		check(userValue.equals(getValue("lrUserMatrix", 5)), "user row 5 changed by the failed save");
+
+		System.out.println("Failing a batch after other uncommitted work");
+		statement.executeUpdate("INSERT INTO lrWordColumns VALUES(1, 'pending', 'feature')");
+
+		SQLUtil.BatchWriter insert = SQLUtil.getBatchWriter("INSERT INTO lrLinkMatrix VALUES(?,?,?)");
+		try {
+			insert.add(1019L, "", "feature");
+			insert.close();
+			check(false, "the batch did not fail");
+		}
+		catch (SQLException e) {
+			System.out.println("Failed as expected: " + e.getMessage());
+		}
+
+		check(count("lrWordColumns") == 1, "the failed batch rolled back the connection");
+		SQLUtil.rollback();
+
+		statement.close();
+		SQLUtil.closeSqlConnection();
+
+		System.out.println("OK");
+	}
+
+	/**
+	 * Recommender over users and links with ids from firstId, with fresh priors.
+	 */
+	private static FeatureRecommender getRecommender(int userCount, int linkCount, long firstId)
+	{
+		Map<Long, Double[]> userFeatures = new HashMap<Long, Double[]>();
+		for (long u = firstId; u < firstId + userCount; u++) {
+			userFeatures.put(u, new Double[]{1d, 0d, (double)u});
+		}
+
+		Map<Long, Double[]> linkFeatures = new HashMap<Long, Double[]>();
+		for (long l = firstId; l < firstId + linkCount; l++) {
+			linkFeatures.put(l, new Double[]{0d, 1d, (double)l});
+		}
+
+		return new FeatureRecommender(new HashMap<Long, Set<Long>>(), userFeatures, linkFeatures);
+	}
+
+	private static int count(String table)
+		throws SQLException
+	{
+		Statement statement = SQLUtil.getStatement();
+		ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM " + table);
+		result.next();
+		int count = result.getInt(1);
+		statement.close();
+
+		return count;
+	}
+
+	private static String getValue(String table, long id)
+		throws SQLException
+	{
+		Statement statement = SQLUtil.getStatement();
+		ResultSet result = statement.executeQuery("SELECT value FROM " + table + " WHERE id=" + id);
+		String value = result.next() ? result.getString(1) : null;
+		statement.close();
+
+		return value;
+	}
+
+	private static void check(boolean condition, String message)
+	{
+		if (!condition) {
+			System.out.println("FAIL: " + message);
+			System.exit(1);
+		}
+	}
+}
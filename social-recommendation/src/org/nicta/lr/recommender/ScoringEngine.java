@@ -0,0 +1,196 @@
+package org.nicta.lr.recommender;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongIntHashMap;
+
+import org.nicta.lr.thread.GradientExecutor;
+import org.nicta.lr.thread.GradientTask;
+
+/**
+ * Scores users against their candidate links in bulk, from cached trait vectors.
+ * 
+ * The traits of the users being recommended for and of the union of their candidate links are packed into two
+ * contiguous row major blocks. Scores are then computed a batch of users by a block of links at a time, so the link block
+ * stays in cache while every user of the batch is scored against it, and user batches run in parallel on the executor.
+ * Within a tile a user row is computed densely (a plain matrix multiply) when enough of the block are candidates for
+ * that user, and candidate by candidate otherwise. Each user's scores go straight to a TopNSelector.
+ */
+public class ScoringEngine
+{
+	static final int USER_BATCH = 64;
+	static final int LINK_BLOCK = 256;
+	
+	//Fraction of a link block that must be candidates before a user row is computed densely
+	static final int DENSE_FRACTION = 8;
+	
+	TraitCache userTraits;
+	TraitCache linkTraits;
+	GradientExecutor executor;
+	int K;
+	
+	public ScoringEngine(TraitCache userTraits, TraitCache linkTraits, GradientExecutor executor)
+	{
+		this.userTraits = userTraits;
+		this.linkTraits = linkTraits;
+		this.executor = executor;
+		K = userTraits.getK();
+	}
+	
+	/**
+	 * Top scoring links for every user, out of that user's candidates.
+	 * 
+	 * @param linksToRecommend candidate links per user
+	 * @param userMax number of links to recommend per user
+	 * @return
+	 */
+	public Map<Long, Map<Long, Double>> recommend(Map<Long, Set<Long>> linksToRecommend, Map<Long, Integer> userMax)
+	{
+		final int userCount = linksToRecommend.size();
+		final long[] users = new long[userCount];
+		final int[] maxLinks = new int[userCount];
+		final int[][] candidates = new int[userCount][];
+		
+		//Pack the candidate links into columns, and each user's candidates as sorted column indices
+		TLongIntHashMap columnIndex = new TLongIntHashMap();
+		TLongArrayList columnIds = new TLongArrayList();
+		TIntArrayList columnRows = new TIntArrayList();
+		TIntArrayList userRows = new TIntArrayList();
+		
+		int u = 0;
+		for (long userId : linksToRecommend.keySet()) {
+			users[u] = userId;
+			maxLinks[u] = userMax.get(userId);
+			
+			int userRow = userTraits.getIndex(userId);
+			userRows.add(userRow);
+			
+			TIntArrayList userCandidates = new TIntArrayList();
+			
+			if (userRow != -1) {
+				for (long linkId : linksToRecommend.get(userId)) {
+					int linkRow = linkTraits.getIndex(linkId);
+					if (linkRow == -1) continue;
+					
+					if (!columnIndex.containsKey(linkId)) {
+						columnIndex.put(linkId, columnIds.size());
+						columnIds.add(linkId);
+						columnRows.add(linkRow);
+					}
+					
+					userCandidates.add(columnIndex.get(linkId));
+				}
+			}
+			
+			candidates[u] = userCandidates.toNativeArray();
+			Arrays.sort(candidates[u]);
+			u++;
+		}
+		
+		final long[] links = columnIds.toNativeArray();
+		final double[] userBlock = pack(userTraits, userRows.toNativeArray());
+		final double[] linkBlock = pack(linkTraits, columnRows.toNativeArray());
+		
+		final List<Map<Long, Double>> results = new ArrayList<Map<Long, Double>>(Collections.<Map<Long, Double>>nCopies(userCount, null));
+		int batchCount = (userCount + USER_BATCH - 1) / USER_BATCH;
+		
+		executor.execute(batchCount, new GradientTask() {
+			public void run(int start, int end) {
+				double[] scores = new double[LINK_BLOCK];
+				TopNSelector[] selectors = new TopNSelector[USER_BATCH];
+				int[] next = new int[USER_BATCH];
+				
+				for (int batch = start; batch < end; batch++) {
+					int batchStart = batch * USER_BATCH;
+					int batchEnd = Math.min(batchStart + USER_BATCH, userCount);
+					
+					for (int b = 0; b < batchEnd - batchStart; b++) {
+						selectors[b] = new TopNSelector(maxLinks[batchStart + b]);
+						next[b] = 0;
+					}
+					
+					for (int blockStart = 0; blockStart < links.length; blockStart += LINK_BLOCK) {
+						int blockEnd = Math.min(blockStart + LINK_BLOCK, links.length);
+						
+						for (int b = 0; b < batchEnd - batchStart; b++) {
+							int[] userCandidates = candidates[batchStart + b];
+							int first = next[b];
+							
+							int last = first;
+							while (last < userCandidates.length && userCandidates[last] < blockEnd) last++;
+							if (last == first) continue;
+							
+							int userOffset = (batchStart + b) * K;
+							
+							if ((last - first) * DENSE_FRACTION >= blockEnd - blockStart) {
+								for (int l = blockStart; l < blockEnd; l++) {
+									int linkOffset = l * K;
+									double score = 0;
+									
+									for (int x = 0; x < K; x++) {
+										score += userBlock[userOffset + x] * linkBlock[linkOffset + x];
+									}
+									
+									scores[l - blockStart] = score;
+								}
+								
+								for (int c = first; c < last; c++) {
+									selectors[b].offer(links[userCandidates[c]], scores[userCandidates[c] - blockStart]);
+								}
+							}
+							else {
+								for (int c = first; c < last; c++) {
+									int linkOffset = userCandidates[c] * K;
+									double score = 0;
+									
+									for (int x = 0; x < K; x++) {
+										score += userBlock[userOffset + x] * linkBlock[linkOffset + x];
+									}
+									
+									selectors[b].offer(links[userCandidates[c]], score);
+								}
+							}
+							
+							next[b] = last;
+						}
+					}
+					
+					for (int b = 0; b < batchEnd - batchStart; b++) {
+						results.set(batchStart + b, selectors[b].toMap());
+					}
+				}
+			}
+		});
+		
+		Map<Long, Map<Long, Double>> recommendations = new HashMap<Long, Map<Long, Double>>();
+		for (u = 0; u < userCount; u++) {
+			recommendations.put(users[u], results.get(u));
+		}
+		
+		return recommendations;
+	}
+	
+	/**
+	 * Copies the given rows of the cache into a contiguous block, rows of -1 are left as zeros.
+	 */
+	private double[] pack(TraitCache cache, int[] rows)
+	{
+		double[] traits = cache.getTraits();
+		double[] block = new double[rows.length * K];
+		
+		for (int r = 0; r < rows.length; r++) {
+			if (rows[r] == -1) continue;
+			System.arraycopy(traits, rows[r] * K, block, r * K, K);
+		}
+		
+		return block;
+	}
+}
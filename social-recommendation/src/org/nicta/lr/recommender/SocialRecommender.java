@@ -8,6 +8,9 @@ import org.nicta.lr.component.Objective;
 import org.nicta.lr.component.SocialSpectralRegularizer;
 import org.nicta.lr.component.SocialRegularizer;
 import org.nicta.lr.component.L2Regularizer;
+import org.nicta.lr.thread.GradientAccumulator;
+import org.nicta.lr.thread.GradientExecutor;
+import org.nicta.lr.thread.GradientTask;
 import org.nicta.lr.util.Constants;
 import org.nicta.lr.util.Configuration;
 import org.nicta.lr.util.UserUtil;
@@ -165,6 +168,100 @@ public class SocialRecommender extends MFRecommender
 	}
 	
 	
+	public double getError(DenseModel model)
+	{
+		double error = 0;
+		
+		if (socialRegularizer != null) {
+			error += socialRegularizer.getValue(model.getConnections(), model.getFriendConnections());
+			error *= beta;
+		}
+		
+		error += model.getObjectiveValue();
+		
+		double userNorm = model.getUserNorm() * lambda;
+		double linkNorm = model.getLinkNorm() * lambda;
+		
+		error += userNorm + linkNorm;
+		
+		return error;
+	}
+	
+	public double getErrorDerivativeOverUserAttribute(DenseModel model, int x, int y)
+	{
+		double errorDerivative = model.getVariables()[model.userMatrixIndex(x, y)] * lambda;
+		
+		if (socialRegularizer != null) {
+			double socDerivative = model.getSocialAttributeDerivatives()[x * Configuration.USER_FEATURE_COUNT + y];
+			errorDerivative += beta * socDerivative;
+		}
+		
+		errorDerivative += model.getObjectiveDerivativeOverUserAttribute(x, y);
+		
+		return errorDerivative;
+	}
+	
+	public double getErrorDerivativeOverUserId(DenseModel model, int k, int user)
+	{
+		double errorDerivative = model.getVariables()[model.userIdIndex(user, k)] * lambda;
+		
+		if (socialRegularizer != null) {
+			double socDerivative = model.getSocialTraitDerivatives()[user * K + k];
+			errorDerivative += beta * socDerivative;
+		}
+		
+		errorDerivative += model.getObjectiveDerivativeOverUserId(user, k);
+		
+		return errorDerivative;
+	}
+	
+	public double getErrorDerivativeOverLinkAttribute(DenseModel model, int x, int y)
+	{
+		double errorDerivative = model.getVariables()[model.linkMatrixIndex(x, y)] * lambda;
+		errorDerivative += model.getObjectiveDerivativeOverLinkAttribute(x, y);
+		
+		return errorDerivative;
+	}
+	
+	public double getErrorDerivativeOverLinkId(DenseModel model, int x, int link)
+	{
+		double errorDerivative = model.getVariables()[model.linkIdIndex(link, x)] * lambda;
+		errorDerivative += model.getObjectiveDerivativeOverLinkId(link, x);
+		
+		return errorDerivative;
+	}
+	
+	/**
+	 * Also aggregates the social regularizer derivatives over the user traits and the user feature matrix once per
+	 * iteration, so the per cell derivative calls only have to look them up.
+	 */
+	public void updateConnections(final DenseModel model)
+	{
+		super.updateConnections(model);
+		
+		if (socialRegularizer == null || model.getConnections() == null) return;
+		
+		//Edges share users, so each worker adds into its own buffer
+		final GradientAccumulator accumulator = model.getSocialTraitAccumulator();
+		
+		GradientExecutor.getInstance().execute(model.getConnections().length, new GradientTask() {
+			public void run(int start, int end) {
+				socialRegularizer.getDerivativeValuesOverTraits(model.getUserTraits(), model.getEdgeUsers1(), model.getEdgeUsers2(), 
+																	model.getConnections(), model.getFriendConnections(), K, start, end, accumulator.getBuffer());
+			}
+		});
+		accumulator.reduce(model.getSocialTraitDerivatives());
+		
+		socialRegularizer.getDerivativeValuesOverAttributes(model.getSocialTraitDerivatives(), model.getUserFeatures(), model.getUserCount(), 
+																K, Configuration.USER_FEATURE_COUNT, model.getSocialAttributeDerivatives());
+	}
+	
+	public void updatePredictions(DenseModel model)
+	{
+		super.updatePredictions(model);
+		model.evaluateObjective(objective, GradientExecutor.getInstance());
+	}
+	
 	/**
 	 * Convenience method for getting 'friendship' values.
 	 * 
@@ -196,4 +293,24 @@ public class SocialRecommender extends MFRecommender
 	{
 		return socialRegularizer != null ? socialRegularizer.predictConnection(userMatrix, idColumns, userFeatures, i, j, K) : 0;
 	}	
+	
+	public double predictConnection(DenseModel model, int i, int j)
+	{
+		return socialRegularizer != null ? socialRegularizer.predictConnection(model.getUserTraits(), K, i, j) : 0;
+	}
+	
+	public Objective getSampleObjective()
+	{
+		return objective;
+	}
+	
+	public SocialRegularizer getSocialRegularizer()
+	{
+		return socialRegularizer;
+	}
+	
+	public double getSocialWeight()
+	{
+		return beta;
+	}
 }
@@ -0,0 +1,263 @@
+package org.nicta.lr.recommender;
+
+import java.util.Random;
+
+import org.nicta.lr.component.Objective;
+import org.nicta.lr.component.SocialRegularizer;
+import org.nicta.lr.thread.GradientExecutor;
+import org.nicta.lr.thread.GradientTask;
+
+/**
+ * Hogwild style stochastic training of a DenseModel, as an alternative to full batch LBFGS.
+ *
+ * An epoch visits every (user, link) sample and every social edge of the model once, in a new random order, and
+ * takes an Adagrad step on the variables each item touches: the item's id columns and the attribute matrices.
+ * The epoch is split across the executor's workers, which update the shared variable and Adagrad arrays without
+ * any locking. Items rarely touch the same id columns at the same time, and an update lost on the small attribute
+ * matrices only costs a little progress.
+ *
+ * The L2 term is spread over the items, so that over an epoch every variable gets its full lambda * value: an id
+ * column gets its share on each of the items of its user or link, and the attribute matrices on every item that
+ * reaches them. Variables frozen with DenseModel.restrictTraining are left as they are.
+ */
+public class StochasticOptimizer
+{
+	private static final double ADAGRAD_EPSILON = 1e-8;
+
+	private DenseModel model;
+	private Objective objective;
+	private SocialRegularizer socialRegularizer;
+	private double beta;
+	private double lambda;
+	private double learningRate;
+
+	private int K;
+	private int userFeatureCount;
+	private int linkFeatureCount;
+	private int sampleCount;
+	private int edgeCount;
+
+	private double[] variables;
+	private double[] history;
+	private boolean[] frozen;
+
+	private double[] userRegularization;
+	private double[] linkRegularization;
+	private double userMatrixRegularization;
+	private double linkMatrixRegularization;
+
+	private int[] order;
+
+	/**
+	 * @param model
+	 * @param objective loss over a single prediction
+	 * @param socialRegularizer null to leave out the social edges
+	 * @param beta weight of the social term
+	 * @param lambda weight of the L2 term
+	 * @param learningRate Adagrad base step
+	 */
+	public StochasticOptimizer(DenseModel model, Objective objective, SocialRegularizer socialRegularizer, double beta, double lambda, double learningRate)
+	{
+		this.model = model;
+		this.objective = objective;
+		this.beta = beta;
+		this.lambda = lambda;
+		this.learningRate = learningRate;
+
+		K = model.getK();
+		userFeatureCount = model.getUserFeatureCount();
+		linkFeatureCount = model.getLinkFeatureCount();
+		sampleCount = model.getSampleCount();
+
+		if (socialRegularizer != null && model.getConnections() != null) {
+			this.socialRegularizer = socialRegularizer;
+			edgeCount = model.getEdgeUsers1().length;
+		}
+
+		variables = model.getVariables();
+		history = new double[variables.length];
+		frozen = model.getFrozen();
+
+		//Share of the L2 term taken on each item touching a variable
+		int[] sampleStart = model.getSampleStart();
+		int[] userEdgeStart = model.getUserEdgeStart();
+		userRegularization = new double[model.getUserCount()];
+		for (int u = 0; u < userRegularization.length; u++) {
+			int items = sampleStart[u + 1] - sampleStart[u];
+			if (edgeCount > 0) items += userEdgeStart[u + 1] - userEdgeStart[u];
+
+			userRegularization[u] = items > 0 ? lambda / items : 0;
+		}
+
+		int[] linkSampleStart = model.getLinkSampleStart();
+		linkRegularization = new double[model.getLinkCount()];
+		for (int l = 0; l < linkRegularization.length; l++) {
+			int items = linkSampleStart[l + 1] - linkSampleStart[l];
+			linkRegularization[l] = items > 0 ? lambda / items : 0;
+		}
+
+		userMatrixRegularization = sampleCount + edgeCount > 0 ? lambda / (sampleCount + edgeCount) : 0;
+		linkMatrixRegularization = sampleCount > 0 ? lambda / sampleCount : 0;
+
+		order = new int[sampleCount + edgeCount];
+		for (int x = 0; x < order.length; x++) {
+			order[x] = x;
+		}
+	}
+
+	/**
+	 * One pass over the samples and edges in a new random order. The model's traits and predictions are stale afterwards.
+	 *
+	 * @param executor
+	 * @param random
+	 */
+	public void runEpoch(GradientExecutor executor, Random random)
+	{
+		for (int x = order.length - 1; x > 0; x--) {
+			int y = random.nextInt(x + 1);
+			int swap = order[x];
+			order[x] = order[y];
+			order[y] = swap;
+		}
+
+		executor.execute(order.length, new GradientTask() {
+			public void run(int start, int end) {
+				double[] traits1 = new double[K];
+				double[] traits2 = new double[K];
+				double[] derivatives1 = new double[K];
+				double[] derivatives2 = new double[K];
+
+				for (int x = start; x < end; x++) {
+					int item = order[x];
+
+					if (item < sampleCount) {
+						updateSample(item, traits1, traits2);
+					}
+					else {
+						updateEdge(item - sampleCount, traits1, traits2, derivatives1, derivatives2);
+					}
+				}
+			}
+		});
+	}
+
+	private void updateSample(int s, double[] userTraits, double[] linkTraits)
+	{
+		int u = model.getSampleUsers()[s];
+		int l = model.getSampleLinks()[s];
+
+		getUserTraits(u, userTraits);
+		getLinkTraits(l, linkTraits);
+
+		double prediction = 0;
+		for (int x = 0; x < K; x++) {
+			prediction += userTraits[x] * linkTraits[x];
+		}
+
+		double e = objective.getDerivativeOverPrediction(prediction, model.getLabels()[s]);
+
+		double[] userFeatures = model.getUserFeatures();
+		double[] linkFeatures = model.getLinkFeatures();
+
+		for (int x = 0; x < K; x++) {
+			double userDerivative = e * linkTraits[x];
+			double linkDerivative = e * userTraits[x];
+
+			int index = model.userIdIndex(u, x);
+			step(index, userDerivative + userRegularization[u] * variables[index]);
+
+			index = model.linkIdIndex(l, x);
+			step(index, linkDerivative + linkRegularization[l] * variables[index]);
+
+			for (int y = 0; y < userFeatureCount; y++) {
+				index = model.userMatrixIndex(x, y);
+				step(index, userDerivative * userFeatures[u * userFeatureCount + y] + userMatrixRegularization * variables[index]);
+			}
+
+			for (int y = 0; y < linkFeatureCount; y++) {
+				index = model.linkMatrixIndex(x, y);
+				step(index, linkDerivative * linkFeatures[l * linkFeatureCount + y] + linkMatrixRegularization * variables[index]);
+			}
+		}
+	}
+
+	private void updateEdge(int e, double[] traits1, double[] traits2, double[] derivatives1, double[] derivatives2)
+	{
+		int i = model.getEdgeUsers1()[e];
+		int j = model.getEdgeUsers2()[e];
+
+		getUserTraits(i, traits1);
+		getUserTraits(j, traits2);
+
+		socialRegularizer.getEdgeDerivatives(traits1, traits2, model.getFriendConnections()[e], K, derivatives1, derivatives2);
+
+		double[] userFeatures = model.getUserFeatures();
+
+		for (int x = 0; x < K; x++) {
+			double derivative1 = beta * derivatives1[x];
+			double derivative2 = beta * derivatives2[x];
+
+			int index = model.userIdIndex(i, x);
+			step(index, derivative1 + userRegularization[i] * variables[index]);
+
+			index = model.userIdIndex(j, x);
+			step(index, derivative2 + userRegularization[j] * variables[index]);
+
+			for (int y = 0; y < userFeatureCount; y++) {
+				index = model.userMatrixIndex(x, y);
+				double derivative = derivative1 * userFeatures[i * userFeatureCount + y] + derivative2 * userFeatures[j * userFeatureCount + y];
+
+				step(index, derivative + userMatrixRegularization * variables[index]);
+			}
+		}
+	}
+
+	/**
+	 * s=Ux+u of one user from the current variables.
+	 */
+	private void getUserTraits(int u, double[] traits)
+	{
+		double[] features = model.getUserFeatures();
+
+		for (int x = 0; x < K; x++) {
+			double value = variables[model.userIdIndex(u, x)];
+
+			for (int y = 0; y < userFeatureCount; y++) {
+				value += variables[model.userMatrixIndex(x, y)] * features[u * userFeatureCount + y];
+			}
+
+			traits[x] = value;
+		}
+	}
+
+	/**
+	 * t=Vy+v of one link from the current variables.
+	 */
+	private void getLinkTraits(int l, double[] traits)
+	{
+		double[] features = model.getLinkFeatures();
+
+		for (int x = 0; x < K; x++) {
+			double value = variables[model.linkIdIndex(l, x)];
+
+			for (int y = 0; y < linkFeatureCount; y++) {
+				value += variables[model.linkMatrixIndex(x, y)] * features[l * linkFeatureCount + y];
+			}
+
+			traits[x] = value;
+		}
+	}
+
+	/**
+	 * Adagrad step of one variable. Racing workers may drop each other's updates, which SGD tolerates.
+	 */
+	private void step(int index, double derivative)
+	{
+		if (derivative == 0 || (frozen != null && frozen[index])) return;
+
+		double sum = history[index] + derivative * derivative;
+		history[index] = sum;
+
+		variables[index] -= learningRate * derivative / (Math.sqrt(sum) + ADAGRAD_EPSILON);
+	}
+}
@@ -0,0 +1,116 @@
+package org.nicta.lr.recommender;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the N highest scoring ids out of a stream of (id, score) offers, as a min-heap on primitive arrays.
+ * Each offer is O(log N) and nothing is boxed until the result is turned into a map.
+ * 
+ * As with the old linear rescan, a candidate only replaces the current lowest when it scores strictly higher.
+ */
+public class TopNSelector
+{
+	long[] ids;
+	double[] scores;
+	int size;
+	
+	public TopNSelector(int n)
+	{
+		ids = new long[Math.max(n, 0)];
+		scores = new double[ids.length];
+		size = 0;
+	}
+	
+	/**
+	 * Empties the selector so it can be reused, growing it if n is bigger than before.
+	 */
+	public void reset(int n)
+	{
+		if (n > ids.length) {
+			ids = new long[n];
+			scores = new double[n];
+		}
+		else if (n < ids.length) {
+			ids = new long[Math.max(n, 0)];
+			scores = new double[ids.length];
+		}
+		
+		size = 0;
+	}
+	
+	public void offer(long id, double score)
+	{
+		if (size < ids.length) {
+			//Sift up from the new leaf
+			int child = size++;
+			
+			while (child > 0) {
+				int parent = (child - 1) / 2;
+				if (scores[parent] <= score) break;
+				
+				ids[child] = ids[parent];
+				scores[child] = scores[parent];
+				child = parent;
+			}
+			
+			ids[child] = id;
+			scores[child] = score;
+		}
+		else if (size > 0 && score > scores[0]) {
+			//Replace the lowest and sift down
+			int parent = 0;
+			
+			while (true) {
+				int child = 2 * parent + 1;
+				if (child >= size) break;
+				if (child + 1 < size && scores[child + 1] < scores[child]) child++;
+				if (scores[child] >= score) break;
+				
+				ids[parent] = ids[child];
+				scores[parent] = scores[child];
+				parent = child;
+			}
+			
+			ids[parent] = id;
+			scores[parent] = score;
+		}
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	/**
+	 * Lowest score currently kept, only meaningful when size() > 0.
+	 */
+	public double getMinimum()
+	{
+		return scores[0];
+	}
+	
+	/**
+	 * Id at position i of the heap, 0 <= i < size(). Positions are in heap order, not sorted.
+	 */
+	public long getId(int i)
+	{
+		return ids[i];
+	}
+	
+	public double getScore(int i)
+	{
+		return scores[i];
+	}
+	
+	public Map<Long, Double> toMap()
+	{
+		HashMap<Long, Double> map = new HashMap<Long, Double>();
+		
+		for (int x = 0; x < size; x++) {
+			map.put(ids[x], scores[x]);
+		}
+		
+		return map;
+	}
+}
@@ -0,0 +1,174 @@
+package org.nicta.lr.recommender;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import gnu.trove.TLongIntHashMap;
+
+/**
+ * Trait vectors (s=Ux+u for users, t=Vy+v for links) of every user or link with features, kept in a flat row major
+ * double[] so serving calls can score without recomputing or boxing.
+ * 
+ * The cache is rebuilt lazily on the next refresh after invalidate() (the latent matrix or the set of ids changed), and
+ * only the listed rows are recomputed, in one batch, after invalidate(ids) (only those id columns changed).
+ */
+public class TraitCache
+{
+	int K;
+	
+	long[] ids;
+	TLongIntHashMap index;
+	double[] traits;
+	
+	boolean valid = false;
+	Set<Long> dirty = new HashSet<Long>();
+	
+	public TraitCache(int K)
+	{
+		this.K = K;
+	}
+	
+	/**
+	 * Marks every row stale, e.g. after training or loading a new matrix.
+	 */
+	public synchronized void invalidate()
+	{
+		valid = false;
+		dirty.clear();
+	}
+	
+	/**
+	 * Marks the rows of the given ids stale, e.g. after their id columns were replaced.
+	 */
+	public synchronized void invalidate(Collection<Long> changedIds)
+	{
+		if (valid) {
+			dirty.addAll(changedIds);
+		}
+	}
+	
+	/**
+	 * Brings the cache up to date with the matrix and id columns, recomputing only what was invalidated.
+	 * 
+	 * @param matrix
+	 * @param idColumns
+	 * @param features
+	 */
+	public synchronized void refresh(Double[][] matrix, Map<Long, Double[]> idColumns, Map<Long, Double[]> features)
+	{
+		if (valid && dirty.isEmpty()) return;
+		
+		if (valid) {
+			//Rows for ids that were not cached need a new index, so fall back to a full rebuild
+			for (long id : dirty) {
+				if (!index.containsKey(id) && features.containsKey(id) && idColumns.containsKey(id)) {
+					valid = false;
+					break;
+				}
+			}
+		}
+		
+		if (!valid) {
+			int count = 0;
+			for (long id : features.keySet()) {
+				if (idColumns.containsKey(id)) count++;
+			}
+			
+			ids = new long[count];
+			index = new TLongIntHashMap(count);
+			traits = new double[count * K];
+			
+			int row = 0;
+			for (long id : features.keySet()) {
+				if (!idColumns.containsKey(id)) continue;
+				
+				ids[row] = id;
+				index.put(id, row);
+				updateRow(row, matrix, idColumns.get(id), features.get(id));
+				row++;
+			}
+			
+			valid = true;
+		}
+		else {
+			for (long id : dirty) {
+				if (!index.containsKey(id)) continue;
+				
+				Double[] idColumn = idColumns.get(id);
+				Double[] feature = features.get(id);
+				
+				//A removed id keeps its row but can no longer be found
+				if (idColumn == null || feature == null) {
+					index.remove(id);
+					continue;
+				}
+				
+				updateRow(index.get(id), matrix, idColumn, feature);
+			}
+		}
+		
+		dirty.clear();
+	}
+	
+	private void updateRow(int row, Double[][] matrix, Double[] idColumn, Double[] feature)
+	{
+		int offset = row * K;
+		
+		for (int x = 0; x < K; x++) {
+			double value = 0;
+			
+			for (int y = 0; y < feature.length; y++) {
+				value += matrix[x][y] * feature[y];
+			}
+			
+			traits[offset + x] = value + idColumn[x];
+		}
+	}
+	
+	/**
+	 * Row of the id, or -1 if it has no cached traits.
+	 */
+	public int getIndex(long id)
+	{
+		return index.containsKey(id) ? index.get(id) : -1;
+	}
+	
+	/**
+	 * Dot product of a row of this cache with a row of another.
+	 */
+	public double dot(int row, TraitCache other, int otherRow)
+	{
+		double[] otherTraits = other.traits;
+		int offset = row * K;
+		int otherOffset = otherRow * K;
+		
+		double value = 0;
+		for (int x = 0; x < K; x++) {
+			value += traits[offset + x] * otherTraits[otherOffset + x];
+		}
+		
+		return value;
+	}
+	
+	public long[] getIds()
+	{
+		return ids;
+	}
+	
+	public double[] getTraits()
+	{
+		return traits;
+	}
+	
+	public int getK()
+	{
+		return K;
+	}
+	
+	public int size()
+	{
+		return ids.length;
+	}
+}
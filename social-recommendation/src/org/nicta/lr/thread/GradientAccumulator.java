@@ -0,0 +1,80 @@
+package org.nicta.lr.thread;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per worker gradient buffers for work that is split by data (samples, edges) rather than by output index,
+ * where two workers may add to the same gradient entry.
+ * 
+ * Each thread adds into its own primitive buffer, obtained through getBuffer, without any locking. Once every worker
+ * is done, reduce sums the buffers into the target and clears them for the next iteration. Buffers are kept for the
+ * life of the accumulator so repeated iterations do not allocate.
+ */
+public class GradientAccumulator
+{
+	private final int length;
+	private final List<double[]> buffers = new ArrayList<double[]>();
+	
+	private final ThreadLocal<double[]> localBuffer = new ThreadLocal<double[]>() {
+		protected double[] initialValue() {
+			double[] buffer = new double[length];
+			
+			synchronized (buffers) {
+				buffers.add(buffer);
+			}
+			
+			return buffer;
+		}
+	};
+	
+	public GradientAccumulator(int length)
+	{
+		this.length = length;
+	}
+	
+	/**
+	 * The calling thread's buffer. Only that thread may write to it until the next reduce.
+	 */
+	public double[] getBuffer()
+	{
+		return localBuffer.get();
+	}
+	
+	/**
+	 * Sets target to the sum of every worker's buffer and clears the buffers. Must only be called once the workers
+	 * that wrote to them have finished, e.g. after GradientExecutor.execute returns.
+	 */
+	public void reduce(double[] target)
+	{
+		reduce(target, 0, length);
+	}
+	
+	/**
+	 * reduce over the entries [start, end) only. Calls over disjoint ranges may run in parallel, e.g. split by
+	 * GradientExecutor.execute, for long buffers.
+	 */
+	public void reduce(double[] target, int start, int end)
+	{
+		Arrays.fill(target, start, end, 0);
+		
+		double[][] all;
+		synchronized (buffers) {
+			all = buffers.toArray(new double[buffers.size()][]);
+		}
+		
+		for (double[] buffer : all) {
+			for (int x = start; x < end; x++) {
+				target[x] += buffer[x];
+			}
+			
+			Arrays.fill(buffer, start, end, 0);
+		}
+	}
+	
+	public int getLength()
+	{
+		return length;
+	}
+}
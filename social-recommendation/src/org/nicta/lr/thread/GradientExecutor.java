@@ -0,0 +1,116 @@
+package org.nicta.lr.thread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.nicta.lr.util.Configuration;
+
+/**
+ * Fixed pool of worker threads shared by every recommender and training iteration.
+ * 
+ * A task over [0, count) is cut into chunks, a few per worker so that uneven chunks (e.g. users with many samples)
+ * balance out, and the call returns once every chunk is done.
+ */
+public class GradientExecutor
+{
+	private static final int CHUNKS_PER_THREAD = 4;
+	
+	private static GradientExecutor instance;
+	
+	private ExecutorService pool;
+	private int parallelism;
+	
+	public GradientExecutor(int parallelism)
+	{
+		this.parallelism = parallelism;
+		
+		pool = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "gradient");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Executor shared by all recommenders, with Configuration.GRADIENT_THREADS workers (or one per core when that is 0).
+	 */
+	public static synchronized GradientExecutor getInstance()
+	{
+		if (instance == null) {
+			int threads = Configuration.GRADIENT_THREADS > 0 ? Configuration.GRADIENT_THREADS : Runtime.getRuntime().availableProcessors();
+			instance = new GradientExecutor(threads);
+		}
+		
+		return instance;
+	}
+	
+	/**
+	 * Replaces the shared executor with one using the given number of workers.
+	 */
+	public static synchronized void setParallelism(int parallelism)
+	{
+		if (instance != null) {
+			instance.shutdown();
+		}
+		
+		instance = new GradientExecutor(parallelism);
+	}
+	
+	public int getParallelism()
+	{
+		return parallelism;
+	}
+	
+	/**
+	 * Runs the task over [0, count) and waits for it to finish.
+	 */
+	public void execute(int count, final GradientTask task)
+	{
+		int chunkCount = Math.min(count, parallelism * CHUNKS_PER_THREAD);
+		
+		if (chunkCount <= 1) {
+			task.run(0, count);
+			return;
+		}
+		
+		List<Callable<Object>> chunks = new ArrayList<Callable<Object>>(chunkCount);
+		
+		for (int c = 0; c < chunkCount; c++) {
+			final int start = (int)((long)count * c / chunkCount);
+			final int end = (int)((long)count * (c + 1) / chunkCount);
+			
+			chunks.add(new Callable<Object>() {
+				public Object call() {
+					task.run(start, end);
+					return null;
+				}
+			});
+		}
+		
+		try {
+			for (Future<Object> future : pool.invokeAll(chunks)) {
+				future.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	public void shutdown()
+	{
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,10 @@
+package org.nicta.lr.thread;
+
+/**
+ * A piece of gradient work over a range of indices (cells, users, links or weights) that can be split into chunks
+ * and run by the GradientExecutor.
+ */
+public interface GradientTask
+{
+	public void run(int start, int end);
+}
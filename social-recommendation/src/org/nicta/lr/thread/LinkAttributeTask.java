@@ -0,0 +1,32 @@
+package org.nicta.lr.thread;
+
+import org.nicta.lr.recommender.DenseModel;
+import org.nicta.lr.recommender.MFRecommender;
+
+/**
+ * Derivatives over a range of cells of the link feature matrix, in row major order.
+ */
+public class LinkAttributeTask implements GradientTask
+{
+	DenseModel model;
+	MFRecommender backpointer;
+	
+	public LinkAttributeTask(DenseModel model, MFRecommender backpointer)
+	{
+		this.model = model;
+		this.backpointer = backpointer;
+	}
+	
+	public void run(int start, int end)
+	{
+		double[] derivatives = model.getDerivatives();
+		int featureCount = model.getLinkFeatureCount();
+		
+		for (int cell = start; cell < end; cell++) {
+			int q = cell / featureCount;
+			int l = cell % featureCount;
+			
+			derivatives[model.linkMatrixIndex(q, l)] = backpointer.getErrorDerivativeOverLinkAttribute(model, q, l);	
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package org.nicta.lr.thread;
+
+import org.nicta.lr.recommender.DenseModel;
+import org.nicta.lr.recommender.MFRecommender;
+
+/**
+ * Derivatives over the id columns of a range of links.
+ */
+public class LinkIdTask implements GradientTask
+{
+	DenseModel model;
+	MFRecommender backpointer;
+	
+	public LinkIdTask(DenseModel model, MFRecommender backpointer)
+	{
+		this.model = model;
+		this.backpointer = backpointer;
+	}
+	
+	public void run(int start, int end)
+	{
+		double[] derivatives = model.getDerivatives();
+		int K = model.getK();
+		
+		for (int link = start; link < end; link++) {
+			for (int q = 0; q < K; q++) {
+				derivatives[model.linkIdIndex(link, q)] = backpointer.getErrorDerivativeOverLinkId(model, q, link);
+			}
+		}
+	}
+}
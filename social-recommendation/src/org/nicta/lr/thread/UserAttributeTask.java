@@ -0,0 +1,32 @@
+package org.nicta.lr.thread;
+
+import org.nicta.lr.recommender.DenseModel;
+import org.nicta.lr.recommender.MFRecommender;
+
+/**
+ * Derivatives over a range of cells of the user feature matrix, in row major order.
+ */
+public class UserAttributeTask implements GradientTask
+{
+	DenseModel model;
+	MFRecommender backpointer;
+	
+	public UserAttributeTask(DenseModel model, MFRecommender backpointer)
+	{
+		this.model = model;
+		this.backpointer = backpointer;
+	}
+	
+	public void run(int start, int end)
+	{
+		double[] derivatives = model.getDerivatives();
+		int featureCount = model.getUserFeatureCount();
+		
+		for (int cell = start; cell < end; cell++) {
+			int k = cell / featureCount;
+			int l = cell % featureCount;
+			
+			derivatives[model.userMatrixIndex(k, l)] = backpointer.getErrorDerivativeOverUserAttribute(model, k, l);	
+		}
+	}
+}
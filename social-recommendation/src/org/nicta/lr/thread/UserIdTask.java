@@ -0,0 +1,31 @@
+package org.nicta.lr.thread;
+
+import org.nicta.lr.recommender.DenseModel;
+import org.nicta.lr.recommender.MFRecommender;
+
+/**
+ * Derivatives over the id columns of a range of users.
+ */
+public class UserIdTask implements GradientTask
+{
+	DenseModel model;
+	MFRecommender backpointer;
+	
+	public UserIdTask(DenseModel model, MFRecommender backpointer)
+	{
+		this.model = model;
+		this.backpointer = backpointer;
+	}
+	
+	public void run(int start, int end)
+	{
+		double[] derivatives = model.getDerivatives();
+		int K = model.getK();
+		
+		for (int user = start; user < end; user++) {
+			for (int k = 0; k < K; k++) {
+				derivatives[model.userIdIndex(user, k)] = backpointer.getErrorDerivativeOverUserId(model, k, user);
+			}
+		}
+	}
+}
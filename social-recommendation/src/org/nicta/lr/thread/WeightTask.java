@@ -0,0 +1,30 @@
+package org.nicta.lr.thread;
+
+import org.nicta.lr.recommender.DenseModel;
+import org.nicta.lr.recommender.HybridRecommender;
+
+/**
+ * Derivatives over a range of the hybrid feature weights, reducing that range of the scattered per worker sums first.
+ */
+public class WeightTask implements GradientTask
+{
+	DenseModel model;
+	HybridRecommender backpointer;
+	
+	public WeightTask(DenseModel model, HybridRecommender backpointer)
+	{
+		this.model = model;
+		this.backpointer = backpointer;
+	}
+	
+	public void run(int start, int end)
+	{
+		backpointer.reduceWeightDerivatives(start, end);
+		
+		double[] derivatives = model.getDerivatives();
+		
+		for (int x = start; x < end; x++) {
+			derivatives[model.extraIndex(x)] = backpointer.getErrorDerivativeOverWeights(model, x);
+		}
+	}
+}
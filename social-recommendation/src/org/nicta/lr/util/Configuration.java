@@ -10,10 +10,58 @@ public class Configuration
 	public static final int TRAINING_WINDOW_RANGE = 30;
 	public static final int RECOMMENDING_WINDOW_RANGE = 14;
 	
+	//Social regularization only over friendship edges (plus this many sampled non-friend pairs per user) instead of all user pairs
+	public static boolean SPARSE_SOCIAL = false;
+	public static int SOCIAL_NEGATIVE_SAMPLES = 0;
+	
+	//Worker threads for gradient computation, 0 for one per core
+	public static int GRADIENT_THREADS = 0;
+	
+	//Rows per JDBC batch when saving models and recommendations
+	public static int SQL_BATCH_SIZE = 1000;
+	
+	//Fetch size for streamed reads on drivers other than MySQL, which always gets Integer.MIN_VALUE (see SQLUtil.getFetchSize),
+	//and tables read at once by InteractionLoader
+	public static int SQL_FETCH_SIZE = 1000;
+	public static int LOADER_THREADS = 4;
+	
+	//Ids bound per query and connections used at once by SQLUtil.fetchIn
+	public static int SQL_IN_CHUNK_SIZE = 1000;
+	public static int SQL_FETCH_THREADS = 4;
+	
+	//Pooled connections used by concurrent loaders, and how long (ms) a pooled connection may sit idle before it is validated
+	public static int SQL_POOL_SIZE = 8;
+	public static long SQL_POOL_VALIDATION_INTERVAL = 30000;
+	public static String DB_VALIDATION_QUERY = "SELECT 1";
+	
+	//Folder for binary model snapshots, loaded instead of the lrUserMatrix/lrLinkMatrix tables when present. null to disable.
+	public static String SNAPSHOT_FOLDER = null;
+	
+	//Retrain a model loaded from a snapshot on the new and changed likes only, then take a few attribute matrix steps over all samples
+	public static boolean INCREMENTAL_TRAINING = false;
+	public static int INCREMENTAL_ATTRIBUTE_STEPS = 5;
+	
+	//Train the MF recommenders by lock-free stochastic Adagrad epochs over the samples and social edges instead of full batch LBFGS
+	public static boolean STOCHASTIC_TRAINING = false;
+	public static int SGD_MAX_EPOCHS = 100;
+	public static double SGD_LEARNING_RATE = 0.2;
+	
+	//Train by alternating closed form solves of the user and link id columns, with a few LBFGS steps on the attribute matrices in between
+	public static boolean ALS_TRAINING = false;
+	public static int ALS_MAX_ITERATIONS = 30;
+	public static int ALS_ATTRIBUTE_STEPS = 3;
+	
+	//Copreference pairs kept per link by CopreferenceRecommender, sampled when a link has more. 0 to keep every pair
+	public static int COPREFERENCE_MAX_PAIRS_PER_LINK = 0;
+	
+	//Folder of the dataset snapshot written by DatasetSnapshot, read instead of the linkr* tables when present. null to disable.
+	public static String DATASET_FOLDER = null;
+	
 	public static String DEPLOYMENT_TYPE = Constants.TEST;
 	public static boolean INITIALIZE = true;
 	
 	public static String DB_STRING = Constants.SCOTT_DB_STRING;
+	public static String DB_DRIVER = "com.mysql.jdbc.Driver";
 	public static String LANG_PROFILE_FOLDER = Constants.LOCAL_LANG_PROFILE_FOLDER;
 	
 	public static String TRAINING_DATA = Constants.ACTIVE;
@@ -0,0 +1,296 @@
+package org.nicta.lr.util;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Small bounded pool of JDBC connections, leased per thread.
+ *
+ * A thread leases at most one connection: leasing again from the same thread returns the same connection and needs a
+ * matching release, so helpers can lease around code that may already hold the connection. While a thread holds a lease
+ * current() returns it, which is how SQLUtil.getStatement() runs on the thread's own connection.
+ *
+ * Idle connections that haven't been used for validationInterval ms are checked with the validation query before they
+ * are handed out, and dropped if it fails. The pool only needs a JDBC url, so it works the same against MySQL or an
+ * embedded database (e.g. with Configuration.DB_DRIVER and DB_STRING pointed at an in-memory database).
+ */
+public class ConnectionPool
+{
+	private String url;
+	private int maxSize;
+	private String validationQuery;
+	private long validationInterval;
+
+	private Semaphore permits;
+	private LinkedList<IdleConnection> idle = new LinkedList<IdleConnection>();
+	private ThreadLocal<Lease> leases = new ThreadLocal<Lease>();
+	private volatile boolean closed = false;
+
+	public ConnectionPool(String url, int maxSize, String validationQuery, long validationInterval)
+	{
+		this.url = url;
+		this.maxSize = maxSize;
+		this.validationQuery = validationQuery;
+		this.validationInterval = validationInterval;
+
+		permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * Leases a connection to the calling thread, waiting for one to be released if the pool is exhausted.
+	 *
+	 * @return
+	 * @throws SQLException
+	 */
+	public Connection lease()
+		throws SQLException
+	{
+		Lease lease = leases.get();
+		if (lease != null) {
+			lease.depth++;
+			return lease.connection;
+		}
+
+		checkOpen();
+
+		try {
+			permits.acquire();
+		}
+		catch (InterruptedException e) {
+			throw new SQLException("Interrupted while waiting for a connection", e);
+		}
+
+		return leaseWithPermit();
+	}
+
+	/**
+	 * Leases a connection to the calling thread if one is free, otherwise returns null straight away.
+	 *
+	 * @return
+	 * @throws SQLException
+	 */
+	public Connection tryLease()
+		throws SQLException
+	{
+		Lease lease = leases.get();
+		if (lease != null) {
+			lease.depth++;
+			return lease.connection;
+		}
+
+		checkOpen();
+
+		if (!permits.tryAcquire()) return null;
+
+		return leaseWithPermit();
+	}
+
+	private Connection leaseWithPermit()
+		throws SQLException
+	{
+		try {
+			Connection conn = takeIdle();
+			if (conn == null) {
+				conn = open();
+			}
+
+			leases.set(new Lease(conn));
+			return conn;
+		}
+		catch (SQLException e) {
+			permits.release();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Releases the calling thread's lease. The connection goes back to the pool, with any open transaction rolled back,
+	 * once the outermost lease is released.
+	 *
+	 * @param conn
+	 */
+	public void release(Connection conn)
+	{
+		Lease lease = leases.get();
+		if (lease == null || lease.connection != conn) {
+			throw new IllegalStateException("Connection is not leased by this thread");
+		}
+
+		if (--lease.depth > 0) return;
+
+		leases.remove();
+
+		try {
+			if (closed) {
+				conn.close();
+			}
+			else {
+				if (!conn.getAutoCommit()) {
+					conn.rollback();
+					conn.setAutoCommit(true);
+				}
+				if (conn.isReadOnly()) {
+					conn.setReadOnly(false);
+				}
+
+				synchronized (idle) {
+					idle.addLast(new IdleConnection(conn));
+				}
+			}
+		}
+		catch (SQLException e) {
+			e.printStackTrace();
+			closeQuietly(conn);
+		}
+		finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Connection leased by the calling thread, or null.
+	 */
+	public Connection current()
+	{
+		Lease lease = leases.get();
+		return lease != null ? lease.connection : null;
+	}
+
+	/**
+	 * Closes the idle connections. Leased connections are closed when they are released.
+	 */
+	public void close()
+	{
+		closed = true;
+
+		synchronized (idle) {
+			for (IdleConnection conn : idle) {
+				closeQuietly(conn.connection);
+			}
+			idle.clear();
+		}
+	}
+
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	public int getLeasedCount()
+	{
+		return maxSize - permits.availablePermits();
+	}
+
+	public int getIdleCount()
+	{
+		synchronized (idle) {
+			return idle.size();
+		}
+	}
+
+	/**
+	 * Most recently used idle connection that is still valid, or null if there is none.
+	 */
+	private Connection takeIdle()
+	{
+		while (true) {
+			IdleConnection candidate;
+			synchronized (idle) {
+				if (idle.isEmpty()) return null;
+				candidate = idle.removeLast();
+			}
+
+			if (isValid(candidate)) {
+				return candidate.connection;
+			}
+
+			System.out.println("Dropping invalid pooled connection");
+			closeQuietly(candidate.connection);
+		}
+	}
+
+	private boolean isValid(IdleConnection candidate)
+	{
+		try {
+			if (candidate.connection.isClosed()) return false;
+			if (System.currentTimeMillis() - candidate.idleSince < validationInterval) return true;
+
+			Statement statement = candidate.connection.createStatement();
+			try {
+				ResultSet result = statement.executeQuery(validationQuery);
+				result.close();
+			}
+			finally {
+				statement.close();
+			}
+
+			return true;
+		}
+		catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private Connection open()
+		throws SQLException
+	{
+		try {
+			Class.forName(Configuration.DB_DRIVER);
+		}
+		catch (ClassNotFoundException ce) {
+			throw new SQLException("JDBC driver not found: " + Configuration.DB_DRIVER);
+		}
+
+		return DriverManager.getConnection(url);
+	}
+
+	private void checkOpen()
+		throws SQLException
+	{
+		if (closed) {
+			throw new SQLException("Connection pool is closed");
+		}
+	}
+
+	private static void closeQuietly(Connection conn)
+	{
+		try {
+			conn.close();
+		}
+		catch (SQLException e) {
+			//already unusable
+		}
+	}
+
+	private static class Lease
+	{
+		Connection connection;
+		int depth = 1;
+
+		Lease(Connection connection)
+		{
+			this.connection = connection;
+		}
+	}
+
+	private static class IdleConnection
+	{
+		Connection connection;
+		long idleSince;
+
+		IdleConnection(Connection connection)
+		{
+			this.connection = connection;
+			idleSince = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package org.nicta.lr.util;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Checks ConnectionPool leasing and validation, SQLUtil.runConcurrently and SQLUtil.fetchIn against an embedded database.
+ *
+ * The database is picked through Configuration.DB_DRIVER and DB_STRING, an in-memory H2 database by default, so the
+ * driver's jar has to be on the classpath: java org.nicta.lr.util.ConnectionPoolTest [driver] [url]
+ */
+public class ConnectionPoolTest
+{
+	public static void main(String[] args)
+		throws Exception
+	{
+		Configuration.DB_DRIVER = args.length > 0 ? args[0] : "org.h2.Driver";
+		Configuration.DB_STRING = args.length > 1 ? args[1] : "jdbc:h2:mem:lrConnectionPool;DB_CLOSE_DELAY=-1";
+		Configuration.DATASET_FOLDER = null;
+
+		Statement statement = SQLUtil.getStatement();
+		statement.executeUpdate("CREATE TABLE lrPoolTest (id BIGINT, value BIGINT)");
+		for (long id = 0; id < 5000; id++) {
+			statement.executeUpdate("INSERT INTO lrPoolTest VALUES(" + id + "," + (id * 3) + ")");
+		}
+		statement.close();
+		SQLUtil.commit();
+
+		checkLeasing();
+		checkValidation();
+		checkRunConcurrently();
+		checkFetchIn();
+
+		SQLUtil.closeSqlConnection();
+		SQLUtil.closePool();
+
+		System.out.println("OK");
+	}
+
+	/**
+	 * A thread gets its own connection back when it leases again, the pool never hands out more than its size, and a
+	 * released connection is reused with its open transaction rolled back.
+	 */
+	private static void checkLeasing()
+		throws Exception
+	{
+		System.out.println("Leasing");
+		final ConnectionPool pool = new ConnectionPool(Configuration.DB_STRING, 2, Configuration.DB_VALIDATION_QUERY, 30000);
+
+		Connection conn = pool.lease();
+		check(pool.lease() == conn, "a second lease on the same thread gave another connection");
+		check(pool.current() == conn, "current() is not the leased connection");
+		check(pool.getLeasedCount() == 1, "leased count " + pool.getLeasedCount());
+
+		conn.setAutoCommit(false);
+		Statement statement = conn.createStatement();
+		statement.executeUpdate("INSERT INTO lrPoolTest VALUES(-1, -1)");
+		statement.close();
+
+		pool.release(conn);
+		check(pool.current() == conn, "the inner release ended the lease");
+		pool.release(conn);
+		check(pool.current() == null && pool.getIdleCount() == 1, "the outer release didn't return the connection");
+		check(count("SELECT COUNT(*) FROM lrPoolTest WHERE id = -1") == 0, "the released connection's transaction was kept");
+
+		//Two other threads hold both connections, so a third can't get one
+		final CountDownLatch leased = new CountDownLatch(2);
+		final CountDownLatch done = new CountDownLatch(1);
+		List<Thread> holders = new ArrayList<Thread>();
+		for (int t = 0; t < 2; t++) {
+			Thread holder = new Thread() {
+				public void run() {
+					try {
+						Connection held = pool.lease();
+						leased.countDown();
+						done.await();
+						pool.release(held);
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			holder.start();
+			holders.add(holder);
+		}
+
+		leased.await();
+		check(pool.getLeasedCount() == 2, "leased count " + pool.getLeasedCount());
+		check(pool.tryLease() == null, "leased more connections than the pool size");
+
+		done.countDown();
+		for (Thread holder : holders) {
+			holder.join();
+		}
+
+		check(pool.getLeasedCount() == 0 && pool.getIdleCount() == 2, "connections not returned: " + pool.getIdleCount() + " idle");
+		pool.close();
+	}
+
+	/**
+	 * Idle connections that are closed or fail the validation query are dropped instead of handed out.
+	 */
+	private static void checkValidation()
+		throws Exception
+	{
+		System.out.println("Validation");
+		ConnectionPool pool = new ConnectionPool(Configuration.DB_STRING, 2, Configuration.DB_VALIDATION_QUERY, 0);
+
+		Connection conn = pool.lease();
+		pool.release(conn);
+		check(pool.lease() == conn, "a valid idle connection was not reused");
+		pool.release(conn);
+
+		conn.close();
+		Connection replacement = pool.lease();
+		check(replacement != conn && !replacement.isClosed(), "a closed idle connection was handed out");
+		pool.release(replacement);
+		pool.close();
+
+		ConnectionPool failing = new ConnectionPool(Configuration.DB_STRING, 2, "SELECT * FROM lrNoSuchTable", 0);
+		conn = failing.lease();
+		failing.release(conn);
+		replacement = failing.lease();
+		check(replacement != conn, "a connection that failed validation was handed out");
+		failing.release(replacement);
+		failing.close();
+	}
+
+	/**
+	 * The results come back in task order, and the tasks run on more than one connection.
+	 */
+	private static void checkRunConcurrently()
+		throws Exception
+	{
+		System.out.println("runConcurrently");
+		final Set<Connection> connections = new HashSet<Connection>();
+
+		List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+		for (int t = 0; t < 12; t++) {
+			final long id = t * 100;
+			tasks.add(new Callable<Long>() {
+				public Long call()
+					throws SQLException
+				{
+					Statement statement = SQLUtil.getStatement();
+					synchronized (connections) {
+						connections.add(statement.getConnection());
+					}
+
+					ResultSet result = statement.executeQuery("SELECT value FROM lrPoolTest WHERE id = " + id);
+					result.next();
+					long value = result.getLong(1);
+					statement.close();
+
+					try {
+						Thread.sleep(20);
+					}
+					catch (InterruptedException e) {
+						//only spreads the tasks over the threads
+					}
+
+					return value;
+				}
+			});
+		}
+
+		List<Long> results = SQLUtil.runConcurrently(tasks, 4);
+
+		for (int t = 0; t < 12; t++) {
+			check(results.get(t) == t * 300, "result " + t + " is " + results.get(t));
+		}
+		check(connections.size() > 1, "the tasks all ran on one connection");
+		check(SQLUtil.getPool().getLeasedCount() == 0, "runConcurrently kept a lease");
+	}
+
+	/**
+	 * Every id is fetched exactly once over several chunks and connections, including a padded last chunk.
+	 */
+	private static void checkFetchIn()
+		throws Exception
+	{
+		System.out.println("fetchIn");
+		Configuration.SQL_IN_CHUNK_SIZE = 100;
+		Configuration.SQL_FETCH_THREADS = 4;
+
+		Set<Long> ids = new HashSet<Long>();
+		for (long id = 0; id < 5000; id += 2) {
+			ids.add(id);
+		}
+		ids.add(100000L); //not in the table
+
+		final Set<Long> fetched = new HashSet<Long>();
+		final long[] rows = new long[1];
+
+		SQLUtil.fetchIn("SELECT id, value FROM lrPoolTest WHERE id IN (?)", ids, new SQLUtil.RowHandler() {
+			public void handle(ResultSet result)
+				throws SQLException
+			{
+				long id = result.getLong(1);
+				check(result.getLong(2) == id * 3, "wrong value for " + id);
+
+				fetched.add(id);
+				rows[0]++;
+			}
+		});
+
+		check(rows[0] == 2500 && fetched.size() == 2500, "fetched " + rows[0] + " rows, " + fetched.size() + " ids");
+		check(SQLUtil.getPool().getLeasedCount() == 0, "fetchIn kept a lease");
+	}
+
+	private static long count(String query)
+		throws SQLException
+	{
+		Statement statement = SQLUtil.getStatement();
+		ResultSet result = statement.executeQuery(query);
+		result.next();
+		long count = result.getLong(1);
+		statement.close();
+
+		return count;
+	}
+
+	private static void check(boolean condition, String message)
+	{
+		if (!condition) {
+			System.out.println("FAIL: " + message);
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package org.nicta.lr.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import gnu.trove.TIntArrayList;
+
+/**
+ * Packed copreferences: for every liked link, the pairs of training users that were both sampled the link, with a
+ * value of 1 if they agree on it (both liked it or neither did) and 0 otherwise.
+ *
+ * The samples are first inverted into per link lists of the users that were sampled it, so pairs are only generated
+ * among those users instead of testing every pair of training users for every link. The pairs are kept grouped by
+ * link in parallel int arrays over dense link and user ids, user1 always coming before user2 in the order of
+ * userLinkSamples.keySet().
+ *
+ * Links with more than maxPairsPerLink pairs keep a random sample of that many pairs, which bounds memory for links
+ * sampled by many users.
+ */
+public class CopreferenceIndex
+{
+	private long[] linkIds;
+	private long[] userIds;
+
+	private int[] linkStart;
+	private int[] users1;
+	private int[] users2;
+	private double[] values;
+
+	/**
+	 * @param linkLikes
+	 * @param userLinkSamples
+	 * @param maxPairsPerLink 0 to keep every pair
+	 * @param random used to sample the pairs of links over the cap
+	 */
+	public CopreferenceIndex(Map<Long, Set<Long>> linkLikes, Map<Long, Set<Long>> userLinkSamples, int maxPairsPerLink, Random random)
+	{
+		userIds = new long[userLinkSamples.size()];
+		int u = 0;
+		for (long userId : userLinkSamples.keySet()) {
+			userIds[u++] = userId;
+		}
+
+		//Users sampled each liked link, in increasing user order
+		HashMap<Long, TIntArrayList> linkUsers = new HashMap<Long, TIntArrayList>();
+		for (u = 0; u < userIds.length; u++) {
+			for (long linkId : userLinkSamples.get(userIds[u])) {
+				if (!linkLikes.containsKey(linkId)) continue;
+
+				TIntArrayList users = linkUsers.get(linkId);
+				if (users == null) {
+					users = new TIntArrayList();
+					linkUsers.put(linkId, users);
+				}
+				users.add(u);
+			}
+		}
+
+		long[] links = new long[linkUsers.size()];
+		int linkCount = 0;
+		long pairCount = 0;
+		for (long linkId : linkUsers.keySet()) {
+			long pairs = getPairCount(linkUsers.get(linkId).size(), maxPairsPerLink);
+			if (pairs == 0) continue;
+
+			links[linkCount++] = linkId;
+			pairCount += pairs;
+		}
+
+		if (pairCount > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Too many copreferences (" + pairCount + "), set a pair cap per link");
+		}
+
+		linkIds = Arrays.copyOf(links, linkCount);
+		Arrays.sort(linkIds);
+
+		linkStart = new int[linkCount + 1];
+		users1 = new int[(int)pairCount];
+		users2 = new int[(int)pairCount];
+		values = new double[(int)pairCount];
+
+		int t = 0;
+		for (int l = 0; l < linkCount; l++) {
+			linkStart[l] = t;
+
+			int[] users = linkUsers.get(linkIds[l]).toNativeArray();
+			Set<Long> likes = linkLikes.get(linkIds[l]);
+
+			boolean[] liked = new boolean[users.length];
+			for (int x = 0; x < users.length; x++) {
+				liked[x] = likes.contains(userIds[users[x]]);
+			}
+
+			long pairs = (long)users.length * (users.length - 1) / 2;
+
+			if (maxPairsPerLink <= 0 || pairs <= maxPairsPerLink) {
+				for (int a = 0; a < users.length - 1; a++) {
+					for (int b = a + 1; b < users.length; b++) {
+						t = addPair(t, users, liked, a, b);
+					}
+				}
+			}
+			else {
+				long[] sample = samplePairs(users.length, maxPairsPerLink, random);
+				for (int x = 0; x < sample.length; x++) {
+					t = addPair(t, users, liked, (int)(sample[x] / users.length), (int)(sample[x] % users.length));
+				}
+			}
+		}
+		linkStart[linkCount] = t;
+
+		System.out.println("link copreference count: " + linkCount);
+		System.out.println("total copreferences count: " + t);
+	}
+
+	private int addPair(int t, int[] users, boolean[] liked, int a, int b)
+	{
+		users1[t] = users[a];
+		users2[t] = users[b];
+		values[t] = liked[a] == liked[b] ? 1 : 0;
+
+		return t + 1;
+	}
+
+	private static long getPairCount(int users, int maxPairsPerLink)
+	{
+		long pairs = (long)users * (users - 1) / 2;
+		return maxPairsPerLink > 0 ? Math.min(pairs, maxPairsPerLink) : pairs;
+	}
+
+	/**
+	 * count distinct pairs a < b out of n users, as sorted a * n + b keys. Rejection sampling when the pairs are sparse,
+	 * a reservoir over every pair otherwise, so either way the cost is O(count).
+	 */
+	private static long[] samplePairs(int n, int count, Random random)
+	{
+		long total = (long)n * (n - 1) / 2;
+		long[] sample = new long[count];
+
+		if (total > 2L * count) {
+			HashSet<Long> seen = new HashSet<Long>();
+			int found = 0;
+
+			while (found < count) {
+				int a = random.nextInt(n);
+				int b = random.nextInt(n);
+				if (a == b) continue;
+
+				long key = (long)Math.min(a, b) * n + Math.max(a, b);
+				if (seen.add(key)) {
+					sample[found++] = key;
+				}
+			}
+		}
+		else {
+			long seen = 0;
+			for (int a = 0; a < n - 1; a++) {
+				for (int b = a + 1; b < n; b++) {
+					long key = (long)a * n + b;
+
+					if (seen < count) {
+						sample[(int)seen] = key;
+					}
+					else {
+						long slot = (long)(random.nextDouble() * (seen + 1));
+						if (slot < count) sample[(int)slot] = key;
+					}
+					seen++;
+				}
+			}
+		}
+
+		Arrays.sort(sample);
+		return sample;
+	}
+
+	public int getCount()
+	{
+		return values.length;
+	}
+
+	public int getLinkCount()
+	{
+		return linkIds.length;
+	}
+
+	public long getLinkId(int link)
+	{
+		return linkIds[link];
+	}
+
+	/**
+	 * Dense id of a link, -1 if it has no copreferences.
+	 */
+	public int getLinkIndex(long linkId)
+	{
+		int index = Arrays.binarySearch(linkIds, linkId);
+		return index >= 0 ? index : -1;
+	}
+
+	/**
+	 * Copreferences of a link are [getLinkStart(link), getLinkStart(link + 1)).
+	 */
+	public int getLinkStart(int link)
+	{
+		return linkStart[link];
+	}
+
+	public long getUser1(int t)
+	{
+		return userIds[users1[t]];
+	}
+
+	public long getUser2(int t)
+	{
+		return userIds[users2[t]];
+	}
+
+	public double getValue(int t)
+	{
+		return values[t];
+	}
+
+	/**
+	 * The copreferences as link -> user1 -> user2 -> value, the form the Map based regularizer methods take.
+	 */
+	public Map<Long, Map<Long, Map<Long, Double>>> toMap()
+	{
+		HashMap<Long, Map<Long, Map<Long, Double>>> copreferences = new HashMap<Long, Map<Long, Map<Long, Double>>>();
+
+		for (int l = 0; l < linkIds.length; l++) {
+			HashMap<Long, Map<Long, Double>> linkCopreferences = new HashMap<Long, Map<Long, Double>>();
+			copreferences.put(linkIds[l], linkCopreferences);
+
+			for (int t = linkStart[l]; t < linkStart[l + 1]; t++) {
+				Map<Long, Double> userCopreferences = linkCopreferences.get(getUser1(t));
+				if (userCopreferences == null) {
+					userCopreferences = new HashMap<Long, Double>();
+					linkCopreferences.put(getUser1(t), userCopreferences);
+				}
+
+				userCopreferences.put(getUser2(t), values[t]);
+			}
+		}
+
+		return copreferences;
+	}
+}
@@ -0,0 +1,630 @@
+package org.nicta.lr.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Local columnar copy of the linkr* tables read by UserUtil, LinkUtil and InteractionLoader, so runs can start
+ * without the database and always see the same data. That includes every table UserUtil.getFriendInteractionMeasure
+ * counts. The group, demographic and name tables read by ExtractRelTables and the data generators are not in it yet.
+ *
+ * Layout of Configuration.DATASET_FOLDER/dataset.lrds (big endian):
+ *   header: magic, version, export time (ms), directory offset
+ *   column blocks
+ *   directory: table count, then per table its name, row count, column count and per column its name, type, offset and length
+ *
+ * Columns are stored one after the other so a reader only maps the columns it asks for. Id and time columns are
+ * delta encoded zigzag varints (ids mostly come out in increasing order, so most take one or two bytes instead of
+ * eight), doubles are raw, and strings are a varint length then UTF-8 bytes.
+ *
+ * Times are relative to the export, so e.g. the training window of LinkUtil.getLinkIds ends on the export day.
+ */
+public class DatasetSnapshot
+{
+	public static final int MAGIC = 0x4C524453; //"LRDS"
+	public static final int VERSION = 1;
+	public static final String FILE_NAME = "dataset.lrds";
+
+	static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+	public static final byte LONG = 0;
+	public static final byte DOUBLE = 1;
+	public static final byte STRING = 2;
+	public static final byte TIME = 3;
+
+	private static DatasetSnapshot current = null;
+	private static boolean checked = false;
+
+	private long exportTime;
+	private Map<String, Table> tables = new HashMap<String, Table>();
+
+	private DatasetSnapshot(long exportTime)
+	{
+		this.exportTime = exportTime;
+	}
+
+	/**
+	 * Snapshot in Configuration.DATASET_FOLDER, or null if there is none (or it can't be read), in which case
+	 * callers read the database as usual.
+	 *
+	 * @return
+	 */
+	public static synchronized DatasetSnapshot get()
+	{
+		if (!checked) {
+			checked = true;
+
+			File file = getFile();
+			if (file != null && file.exists()) {
+				try {
+					current = open(file);
+					System.out.println("Reading tables from dataset snapshot " + file);
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		return current;
+	}
+
+	/**
+	 * Forgets the snapshot, so the next get() looks at Configuration.DATASET_FOLDER again.
+	 */
+	public static synchronized void reset()
+	{
+		current = null;
+		checked = false;
+	}
+
+	public static File getFile()
+	{
+		if (Configuration.DATASET_FOLDER == null) return null;
+
+		return new File(Configuration.DATASET_FOLDER, FILE_NAME);
+	}
+
+	/**
+	 * Table of the configured snapshot, or null if there is no snapshot or it doesn't have the table.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static Table getSnapshotTable(String name)
+	{
+		DatasetSnapshot snapshot = get();
+		return snapshot != null ? snapshot.getTable(name) : null;
+	}
+
+	/**
+	 * Maps the columns of an existing snapshot file read only.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static DatasetSnapshot open(File file)
+		throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			if (raf.readInt() != MAGIC) {
+				throw new IOException("Not a dataset snapshot");
+			}
+			int version = raf.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported dataset snapshot version " + version);
+			}
+
+			DatasetSnapshot snapshot = new DatasetSnapshot(raf.readLong());
+			long directoryOffset = raf.readLong();
+
+			FileChannel channel = raf.getChannel();
+			raf.seek(directoryOffset);
+
+			int tableCount = raf.readInt();
+			for (int t = 0; t < tableCount; t++) {
+				String name = raf.readUTF();
+				int rowCount = raf.readInt();
+				int columnCount = raf.readInt();
+
+				String[] columns = new String[columnCount];
+				byte[] types = new byte[columnCount];
+				ByteBuffer[] data = new ByteBuffer[columnCount];
+
+				for (int c = 0; c < columnCount; c++) {
+					columns[c] = raf.readUTF();
+					types[c] = raf.readByte();
+					long offset = raf.readLong();
+					long length = raf.readLong();
+
+					data[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+				}
+
+				snapshot.tables.put(name, new Table(name, rowCount, columns, types, data));
+			}
+
+			return snapshot;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	public long getExportTime()
+	{
+		return exportTime;
+	}
+
+	public Table getTable(String name)
+	{
+		return tables.get(name);
+	}
+
+	public Set<String> getTableNames()
+	{
+		return tables.keySet();
+	}
+
+	/**
+	 * Start of the day the snapshot was exported, minus the given number of days. Stands in for ADDDATE(CURRENT_DATE(), -days).
+	 *
+	 * @param days
+	 * @return
+	 */
+	public long getDaysBeforeExport(int days)
+	{
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(exportTime);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.add(Calendar.DATE, -days);
+
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * One exported table, decoded a column at a time.
+	 */
+	public static class Table
+	{
+		private String name;
+		private int rowCount;
+		private String[] columns;
+		private byte[] types;
+		private ByteBuffer[] data;
+
+		Table(String name, int rowCount, String[] columns, byte[] types, ByteBuffer[] data)
+		{
+			this.name = name;
+			this.rowCount = rowCount;
+			this.columns = columns;
+			this.types = types;
+			this.data = data;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public int getRowCount()
+		{
+			return rowCount;
+		}
+
+		/**
+		 * Values of an id or time column in row order.
+		 */
+		public long[] getLongs(String column)
+		{
+			int c = getColumn(column, LONG, TIME);
+			ByteBuffer buffer = data[c].duplicate();
+
+			long[] values = new long[rowCount];
+			long previous = 0;
+
+			for (int row = 0; row < rowCount; row++) {
+				long delta = readVarLong(buffer);
+				previous += (delta >>> 1) ^ -(delta & 1);
+				values[row] = previous;
+			}
+
+			return values;
+		}
+
+		public double[] getDoubles(String column)
+		{
+			int c = getColumn(column, DOUBLE, DOUBLE);
+			ByteBuffer buffer = data[c].duplicate();
+
+			double[] values = new double[rowCount];
+			for (int row = 0; row < rowCount; row++) {
+				values[row] = buffer.getDouble();
+			}
+
+			return values;
+		}
+
+		/**
+		 * Values of a string column in row order, with null for SQL NULL.
+		 */
+		public String[] getStrings(String column)
+		{
+			int c = getColumn(column, STRING, STRING);
+			ByteBuffer buffer = data[c].duplicate();
+
+			String[] values = new String[rowCount];
+			byte[] bytes = new byte[256];
+
+			for (int row = 0; row < rowCount; row++) {
+				int length = (int)readVarLong(buffer) - 1;
+				if (length < 0) continue;
+
+				if (length > bytes.length) {
+					bytes = new byte[Math.max(length, bytes.length * 2)];
+				}
+				buffer.get(bytes, 0, length);
+
+				values[row] = decode(bytes, length);
+			}
+
+			return values;
+		}
+
+		private int getColumn(String column, byte type, byte alternative)
+		{
+			for (int c = 0; c < columns.length; c++) {
+				if (columns[c].equals(column)) {
+					if (types[c] != type && types[c] != alternative) {
+						throw new IllegalArgumentException("Column " + name + "." + column + " has type " + types[c]);
+					}
+					return c;
+				}
+			}
+
+			throw new IllegalArgumentException("No column " + column + " in " + name);
+		}
+	}
+
+	/**
+	 * Reads every table the UserUtil/LinkUtil/InteractionLoader methods use from the database and writes them to
+	 * folder/dataset.lrds. Tables are read Configuration.LOADER_THREADS at a time, each streamed on its own connection.
+	 * The file is written next to the target and renamed over it, so readers never map a half written file.
+	 *
+	 * @param folder
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public static void export(File folder)
+		throws SQLException, IOException
+	{
+		final List<ExportTable> exports = getExportTables();
+
+		List<Callable<ColumnData[]>> tasks = new ArrayList<Callable<ColumnData[]>>();
+		for (final ExportTable export : exports) {
+			tasks.add(new Callable<ColumnData[]>() {
+				public ColumnData[] call()
+					throws SQLException, IOException
+				{
+					return readTable(export);
+				}
+			});
+		}
+
+		List<ColumnData[]> tableData = SQLUtil.runConcurrently(tasks, Configuration.LOADER_THREADS);
+
+		folder.mkdirs();
+		File file = new File(folder, FILE_NAME);
+		File temp = new File(folder, FILE_NAME + ".tmp");
+
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			raf.setLength(0);
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeLong(System.currentTimeMillis());
+			raf.writeLong(0); //directory offset, filled in below
+
+			long[][] offsets = new long[exports.size()][];
+			for (int t = 0; t < exports.size(); t++) {
+				ColumnData[] columns = tableData.get(t);
+				offsets[t] = new long[columns.length];
+
+				for (int c = 0; c < columns.length; c++) {
+					offsets[t][c] = raf.getFilePointer();
+					columns[c].bytes.writeTo(new RandomAccessOutput(raf));
+				}
+			}
+
+			long directoryOffset = raf.getFilePointer();
+			raf.writeInt(exports.size());
+
+			for (int t = 0; t < exports.size(); t++) {
+				ExportTable export = exports.get(t);
+				ColumnData[] columns = tableData.get(t);
+
+				raf.writeUTF(export.name);
+				raf.writeInt(columns.length > 0 ? columns[0].rowCount : 0);
+				raf.writeInt(columns.length);
+
+				for (int c = 0; c < columns.length; c++) {
+					raf.writeUTF(export.columns[c]);
+					raf.writeByte(export.types[c]);
+					raf.writeLong(offsets[t][c]);
+					raf.writeLong(columns[c].bytes.size());
+				}
+			}
+
+			raf.seek(HEADER_SIZE - 8);
+			raf.writeLong(directoryOffset);
+		}
+		finally {
+			raf.close();
+		}
+
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Could not replace " + file);
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Could not rename " + temp + " to " + file);
+		}
+
+		System.out.println("Exported " + exports.size() + " tables to " + file + " (" + file.length() + " bytes)");
+	}
+
+	/**
+	 * Tables and columns in the snapshot. linkrLinkInfo holds the linkrLinks/linkrLinkInfo join of LinkUtil.getLinkFeatures,
+	 * keyed by link_id. The interaction tables are exported with InteractionLoader's query for their type, and the tables
+	 * only UserUtil.getFriendInteractionMeasure reads are added with the columns it counts. linkrPost holds only the posts
+	 * of other applications, the ones the interaction measure counts.
+	 */
+	private static List<ExportTable> getExportTables()
+	{
+		List<ExportTable> exports = new ArrayList<ExportTable>();
+
+		exports.add(new ExportTable("linkrUser", "SELECT uid, gender, birthday FROM linkrUser",
+						new String[]{"uid", "gender", "birthday"}, new byte[]{LONG, STRING, STRING}));
+		exports.add(new ExportTable("linkrLinks", "SELECT link_id, uid, from_id, created_time, message, description FROM linkrLinks",
+						new String[]{"link_id", "uid", "from_id", "created_time", "message", "description"},
+						new byte[]{LONG, LONG, LONG, TIME, STRING, STRING}));
+		exports.add(new ExportTable("linkrLinkInfo",
+						"SELECT link_id, share_count, like_count, comment_count FROM linkrLinks, linkrLinkInfo WHERE linkrLinks.link_hash = linkrLinkInfo.link_hash",
+						new String[]{"link_id", "share_count", "like_count", "comment_count"}, new byte[]{LONG, DOUBLE, DOUBLE, DOUBLE}));
+		exports.add(new ExportTable("linkrLinkLikes", "SELECT uid, id, link_id FROM linkrLinkLikes",
+						new String[]{"uid", "id", "link_id"}, new byte[]{LONG, LONG, LONG}));
+
+		//Tags keep their item, so users tagged in the same photo or video can be paired
+		exports.add(new ExportTable("linkrPhotoTags", "SELECT uid1, uid2, photo_id FROM linkrPhotoTags",
+						new String[]{"uid1", "uid2", "photo_id"}, new byte[]{LONG, LONG, LONG}));
+		exports.add(new ExportTable("linkrVideoTags", "SELECT uid1, uid2, video_id FROM linkrVideoTags",
+						new String[]{"uid1", "uid2", "video_id"}, new byte[]{LONG, LONG, LONG}));
+		exports.add(new ExportTable("linkrVideos", "SELECT id, uid, from_id FROM linkrVideos",
+						new String[]{"id", "uid", "from_id"}, new byte[]{LONG, LONG, LONG}));
+		exports.add(new ExportTable("linkrPhotos", "SELECT uid, from_id FROM linkrPhotos",
+						new String[]{"uid", "from_id"}, new byte[]{LONG, LONG}));
+		exports.add(new ExportTable("linkrPost", "SELECT uid, from_id FROM linkrPost WHERE application_id !=" + Constants.APPLICATION_ID,
+						new String[]{"uid", "from_id"}, new byte[]{LONG, LONG}));
+
+		//Pairs of users that went to the same school or classes, play the same sports or work in the same place or project
+		String[] coMembership = {"linkrSchoolClassesWith", "linkrSchoolWith", "linkrSportsWith", "linkrWorkProjectsWith", "linkrWorkWith"};
+		for (String table : coMembership) {
+			exports.add(new ExportTable(table, "SELECT uid1, uid2 FROM " + table,
+							new String[]{"uid1", "uid2"}, new byte[]{LONG, LONG}));
+		}
+
+		Set<EInteractionType> types = EnumSet.of(EInteractionType.FRIENDS);
+		types.addAll(InteractionLoader.getBaseTypes(EInteractionType.ALL_INTER));
+
+		for (EInteractionType type : types) {
+			String[] source = InteractionLoader.getSource(type);
+
+			boolean exported = false;
+			for (ExportTable export : exports) {
+				if (export.name.equals(source[0])) exported = true;
+			}
+			if (exported) continue;
+
+			exports.add(new ExportTable(source[0], InteractionLoader.getQuery(type),
+							new String[]{source[1], source[2]}, new byte[]{LONG, LONG}));
+		}
+
+		return exports;
+	}
+
+	private static ColumnData[] readTable(ExportTable export)
+		throws SQLException, IOException
+	{
+		ColumnData[] columns = new ColumnData[export.columns.length];
+		for (int c = 0; c < columns.length; c++) {
+			columns[c] = new ColumnData(export.types[c]);
+		}
+
+		Statement statement = SQLUtil.getStreamingStatement();
+		try {
+			ResultSet result = statement.executeQuery(export.query);
+
+			while (result.next()) {
+				for (int c = 0; c < columns.length; c++) {
+					columns[c].add(result, c + 1);
+				}
+			}
+			result.close();
+		}
+		finally {
+			statement.close();
+		}
+
+		System.out.println("Read " + export.name + ": " + (columns.length > 0 ? columns[0].rowCount : 0) + " rows");
+
+		return columns;
+	}
+
+	private static class ExportTable
+	{
+		String name;
+		String query;
+		String[] columns;
+		byte[] types;
+
+		ExportTable(String name, String query, String[] columns, byte[] types)
+		{
+			this.name = name;
+			this.query = query;
+			this.columns = columns;
+			this.types = types;
+		}
+	}
+
+	/**
+	 * Encoded values of one column while it is being read.
+	 */
+	private static class ColumnData
+	{
+		byte type;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		long previous = 0;
+		int rowCount = 0;
+
+		ColumnData(byte type)
+		{
+			this.type = type;
+		}
+
+		void add(ResultSet result, int index)
+			throws SQLException, IOException
+		{
+			switch (type) {
+				case LONG:
+					addLong(result.getLong(index));
+					break;
+				case TIME:
+					Timestamp time = result.getTimestamp(index);
+					addLong(time != null ? time.getTime() : 0);
+					break;
+				case DOUBLE:
+					out.writeDouble(result.getDouble(index));
+					break;
+				case STRING:
+					String value = result.getString(index);
+					if (value == null) {
+						writeVarLong(out, 0);
+					}
+					else {
+						byte[] utf = value.getBytes("UTF-8");
+						writeVarLong(out, utf.length + 1);
+						out.write(utf);
+					}
+					break;
+			}
+
+			rowCount++;
+		}
+
+		private void addLong(long value)
+			throws IOException
+		{
+			long delta = value - previous;
+			writeVarLong(out, (delta << 1) ^ (delta >> 63));
+			previous = value;
+		}
+	}
+
+	/**
+	 * Lets ByteArrayOutputStream.writeTo write straight into the snapshot file.
+	 */
+	private static class RandomAccessOutput extends java.io.OutputStream
+	{
+		private RandomAccessFile raf;
+
+		RandomAccessOutput(RandomAccessFile raf)
+		{
+			this.raf = raf;
+		}
+
+		public void write(int b)
+			throws IOException
+		{
+			raf.write(b);
+		}
+
+		public void write(byte[] b, int off, int len)
+			throws IOException
+		{
+			raf.write(b, off, len);
+		}
+	}
+
+	static void writeVarLong(DataOutputStream out, long value)
+		throws IOException
+	{
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+
+	static long readVarLong(ByteBuffer buffer)
+	{
+		long value = 0;
+		int shift = 0;
+
+		while (true) {
+			byte b = buffer.get();
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+			shift += 7;
+		}
+	}
+
+	private static String decode(byte[] bytes, int length)
+	{
+		try {
+			return new String(bytes, 0, length, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Exports the dataset snapshot to the folder given as the first argument, or Configuration.DATASET_FOLDER.
+	 */
+	public static void main(String[] args)
+		throws Exception
+	{
+		String folder = args.length > 0 ? args[0] : Configuration.DATASET_FOLDER;
+		if (folder == null) {
+			System.out.println("Usage: DatasetSnapshot <folder>");
+			System.exit(1);
+		}
+
+		export(new File(folder));
+		SQLUtil.closeSqlConnection();
+		SQLUtil.closePool();
+	}
+}
@@ -0,0 +1,495 @@
+package org.nicta.lr.util;
+
+import java.util.Arrays;
+
+/**
+ * Immutable compressed set of non-negative ints.
+ *
+ * Values are split on their high 16 bits into chunks of up to 65536 values, and each chunk is stored in whichever
+ * container is smallest: a sorted char array (sparse chunks), a 1024-word bitset (dense chunks) or a list of runs
+ * (chunks of consecutive ids). Membership is a binary search of the chunk keys and then a lookup in the container,
+ * and intersections only visit chunks present in both sets.
+ */
+public class IntBitmap
+{
+	public static final IntBitmap EMPTY = new IntBitmap(new char[0], new Container[0], 0);
+
+	private static final int ARRAY_MAX = 4096;
+	private static final int WORDS = 1024;
+
+	private char[] keys;
+	private Container[] containers;
+	private int cardinality;
+
+	private IntBitmap(char[] keys, Container[] containers, int cardinality)
+	{
+		this.keys = keys;
+		this.containers = containers;
+		this.cardinality = cardinality;
+	}
+
+	/**
+	 * Builds the set from the first count values, which must be sorted ascending without repeats.
+	 *
+	 * @param values
+	 * @param count
+	 * @return
+	 */
+	public static IntBitmap of(int[] values, int count)
+	{
+		if (count == 0) return EMPTY;
+
+		int chunks = 1;
+		for (int x = 1; x < count; x++) {
+			if ((values[x] >>> 16) != (values[x - 1] >>> 16)) chunks++;
+		}
+
+		char[] keys = new char[chunks];
+		Container[] containers = new Container[chunks];
+
+		int chunk = 0;
+		int start = 0;
+		while (start < count) {
+			int high = values[start] >>> 16;
+			int end = start + 1;
+			int runs = 1;
+
+			while (end < count && (values[end] >>> 16) == high) {
+				if (values[end] != values[end - 1] + 1) runs++;
+				end++;
+			}
+
+			keys[chunk] = (char)high;
+			containers[chunk] = Container.of(values, start, end, runs);
+			chunk++;
+			start = end;
+		}
+
+		return new IntBitmap(keys, containers, count);
+	}
+
+	public static IntBitmap of(int[] values)
+	{
+		return of(values, values.length);
+	}
+
+	public int getCardinality()
+	{
+		return cardinality;
+	}
+
+	public boolean isEmpty()
+	{
+		return cardinality == 0;
+	}
+
+	public boolean contains(int value)
+	{
+		int chunk = Arrays.binarySearch(keys, (char)(value >>> 16));
+		return chunk >= 0 && containers[chunk].contains((char)value);
+	}
+
+	/**
+	 * Size of the intersection with another set, without building it.
+	 */
+	public int andCardinality(IntBitmap other)
+	{
+		int count = 0;
+		int a = 0;
+		int b = 0;
+
+		while (a < keys.length && b < other.keys.length) {
+			if (keys[a] < other.keys[b]) {
+				a++;
+			}
+			else if (keys[a] > other.keys[b]) {
+				b++;
+			}
+			else {
+				count += containers[a].andCardinality(other.containers[b]);
+				a++;
+				b++;
+			}
+		}
+
+		return count;
+	}
+
+	public boolean intersects(IntBitmap other)
+	{
+		return andCardinality(other) > 0;
+	}
+
+	/**
+	 * Intersection with another set.
+	 */
+	public IntBitmap and(IntBitmap other)
+	{
+		int shared = Math.min(keys.length, other.keys.length);
+		char[] andKeys = new char[shared];
+		Container[] andContainers = new Container[shared];
+		int chunks = 0;
+		int count = 0;
+
+		int a = 0;
+		int b = 0;
+
+		while (a < keys.length && b < other.keys.length) {
+			if (keys[a] < other.keys[b]) {
+				a++;
+			}
+			else if (keys[a] > other.keys[b]) {
+				b++;
+			}
+			else {
+				Container container = containers[a].and(other.containers[b]);
+
+				if (container != null) {
+					andKeys[chunks] = keys[a];
+					andContainers[chunks] = container;
+					count += container.cardinality();
+					chunks++;
+				}
+
+				a++;
+				b++;
+			}
+		}
+
+		if (count == 0) return EMPTY;
+
+		return new IntBitmap(Arrays.copyOf(andKeys, chunks), Arrays.copyOf(andContainers, chunks), count);
+	}
+
+	/**
+	 * The values in ascending order.
+	 */
+	public int[] toArray()
+	{
+		int[] values = new int[cardinality];
+		int pos = 0;
+
+		for (int chunk = 0; chunk < keys.length; chunk++) {
+			pos = containers[chunk].toArray(keys[chunk] << 16, values, pos);
+		}
+
+		return values;
+	}
+
+	/**
+	 * One chunk of 65536 values, keyed by the low 16 bits.
+	 */
+	static abstract class Container
+	{
+		abstract boolean contains(char value);
+
+		abstract int cardinality();
+
+		/**
+		 * Writes the values, or'ed with high, into out from pos and returns the position after the last one.
+		 */
+		abstract int toArray(int high, int[] out, int pos);
+
+		/**
+		 * The chunk as a 1024-word bitset.
+		 */
+		abstract long[] toWords();
+
+		/**
+		 * Container of values[start, end) (all with the same high bits, with the given number of runs), in the smallest form.
+		 */
+		static Container of(int[] values, int start, int end, int runs)
+		{
+			int count = end - start;
+			int arrayBytes = count * 2;
+			int runBytes = runs * 4;
+			int bitmapBytes = WORDS * 8;
+
+			if (runBytes < arrayBytes && runBytes < bitmapBytes) {
+				char[] runStarts = new char[runs];
+				char[] runLengths = new char[runs];
+				int run = -1;
+
+				for (int x = start; x < end; x++) {
+					if (x == start || values[x] != values[x - 1] + 1) {
+						run++;
+						runStarts[run] = (char)values[x];
+					}
+					else {
+						runLengths[run]++;
+					}
+				}
+
+				return new RunContainer(runStarts, runLengths, count);
+			}
+
+			if (count <= ARRAY_MAX) {
+				char[] array = new char[count];
+				for (int x = start; x < end; x++) {
+					array[x - start] = (char)values[x];
+				}
+
+				return new ArrayContainer(array);
+			}
+
+			long[] words = new long[WORDS];
+			for (int x = start; x < end; x++) {
+				int low = values[x] & 0xFFFF;
+				words[low >>> 6] |= 1L << low;
+			}
+
+			return new BitmapContainer(words, count);
+		}
+
+		/**
+		 * Container of a bitset, null if it is empty.
+		 */
+		static Container ofWords(long[] words)
+		{
+			int count = 0;
+			for (int w = 0; w < WORDS; w++) {
+				count += Long.bitCount(words[w]);
+			}
+
+			if (count == 0) return null;
+			if (count > ARRAY_MAX) return new BitmapContainer(words, count);
+
+			char[] array = new char[count];
+			int pos = 0;
+			for (int w = 0; w < WORDS; w++) {
+				long word = words[w];
+				while (word != 0) {
+					array[pos++] = (char)((w << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+
+			return new ArrayContainer(array);
+		}
+
+		int andCardinality(Container other)
+		{
+			if (this instanceof ArrayContainer) return ((ArrayContainer)this).filterCount(other);
+			if (other instanceof ArrayContainer) return ((ArrayContainer)other).filterCount(this);
+
+			long[] a = toWords();
+			long[] b = other.toWords();
+			int count = 0;
+
+			for (int w = 0; w < WORDS; w++) {
+				count += Long.bitCount(a[w] & b[w]);
+			}
+
+			return count;
+		}
+
+		Container and(Container other)
+		{
+			if (this instanceof ArrayContainer) return ((ArrayContainer)this).filter(other);
+			if (other instanceof ArrayContainer) return ((ArrayContainer)other).filter(this);
+
+			long[] a = toWords();
+			long[] b = other.toWords();
+			long[] words = new long[WORDS];
+
+			for (int w = 0; w < WORDS; w++) {
+				words[w] = a[w] & b[w];
+			}
+
+			return ofWords(words);
+		}
+	}
+
+	static class ArrayContainer extends Container
+	{
+		private char[] values;
+
+		ArrayContainer(char[] values)
+		{
+			this.values = values;
+		}
+
+		boolean contains(char value)
+		{
+			return Arrays.binarySearch(values, value) >= 0;
+		}
+
+		int cardinality()
+		{
+			return values.length;
+		}
+
+		int toArray(int high, int[] out, int pos)
+		{
+			for (int x = 0; x < values.length; x++) {
+				out[pos++] = high | values[x];
+			}
+
+			return pos;
+		}
+
+		long[] toWords()
+		{
+			long[] words = new long[WORDS];
+			for (int x = 0; x < values.length; x++) {
+				words[values[x] >>> 6] |= 1L << values[x];
+			}
+
+			return words;
+		}
+
+		int filterCount(Container other)
+		{
+			if (other instanceof ArrayContainer) {
+				return merge(((ArrayContainer)other).values, null);
+			}
+
+			int count = 0;
+			for (int x = 0; x < values.length; x++) {
+				if (other.contains(values[x])) count++;
+			}
+
+			return count;
+		}
+
+		Container filter(Container other)
+		{
+			char[] kept = new char[values.length];
+			int count;
+
+			if (other instanceof ArrayContainer) {
+				count = merge(((ArrayContainer)other).values, kept);
+			}
+			else {
+				count = 0;
+				for (int x = 0; x < values.length; x++) {
+					if (other.contains(values[x])) kept[count++] = values[x];
+				}
+			}
+
+			return count > 0 ? new ArrayContainer(Arrays.copyOf(kept, count)) : null;
+		}
+
+		/**
+		 * Merge intersection of two sorted arrays, written into out when it isn't null.
+		 */
+		private int merge(char[] other, char[] out)
+		{
+			int count = 0;
+			int a = 0;
+			int b = 0;
+
+			while (a < values.length && b < other.length) {
+				if (values[a] < other[b]) {
+					a++;
+				}
+				else if (values[a] > other[b]) {
+					b++;
+				}
+				else {
+					if (out != null) out[count] = values[a];
+					count++;
+					a++;
+					b++;
+				}
+			}
+
+			return count;
+		}
+	}
+
+	static class BitmapContainer extends Container
+	{
+		private long[] words;
+		private int count;
+
+		BitmapContainer(long[] words, int count)
+		{
+			this.words = words;
+			this.count = count;
+		}
+
+		boolean contains(char value)
+		{
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		int cardinality()
+		{
+			return count;
+		}
+
+		int toArray(int high, int[] out, int pos)
+		{
+			for (int w = 0; w < WORDS; w++) {
+				long word = words[w];
+				while (word != 0) {
+					out[pos++] = high | ((w << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+
+			return pos;
+		}
+
+		long[] toWords()
+		{
+			return words;
+		}
+	}
+
+	/**
+	 * Runs of consecutive values, each a start and a length minus one.
+	 */
+	static class RunContainer extends Container
+	{
+		private char[] starts;
+		private char[] lengths;
+		private int count;
+
+		RunContainer(char[] starts, char[] lengths, int count)
+		{
+			this.starts = starts;
+			this.lengths = lengths;
+			this.count = count;
+		}
+
+		boolean contains(char value)
+		{
+			int run = Arrays.binarySearch(starts, value);
+			if (run >= 0) return true;
+
+			run = -run - 2;
+			return run >= 0 && value - starts[run] <= lengths[run];
+		}
+
+		int cardinality()
+		{
+			return count;
+		}
+
+		int toArray(int high, int[] out, int pos)
+		{
+			for (int run = 0; run < starts.length; run++) {
+				for (int x = 0; x <= lengths[run]; x++) {
+					out[pos++] = high | (starts[run] + x);
+				}
+			}
+
+			return pos;
+		}
+
+		long[] toWords()
+		{
+			long[] words = new long[WORDS];
+			for (int run = 0; run < starts.length; run++) {
+				int end = starts[run] + lengths[run];
+				for (int value = starts[run]; value <= end; value++) {
+					words[value >>> 6] |= 1L << value;
+				}
+			}
+
+			return words;
+		}
+	}
+}
@@ -0,0 +1,318 @@
+package org.nicta.lr.util;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Loads the base interaction tables (linkrFriends, linkr*Likes/Comments/Tags) into primitive edge buffers.
+ *
+ * Each table is read once per run with a forward-only, read-only result set and SQLUtil.getFetchSize(),
+ * so MySQL streams the rows instead of materialising the whole table on the client. Missing tables are read
+ * concurrently through SQLUtil.runConcurrently, each on its own connection since a streaming result set holds its
+ * connection until closed. The buffers are kept until clear() is called, so composite types never re-query a base table.
+ */
+public class InteractionLoader
+{
+	private static final Map<EInteractionType, EdgeBuffer> edges = new EnumMap<EInteractionType, EdgeBuffer>(EInteractionType.class);
+	
+	/**
+	 * Returns the edges of a base interaction type, loading the table if it hasn't been read yet.
+	 *
+	 * @param type
+	 * @return
+	 * @throws SQLException
+	 */
+	public static EdgeBuffer getEdges(EInteractionType type)
+		throws SQLException
+	{
+		synchronized (edges) {
+			EdgeBuffer buffer = edges.get(type);
+			if (buffer != null) return buffer;
+		}
+		
+		load(getBaseTypes(type));
+		
+		synchronized (edges) {
+			return edges.get(type);
+		}
+	}
+	
+	/**
+	 * Loads every base table needed by the given types that isn't in memory yet, Configuration.LOADER_THREADS tables at a time.
+	 *
+	 * @param types
+	 * @throws SQLException
+	 */
+	public static void load(Set<EInteractionType> types)
+		throws SQLException
+	{
+		final List<EInteractionType> missing = new ArrayList<EInteractionType>();
+		synchronized (edges) {
+			for (EInteractionType type : types) {
+				for (EInteractionType base : getBaseTypes(type)) {
+					if (!edges.containsKey(base) && !missing.contains(base)) {
+						missing.add(base);
+					}
+				}
+			}
+		}
+		
+		if (missing.size() == 0) return;
+		
+		List<Callable<EdgeBuffer>> tasks = new ArrayList<Callable<EdgeBuffer>>();
+		for (final EInteractionType type : missing) {
+			tasks.add(new Callable<EdgeBuffer>() {
+				public EdgeBuffer call()
+					throws SQLException
+				{
+					return loadTable(type);
+				}
+			});
+		}
+		
+		List<EdgeBuffer> buffers = SQLUtil.runConcurrently(tasks, Configuration.LOADER_THREADS);
+		
+		for (int x = 0; x < missing.size(); x++) {
+			store(missing.get(x), buffers.get(x));
+		}
+	}
+	
+	/**
+	 * Drops every loaded table, so the next call reads the database again.
+	 */
+	public static void clear()
+	{
+		synchronized (edges) {
+			edges.clear();
+		}
+	}
+	
+	/**
+	 * Base types that make up an interaction type. A base type is made up of itself.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static Set<EInteractionType> getBaseTypes(EInteractionType type)
+	{
+		switch (type) {
+			case ALL_INTER:
+			case VIRTUAL:
+				return EnumSet.range(EInteractionType.LINK_LIKES, EInteractionType.VIDEO_TAGS);
+			case REAL:
+				return EnumSet.of(EInteractionType.PHOTO_TAGS, EInteractionType.VIDEO_TAGS);
+			case ALL_LIKES:
+				return EnumSet.of(EInteractionType.LINK_LIKES, EInteractionType.POST_LIKES, EInteractionType.PHOTO_LIKES, EInteractionType.VIDEO_LIKES);
+			case ALL_COMMENTS:
+				return EnumSet.of(EInteractionType.LINK_COMMENTS, EInteractionType.POST_COMMENTS, EInteractionType.PHOTO_COMMENTS, EInteractionType.VIDEO_COMMENTS);
+			case ALL_TAGS:
+				return EnumSet.of(EInteractionType.POST_TAGS, EInteractionType.PHOTO_TAGS, EInteractionType.VIDEO_TAGS);
+			case ALL_LINK:
+				return EnumSet.of(EInteractionType.LINK_COMMENTS, EInteractionType.LINK_LIKES);
+			case ALL_POST:
+				return EnumSet.of(EInteractionType.POST_COMMENTS, EInteractionType.POST_LIKES, EInteractionType.POST_TAGS);
+			case ALL_PHOTO:
+				return EnumSet.of(EInteractionType.PHOTO_COMMENTS, EInteractionType.PHOTO_LIKES, EInteractionType.PHOTO_TAGS);
+			case ALL_VIDEO:
+				return EnumSet.of(EInteractionType.VIDEO_COMMENTS, EInteractionType.VIDEO_LIKES, EInteractionType.VIDEO_TAGS);
+			default:
+				return EnumSet.of(type);
+		}
+	}
+	
+	/**
+	 * Query for a base type, selecting the target uid then the interacting uid.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static String getQuery(EInteractionType type)
+	{
+		String[] source = getSource(type);
+		return "SELECT " + source[1] + ", " + source[2] + " FROM " + source[0];
+	}
+	
+	/**
+	 * Table, target uid column and interacting uid column of a base type.
+	 *
+	 * @param type
+	 * @return
+	 */
+	public static String[] getSource(EInteractionType type)
+	{
+		String table = null;
+		String target_uid = null;
+		String interacting_uid = null;
+		switch (type) {
+			case FRIENDS:        table = "linkrFriends"; target_uid = "uid1"; interacting_uid = "uid2"; break;
+			case LINK_LIKES:     table = "linkrLinkLikes"; target_uid = "uid"; interacting_uid = "id"; break;
+			case LINK_COMMENTS:  table = "linkrLinkComments"; target_uid = "uid"; interacting_uid = "from_id"; break;
+			case POST_LIKES:     table = "linkrPostLikes"; target_uid = "uid"; interacting_uid = "id"; break;
+			case POST_COMMENTS:  table = "linkrPostComments"; target_uid = "uid"; interacting_uid = "from_id"; break;
+			case POST_TAGS:      table = "linkrPostTags"; target_uid = "uid1"; interacting_uid = "uid2"; break;
+			case PHOTO_LIKES:    table = "linkrPhotoLikes"; target_uid = "uid"; interacting_uid = "id"; break;
+			case PHOTO_COMMENTS: table = "linkrPhotoComments"; target_uid = "uid"; interacting_uid = "from_id"; break;
+			case PHOTO_TAGS:     table = "linkrPhotoTags"; target_uid = "uid1"; interacting_uid = "uid2"; break;
+			case VIDEO_LIKES:    table = "linkrVideoLikes"; target_uid = "uid"; interacting_uid = "id"; break;
+			case VIDEO_COMMENTS: table = "linkrVideoComments"; target_uid = "uid"; interacting_uid = "from_id"; break;
+			case VIDEO_TAGS:     table = "linkrVideoTags"; target_uid = "uid1"; interacting_uid = "uid2"; break;
+			default:
+				throw new IllegalArgumentException("Not a base interaction type: " + type);
+		}
+		
+		return new String[]{table, target_uid, interacting_uid};
+	}
+	
+	private static void store(EInteractionType type, EdgeBuffer buffer)
+	{
+		synchronized (edges) {
+			edges.put(type, buffer);
+		}
+	}
+	
+	/**
+	 * Reads one base table from the dataset snapshot if there is one, otherwise streams it on the calling thread's connection.
+	 */
+	private static EdgeBuffer loadTable(EInteractionType type)
+		throws SQLException
+	{
+		String[] source = getSource(type);
+		
+		DatasetSnapshot.Table table = DatasetSnapshot.getSnapshotTable(source[0]);
+		if (table != null) {
+			EdgeBuffer buffer = new EdgeBuffer(table.getLongs(source[1]), table.getLongs(source[2]));
+			System.out.println("Loaded " + type + " from snapshot: " + buffer.size() + " edges");
+			
+			return buffer;
+		}
+		
+		String query = getQuery(type);
+		EdgeBuffer buffer = new EdgeBuffer();
+		
+		Statement statement = SQLUtil.getStreamingStatement();
+		
+		try {
+			ResultSet result = statement.executeQuery(query);
+			while (result.next()) {
+				buffer.add(result.getLong(1), result.getLong(2));
+			}
+			result.close();
+		}
+		finally {
+			statement.close();
+		}
+		
+		buffer.trim();
+		System.out.println("Loaded " + type + ": " + buffer.size() + " edges");
+		
+		return buffer;
+	}
+	
+	/**
+	 * Growable pair of primitive arrays holding (target, interacting) uid edges in table order.
+	 */
+	public static class EdgeBuffer
+	{
+		private long[] targets;
+		private long[] sources;
+		private int size = 0;
+		
+		public EdgeBuffer()
+		{
+			this(1024);
+		}
+		
+		public EdgeBuffer(int capacity)
+		{
+			targets = new long[capacity];
+			sources = new long[capacity];
+		}
+		
+		/**
+		 * Wraps complete, equal length target and source arrays.
+		 */
+		public EdgeBuffer(long[] targets, long[] sources)
+		{
+			this.targets = targets;
+			this.sources = sources;
+			size = targets.length;
+		}
+		
+		public void add(long target, long source)
+		{
+			if (size == targets.length) {
+				int capacity = targets.length * 2;
+				targets = Arrays.copyOf(targets, capacity);
+				sources = Arrays.copyOf(sources, capacity);
+			}
+			
+			targets[size] = target;
+			sources[size] = source;
+			size++;
+		}
+		
+		/**
+		 * Releases the unused capacity once the buffer is complete.
+		 */
+		public void trim()
+		{
+			if (size < targets.length) {
+				targets = Arrays.copyOf(targets, size);
+				sources = Arrays.copyOf(sources, size);
+			}
+		}
+		
+		/**
+		 * Adds every edge to the interaction in the given direction.
+		 *
+		 * @param interaction
+		 * @param dir
+		 */
+		public void addTo(Interaction interaction, EDirectionType dir)
+		{
+			for (int x = 0; x < size; x++) {
+				interaction.addInteraction(targets[x], sources[x], dir);
+			}
+		}
+		
+		public int size()
+		{
+			return size;
+		}
+		
+		public long getTarget(int index)
+		{
+			return targets[index];
+		}
+		
+		public long getSource(int index)
+		{
+			return sources[index];
+		}
+		
+		/**
+		 * Backing target array; only the first size() entries are edges.
+		 */
+		public long[] getTargets()
+		{
+			return targets;
+		}
+		
+		/**
+		 * Backing source array; only the first size() entries are edges.
+		 */
+		public long[] getSources()
+		{
+			return sources;
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package org.nicta.lr.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact index of the link likes, as a replacement for Map<Long, Set<Long>> linkLikes in the hot loops.
+ *
+ * Links and users get dense int ids in order of their sorted ids. The likers of every link are an IntBitmap over the
+ * user ids, and the transposed view holds the liked links of every user as an IntBitmap over the link ids, so
+ * questions like "which of these friends liked the link" or "how many likes do two users share" are bitmap intersections.
+ *
+ * The index is a snapshot: it has to be rebuilt if linkLikes changes.
+ */
+public class LikeIndex
+{
+	private long[] linkIds;
+	private long[] userIds;
+
+	private IntBitmap[] linkUsers;
+	private IntBitmap[] userLinks;
+
+	public LikeIndex(Map<Long, Set<Long>> linkLikes)
+	{
+		linkIds = toSortedArray(linkLikes.keySet());
+
+		int likeCount = 0;
+		for (Set<Long> likes : linkLikes.values()) {
+			likeCount += likes.size();
+		}
+
+		long[] users = new long[likeCount];
+		int pos = 0;
+		for (Set<Long> likes : linkLikes.values()) {
+			for (long userId : likes) {
+				users[pos++] = userId;
+			}
+		}
+		Arrays.sort(users);
+
+		int unique = 0;
+		for (int x = 0; x < users.length; x++) {
+			if (x == 0 || users[x] != users[x - 1]) {
+				users[unique++] = users[x];
+			}
+		}
+		userIds = Arrays.copyOf(users, unique);
+
+		//Likers of each link, and the like count of each user for the transposed view
+		linkUsers = new IntBitmap[linkIds.length];
+		int[] userDegrees = new int[userIds.length + 1];
+		int[] buffer = new int[0];
+
+		for (int l = 0; l < linkIds.length; l++) {
+			Set<Long> likes = linkLikes.get(linkIds[l]);
+			if (likes.size() > buffer.length) {
+				buffer = new int[likes.size()];
+			}
+
+			int count = 0;
+			for (long userId : likes) {
+				buffer[count] = Arrays.binarySearch(userIds, userId);
+				userDegrees[buffer[count] + 1]++;
+				count++;
+			}
+			Arrays.sort(buffer, 0, count);
+
+			linkUsers[l] = IntBitmap.of(buffer, count);
+		}
+
+		for (int u = 0; u < userIds.length; u++) {
+			userDegrees[u + 1] += userDegrees[u];
+		}
+
+		//Links are visited in increasing order, so each user's links come out sorted
+		int[] transposed = new int[userDegrees[userIds.length]];
+		int[] fill = Arrays.copyOf(userDegrees, userIds.length);
+
+		for (int l = 0; l < linkIds.length; l++) {
+			int[] likers = linkUsers[l].toArray();
+			for (int x = 0; x < likers.length; x++) {
+				transposed[fill[likers[x]]++] = l;
+			}
+		}
+
+		userLinks = new IntBitmap[userIds.length];
+		for (int u = 0; u < userIds.length; u++) {
+			int start = userDegrees[u];
+			int count = userDegrees[u + 1] - start;
+
+			userLinks[u] = IntBitmap.of(Arrays.copyOfRange(transposed, start, start + count), count);
+		}
+
+		System.out.println("Like index: " + linkIds.length + " links, " + userIds.length + " users, " + likeCount + " likes");
+	}
+
+	private static long[] toSortedArray(Collection<Long> ids)
+	{
+		long[] array = new long[ids.size()];
+		int pos = 0;
+		for (long id : ids) {
+			array[pos++] = id;
+		}
+		Arrays.sort(array);
+
+		return array;
+	}
+
+	public int getLinkCount()
+	{
+		return linkIds.length;
+	}
+
+	public int getUserCount()
+	{
+		return userIds.length;
+	}
+
+	/**
+	 * Dense id of a link, -1 if it has no entry in linkLikes.
+	 */
+	public int getLinkIndex(long linkId)
+	{
+		int index = Arrays.binarySearch(linkIds, linkId);
+		return index >= 0 ? index : -1;
+	}
+
+	/**
+	 * Dense id of a user, -1 if the user hasn't liked anything.
+	 */
+	public int getUserIndex(long userId)
+	{
+		int index = Arrays.binarySearch(userIds, userId);
+		return index >= 0 ? index : -1;
+	}
+
+	public long getLinkId(int link)
+	{
+		return linkIds[link];
+	}
+
+	public long getUserId(int user)
+	{
+		return userIds[user];
+	}
+
+	/**
+	 * Same as linkLikes.containsKey(linkId) && linkLikes.get(linkId).contains(userId)
+	 */
+	public boolean isLiked(long linkId, long userId)
+	{
+		int link = getLinkIndex(linkId);
+		if (link < 0) return false;
+
+		int user = getUserIndex(userId);
+		return user >= 0 && linkUsers[link].contains(user);
+	}
+
+	public boolean isLiked(int link, int user)
+	{
+		return linkUsers[link].contains(user);
+	}
+
+	/**
+	 * Users that liked the link.
+	 */
+	public IntBitmap getLikers(int link)
+	{
+		return linkUsers[link];
+	}
+
+	/**
+	 * Links the user liked (the transposed view).
+	 */
+	public IntBitmap getLikedLinks(int user)
+	{
+		return userLinks[user];
+	}
+
+	public int getLikeCount(int link)
+	{
+		return linkUsers[link].getCardinality();
+	}
+
+	/**
+	 * Number of users that liked both links.
+	 */
+	public int countCommonLikers(int link1, int link2)
+	{
+		return linkUsers[link1].andCardinality(linkUsers[link2]);
+	}
+
+	/**
+	 * Number of links both users liked.
+	 */
+	public int countCommonLinks(int user1, int user2)
+	{
+		return userLinks[user1].andCardinality(userLinks[user2]);
+	}
+
+	/**
+	 * The given users as a set of dense user ids, dropping users that haven't liked anything. Intersect it with
+	 * getLikers to find e.g. the friends of a user that liked a link.
+	 */
+	public IntBitmap getUsers(Collection<Long> users)
+	{
+		int[] indices = new int[users.size()];
+		int count = 0;
+
+		for (long userId : users) {
+			int user = getUserIndex(userId);
+			if (user >= 0) indices[count++] = user;
+		}
+
+		return toBitmap(indices, count);
+	}
+
+	/**
+	 * The given users as a set of dense user ids, dropping users that haven't liked anything.
+	 */
+	public IntBitmap getUsers(long[] users, int count)
+	{
+		int[] indices = new int[count];
+		int found = 0;
+
+		for (int x = 0; x < count; x++) {
+			int user = getUserIndex(users[x]);
+			if (user >= 0) indices[found++] = user;
+		}
+
+		return toBitmap(indices, found);
+	}
+
+	private static IntBitmap toBitmap(int[] indices, int count)
+	{
+		Arrays.sort(indices, 0, count);
+
+		int unique = 0;
+		for (int x = 0; x < count; x++) {
+			if (x == 0 || indices[x] != indices[x - 1]) {
+				indices[unique++] = indices[x];
+			}
+		}
+
+		return IntBitmap.of(indices, unique);
+	}
+}
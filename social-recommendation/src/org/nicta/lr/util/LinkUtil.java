@@ -13,52 +13,76 @@ public class LinkUtil
 	public static Map<Long, Long[]> getLinkPosters(Set<Long> ids)
 		throws SQLException
 	{
-		HashMap<Long, Long[]> feature = new HashMap<Long, Long[]>();
+		final HashMap<Long, Long[]> feature = new HashMap<Long, Long[]>();
 		
-		StringBuffer buf = new StringBuffer("SELECT from_id, uid, link_id FROM linkrLinks WHERE link_id IN (0");
-		for (long id : ids) {
-			buf.append(",");
-			buf.append(id);
-		}
-		buf.append(")");
-		
-		Statement statement = SQLUtil.getStatement();
-		ResultSet result = statement.executeQuery(buf.toString());
-		while (result.next()) {
-			Long[] link = new Long[2];
-			link[0] = result.getLong("from_id");
-			link[1] = result.getLong("uid");
+		DatasetSnapshot.Table table = DatasetSnapshot.getSnapshotTable("linkrLinks");
+		if (table != null) {
+			long[] linkIds = table.getLongs("link_id");
+			long[] fromIds = table.getLongs("from_id");
+			long[] uids = table.getLongs("uid");
 			
-			feature.put(result.getLong("link_id"), link);
+			for (int row = 0; row < linkIds.length; row++) {
+				if (!ids.contains(linkIds[row])) continue;
+				
+				Long[] link = new Long[2];
+				link[0] = fromIds[row];
+				link[1] = uids[row];
+				
+				feature.put(linkIds[row], link);
+			}
+			return feature;
 		}
 		
-		statement.close();
+		SQLUtil.fetchIn("SELECT from_id, uid, link_id FROM linkrLinks WHERE link_id IN (?)", ids, new SQLUtil.RowHandler() {
+			public void handle(ResultSet result)
+				throws SQLException
+			{
+				Long[] link = new Long[2];
+				link[0] = result.getLong("from_id");
+				link[1] = result.getLong("uid");
+				
+				feature.put(result.getLong("link_id"), link);
+			}
+		});
+		
 		return feature;
 	}
 	
 	public static Map<Long, String[]> getLinkText(Set<Long> ids)
 		throws SQLException
 	{
-		HashMap<Long, String[]> feature = new HashMap<Long, String[]>();
-		
-		StringBuffer buf = new StringBuffer("SELECT message, description, link_id FROM linkrLinks WHERE link_id IN (0");
-		for (long id : ids) {
-			buf.append(",");
-			buf.append(id);
-		}
-		buf.append(")");
+		final HashMap<Long, String[]> feature = new HashMap<Long, String[]>();
 		
-		Statement statement = SQLUtil.getStatement();
-		ResultSet result = statement.executeQuery(buf.toString());
-		while (result.next()) {
-			String[] link = new String[2];
-			link[0] = result.getString("message");
-			link[1] = result.getString("description");
+		DatasetSnapshot.Table table = DatasetSnapshot.getSnapshotTable("linkrLinks");
+		if (table != null) {
+			long[] linkIds = table.getLongs("link_id");
+			String[] messages = table.getStrings("message");
+			String[] descriptions = table.getStrings("description");
 			
-			feature.put(result.getLong("link_id"), link);
+			for (int row = 0; row < linkIds.length; row++) {
+				if (!ids.contains(linkIds[row])) continue;
+				
+				String[] link = new String[2];
+				link[0] = messages[row];
+				link[1] = descriptions[row];
+				
+				feature.put(linkIds[row], link);
+			}
+			return feature;
 		}
 		
-		statement.close();
+		SQLUtil.fetchIn("SELECT message, description, link_id FROM linkrLinks WHERE link_id IN (?)", ids, new SQLUtil.RowHandler() {
+			public void handle(ResultSet result)
+				throws SQLException
+			{
+				String[] link = new String[2];
+				link[0] = result.getString("message");
+				link[1] = result.getString("description");
+				
+				feature.put(result.getLong("link_id"), link);
+			}
+		});
+		
 		return feature;
 	}
 
@@ -66,45 +90,79 @@ public class LinkUtil
 	public static Map<Long, Double[]> getLinkFeatures(Set<Long> limit)
 		throws SQLException
 	{
-		HashMap<Long, Double[]> linkFeatures = new HashMap<Long, Double[]>();
-		
-		Statement statement = SQLUtil.getStatement();
+		final HashMap<Long, Double[]> linkFeatures = new HashMap<Long, Double[]>();
+		
+		DatasetSnapshot.Table table = DatasetSnapshot.getSnapshotTable("linkrLinkInfo");
+		if (table != null) {
+			long[] linkIds = table.getLongs("link_id");
+			double[] shares = table.getDoubles("share_count");
+			double[] likes = table.getDoubles("like_count");
+			double[] comments = table.getDoubles("comment_count");
+			
+			for (int row = 0; row < linkIds.length; row++) {
+				if (!limit.contains(linkIds[row])) continue;
+				
+				linkFeatures.put(linkIds[row], getLinkFeature(shares[row], likes[row], comments[row]));
+			}
+			return linkFeatures;
+		}
 		
-		StringBuffer itemQuery = new StringBuffer(
+		String itemQuery =
 			"SELECT link_id, created_time, share_count, like_count, comment_count, total_count, uid, from_id "
 			+ "FROM linkrLinks, linkrLinkInfo "
-			+ "WHERE linkrLinks.link_hash = linkrLinkInfo.link_hash AND link_id IN (0");
+			+ "WHERE linkrLinks.link_hash = linkrLinkInfo.link_hash AND link_id IN (?)";
 		
-		for (long id : limit) {
-			itemQuery.append(",");
-			itemQuery.append(id);
-		}
-		itemQuery.append(")");
+		SQLUtil.fetchIn(itemQuery, limit, new SQLUtil.RowHandler() {
+			public void handle(ResultSet result)
+				throws SQLException
+			{
+				Double[] feature = getLinkFeature(result.getDouble("share_count"), result.getDouble("like_count"), result.getDouble("comment_count"));
+				
+				linkFeatures.put(result.getLong("link_id"), feature);
+			}
+		});
 		
-		ResultSet result = statement.executeQuery(itemQuery.toString());
+		return linkFeatures;
+	}
 	
-		while (result.next()) {
-			Double[] feature = new Double[Configuration.LINK_FEATURE_COUNT];
-			
-			feature[0] = result.getDouble("share_count") / 10000000;
-			feature[1] = result.getDouble("like_count") / 10000000;
-			feature[2] = result.getDouble("comment_count") / 10000000;
-			
-			//feature[0] = 0.0;
-			//feature[1] = 0.0;
-			//feature[2] = 0.0;
-			
-			linkFeatures.put(result.getLong("link_id"), feature);
-		}
+	/**
+	 * Feature vector of a link from its linkrLinkInfo counts.
+	 */
+	private static Double[] getLinkFeature(double shareCount, double likeCount, double commentCount)
+	{
+		Double[] feature = new Double[Configuration.LINK_FEATURE_COUNT];
 		
-		statement.close();
-		return linkFeatures;
+		feature[0] = shareCount / 10000000;
+		feature[1] = likeCount / 10000000;
+		feature[2] = commentCount / 10000000;
+		
+		//feature[0] = 0.0;
+		//feature[1] = 0.0;
+		//feature[2] = 0.0;
+		
+		return feature;
 	}
 	
 	public static Set<Long> getLinkIds()
 		throws SQLException
 	{
 		HashSet<Long> linkIds = new HashSet<Long>();
+		
+		DatasetSnapshot snapshot = DatasetSnapshot.get();
+		if (snapshot != null && snapshot.getTable("linkrLinks") != null) {
+			DatasetSnapshot.Table table = snapshot.getTable("linkrLinks");
+			long[] ids = table.getLongs("link_id");
+			long[] createdTimes = table.getLongs("created_time");
+			long windowStart = snapshot.getDaysBeforeExport(Configuration.TRAINING_WINDOW_RANGE);
+			
+			for (int row = 0; row < ids.length; row++) {
+				if (createdTimes[row] >= windowStart) {
+					linkIds.add(ids[row]);
+				}
+			}
+			return linkIds;
+		}
+		
 		Statement statement = SQLUtil.getStatement();
 		
 		String itemQuery = "SELECT link_id FROM linkrLinks"
@@ -127,11 +185,7 @@ public class LinkUtil
 	public static Map<Long, Set<Long>> getLinkLikes(Map<Long, Long[]> links)
 		throws SQLException
 	{
-		HashMap<Long, Set<Long>> linkLikes = new HashMap<Long, Set<Long>>();
-		
-		Statement statement = SQLUtil.getStatement();
-		
-		StringBuffer idBuf = new StringBuffer("(0");
+		final HashMap<Long, Set<Long>> linkLikes = new HashMap<Long, Set<Long>>();
 		
 		for (long linkId : links.keySet()) {
 			Long[] feature = links.get(linkId);
@@ -142,30 +196,37 @@ public class LinkUtil
 				
 			Set<Long> likes = linkLikes.get(linkId);	
 			likes.add(feature[0]);
-						
-			idBuf.append(",");
-			idBuf.append(linkId);
 		}
 		
-		idBuf.append(")");
-		String idString = idBuf.toString();
-		
-		String likeQuery = "SELECT id, link_id FROM linkrLinkLikes WHERE link_id IN " + idString;
-		ResultSet result = statement.executeQuery(likeQuery.toString());
-		
-		while (result.next()) {
-			long id = result.getLong("id");
-			long linkId = result.getLong("link_id");
+		DatasetSnapshot.Table table = DatasetSnapshot.getSnapshotTable("linkrLinkLikes");
+		if (table != null) {
+			long[] ids = table.getLongs("id");
+			long[] linkIds = table.getLongs("link_id");
 			
-			if (!linkLikes.containsKey(linkId)) {
-				linkLikes.put(linkId, new HashSet<Long>());
+			for (int row = 0; row < ids.length; row++) {
+				Set<Long> likes = linkLikes.get(linkIds[row]);
+				if (likes != null) {
+					likes.add(ids[row]);
+				}
 			}
-			
-			Set<Long> likes = linkLikes.get(linkId);
-			likes.add(id);
+			return linkLikes;
 		}
 		
-		statement.close();
+		SQLUtil.fetchIn("SELECT id, link_id FROM linkrLinkLikes WHERE link_id IN (?)", links.keySet(), new SQLUtil.RowHandler() {
+			public void handle(ResultSet result)
+				throws SQLException
+			{
+				long id = result.getLong("id");
+				long linkId = result.getLong("link_id");
+				
+				if (!linkLikes.containsKey(linkId)) {
+					linkLikes.put(linkId, new HashSet<Long>());
+				}
+				
+				Set<Long> likes = linkLikes.get(linkId);
+				likes.add(id);
+			}
+		});
 		
 		return linkLikes;
 	}
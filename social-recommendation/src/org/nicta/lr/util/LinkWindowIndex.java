@@ -0,0 +1,476 @@
+package org.nicta.lr.util;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import gnu.trove.TLongArrayList;
+
+/**
+ * In-memory index of the linkrLinks rows (posters, link hash) and their likes, partitioned by the day the link was created.
+ *
+ * A window of N days (what DATE(created_time) >= ADDDATE(CURRENT_DATE(), -N) selects) is the union of the last N + 1
+ * partitions, so the training window and the recommending window are answered from the same index without going back
+ * to the tables. update(days) only reads the days that aren't loaded yet, plus the last loaded day again since it may
+ * have been loaded before it was over, and drops partitions that fell out of the widest window asked for.
+ *
+ * The likes of a partition are read when it is loaded. Call refreshLikes() to reread them for a long running index.
+ *
+ * When a dataset snapshot is present the index is built from it, with the export day standing in for today. The snapshot
+ * has no link hashes, so getFriendLinks/getNonFriendLinks can't filter on them in that case.
+ */
+public class LinkWindowIndex
+{
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+
+	private static LinkWindowIndex index;
+
+	private TreeMap<Integer, Partition> partitions = new TreeMap<Integer, Partition>();
+	private int today;
+	private int loadedFrom = Integer.MAX_VALUE;
+	private int loadedTo = Integer.MIN_VALUE;
+	private int retainDays = 0;
+
+	/**
+	 * Shared index, so training and recommending in the same run read the links once.
+	 */
+	public static synchronized LinkWindowIndex get()
+	{
+		if (index == null) {
+			index = new LinkWindowIndex();
+		}
+
+		return index;
+	}
+
+	/**
+	 * Makes sure the last days + 1 partitions are loaded and up to date, and evicts the partitions older than the widest
+	 * window asked for so far.
+	 *
+	 * @param days
+	 * @throws SQLException
+	 */
+	public synchronized void update(int days)
+		throws SQLException
+	{
+		DatasetSnapshot snapshot = DatasetSnapshot.get();
+		if (snapshot != null && snapshot.getTable("linkrLinks") == null) snapshot = null;
+
+		today = toDay(snapshot != null ? snapshot.getExportTime() : System.currentTimeMillis());
+
+		retainDays = Math.max(retainDays, days);
+		evictBefore(today - retainDays);
+
+		int first = today - days;
+
+		if (loadedTo < loadedFrom) {
+			load(snapshot, first, Integer.MAX_VALUE);
+			loadedFrom = first;
+			loadedTo = today;
+			return;
+		}
+
+		if (first < loadedFrom) {
+			load(snapshot, first, loadedFrom);
+			loadedFrom = first;
+		}
+
+		//New days, and the last loaded day again. A snapshot doesn't change, so there is nothing new in it.
+		if (snapshot == null || loadedTo < today) {
+			load(snapshot, loadedTo, Integer.MAX_VALUE);
+			loadedTo = today;
+		}
+	}
+
+	/**
+	 * Drops the partitions of the days before the given day.
+	 *
+	 * @param day
+	 */
+	public synchronized void evictBefore(int day)
+	{
+		int evicted = 0;
+		while (!partitions.isEmpty() && partitions.firstKey() < day) {
+			partitions.remove(partitions.firstKey());
+			evicted++;
+		}
+
+		if (loadedFrom < day) {
+			loadedFrom = day;
+		}
+
+		if (evicted > 0) {
+			System.out.println("Link window index: evicted " + evicted + " days");
+		}
+	}
+
+	/**
+	 * Rereads the likes of every loaded link.
+	 *
+	 * @throws SQLException
+	 */
+	public synchronized void refreshLikes()
+		throws SQLException
+	{
+		List<Partition> all = new ArrayList<Partition>(partitions.values());
+		loadLikes(DatasetSnapshot.getSnapshotTable("linkrLinkLikes"), all);
+	}
+
+	/**
+	 * Day number of a time, counted in local days since the epoch.
+	 */
+	public static int toDay(long time)
+	{
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		long local = time + calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET);
+
+		return (int)Math.floor(local / (double)DAY);
+	}
+
+	/**
+	 * Start of a day number, in local time.
+	 */
+	public static long getDayStart(int day)
+	{
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(1970, Calendar.JANUARY, 1);
+		calendar.add(Calendar.DATE, day);
+
+		return calendar.getTimeInMillis();
+	}
+
+	public synchronized int getToday()
+	{
+		return today;
+	}
+
+	public synchronized int getPartitionCount()
+	{
+		return partitions.size();
+	}
+
+	/**
+	 * Same as LinkUtil.getLinkIds() for a window of the given number of days.
+	 */
+	public synchronized Set<Long> getLinkIds(int days)
+	{
+		HashSet<Long> linkIds = new HashSet<Long>();
+
+		for (Partition partition : getWindow(days).values()) {
+			for (int x = 0; x < partition.linkIds.length; x++) {
+				linkIds.add(partition.linkIds[x]);
+			}
+		}
+
+		return linkIds;
+	}
+
+	/**
+	 * Same as LinkUtil.getLinkPosters(getLinkIds(days)): from_id and uid of each link.
+	 */
+	public synchronized Map<Long, Long[]> getLinkPosters(int days)
+	{
+		HashMap<Long, Long[]> posters = new HashMap<Long, Long[]>();
+
+		for (Partition partition : getWindow(days).values()) {
+			for (int x = 0; x < partition.linkIds.length; x++) {
+				Long[] link = new Long[2];
+				link[0] = partition.fromIds[x];
+				link[1] = partition.uids[x];
+
+				posters.put(partition.linkIds[x], link);
+			}
+		}
+
+		return posters;
+	}
+
+	/**
+	 * Same as LinkUtil.getLinkLikes(getLinkPosters(days)): the users that liked each link, with the poster counted as a like.
+	 */
+	public synchronized Map<Long, Set<Long>> getLinkLikes(int days)
+	{
+		HashMap<Long, Set<Long>> linkLikes = new HashMap<Long, Set<Long>>();
+
+		for (Partition partition : getWindow(days).values()) {
+			for (int x = 0; x < partition.linkIds.length; x++) {
+				HashSet<Long> likes = new HashSet<Long>();
+				likes.add(partition.fromIds[x]);
+
+				long[] likers = partition.likers[x];
+				for (int y = 0; y < likers.length; y++) {
+					likes.add(likers[y]);
+				}
+
+				linkLikes.put(partition.linkIds[x], likes);
+			}
+		}
+
+		return linkLikes;
+	}
+
+	/**
+	 * Links in the window posted by friends of the user (or 0) on the walls of friends (or 0), leaving out the links the
+	 * user liked and the given ids and hashes.
+	 */
+	public synchronized Set<Long> getFriendLinks(int days, long userId, Set<Long> friends, Set<Long> dontIncludeIds, Set<String> dontIncludeHashes)
+	{
+		HashSet<Long> links = new HashSet<Long>();
+
+		for (Partition partition : getWindow(days).values()) {
+			for (int x = 0; x < partition.linkIds.length; x++) {
+				long uid = partition.uids[x];
+				long fromId = partition.fromIds[x];
+
+				if (uid != 0 && !friends.contains(uid)) continue;
+				if (fromId != 0 && !friends.contains(fromId)) continue;
+
+				if (isIncluded(partition, x, userId, dontIncludeIds, dontIncludeHashes)) {
+					links.add(partition.linkIds[x]);
+				}
+			}
+		}
+
+		return links;
+	}
+
+	/**
+	 * Links in the window neither posted by the user or a friend nor on their walls, leaving out the links the user liked
+	 * and the given ids and hashes.
+	 */
+	public synchronized Set<Long> getNonFriendLinks(int days, long userId, Set<Long> friends, Set<Long> dontIncludeIds, Set<String> dontIncludeHashes)
+	{
+		HashSet<Long> links = new HashSet<Long>();
+
+		for (Partition partition : getWindow(days).values()) {
+			for (int x = 0; x < partition.linkIds.length; x++) {
+				long uid = partition.uids[x];
+				long fromId = partition.fromIds[x];
+
+				if (uid == userId || friends.contains(uid)) continue;
+				if (fromId == userId || friends.contains(fromId)) continue;
+
+				if (isIncluded(partition, x, userId, dontIncludeIds, dontIncludeHashes)) {
+					links.add(partition.linkIds[x]);
+				}
+			}
+		}
+
+		return links;
+	}
+
+	/**
+	 * The link_id NOT IN / link_hash NOT IN ('', ...) filters of the old candidate queries, plus the user's own likes.
+	 */
+	private boolean isIncluded(Partition partition, int x, long userId, Set<Long> dontIncludeIds, Set<String> dontIncludeHashes)
+	{
+		if (dontIncludeIds.contains(partition.linkIds[x])) return false;
+		if (Arrays.binarySearch(partition.likers[x], userId) >= 0) return false;
+
+		if (partition.hashes != null) {
+			String hash = partition.hashes[x];
+			if (hash == null || hash.length() == 0 || dontIncludeHashes.contains(hash)) return false;
+		}
+
+		return true;
+	}
+
+	private SortedMap<Integer, Partition> getWindow(int days)
+	{
+		if (today - days < loadedFrom) {
+			System.out.println("Link window index: " + days + " day window asked for but only " + (today - loadedFrom) + " loaded");
+		}
+
+		return partitions.tailMap(today - days);
+	}
+
+	/**
+	 * Reads the links created on the days from fromDay up to (not including) toDay, replacing the partitions of those days.
+	 */
+	private void load(DatasetSnapshot snapshot, int fromDay, int toDay)
+		throws SQLException
+	{
+		HashMap<Integer, PartitionBuilder> builders = new HashMap<Integer, PartitionBuilder>();
+
+		if (snapshot != null) {
+			DatasetSnapshot.Table table = snapshot.getTable("linkrLinks");
+			long[] linkIds = table.getLongs("link_id");
+			long[] uids = table.getLongs("uid");
+			long[] fromIds = table.getLongs("from_id");
+			long[] createdTimes = table.getLongs("created_time");
+
+			for (int row = 0; row < linkIds.length; row++) {
+				int day = toDay(createdTimes[row]);
+				if (day < fromDay || day >= toDay) continue;
+
+				getBuilder(builders, day, false).add(linkIds[row], uids[row], fromIds[row], null);
+			}
+		}
+		else {
+			String query = "SELECT link_id, uid, from_id, link_hash, created_time FROM linkrLinks WHERE created_time >= ?";
+			if (toDay != Integer.MAX_VALUE) {
+				query += " AND created_time < ?";
+			}
+
+			PreparedStatement statement = SQLUtil.prepareStatement(query);
+			try {
+				statement.setFetchSize(SQLUtil.getFetchSize());
+				statement.setTimestamp(1, new Timestamp(getDayStart(fromDay)));
+				if (toDay != Integer.MAX_VALUE) {
+					statement.setTimestamp(2, new Timestamp(getDayStart(toDay)));
+				}
+
+				ResultSet result = statement.executeQuery();
+				try {
+					while (result.next()) {
+						Timestamp created = result.getTimestamp("created_time");
+						if (created == null) continue;
+
+						getBuilder(builders, toDay(created.getTime()), true).add(result.getLong("link_id"), result.getLong("uid"),
+																				result.getLong("from_id"), result.getString("link_hash"));
+					}
+				}
+				finally {
+					result.close();
+				}
+			}
+			finally {
+				statement.close();
+			}
+		}
+
+		List<Partition> loaded = new ArrayList<Partition>();
+		for (PartitionBuilder builder : builders.values()) {
+			loaded.add(builder.build());
+		}
+
+		loadLikes(snapshot != null ? snapshot.getTable("linkrLinkLikes") : null, loaded);
+
+		//Days with no links at all have no partition, so clear the range before adding what was read
+		partitions.subMap(fromDay, toDay).clear();
+		int linkCount = 0;
+		for (Partition partition : loaded) {
+			partitions.put(partition.day, partition);
+			linkCount += partition.linkIds.length;
+		}
+
+		System.out.println("Link window index: loaded " + linkCount + " links in " + loaded.size() + " days, " + partitions.size() + " days indexed");
+	}
+
+	private void loadLikes(DatasetSnapshot.Table table, List<Partition> loaded)
+		throws SQLException
+	{
+		final HashMap<Long, TLongArrayList> likes = new HashMap<Long, TLongArrayList>();
+		for (Partition partition : loaded) {
+			for (int x = 0; x < partition.linkIds.length; x++) {
+				likes.put(partition.linkIds[x], new TLongArrayList());
+			}
+		}
+
+		if (table != null) {
+			long[] ids = table.getLongs("id");
+			long[] linkIds = table.getLongs("link_id");
+
+			for (int row = 0; row < ids.length; row++) {
+				TLongArrayList likers = likes.get(linkIds[row]);
+				if (likers != null) {
+					likers.add(ids[row]);
+				}
+			}
+		}
+		else {
+			SQLUtil.fetchIn("SELECT id, link_id FROM linkrLinkLikes WHERE link_id IN (?)", likes.keySet(), new SQLUtil.RowHandler() {
+				public void handle(ResultSet result)
+					throws SQLException
+				{
+					likes.get(result.getLong("link_id")).add(result.getLong("id"));
+				}
+			});
+		}
+
+		for (Partition partition : loaded) {
+			for (int x = 0; x < partition.linkIds.length; x++) {
+				long[] likers = likes.get(partition.linkIds[x]).toNativeArray();
+				Arrays.sort(likers);
+				partition.likers[x] = likers;
+			}
+		}
+	}
+
+	private static PartitionBuilder getBuilder(Map<Integer, PartitionBuilder> builders, int day, boolean hashes)
+	{
+		PartitionBuilder builder = builders.get(day);
+		if (builder == null) {
+			builder = new PartitionBuilder(day, hashes);
+			builders.put(day, builder);
+		}
+
+		return builder;
+	}
+
+	/**
+	 * Links created on one day, in parallel arrays.
+	 */
+	private static class Partition
+	{
+		int day;
+		long[] linkIds;
+		long[] uids;
+		long[] fromIds;
+		String[] hashes;
+		long[][] likers;
+	}
+
+	private static class PartitionBuilder
+	{
+		int day;
+		TLongArrayList linkIds = new TLongArrayList();
+		TLongArrayList uids = new TLongArrayList();
+		TLongArrayList fromIds = new TLongArrayList();
+		List<String> hashes;
+
+		PartitionBuilder(int day, boolean hashes)
+		{
+			this.day = day;
+			if (hashes) {
+				this.hashes = new ArrayList<String>();
+			}
+		}
+
+		void add(long linkId, long uid, long fromId, String hash)
+		{
+			linkIds.add(linkId);
+			uids.add(uid);
+			fromIds.add(fromId);
+			if (hashes != null) {
+				hashes.add(hash);
+			}
+		}
+
+		Partition build()
+		{
+			Partition partition = new Partition();
+			partition.day = day;
+			partition.linkIds = linkIds.toNativeArray();
+			partition.uids = uids.toNativeArray();
+			partition.fromIds = fromIds.toNativeArray();
+			partition.hashes = hashes != null ? hashes.toArray(new String[hashes.size()]) : null;
+			partition.likers = new long[partition.linkIds.length][];
+
+			return partition;
+		}
+	}
+}
@@ -1,38 +1,93 @@
 package org.nicta.lr.util;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.Statement;
 import java.sql.PreparedStatement;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SQLUtil 
 {
 	private static Connection connection = null;
+	private static ConnectionPool pool = null;
 	
 	/**
-	 * Returns the SQL connection Singleton
+	 * Returns the connection leased by the calling thread from the pool if it holds one, otherwise the SQL connection Singleton
 	 * 
 	 * @return
 	 * @throws SQLException
 	 */
 	private static Connection getSqlConnection()
 		throws SQLException
+	{
+		ConnectionPool leasePool = pool;
+		if (leasePool != null) {
+			Connection leased = leasePool.current();
+			if (leased != null) return leased;
+		}
+		
+		if (connection == null) {
+			connection = openConnection();
+			connection.setAutoCommit(false);
+		}
+	
+		return connection;
+	}
+	
+	/**
+	 * Opens a new connection outside the singleton, for readers that need a connection of their own
+	 * (e.g. concurrent streaming result sets). The caller closes it.
+	 * 
+	 * @return
+	 * @throws SQLException
+	 */
+	public static Connection openConnection()
+		throws SQLException
 	{
 		try {
-			Class.forName ("com.mysql.jdbc.Driver");
+			Class.forName (Configuration.DB_DRIVER);
 		}
 		catch (ClassNotFoundException ce) {
-			System.out.println("MySQL driver not found");
+			System.out.println("JDBC driver not found: " + Configuration.DB_DRIVER);
 			System.exit(1);
 		}
 		
-		if (connection == null) {
-			connection = DriverManager.getConnection(Configuration.DB_STRING);
-			connection.setAutoCommit(false);
+		return DriverManager.getConnection(Configuration.DB_STRING);
+	}
+	
+	/**
+	 * Returns the pool used by the concurrent loaders, creating it from the Configuration on first use.
+	 * 
+	 * @return
+	 */
+	public static synchronized ConnectionPool getPool()
+	{
+		if (pool == null) {
+			pool = new ConnectionPool(Configuration.DB_STRING, Configuration.SQL_POOL_SIZE, Configuration.DB_VALIDATION_QUERY, Configuration.SQL_POOL_VALIDATION_INTERVAL);
 		}
+		
+		return pool;
+	}
 	
-		return connection;
+	/**
+	 * Closes the pooled connections. The next getPool() starts a new pool, e.g. after DB_STRING was changed.
+	 */
+	public static synchronized void closePool()
+	{
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		}
 	}
 	
 	/**
@@ -53,6 +108,28 @@ public class SQLUtil
 		}
 	}
 	
+	/**
+	 * Commits the work done on the calling thread's connection, e.g. once every BatchWriter of a save is closed.
+	 * 
+	 * @throws SQLException
+	 */
+	public static void commit()
+		throws SQLException
+	{
+		getSqlConnection().commit();
+	}
+	
+	/**
+	 * Rolls back the work done on the calling thread's connection since its last commit.
+	 * 
+	 * @throws SQLException
+	 */
+	public static void rollback()
+		throws SQLException
+	{
+		getSqlConnection().rollback();
+	}
+	
 	public static Statement getStatement()
 		throws SQLException
 	{
@@ -66,4 +143,337 @@ public class SQLUtil
 		Connection conn = getSqlConnection();
 		return conn.prepareStatement(sql);
 	}
+	
+	/**
+	 * Fetch size for streamed reads. MySQL only streams a result set row by row with Integer.MIN_VALUE, which other
+	 * drivers reject, so they get Configuration.SQL_FETCH_SIZE.
+	 * 
+	 * @return
+	 */
+	public static int getFetchSize()
+	{
+		return Configuration.DB_DRIVER.startsWith("com.mysql.") ? Integer.MIN_VALUE : Configuration.SQL_FETCH_SIZE;
+	}
+	
+	/**
+	 * Forward-only, read-only statement with getFetchSize(), for streaming a large table. Runs on the
+	 * calling thread's connection, and the connection can't be used for anything else until the result set is closed.
+	 * 
+	 * @return
+	 * @throws SQLException
+	 */
+	public static Statement getStreamingStatement()
+		throws SQLException
+	{
+		Statement statement = getSqlConnection().createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		statement.setFetchSize(getFetchSize());
+		
+		return statement;
+	}
+	
+	/**
+	 * Runs independent loading tasks at the same time, on the calling thread and up to threads - 1 helper threads.
+	 * Each helper holds a pooled connection while it runs, so getStatement() and the other SQLUtil calls made by a task
+	 * go to that thread's own connection. Helpers never wait for a connection: if the pool is exhausted the remaining
+	 * tasks run on the threads that have one, which keeps nested calls (e.g. a task that calls fetchIn) from deadlocking.
+	 * 
+	 * @param tasks
+	 * @param threads
+	 * @return the results of the tasks, in order
+	 * @throws SQLException
+	 */
+	public static <T> List<T> runConcurrently(final List<Callable<T>> tasks, int threads)
+		throws SQLException
+	{
+		final List<T> results = new ArrayList<T>(tasks.size());
+		for (int x = 0; x < tasks.size(); x++) {
+			results.add(null);
+		}
+		
+		final AtomicInteger nextTask = new AtomicInteger();
+		
+		runWorkers(Math.min(threads, tasks.size()), new Worker() {
+			public void run(Connection conn)
+				throws SQLException
+			{
+				int task;
+				while ((task = nextTask.getAndIncrement()) < tasks.size()) {
+					T result;
+					try {
+						result = tasks.get(task).call();
+					}
+					catch (SQLException e) {
+						throw e;
+					}
+					catch (Exception e) {
+						throw new SQLException("Loading task failed", e);
+					}
+					
+					synchronized (results) {
+						results.set(task, result);
+					}
+				}
+			}
+		});
+		
+		return results;
+	}
+	
+	/**
+	 * A loop that takes work off a shared counter until there is none left, run on one connection.
+	 */
+	private interface Worker
+	{
+		public void run(Connection conn) throws SQLException;
+	}
+	
+	/**
+	 * Runs the worker on the calling thread's connection and on up to threads - 1 helpers that could lease a pooled connection.
+	 */
+	private static void runWorkers(int threads, final Worker worker)
+		throws SQLException
+	{
+		if (threads <= 1) {
+			worker.run(getSqlConnection());
+			return;
+		}
+		
+		final ConnectionPool leasePool = getPool();
+		ExecutorService helpers = Executors.newFixedThreadPool(threads - 1);
+		
+		try {
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for (int t = 1; t < threads; t++) {
+				futures.add(helpers.submit(new Callable<Object>() {
+					public Object call()
+						throws SQLException
+					{
+						Connection conn = leasePool.tryLease();
+						if (conn == null) return null;
+						
+						try {
+							worker.run(conn);
+						}
+						finally {
+							leasePool.release(conn);
+						}
+						
+						return null;
+					}
+				}));
+			}
+			
+			worker.run(getSqlConnection());
+			
+			for (Future<Object> future : futures) {
+				future.get();
+			}
+		}
+		catch (InterruptedException e) {
+			throw new SQLException("Interrupted during concurrent load", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException)e.getCause();
+			}
+			throw new SQLException("Concurrent load failed", e.getCause());
+		}
+		finally {
+			helpers.shutdown();
+		}
+	}
+	
+	/**
+	 * Receives the rows of a bulk fetch. Calls are serialized, so the handler can write into unsynchronized maps.
+	 */
+	public interface RowHandler
+	{
+		public void handle(ResultSet result) throws SQLException;
+	}
+	
+	/**
+	 * Runs a query over a large id set without building one giant IN (...) string. Every "(?)" in the query is expanded
+	 * to Configuration.SQL_IN_CHUNK_SIZE parameters and bound to a chunk of the ids (the last chunk is padded by repeating
+	 * its last id, so one prepared statement serves every chunk). The chunks are run on up to Configuration.SQL_FETCH_THREADS
+	 * connections at once (the caller's and pooled ones) and each row is passed to the handler as it is read.
+	 * 
+	 * @param query e.g. "SELECT uid, gender FROM linkrUser WHERE uid IN (?)"
+	 * @param ids
+	 * @param handler
+	 * @throws SQLException
+	 */
+	public static void fetchIn(String query, Collection<Long> ids, final RowHandler handler)
+		throws SQLException
+	{
+		if (ids.size() == 0) return;
+		
+		final long[] idArray = new long[ids.size()];
+		int pos = 0;
+		for (long id : ids) {
+			idArray[pos++] = id;
+		}
+		
+		final int chunkSize = Math.min(Configuration.SQL_IN_CHUNK_SIZE, idArray.length);
+		final int chunkCount = (idArray.length + chunkSize - 1) / chunkSize;
+		
+		StringBuffer params = new StringBuffer("(?");
+		for (int x = 1; x < chunkSize; x++) {
+			params.append(",?");
+		}
+		params.append(")");
+		
+		final String sql = query.replace("(?)", params.toString());
+		final AtomicInteger nextChunk = new AtomicInteger();
+		
+		int threads = Math.min(chunkCount, Configuration.SQL_FETCH_THREADS);
+		
+		runWorkers(threads, new Worker() {
+			public void run(Connection conn)
+				throws SQLException
+			{
+				fetchChunks(conn, sql, idArray, chunkSize, chunkCount, nextChunk, handler);
+			}
+		});
+	}
+	
+	/**
+	 * Takes chunks off nextChunk until there are none left, running each through one prepared statement on conn.
+	 */
+	private static void fetchChunks(Connection conn, String sql, long[] ids, int chunkSize, int chunkCount, AtomicInteger nextChunk, RowHandler handler)
+		throws SQLException
+	{
+		PreparedStatement statement = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		statement.setFetchSize(getFetchSize());
+		
+		int paramCount = countParameters(sql);
+		
+		try {
+			int chunk;
+			while ((chunk = nextChunk.getAndIncrement()) < chunkCount) {
+				int start = chunk * chunkSize;
+				int end = Math.min(start + chunkSize, ids.length);
+				
+				for (int p = 0; p < paramCount; p++) {
+					int x = p % chunkSize;
+					statement.setLong(p + 1, ids[Math.min(start + x, end - 1)]);
+				}
+				
+				ResultSet result = statement.executeQuery();
+				while (result.next()) {
+					synchronized (handler) {
+						handler.handle(result);
+					}
+				}
+				result.close();
+			}
+		}
+		finally {
+			statement.close();
+		}
+	}
+	
+	private static int countParameters(String sql)
+	{
+		int count = 0;
+		for (int x = 0; x < sql.length(); x++) {
+			if (sql.charAt(x) == '?') count++;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Batched writer for an insert statement on the shared connection, with Configuration.SQL_BATCH_SIZE rows per batch.
+	 * 
+	 * @param sql
+	 * @return
+	 * @throws SQLException
+	 */
+	public static BatchWriter getBatchWriter(String sql)
+		throws SQLException
+	{
+		return new BatchWriter(getSqlConnection(), sql, Configuration.SQL_BATCH_SIZE);
+	}
+	
+	/**
+	 * Writes rows through a single prepared statement with addBatch/executeBatch, sending a batch every batchSize rows.
+	 * The rows go into the connection's current transaction and the writer never commits or rolls back, so several
+	 * writers (and other statements) on the same connection can make up one transaction that the caller commits, or
+	 * rolls back if a write fails.
+	 * 
+	 * Takes any Connection so it can be used against a local embedded database as well as the MySQL singleton.
+	 */
+	public static class BatchWriter
+	{
+		private PreparedStatement statement;
+		private int batchSize;
+		private int pending = 0;
+		private int written = 0;
+		
+		public BatchWriter(Connection conn, String sql, int batchSize)
+			throws SQLException
+		{
+			this.batchSize = batchSize;
+			
+			statement = conn.prepareStatement(sql);
+		}
+		
+		/**
+		 * Adds a row, setting the statement parameters in order.
+		 * 
+		 * @param values
+		 * @throws SQLException
+		 */
+		public void add(Object... values)
+			throws SQLException
+		{
+			for (int x = 0; x < values.length; x++) {
+				statement.setObject(x + 1, values[x]);
+			}
+			
+			statement.addBatch();
+			pending++;
+			
+			if (pending >= batchSize) {
+				flush();
+			}
+		}
+		
+		/**
+		 * Sends the pending rows.
+		 * 
+		 * @throws SQLException
+		 */
+		public void flush()
+			throws SQLException
+		{
+			if (pending == 0) return;
+			
+			statement.executeBatch();
+			
+			written += pending;
+			pending = 0;
+		}
+		
+		/**
+		 * Sends the pending rows and closes the statement, without committing.
+		 * 
+		 * @throws SQLException
+		 */
+		public void close()
+			throws SQLException
+		{
+			try {
+				flush();
+			}
+			finally {
+				statement.close();
+			}
+		}
+		
+		public int getWritten()
+		{
+			return written;
+		}
+	}
 }
@@ -0,0 +1,401 @@
+package org.nicta.lr.util;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable compressed sparse row graph over users, as a compact replacement for Interaction and the
+ * Map<Long, Map<Long, Double>> friendships.
+ *
+ * Users get dense int ids in order of their sorted uid. The neighbours of row i are neighbours[offsets[i], offsets[i+1]),
+ * sorted ascending, with an optional parallel float weight (1 when the graph is unweighted). Membership is a binary search
+ * of the row, and intersecting two rows gallops through the longer one.
+ */
+public class SocialGraph
+{
+	private long[] ids;
+	private int[] offsets;
+	private int[] neighbours;
+	private float[] weights;
+
+	private SocialGraph(long[] ids, int[] offsets, int[] neighbours, float[] weights)
+	{
+		this.ids = ids;
+		this.offsets = offsets;
+		this.neighbours = neighbours;
+		this.weights = weights;
+	}
+
+	/**
+	 * Builds the graph from the friendships map, keeping the weights. Rows are as given in the map, so an asymmetric map
+	 * gives an asymmetric graph.
+	 *
+	 * @param friendships
+	 * @return
+	 */
+	public static SocialGraph fromFriendships(Map<Long, Map<Long, Double>> friendships)
+	{
+		int count = 0;
+		for (Map<Long, Double> friends : friendships.values()) {
+			count += friends.size();
+		}
+
+		long[] sources = new long[count];
+		long[] targets = new long[count];
+		float[] values = new float[count];
+
+		int e = 0;
+		for (Map.Entry<Long, Map<Long, Double>> row : friendships.entrySet()) {
+			long uid = row.getKey();
+
+			for (Map.Entry<Long, Double> friend : row.getValue().entrySet()) {
+				sources[e] = uid;
+				targets[e] = friend.getKey();
+				values[e] = friend.getValue().floatValue();
+				e++;
+			}
+		}
+
+		return build(sources, targets, values, count, friendships.keySet());
+	}
+
+	/**
+	 * Builds an unweighted graph from an Interaction, with a row per uid holding its interacting uids.
+	 *
+	 * @param interaction
+	 * @return
+	 */
+	public static SocialGraph fromInteraction(Interaction interaction)
+	{
+		Map<Long, Set<Long>> all = interaction.getAllInteractions();
+
+		int count = 0;
+		for (Set<Long> alters : all.values()) {
+			count += alters.size();
+		}
+
+		long[] sources = new long[count];
+		long[] targets = new long[count];
+
+		int e = 0;
+		for (Map.Entry<Long, Set<Long>> row : all.entrySet()) {
+			long uid = row.getKey();
+
+			for (long alter : row.getValue()) {
+				sources[e] = uid;
+				targets[e] = alter;
+				e++;
+			}
+		}
+
+		return build(sources, targets, null, count, all.keySet());
+	}
+
+	/**
+	 * Builds an unweighted graph straight from a loaded base table, with the same rows Interaction.addInteraction would
+	 * give for the direction: INCOMING puts the interacting uid in the target's row, OUTGOING the target in the interacting
+	 * uid's row, and BIDIR both.
+	 *
+	 * @param edges
+	 * @param dir
+	 * @return
+	 */
+	public static SocialGraph fromEdges(InteractionLoader.EdgeBuffer edges, EDirectionType dir)
+	{
+		int size = edges.size();
+		int count = dir == EDirectionType.BIDIR ? size * 2 : size;
+
+		long[] sources = new long[count];
+		long[] targets = new long[count];
+
+		int e = 0;
+		for (int x = 0; x < size; x++) {
+			if (dir == EDirectionType.INCOMING || dir == EDirectionType.BIDIR) {
+				sources[e] = edges.getTarget(x);
+				targets[e] = edges.getSource(x);
+				e++;
+			}
+			if (dir == EDirectionType.OUTGOING || dir == EDirectionType.BIDIR) {
+				sources[e] = edges.getSource(x);
+				targets[e] = edges.getTarget(x);
+				e++;
+			}
+		}
+
+		return build(sources, targets, null, count, null);
+	}
+
+	/**
+	 * Counting sort of the edges into rows, then sorts each row and merges repeated edges (summing their weights).
+	 */
+	private static SocialGraph build(long[] sources, long[] targets, float[] values, int count, Set<Long> rowIds)
+	{
+		long[] all = new long[count * 2 + (rowIds != null ? rowIds.size() : 0)];
+		System.arraycopy(sources, 0, all, 0, count);
+		System.arraycopy(targets, 0, all, count, count);
+
+		if (rowIds != null) {
+			int x = count * 2;
+			for (long uid : rowIds) {
+				all[x++] = uid;
+			}
+		}
+
+		Arrays.sort(all);
+
+		int unique = 0;
+		for (int x = 0; x < all.length; x++) {
+			if (x == 0 || all[x] != all[x - 1]) {
+				all[unique++] = all[x];
+			}
+		}
+		long[] ids = Arrays.copyOf(all, unique);
+
+		int[] rows = new int[count];
+		int[] columns = new int[count];
+		int[] offsets = new int[unique + 1];
+
+		for (int e = 0; e < count; e++) {
+			rows[e] = Arrays.binarySearch(ids, sources[e]);
+			columns[e] = Arrays.binarySearch(ids, targets[e]);
+			offsets[rows[e] + 1]++;
+		}
+
+		for (int i = 0; i < unique; i++) {
+			offsets[i + 1] += offsets[i];
+		}
+
+		int[] fill = Arrays.copyOf(offsets, unique);
+		int[] neighbours = new int[count];
+		float[] weights = values != null ? new float[count] : null;
+
+		for (int e = 0; e < count; e++) {
+			int pos = fill[rows[e]]++;
+			neighbours[pos] = columns[e];
+			if (weights != null) weights[pos] = values[e];
+		}
+
+		//Sort each row, keeping the weights in line, and merge repeated neighbours
+		int write = 0;
+		long[] packed = new long[0];
+
+		for (int i = 0; i < unique; i++) {
+			int start = offsets[i];
+			int end = offsets[i + 1];
+			offsets[i] = write;
+
+			if (end - start > packed.length) {
+				packed = new long[end - start];
+			}
+
+			for (int pos = start; pos < end; pos++) {
+				long weightBits = weights != null ? Float.floatToIntBits(weights[pos]) & 0xffffffffL : 0;
+				packed[pos - start] = ((long)neighbours[pos] << 32) | weightBits;
+			}
+			Arrays.sort(packed, 0, end - start);
+
+			for (int p = 0; p < end - start; p++) {
+				int neighbour = (int)(packed[p] >>> 32);
+				float weight = Float.intBitsToFloat((int)packed[p]);
+
+				if (write > offsets[i] && neighbours[write - 1] == neighbour) {
+					if (weights != null) weights[write - 1] += weight;
+					continue;
+				}
+
+				neighbours[write] = neighbour;
+				if (weights != null) weights[write] = weight;
+				write++;
+			}
+		}
+		offsets[unique] = write;
+
+		return new SocialGraph(ids, offsets, Arrays.copyOf(neighbours, write), weights != null ? Arrays.copyOf(weights, write) : null);
+	}
+
+	/**
+	 * Number of users (rows).
+	 */
+	public int size()
+	{
+		return ids.length;
+	}
+
+	/**
+	 * Number of stored edges.
+	 */
+	public int getEdgeCount()
+	{
+		return neighbours.length;
+	}
+
+	/**
+	 * Dense id of a uid, or -1 if the user isn't in the graph.
+	 *
+	 * @param uid
+	 * @return
+	 */
+	public int getIndex(long uid)
+	{
+		int index = Arrays.binarySearch(ids, uid);
+		return index >= 0 ? index : -1;
+	}
+
+	public long getId(int index)
+	{
+		return ids[index];
+	}
+
+	public int getDegree(int i)
+	{
+		return offsets[i + 1] - offsets[i];
+	}
+
+	/**
+	 * Start of row i in getNeighbours()/getWeights(). Row i ends at getOffset(i + 1).
+	 */
+	public int getOffset(int i)
+	{
+		return offsets[i];
+	}
+
+	/**
+	 * Backing neighbour array, rows sorted ascending.
+	 */
+	public int[] getNeighbours()
+	{
+		return neighbours;
+	}
+
+	/**
+	 * Backing weight array in line with getNeighbours(), or null if the graph is unweighted.
+	 */
+	public float[] getWeights()
+	{
+		return weights;
+	}
+
+	public boolean isWeighted()
+	{
+		return weights != null;
+	}
+
+	/**
+	 * Weight of the edge at a position of getNeighbours().
+	 */
+	public double getWeightAt(int pos)
+	{
+		return weights != null ? weights[pos] : 1;
+	}
+
+	/**
+	 * Sum of the weights of row i.
+	 */
+	public double getWeightTotal(int i)
+	{
+		double total = 0;
+		for (int pos = offsets[i]; pos < offsets[i + 1]; pos++) {
+			total += getWeightAt(pos);
+		}
+
+		return total;
+	}
+
+	/**
+	 * Position of j in row i, or -1.
+	 */
+	public int indexOf(int i, int j)
+	{
+		int pos = Arrays.binarySearch(neighbours, offsets[i], offsets[i + 1], j);
+		return pos >= 0 ? pos : -1;
+	}
+
+	public boolean contains(int i, int j)
+	{
+		return indexOf(i, j) >= 0;
+	}
+
+	/**
+	 * Weight of the edge i -> j, 0 if there is none.
+	 */
+	public double getWeight(int i, int j)
+	{
+		int pos = indexOf(i, j);
+		return pos >= 0 ? getWeightAt(pos) : 0;
+	}
+
+	/**
+	 * Weight of the edge uid1 -> uid2 by uid, 0 if there is none. Same value as SocialRegularizer.getFriendConnection on the map.
+	 */
+	public double getWeight(long uid1, long uid2)
+	{
+		int i = getIndex(uid1);
+		if (i < 0) return 0;
+
+		int j = getIndex(uid2);
+		if (j < 0) return 0;
+
+		return getWeight(i, j);
+	}
+
+	/**
+	 * Number of neighbours rows i and j have in common. Walks the shorter row and gallops through the longer one, so
+	 * the cost is O(short * log(long / short)).
+	 */
+	public int countCommonNeighbours(int i, int j)
+	{
+		int shortPos = offsets[i];
+		int shortEnd = offsets[i + 1];
+		int longPos = offsets[j];
+		int longEnd = offsets[j + 1];
+
+		if (shortEnd - shortPos > longEnd - longPos) {
+			shortPos = offsets[j];
+			shortEnd = offsets[j + 1];
+			longPos = offsets[i];
+			longEnd = offsets[i + 1];
+		}
+
+		int common = 0;
+		for (; shortPos < shortEnd && longPos < longEnd; shortPos++) {
+			longPos = gallop(neighbours[shortPos], longPos, longEnd);
+
+			if (longPos < longEnd && neighbours[longPos] == neighbours[shortPos]) {
+				common++;
+				longPos++;
+			}
+		}
+
+		return common;
+	}
+
+	/**
+	 * First position in [from, end) whose neighbour is >= target, by doubling steps then a binary search of the last step.
+	 */
+	public int gallop(int target, int from, int end)
+	{
+		int step = 1;
+		int low = from;
+		int high = from;
+
+		while (high < end && neighbours[high] < target) {
+			low = high + 1;
+			high += step;
+			step <<= 1;
+		}
+		if (high > end) high = end;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (neighbours[mid] < target) {
+				low = mid + 1;
+			}
+			else {
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+}
@@ -9,6 +9,8 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.Map;
 
+import gnu.trove.TLongArrayList;
+
 public class UserUtil 
 {
 	/**
@@ -23,6 +25,14 @@ public class UserUtil
 	{
 		HashSet<Long> userIds = new HashSet<Long>();
 		
+		DatasetSnapshot.Table table = DatasetSnapshot.getSnapshotTable("linkrUser");
+		if (table != null) {
+			for (long uid : table.getLongs("uid")) {
+				userIds.add(uid);
+			}
+			return userIds;
+		}
+		
 		Statement statement = SQLUtil.getStatement();
 		
 		String userQuery = "SELECT uid FROM linkrUser";
@@ -151,6 +161,9 @@ public class UserUtil
 	{
 		Interaction i = new Interaction(); // currently treat interactions as undirected
 
+		// Read every base table this type needs up front, concurrently
+		InteractionLoader.load(InteractionLoader.getBaseTypes(type));
+		
 		// Repeated calls or direct
 		if (type == EInteractionType.ALL_INTER) {
 			Interaction all_inter = getUserInteractions(EInteractionType.ALL_LIKES, dir);
@@ -230,40 +243,13 @@ public class UserUtil
 			
 		} else { 
 		
-			// Base case retrieval
-			String table = null;
-			String target_uid = null;
-			String interacting_uid = null;
-			switch (type) {
-				case FRIENDS:        table = "linkrFriends"; target_uid = "uid1"; interacting_uid = "uid2"; break;
-				case LINK_LIKES:     table = "linkrLinkLikes"; target_uid = "uid"; interacting_uid = "id"; break;
-				case LINK_COMMENTS:  table = "linkrLinkComments"; target_uid = "uid"; interacting_uid = "from_id"; break;
-				case POST_LIKES:     table = "linkrPostLikes"; target_uid = "uid"; interacting_uid = "id"; break;
-				case POST_COMMENTS:  table = "linkrPostComments"; target_uid = "uid"; interacting_uid = "from_id"; break;
-				case POST_TAGS:      table = "linkrPostTags"; target_uid = "uid1"; interacting_uid = "uid2"; break;
-				case PHOTO_LIKES:    table = "linkrPhotoLikes"; target_uid = "uid"; interacting_uid = "id"; break;
-				case PHOTO_COMMENTS: table = "linkrPhotoComments"; target_uid = "uid"; interacting_uid = "from_id"; break; 
-				case PHOTO_TAGS:     table = "linkrPhotoTags"; target_uid = "uid1"; interacting_uid = "uid2"; break;
-				case VIDEO_LIKES:    table = "linkrVideoLikes"; target_uid = "uid"; interacting_uid = "id"; break;
-				case VIDEO_COMMENTS: table = "linkrVideoComments"; target_uid = "uid"; interacting_uid = "from_id"; break;
-				case VIDEO_TAGS:     table = "linkrVideoTags"; target_uid = "uid1"; interacting_uid = "uid2"; break;
-				default: {
-					System.out.println("ERROR: Illegal type -- " + type);
-					System.exit(1);
-				}
+			// Base case retrieval, each table is streamed from the database once per run
+			if (type != EInteractionType.FRIENDS) {
+				InteractionLoader.getEdges(type).addTo(i, dir);
 			}
-			
-			String sql_query = "SELECT " + target_uid + ", " + interacting_uid + " FROM " + table;
-			
-			Statement statement = SQLUtil.getStatement();
-			ResultSet result = statement.executeQuery(sql_query);
-			while (result.next()) {
-				// INCOMING if in correct order
-				long TARGET_ID = result.getLong(1);
-				long FROM_ID = result.getLong(2);
-				i.addInteraction(TARGET_ID, FROM_ID, type == EInteractionType.FRIENDS ? EDirectionType.BIDIR : dir);
+			else {
+				InteractionLoader.getEdges(type).addTo(i, EDirectionType.BIDIR);
 			}
-			statement.close();
 			
 			return i;
 		}
@@ -608,6 +594,11 @@ public class UserUtil
 	public static Map<Long, Double[]> getUserFeatures()
 		throws SQLException
 	{
+		DatasetSnapshot.Table table = DatasetSnapshot.getSnapshotTable("linkrUser");
+		if (table != null) {
+			return getUserFeatures(table, null);
+		}
+		
 		HashMap<Long, Double[]> userFeatures = new HashMap<Long, Double[]>();
 		
 		Statement statement = SQLUtil.getStatement();
@@ -619,43 +610,7 @@ public class UserUtil
 		ResultSet result = statement.executeQuery(userQuery);
 		
 		while (result.next()) {
-			String sex = result.getString("gender");
-			
-			//We're only interested on the age for this one.
-			int birthYear = 0;
-			String birthday = result.getString("birthday");
-			if (birthday.length() == 10) {
-				birthYear = Integer.parseInt(birthday.split("/")[2]);
-			}
-			
-			//double currentLocation = result.getLong("location_id") / 300000000000000.0;
-			//double hometownLocation = result.getLong("hometown_id") / 300000000000000.0;
-			
-			//Features are normalized between 0 and 1
-			Double[] feature = new Double[Configuration.USER_FEATURE_COUNT];
-			if ("male".equals(sex)) {
-				feature[0] = 1.0;
-				feature[1] = 0.0;
-			}
-			else if ("female".equals(sex)){
-				feature[0] = 0.0;
-				feature[1] = 1.0;
-			}
-			else {
-				feature[0] = 0.0;
-				feature[1] = 0.0;
-			}
-			
-			feature[2] = birthYear / 2012.0;
-			
-			//feature[0] = 0.0;
-			//feature[1] = 0.0;
-			//feature[2] = 0.0;
-		
-			//feature[2] = currentLocation;
-			//feature[3] = hometownLocation;
-			
-			userFeatures.put(result.getLong("uid"), feature);
+			userFeatures.put(result.getLong("uid"), getUserFeature(result.getString("gender"), result.getString("birthday")));
 		}
 		
 		statement.close();
@@ -665,65 +620,85 @@ public class UserUtil
 	
 	public static Map<Long, Double[]> getUserFeatures(Set<Long> userIds)
 		throws SQLException
+	{
+		DatasetSnapshot.Table table = DatasetSnapshot.getSnapshotTable("linkrUser");
+		if (table != null) {
+			return getUserFeatures(table, userIds);
+		}
+		
+		final HashMap<Long, Double[]> userFeatures = new HashMap<Long, Double[]>();
+		
+		SQLUtil.fetchIn("SELECT uid, gender, birthday, location_id, hometown_id FROM linkrUser WHERE uid IN (?)", userIds, new SQLUtil.RowHandler() {
+			public void handle(ResultSet result)
+				throws SQLException
+			{
+				userFeatures.put(result.getLong("uid"), getUserFeature(result.getString("gender"), result.getString("birthday")));
+			}
+		});
+		
+		return userFeatures;
+	} 
+	
+	/**
+	 * Features of the users in the snapshot's linkrUser table, limited to userIds unless it is null.
+	 */
+	private static Map<Long, Double[]> getUserFeatures(DatasetSnapshot.Table table, Set<Long> userIds)
 	{
 		HashMap<Long, Double[]> userFeatures = new HashMap<Long, Double[]>();
 		
-		Statement statement = SQLUtil.getStatement();
+		long[] uids = table.getLongs("uid");
+		String[] genders = table.getStrings("gender");
+		String[] birthdays = table.getStrings("birthday");
 		
-		StringBuffer userQuery = new StringBuffer();
-		userQuery.append("SELECT uid, gender, birthday, location_id, hometown_id FROM linkrUser WHERE uid IN (0");
-		for (long id : userIds) {
-			userQuery.append(",");
-			userQuery.append(id);
+		for (int row = 0; row < uids.length; row++) {
+			if (userIds != null && !userIds.contains(uids[row])) continue;
+			
+			userFeatures.put(uids[row], getUserFeature(genders[row], birthdays[row]));
 		}
-		userQuery.append(")");
 		
-		ResultSet result = statement.executeQuery(userQuery.toString());
+		return userFeatures;
+	}
+	
+	/**
+	 * Feature vector of a linkrUser row.
+	 */
+	private static Double[] getUserFeature(String sex, String birthday)
+	{
+		//We're only interested on the age for this one.
+		int birthYear = 0;
+		if (birthday.length() == 10) {
+			birthYear = Integer.parseInt(birthday.split("/")[2]);
+		}
 		
-		while (result.next()) {
-			String sex = result.getString("gender");
-			
-			//We're only interested on the age for this one.
-			int birthYear = 0;
-			String birthday = result.getString("birthday");
-			if (birthday.length() == 10) {
-				birthYear = Integer.parseInt(birthday.split("/")[2]);
-			}
-			
-			//double currentLocation = result.getLong("location_id") / 300000000000000.0;
-			//double hometownLocation = result.getLong("hometown_id") / 300000000000000.0;
-			
-			//Features are normalized between 0 and 1
-			Double[] feature = new Double[Configuration.USER_FEATURE_COUNT];
-			if ("male".equals(sex)) {
-				feature[0] = 1.0;
-				feature[1] = 0.0;
-			}
-			else if ("female".equals(sex)){
-				feature[0] = 0.0;
-				feature[1] = 1.0;
-			}
-			else {
-				feature[0] = 0.0;
-				feature[1] = 0.0;
-			}
-			
-			feature[2] = birthYear / 2012.0;
-			
-			//feature[0] = 0.0;
-			//feature[1] = 0.0;
-			//feature[2] = 0.0;
-			
-			//feature[2] = currentLocation;
-			//feature[3] = hometownLocation;
-			
-			userFeatures.put(result.getLong("uid"), feature);
+		//double currentLocation = result.getLong("location_id") / 300000000000000.0;
+		//double hometownLocation = result.getLong("hometown_id") / 300000000000000.0;
+		
+		//Features are normalized between 0 and 1
+		Double[] feature = new Double[Configuration.USER_FEATURE_COUNT];
+		if ("male".equals(sex)) {
+			feature[0] = 1.0;
+			feature[1] = 0.0;
+		}
+		else if ("female".equals(sex)){
+			feature[0] = 0.0;
+			feature[1] = 1.0;
+		}
+		else {
+			feature[0] = 0.0;
+			feature[1] = 0.0;
 		}
 		
-		statement.close();
+		feature[2] = birthYear / 2012.0;
 		
-		return userFeatures;
-	} 
+		//feature[0] = 0.0;
+		//feature[1] = 0.0;
+		//feature[2] = 0.0;
+		
+		//feature[2] = currentLocation;
+		//feature[3] = hometownLocation;
+		
+		return feature;
+	}
 	
 	/**
 	 * Gets all user friendship connections that are saved in the DB.
@@ -738,6 +713,17 @@ public class UserUtil
 	{
 		HashMap<Long, Map<Long, Double>> friendships = new HashMap<Long, Map<Long, Double>>();
 		
+		DatasetSnapshot.Table table = DatasetSnapshot.getSnapshotTable("linkrFriends");
+		if (table != null) {
+			long[] uids1 = table.getLongs("uid1");
+			long[] uids2 = table.getLongs("uid2");
+			
+			for (int row = 0; row < uids1.length; row++) {
+				addFriendship(friendships, uids1[row], uids2[row]);
+			}
+			return friendships;
+		}
+		
 		Statement statement = SQLUtil.getStatement();
 		
 		String friendQuery =
@@ -747,18 +733,7 @@ public class UserUtil
 		ResultSet result = statement.executeQuery(friendQuery);
 		
 		while (result.next()) {
-			Long uid1 = result.getLong("uid1");
-			Long uid2 = result.getLong("uid2");
-			
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			friendships.get(uid1).put(uid2, 1.0);
-			friendships.get(uid2).put(uid1, 1.0);
+			addFriendship(friendships, result.getLong("uid1"), result.getLong("uid2"));
 		}
 		
 		
@@ -767,6 +742,31 @@ public class UserUtil
 		
 		return friendships;
 	}
+	
+	private static void addFriendship(Map<Long, Map<Long, Double>> friendships, Long uid1, Long uid2)
+	{
+		if (!friendships.containsKey(uid1)) {
+			friendships.put(uid1, new HashMap<Long, Double>());
+		}
+		if (!friendships.containsKey(uid2)) {
+			friendships.put(uid2, new HashMap<Long, Double>());
+		}
+		
+		friendships.get(uid1).put(uid2, 1.0);
+		friendships.get(uid2).put(uid1, 1.0);
+	}
+
+	/**
+	 * Same friendships as getFriendships, as a SocialGraph built from the streamed linkrFriends table.
+	 * 
+	 * @return
+	 * @throws SQLException
+	 */
+	public static SocialGraph getFriendGraph()
+		throws SQLException
+	{
+		return SocialGraph.fromEdges(InteractionLoader.getEdges(EInteractionType.FRIENDS), EDirectionType.BIDIR);
+	}
 
 	/**
 	 * Friendship measure which is a normalized sum of the user-user interaction. Values are normalized by the 
@@ -778,674 +778,123 @@ public class UserUtil
 	 * @return
 	 * @throws SQLException
 	 */
-	public static Map<Long, Map<Long, Double>> getFriendInteractionMeasure(Set<Long> uids)
+	public static Map<Long, Map<Long, Double>> getFriendInteractionMeasure(final Set<Long> uids)
 		throws SQLException
 	{
-		HashMap<Long, Map<Long, Double>> friendships = new HashMap<Long, Map<Long, Double>>();
+		final HashMap<Long, Map<Long, Double>> friendships = new HashMap<Long, Map<Long, Double>>();
 		
-		StringBuffer idBuf = new StringBuffer("(0");
-		for (Long id : uids) {
-			idBuf.append(",");
-			idBuf.append(id);
-		}
-		idBuf.append(")");
-		String idString = idBuf.toString();
-		
-		Statement statement = SQLUtil.getStatement();
+		//Tables are read from the dataset snapshot when it has them. Otherwise queries are chunked over their first uid
+		//column, and the second column is checked against uids as rows come in
 		
 		//First interaction is the friend links. Friend links are now just one kind of interaction
-		String friendQuery =
-			"SELECT uid1, uid2 "
-			+ "FROM linkrFriends WHERE uid1 IN " + idString + " AND uid2 IN " + idString;
-		
-		ResultSet result = statement.executeQuery(friendQuery);
-		
-		double max_value = 0;
-		
-		while (result.next()) {
-			Long uid1 = result.getLong("uid1");
-			Long uid2 = result.getLong("uid2");
-			
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
+		DatasetSnapshot.Table friendTable = DatasetSnapshot.getSnapshotTable("linkrFriends");
+		if (friendTable != null) {
+			long[] uids1 = friendTable.getLongs("uid1");
+			long[] uids2 = friendTable.getLongs("uid2");
+			
+			for (int row = 0; row < uids1.length; row++) {
+				if (uids.contains(uids1[row]) && uids.contains(uids2[row])) {
+					addFriendship(friendships, uids1[row], uids2[row]);
+				}
 			}
-			
-			friendships.get(uid1).put(uid2, 1.0);
-			friendships.get(uid2).put(uid1, 1.0);
+		}
+		else {
+			SQLUtil.fetchIn("SELECT uid1, uid2 FROM linkrFriends WHERE uid1 IN (?)", uids, new SQLUtil.RowHandler() {
+				public void handle(ResultSet result)
+					throws SQLException
+				{
+					long uid1 = result.getLong(1);
+					long uid2 = result.getLong(2);
+					
+					if (!uids.contains(uid2)) return;
+					
+					addFriendship(friendships, uid1, uid2);
+				}
+			});
 		}
 		
 		// Comments on photos
-		result = statement.executeQuery("SELECT uid, from_id FROM linkrPhotoComments WHERE uid IN " + idString + " AND from_id IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid");
-			Long uid2 = result.getLong("from_id");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countInteractions(friendships, uids, "linkrPhotoComments", "uid", "from_id", null);
 		
 		// Likes on photos
-		result = statement.executeQuery("SELECT uid, id FROM linkrPhotoLikes WHERE uid IN " + idString + " AND id IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid");
-			Long uid2 = result.getLong("id");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countInteractions(friendships, uids, "linkrPhotoLikes", "uid", "id", null);
 		
 		// Times a user has posted a photo on someone else's wall
-		result = statement.executeQuery("SELECT uid, from_id FROM linkrPhotos WHERE uid IN " + idString + " AND from_id IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid");
-			Long uid2 = result.getLong("from_id");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countInteractions(friendships, uids, "linkrPhotos", "uid", "from_id", null);
 		
 		//Times that a user has been tagged in another user's photo
 		//Also get the people that are tagged per photo. Users getting tagged in the same photo is a pretty good measure 
 		//that they're friends.
-		//
-		HashMap<Long, HashSet<Long>> photoTags = new HashMap<Long, HashSet<Long>>();
-		
 		System.out.println("Joining photo tags");
-		result = statement.executeQuery("SELECT uid1, uid2, photo_id FROM linkrPhotoTags WHERE uid1 IN " + idString + " AND uid2 IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid1");
-			Long uid2 = result.getLong("uid2");
-			Long photoId = result.getLong("photo_id");
-			
-			if (uid1 == uid2) continue;
-			//if (!uids.contains(uid1) || !uids.contains(uid2)) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-			
-			HashSet<Long> tagged; //Users that were already tagged in this photo
-			if (photoTags.containsKey(photoId)) {
-				tagged = photoTags.get(photoId);
-			}
-			else {
-				tagged = new HashSet<Long>();
-				photoTags.put(photoId, tagged);
-			}
-			
-			if (tagged.contains(uid2)) continue;
-			
-			//Given the new tagged user, increment the interaction count between the user and
-			//all users that were already tagged in the photo.
-			for (Long alreadyTagged : tagged) {		
-				double tagVal = 1;
-				
-				if (friendships.get(alreadyTagged).containsKey(uid2)) {
-					tagVal += friendships.get(alreadyTagged).get(uid2);
-				}
-				
-				if (tagVal > max_value) max_value = tagVal;
-				
-				friendships.get(alreadyTagged).put(uid2, tagVal);
-				friendships.get(uid2).put(alreadyTagged, tagVal);
-			}
-			
-			tagged.add(uid2);
-		}
-		
+		countPhotoTags(new TagCounter(friendships, uids));
 		System.out.println("Done with photo tags");
 		
 		//Users posting on another user's wall
 		System.out.println("linkrPost");
-		result = statement.executeQuery("SELECT uid, from_id FROM linkrPost WHERE application_id !=" + Constants.APPLICATION_ID + " AND uid IN " + idString + " AND from_id IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid");
-			Long uid2 = result.getLong("from_id");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countInteractions(friendships, uids, "linkrPost", "uid", "from_id", "application_id !=" + Constants.APPLICATION_ID);
 		
 		//Users commenting on another user's posts
 		System.out.println("linkrPostComments");
-		result = statement.executeQuery("SELECT uid, from_id FROM linkrPostComments WHERE uid IN " + idString + " AND from_id IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid");
-			Long uid2 = result.getLong("from_id");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countInteractions(friendships, uids, "linkrPostComments", "uid", "from_id", null);
 		
 		//Users liking another user's posts.
 		System.out.println("linkrPostLikes");
-		result = statement.executeQuery("SELECT uid, id FROM linkrPostLikes WHERE uid IN " + idString + " AND id IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid");
-			Long uid2 = result.getLong("id");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countInteractions(friendships, uids, "linkrPostLikes", "uid", "id", null);
 		
 		//Users being tagged in another user's posts.
 		System.out.println("linkrPostTags");
-		result = statement.executeQuery("SELECT uid1, uid2 FROM linkrPostTags");
-		while (result.next()) {
-			Long uid1 = result.getLong("uid1");
-			Long uid2 = result.getLong("uid2");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countTableInteractions(friendships, "linkrPostTags");
 		
 		//Users that went to the same classes
 		System.out.println("linkrSchoolClassesWith");
-		result = statement.executeQuery("SELECT uid1, uid2 FROM linkrSchoolClassesWith");// WHERE uid1 IN " + idString + " AND uid2 IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid1");
-			Long uid2 = result.getLong("uid2");
-			
-			if (uid1 == uid2) continue;
-			if (!uids.contains(uid1) || !uids.contains(uid2)) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countTableInteractions(friendships, "linkrSchoolClassesWith");
 		
 		//Users that went to the same school
 		System.out.println("linkrSchoolWith");
-		result = statement.executeQuery("SELECT uid1, uid2 FROM linkrSchoolWith"); // WHERE uid1 IN " + idString + " AND uid2 IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid1");
-			Long uid2 = result.getLong("uid2");
-			
-			if (uid1 == uid2) continue;
-			if (!uids.contains(uid1) || !uids.contains(uid2)) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countTableInteractions(friendships, "linkrSchoolWith");
 		
 		//Users playing the same sports
 		System.out.println("linkrSportsWith");
-		result = statement.executeQuery("SELECT uid1, uid2 FROM linkrSportsWith");// WHERE uid1 IN " + idString + " AND uid2 IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid1");
-			Long uid2 = result.getLong("uid2");
-			
-			if (uid1 == uid2) continue;
-			if (!uids.contains(uid1) || !uids.contains(uid2)) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countTableInteractions(friendships, "linkrSportsWith");
 		
 		//Posting videos into another user's wall
 		System.out.println("linkrVideos");
-		result = statement.executeQuery("SELECT uid, from_id FROM linkrVideos WHERE uid IN " + idString + " AND from_id IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid");
-			Long uid2 = result.getLong("from_id");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countInteractions(friendships, uids, "linkrVideos", "uid", "from_id", null);
 		
 		//Commenting on another user's video
 		System.out.println("linkrVideoComments");
-		result = statement.executeQuery("SELECT uid, from_id FROM linkrVideoComments WHERE uid IN " + idString + " AND from_id IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid");
-			Long uid2 = result.getLong("from_id");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countInteractions(friendships, uids, "linkrVideoComments", "uid", "from_id", null);
 		
 		//Liking another user's video
 		System.out.println("linkrVideoLikes");
-		result = statement.executeQuery("SELECT uid, id FROM linkrVideoLikes WHERE uid IN " + idString + " AND id IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid");
-			Long uid2 = result.getLong("id");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countInteractions(friendships, uids, "linkrVideoLikes", "uid", "id", null);
 		
 		//User's getting tagged in another user's video.
 		//Also get the people that are tagged per video. Users getting tagged in the same video is a pretty good measure 
 		//that they're friends.
-		HashMap<Long, HashSet<Long>> videoTags = new HashMap<Long, HashSet<Long>>();
 		System.out.println("Getting video tags");
-		result = statement.executeQuery("SELECT t.uid2, l.uid, t.video_id FROM linkrVideos l, linkrVideoTags t WHERE t.video_id=l.id AND t.uid2 IN " + idString + " AND l.uid IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("l.uid");
-			Long uid2 = result.getLong("t.uid2");
-			Long videoId = result.getLong("t.video_id");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-			
-			HashSet<Long> tagged; //Users that were already tagged in this photo
-			if (videoTags.containsKey(videoId)) {
-				tagged = videoTags.get(videoId);
-			}
-			else {
-				tagged = new HashSet<Long>();
-				videoTags.put(videoId, tagged);
-			}
-			
-			if (tagged.contains(uid2)) continue;
-			
-			//Given the new tagged user, increment the interaction count between the user and
-			//all users that were already tagged in the photo.
-			for (Long alreadyTagged : tagged) {		
-				double tagVal = 1;
-				
-				if (friendships.get(alreadyTagged).containsKey(uid2)) {
-					tagVal += friendships.get(alreadyTagged).get(uid2);
-				}
-				
-				if (tagVal > max_value) max_value = tagVal;
-				
-				friendships.get(alreadyTagged).put(uid2, tagVal);
-				friendships.get(uid2).put(alreadyTagged, tagVal);
-			}
-			
-			tagged.add(uid2);
-		}
+		countVideoTags(new TagCounter(friendships, uids));
 		System.out.println("Done with video tags");
 		
 		//User's working in the same project
 		System.out.println("linkrWorkProjects");
-		result = statement.executeQuery("SELECT uid1, uid2 FROM linkrWorkProjectsWith");// WHERE uid1 IN " + idString + " AND uid2 IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid1");
-			Long uid2 = result.getLong("uid2");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countTableInteractions(friendships, "linkrWorkProjectsWith");
 		
 		//User's working in the same company
 		System.out.println("linkrWorkWith");
-		result = statement.executeQuery("SELECT uid1, uid2 FROM linkrWorkWith");// WHERE uid1 IN " + idString + " AND uid2 IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid1");
-			Long uid2 = result.getLong("uid2");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countTableInteractions(friendships, "linkrWorkWith");
 		
 		//User's liking a persons's link.
 		System.out.println("linkrLinkLikes");
-		result = statement.executeQuery("SELECT uid, id FROM linkrLinkLikes WHERE uid IN " + idString + " AND id IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid");
-			Long uid2 = result.getLong("id");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countInteractions(friendships, uids, "linkrLinkLikes", "uid", "id", null);
 		
 		//User's commenting on a person's link
 		System.out.println("linkrLinkComments");
-		result = statement.executeQuery("SELECT uid, from_id FROM linkrLinkComments WHERE uid IN " + idString + " AND from_id IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid");
-			Long uid2 = result.getLong("from_id");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countInteractions(friendships, uids, "linkrLinkComments", "uid", "from_id", null);
 		
 		//User's posting a link on someone else's wall
 		System.out.println("linkrLinks");
-		result = statement.executeQuery("SELECT uid, from_id FROM linkrLinks WHERE uid IN " + idString + " AND from_id IN " + idString);
-		while (result.next()) {
-			Long uid1 = result.getLong("uid");
-			Long uid2 = result.getLong("from_id");
-			
-			if (uid1 == uid2) continue;
-			
-			double val = 1;
-		
-			if (!friendships.containsKey(uid1)) {
-				friendships.put(uid1, new HashMap<Long, Double>());
-			}
-			if (!friendships.containsKey(uid2)) {
-				friendships.put(uid2, new HashMap<Long, Double>());
-			}
-			
-			if (friendships.get(uid1).containsKey(uid2)) {
-				val += friendships.get(uid1).get(uid2);
-			}
-			
-			if (val > max_value) max_value = val;
-			
-			friendships.get(uid1).put(uid2, val);
-			friendships.get(uid2).put(uid1, val);
-		}
+		countInteractions(friendships, uids, "linkrLinks", "uid", "from_id", null);
 		
 		/* NORMALIZING WITH THE AVERAGE */
 		HashSet<Long> done = new HashSet<Long>();
@@ -1482,10 +931,225 @@ public class UserUtil
 			}
 		}
 		
-		statement.close();
 		return friendships;
 	}
 	
+	/**
+	 * Adds one interaction between the two users to the interaction measure, in both directions.
+	 */
+	private static void addInteraction(Map<Long, Map<Long, Double>> friendships, long uid1, long uid2)
+	{
+		Map<Long, Double> friends1 = friendships.get(uid1);
+		if (friends1 == null) {
+			friends1 = new HashMap<Long, Double>();
+			friendships.put(uid1, friends1);
+		}
+		Map<Long, Double> friends2 = friendships.get(uid2);
+		if (friends2 == null) {
+			friends2 = new HashMap<Long, Double>();
+			friendships.put(uid2, friends2);
+		}
+		
+		double val = 1;
+		Double current = friends1.get(uid2);
+		if (current != null) {
+			val += current;
+		}
+		
+		friends1.put(uid2, val);
+		friends2.put(uid1, val);
+	}
+	
+	/**
+	 * Counts the (column1, column2) rows of a table with column1 in uids, over pairs of distinct users in uids. The rows come
+	 * from the dataset snapshot if it has the table, otherwise from a "column1 IN (?)" query that also applies the condition,
+	 * if there is one. The snapshot's copy of a table already has the condition applied, see DatasetSnapshot.getExportTables.
+	 */
+	private static void countInteractions(final Map<Long, Map<Long, Double>> friendships, final Set<Long> uids, String table, 
+											String column1, String column2, String condition)
+		throws SQLException
+	{
+		DatasetSnapshot.Table snapshotTable = DatasetSnapshot.getSnapshotTable(table);
+		if (snapshotTable != null) {
+			long[] uids1 = snapshotTable.getLongs(column1);
+			long[] uids2 = snapshotTable.getLongs(column2);
+			
+			for (int row = 0; row < uids1.length; row++) {
+				if (uids1[row] == uids2[row] || !uids.contains(uids1[row]) || !uids.contains(uids2[row])) continue;
+				
+				addInteraction(friendships, uids1[row], uids2[row]);
+			}
+			return;
+		}
+		
+		String query = "SELECT " + column1 + ", " + column2 + " FROM " + table + " WHERE "
+						+ (condition != null ? condition + " AND " : "") + column1 + " IN (?)";
+		
+		SQLUtil.fetchIn(query, uids, new SQLUtil.RowHandler() {
+			public void handle(ResultSet result)
+				throws SQLException
+			{
+				long uid1 = result.getLong(1);
+				long uid2 = result.getLong(2);
+				
+				if (uid1 == uid2 || !uids.contains(uid2)) return;
+				
+				addInteraction(friendships, uid1, uid2);
+			}
+		});
+	}
+	
+	/**
+	 * Counts the (uid1, uid2) rows of a whole table, over every pair of distinct users. The tables are read unfiltered,
+	 * as the normalization by the average counts pairs outside the training users too.
+	 */
+	private static void countTableInteractions(Map<Long, Map<Long, Double>> friendships, String table)
+		throws SQLException
+	{
+		DatasetSnapshot.Table snapshotTable = DatasetSnapshot.getSnapshotTable(table);
+		if (snapshotTable != null) {
+			long[] uids1 = snapshotTable.getLongs("uid1");
+			long[] uids2 = snapshotTable.getLongs("uid2");
+			
+			for (int row = 0; row < uids1.length; row++) {
+				if (uids1[row] == uids2[row]) continue;
+				
+				addInteraction(friendships, uids1[row], uids2[row]);
+			}
+			return;
+		}
+		
+		Statement statement = SQLUtil.getStatement();
+		ResultSet result = statement.executeQuery("SELECT uid1, uid2 FROM " + table);
+		
+		while (result.next()) {
+			long uid1 = result.getLong(1);
+			long uid2 = result.getLong(2);
+			
+			if (uid1 == uid2) continue;
+			
+			addInteraction(friendships, uid1, uid2);
+		}
+		
+		statement.close();
+	}
+	
+	/**
+	 * Counts the tags in photos of users in uids, from the snapshot's linkrPhotoTags or the database.
+	 */
+	private static void countPhotoTags(TagCounter counter)
+		throws SQLException
+	{
+		DatasetSnapshot.Table tags = DatasetSnapshot.getSnapshotTable("linkrPhotoTags");
+		if (tags != null) {
+			long[] owners = tags.getLongs("uid1");
+			long[] tagged = tags.getLongs("uid2");
+			long[] photos = tags.getLongs("photo_id");
+			
+			for (int row = 0; row < owners.length; row++) {
+				counter.add(owners[row], tagged[row], photos[row]);
+			}
+			return;
+		}
+		
+		counter.fetch("SELECT uid1, uid2, photo_id FROM linkrPhotoTags WHERE uid1 IN (?)");
+	}
+	
+	/**
+	 * Counts the tags in videos of users in uids. The owner of a video is its uid in linkrVideos, so the snapshot's
+	 * linkrVideoTags rows are joined to linkrVideos by video id as the query does.
+	 */
+	private static void countVideoTags(TagCounter counter)
+		throws SQLException
+	{
+		DatasetSnapshot.Table tags = DatasetSnapshot.getSnapshotTable("linkrVideoTags");
+		DatasetSnapshot.Table videos = DatasetSnapshot.getSnapshotTable("linkrVideos");
+		if (tags != null && videos != null) {
+			long[] videoIds = videos.getLongs("id");
+			long[] videoOwners = videos.getLongs("uid");
+			
+			HashMap<Long, TLongArrayList> owners = new HashMap<Long, TLongArrayList>();
+			for (int row = 0; row < videoIds.length; row++) {
+				TLongArrayList videoOwner = owners.get(videoIds[row]);
+				if (videoOwner == null) {
+					videoOwner = new TLongArrayList(1);
+					owners.put(videoIds[row], videoOwner);
+				}
+				videoOwner.add(videoOwners[row]);
+			}
+			
+			long[] tagged = tags.getLongs("uid2");
+			long[] tagVideos = tags.getLongs("video_id");
+			
+			for (int row = 0; row < tagged.length; row++) {
+				TLongArrayList videoOwner = owners.get(tagVideos[row]);
+				if (videoOwner == null) continue;
+				
+				for (int x = 0; x < videoOwner.size(); x++) {
+					counter.add(videoOwner.get(x), tagged[row], tagVideos[row]);
+				}
+			}
+			return;
+		}
+		
+		counter.fetch("SELECT l.uid, t.uid2, t.video_id FROM linkrVideos l, linkrVideoTags t WHERE t.video_id=l.id AND l.uid IN (?)");
+	}
+	
+	/**
+	 * Counts (owner, tagged, item) tag rows for the interaction measure. Besides the owner and the tagged user, every pair of
+	 * users tagged in the same item gets an interaction. Only rows whose owner and tagged user are in uids are counted.
+	 */
+	private static class TagCounter
+	{
+		private Map<Long, Map<Long, Double>> friendships;
+		private Set<Long> uids;
+		private HashMap<Long, HashSet<Long>> itemTags = new HashMap<Long, HashSet<Long>>();
+		
+		TagCounter(Map<Long, Map<Long, Double>> friendships, Set<Long> uids)
+		{
+			this.friendships = friendships;
+			this.uids = uids;
+		}
+		
+		void add(long uid1, long uid2, long itemId)
+		{
+			if (uid1 == uid2 || !uids.contains(uid1) || !uids.contains(uid2)) return;
+			
+			addInteraction(friendships, uid1, uid2);
+			
+			HashSet<Long> tagged = itemTags.get(itemId); //Users that were already tagged in this item
+			if (tagged == null) {
+				tagged = new HashSet<Long>();
+				itemTags.put(itemId, tagged);
+			}
+			
+			if (tagged.contains(uid2)) return;
+			
+			//Given the new tagged user, increment the interaction count between the user and
+			//all users that were already tagged in the item.
+			for (long alreadyTagged : tagged) {
+				addInteraction(friendships, alreadyTagged, uid2);
+			}
+			
+			tagged.add(uid2);
+		}
+		
+		/**
+		 * Counts the rows of a tag query with a "uid IN (?)" on the owner.
+		 */
+		void fetch(String query)
+			throws SQLException
+		{
+			SQLUtil.fetchIn(query, uids, new SQLUtil.RowHandler() {
+				public void handle(ResultSet result)
+					throws SQLException
+				{
+					add(result.getLong(1), result.getLong(2), result.getLong(3));
+				}
+			});
+		}
+	}
+	
 	public static Set<Long> getAppUsersWithAlgorithm(String algo)
 		throws SQLException
 	{
@@ -16,9 +16,11 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 
 import org.nicta.lr.util.*;
 
@@ -42,7 +44,7 @@ public class DataGeneratorPassiveActive {
 	public static ArrayList<EInteractionType> _featuresInt = null;
 	public static ArrayList<EDirectionType>   _featuresDir = null;
 	public static Map<Long,Set<Long>> _uid2all_passive_linkids_likes = null;
-	public static Map<Long, Map<Long, Double>> friendships = null; 
+	public static SocialGraph friendships = null; 
 	public static Map<Long,Set<Long>> _uid2linkids_likes = null;
 	public static Map<Long,Set<Long>> _uid2linkids_dislikes = null;
 	public static Map<EInteractionType,Map<EDirectionType,Map<Long,Set<Long>>>> _int_dir2uid_linkid = null;
@@ -78,7 +80,7 @@ public class DataGeneratorPassiveActive {
 		topNWords = PredictiveWords.getTopN(topWordsN);
 		// For all uids in the DB, get their set of LINK likes 
 		_uid2all_passive_linkids_likes = UserUtil.getLikes(ELikeType.LINK);
-		friendships = UserUtil.getFriendships();
+		friendships = UserUtil.getFriendGraph();
 
 		if (active_likes) {
 
@@ -378,9 +380,11 @@ public class DataGeneratorPassiveActive {
 					StringBuffer columns = new StringBuffer(uid + "," + link_id + "," + rating);
 
 					int friendLikes = 0;
-					if (friendships.get(uid) != null){
-						for (Entry<Long, Double> friend : friendships.get(uid).entrySet()){	// all friends
-							if (_uid2all_passive_linkids_likes.get(friend.getKey()) != null && _uid2all_passive_linkids_likes.get(friend.getKey()).contains(link_id)){
+					int row = friendships.getIndex(uid);
+					if (row >= 0){
+						for (int pos = friendships.getOffset(row); pos < friendships.getOffset(row + 1); pos++){	// all friends
+							long friend = friendships.getId(friendships.getNeighbours()[pos]);
+							if (_uid2all_passive_linkids_likes.get(friend) != null && _uid2all_passive_linkids_likes.get(friend).contains(link_id)){
 								friendLikes++;
 							}
 						}
@@ -500,9 +504,28 @@ public class DataGeneratorPassiveActive {
 		}
 		statement.close();
 
-		extractGroups();
-		extractPages();
-		extractTraits();
+		//Groups, pages and traits fill separate maps, so they can be read at the same time on pooled connections
+		List<Callable<Object>> extractors = new ArrayList<Callable<Object>>();
+		extractors.add(new Callable<Object>() {
+			public Object call() throws Exception{
+				extractGroups();
+				return null;
+			}
+		});
+		extractors.add(new Callable<Object>() {
+			public Object call() throws Exception{
+				extractPages();
+				return null;
+			}
+		});
+		extractors.add(new Callable<Object>() {
+			public Object call() throws Exception{
+				extractTraits();
+				return null;
+			}
+		});
+		SQLUtil.runConcurrently(extractors, extractors.size());
+
 		extractMessagesHack();
 		//extractMessages();
 	}